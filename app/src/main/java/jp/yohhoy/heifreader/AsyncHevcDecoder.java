@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) 2017 yohhoy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package jp.yohhoy.heifreader;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * HEVC decoder which decodes without blocking caller thread
+ *
+ * HeifDecoder uses this interface for asynchronous decoding if available, otherwise
+ * {@link HevcDecoder#decode} is called on worker thread.
+ */
+interface AsyncHevcDecoder extends HevcDecoder {
+    /**
+     * Decode HEVC image asynchronously.
+     *
+     * Parameters are same as {@link HevcDecoder#decode}, and the output may be called on
+     * another thread before the future is completed.
+     * Cancellation of the future stops decoding in progress.
+     *
+     * @return The future which is completed with true if the image is decoded, or false if
+     * the output format is not supported.
+     */
+    DecodeFuture<Boolean> decodeAsync(HevcConfig config, int width, int height, List<ByteBuffer> bitstream,
+                                      int format, Output output);
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2017 yohhoy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package jp.yohhoy.heifreader;
+
+import android.graphics.Bitmap;
+
+/**
+ * Pool of reusable Bitmaps for HeifDecoder
+ *
+ * Bitmaps which are no longer displayed can be returned to the pool with {@link #recycle(Bitmap)},
+ * and HeifDecoder reuses their pixel memory for later decoding (see
+ * {@link HeifDecoder.Builder#setBitmapPool(BitmapPool)}). A pooled Bitmap is reconfigured to
+ * smaller or equal size, so Bitmaps up to twice of required byte size are reused.
+ * When total size exceeds limit, least recently pooled Bitmaps are recycled.
+ * This class is thread-safe.
+ */
+public final class BitmapPool {
+    private final SizeBucketPool<Bitmap> mPool;
+
+    /**
+     * @param maxBytes maximum total byte size of pooled Bitmaps.
+     */
+    public BitmapPool(long maxBytes) {
+        mPool = new SizeBucketPool<>(new SizeBucketPool.Allocator<Bitmap>() {
+            @Override
+            public int byteCount(Bitmap bitmap) {
+                return bitmap.getAllocationByteCount();
+            }
+
+            @Override
+            public void release(Bitmap bitmap) {
+                bitmap.recycle();
+            }
+        }, maxBytes);
+    }
+
+    /**
+     * Get a Bitmap which has the specified size and config.
+     *
+     * @return The reconfigured Bitmap, or null if there is no Bitmap to reuse.
+     */
+    public Bitmap get(int width, int height, Bitmap.Config config) {
+        final int byteCount = width * height * bytesPerPixel(config);
+        Bitmap bitmap = mPool.acquire(byteCount, 2 * byteCount);
+        if (bitmap != null
+                && (bitmap.getWidth() != width || bitmap.getHeight() != height || bitmap.getConfig() != config)) {
+            bitmap.reconfigure(width, height, config);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Return a Bitmap to the pool. The Bitmap shall not be used after this call.
+     *
+     * Immutable or recycled Bitmaps are ignored.
+     */
+    public void recycle(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()) {
+            return;
+        }
+        mPool.recycle(bitmap);
+    }
+
+    /**
+     * Recycle all pooled Bitmaps.
+     */
+    public void clear() {
+        mPool.clear();
+    }
+
+    /**
+     * @return total byte size of pooled Bitmaps.
+     */
+    public long getPooledBytes() {
+        return mPool.getTotalBytes();
+    }
+
+    static int bytesPerPixel(Bitmap.Config config) {
+        switch (config) {
+            case ALPHA_8:
+                return 1;
+            case RGB_565:
+            case ARGB_4444:
+                return 2;
+            default:
+                return 4;
+        }
+    }
+}
@@ -0,0 +1,501 @@
+/*
+ * Copyright (c) 2017 yohhoy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package jp.yohhoy.heifreader;
+
+import android.graphics.ImageFormat;
+import android.media.Image;
+import android.media.ImageReader;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Started HEVC decoder with ImageReader as output surface
+ *
+ * The session is reused for multiple images: each decoding sends parameter sets as codec config
+ * buffer, and flushes decoder after output.
+ * The decoder runs in asynchronous callback mode, and all codec state is confined to the handler
+ * thread, so no thread is blocked while waiting for the decoder. A decoding which does not
+ * finish within timeout fails, and the session is broken.
+ */
+final class CodecSession {
+    private static final String TAG = "HeifReader";
+
+    /**
+     * Session key
+     *
+     * Sessions are keyed by exact image size, not by size bucket. The output ImageReader has fixed
+     * size, and replacing the output surface of started decoder (MediaCodec.setOutputSurface)
+     * requires API 23, so a session of other size would need stop/configure/start anyway, which is
+     * the cost of a new session. Tiles of 'grid' image share one size, and so do most images of
+     * one camera, so exact size is enough for reuse. Only input buffer size is bucketed.
+     */
+    static final class Key {
+        final String codecName;
+        final int width;
+        final int height;
+        final int maxInputSize;
+        final int imageFormat;
+
+        /**
+         * @param maxInputSize required input size of Annex.B bitstream, which is rounded up to power of two.
+         */
+        Key(String codecName, int width, int height, int maxInputSize, int imageFormat) {
+            this.codecName = codecName;
+            this.width = width;
+            this.height = height;
+            this.maxInputSize = Math.max(Integer.highestOneBit(maxInputSize - 1) << 1, 64 * 1024);
+            this.imageFormat = imageFormat;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key key = (Key) o;
+            return width == key.width && height == key.height && maxInputSize == key.maxInputSize
+                    && imageFormat == key.imageFormat && codecName.equals(key.codecName);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = codecName.hashCode();
+            result = 31 * result + width;
+            result = 31 * result + height;
+            result = 31 * result + maxInputSize;
+            result = 31 * result + imageFormat;
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            return "Key[codec=" + codecName + ";size=" + width + "x" + height
+                    + ";maxInputSize=" + maxInputSize + ";format=" + imageFormat + "]";
+        }
+    }
+
+    /**
+     * Factory for DecoderPool
+     */
+    static final class Factory implements DecoderPool.SessionFactory<Key, CodecSession> {
+        private final Handler mHandler;
+        private final HeifMetrics mMetrics;
+
+        /**
+         * @param handler handler for MediaCodec and ImageReader callback.
+         * @param metrics receiver of configure stage, or null.
+         */
+        Factory(Handler handler, HeifMetrics metrics) {
+            mHandler = handler;
+            mMetrics = metrics;
+        }
+
+        @Override
+        public CodecSession create(final Key key) throws IOException {
+            // MediaCodec callbacks are called on the looper of creating thread (before API 23)
+            return callOnHandler(mHandler, new Callable<CodecSession>() {
+                @Override
+                public CodecSession call() throws IOException {
+                    return createSession(key);
+                }
+            });
+        }
+
+        private CodecSession createSession(Key key) throws IOException {
+            final long beginTime = System.nanoTime();
+            ImageReader reader = ImageReader.newInstance(key.width, key.height, key.imageFormat, 1);
+            MediaCodec codec = null;
+            try {
+                codec = MediaCodec.createByCodecName(key.codecName);
+                CodecSession session = new CodecSession(codec, reader, mHandler);
+                MediaFormat inputFormat = MediaFormat.createVideoFormat(
+                        MediaFormat.MIMETYPE_VIDEO_HEVC, key.width, key.height);
+                inputFormat.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, key.maxInputSize);
+                Log.d(TAG, "HEVC input-format=" + inputFormat);
+                codec.configure(inputFormat, reader.getSurface(), null, 0);
+                Log.d(TAG, "HEVC output-format=" + codec.getOutputFormat());
+                codec.start();
+                if (mMetrics != null) {
+                    mMetrics.onEvent(new HeifMetrics.Event(HeifMetrics.STAGE_CONFIGURE, System.nanoTime() - beginTime,
+                            key.maxInputSize, key.width, key.height, key.imageFormat == ImageFormat.RGB_565));
+                }
+                return session;
+            } catch (IOException | RuntimeException ex) {
+                if (codec != null) {
+                    codec.release();
+                }
+                reader.close();
+                throw ex;
+            }
+        }
+
+        @Override
+        public void release(CodecSession session) {
+            session.release();
+        }
+    }
+
+    /**
+     * Run task on handler thread, and wait for its result.
+     */
+    private static <T> T callOnHandler(Handler handler, final Callable<T> task) throws IOException {
+        if (handler.getLooper() == Looper.myLooper()) {
+            try {
+                return task.call();
+            } catch (IOException | RuntimeException ex) {
+                throw ex;
+            } catch (Exception ex) {
+                throw new IOException(ex);
+            }
+        }
+        final DecodeFuture<T> future = new DecodeFuture<>();
+        boolean posted = handler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    future.complete(task.call());
+                } catch (Exception ex) {
+                    future.fail(ex);
+                }
+            }
+        });
+        if (!posted) {
+            throw new IOException("decoder thread is terminated");
+        }
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted", ex);
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Decoding of an image
+     */
+    private static final class Job {
+        private static final int INPUT_PARAMSET = 0;
+        private static final int INPUT_BITSTREAM = 1;
+        private static final int INPUT_EOS = 2;
+        private static final int INPUT_DONE = 3;
+
+        final ByteBuffer paramset;
+        final List<ByteBuffer> bitstream;
+        final int nalLengthSize;
+        final DecodeFuture<Image> future;
+        int nextInput = INPUT_PARAMSET;
+        boolean rendered;
+        Runnable timeout;
+
+        Job(ByteBuffer paramset, List<ByteBuffer> bitstream, int nalLengthSize) {
+            this.paramset = paramset;
+            this.bitstream = bitstream;
+            this.nalLengthSize = nalLengthSize;
+            this.future = new DecodeFuture<>();
+        }
+    }
+
+    private final MediaCodec mCodec;
+    private final ImageReader mReader;
+    private final Handler mHandler;
+    // following states are accessed on handler thread only
+    private final ArrayDeque<Integer> mInputBuffers = new ArrayDeque<>();
+    // false between flush and restart, to ignore stale callbacks
+    private boolean mAccepting = true;
+    private Job mJob;
+    private boolean mBroken;
+
+    private CodecSession(MediaCodec codec, ImageReader reader, Handler handler) {
+        mCodec = codec;
+        mReader = reader;
+        mHandler = handler;
+        // callback shall be set before configure
+        mCodec.setCallback(new MediaCodec.Callback() {
+            @Override
+            public void onInputBufferAvailable(MediaCodec codec, int index) {
+                if (mAccepting) {
+                    mInputBuffers.add(index);
+                    feedInput();
+                }
+            }
+
+            @Override
+            public void onOutputBufferAvailable(MediaCodec codec, int index, MediaCodec.BufferInfo info) {
+                if (mAccepting) {
+                    onOutputBuffer(index, info);
+                }
+            }
+
+            @Override
+            public void onError(MediaCodec codec, MediaCodec.CodecException ex) {
+                Log.w(TAG, "HEVC decoder error", ex);
+                mBroken = true;
+                if (mJob != null) {
+                    abort(mJob, new IOException("HEVC decoder error", ex));
+                }
+            }
+
+            @Override
+            public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+                Log.d(TAG, "HEVC output-format=" + format);
+            }
+        });
+        mReader.setOnImageAvailableListener(new ImageReader.OnImageAvailableListener() {
+            @Override
+            public void onImageAvailable(ImageReader reader) {
+                onImage();
+            }
+        }, handler);
+    }
+
+    /**
+     * Decode HEVC image asynchronously.
+     *
+     * The future is completed on handler thread, and FormatFallbackException is reported as failure
+     * if the decoded image could not be acquired in requested format.
+     * Only one image can be decoded at a time in a session.
+     *
+     * @param paramset parameter sets in Annex.B format.
+     * @param bitstream HEVC bitstream in hvcC format, which may be split into multiple extents.
+     * @param nalLengthSize byte length of NAL unit length field in bitstream.
+     * @param timeoutMsec timeout of decoding, which fails with TimeoutException.
+     * @return The future of decoded image, which shall be closed by caller.
+     */
+    DecodeFuture<Image> decode(ByteBuffer paramset, List<ByteBuffer> bitstream, int nalLengthSize,
+                               final long timeoutMsec) {
+        final Job job = new Job(paramset, bitstream, nalLengthSize);
+        job.future.setCancelAction(new Runnable() {
+            @Override
+            public void run() {
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        abort(job, null);
+                    }
+                });
+            }
+        });
+        boolean posted = mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                start(job, timeoutMsec);
+            }
+        });
+        if (!posted) {
+            job.future.fail(new IllegalStateException("decoder thread is terminated"));
+        }
+        return job.future;
+    }
+
+    private void start(final Job job, long timeoutMsec) {
+        if (job.future.isDone()) {
+            return;
+        }
+        if (mBroken || mJob != null) {
+            job.future.fail(new IllegalStateException("HEVC decoder is not available"));
+            return;
+        }
+        mJob = job;
+        job.timeout = new Runnable() {
+            @Override
+            public void run() {
+                abort(job, new TimeoutException("HEVC decoding timed out"));
+            }
+        };
+        mHandler.postDelayed(job.timeout, timeoutMsec);
+        feedInput();
+    }
+
+    private void feedInput() {
+        final Job job = mJob;
+        if (job == null) {
+            return;
+        }
+        try {
+            while (job.nextInput != Job.INPUT_DONE && !mInputBuffers.isEmpty()) {
+                int inputBufferId = mInputBuffers.poll();
+                switch (job.nextInput) {
+                    case Job.INPUT_PARAMSET: {
+                        // set parameter sets to decoder
+                        ByteBuffer inBuffer = mCodec.getInputBuffer(inputBufferId);
+                        int size = job.paramset.remaining();
+                        inBuffer.put(job.paramset.duplicate());
+                        mCodec.queueInputBuffer(inputBufferId, 0, size, 0, MediaCodec.BUFFER_FLAG_CODEC_CONFIG);
+                        break;
+                    }
+                    case Job.INPUT_BITSTREAM: {
+                        // set bitstream to decoder
+                        ByteBuffer inBuffer = mCodec.getInputBuffer(inputBufferId);
+                        int size = HevcBitstream.toAnnexB(job.bitstream, job.nalLengthSize, inBuffer);
+                        mCodec.queueInputBuffer(inputBufferId, 0, size, 0, 0);
+                        break;
+                    }
+                    default:
+                        // notify end of stream
+                        mCodec.queueInputBuffer(inputBufferId, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                        break;
+                }
+                job.nextInput++;
+            }
+        } catch (RuntimeException ex) {
+            abort(job, ex);
+        }
+    }
+
+    private void onOutputBuffer(int index, MediaCodec.BufferInfo info) {
+        final Job job = mJob;
+        try {
+            if (job != null && !job.rendered
+                    && (info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) == 0) {
+                // render decoded image to ImageReader
+                job.rendered = true;
+                mCodec.releaseOutputBuffer(index, true);
+                return;
+            }
+            mCodec.releaseOutputBuffer(index, false);
+            if (job != null && !job.rendered) {
+                abort(job, new IOException("no HEVC image is decoded"));
+            }
+        } catch (RuntimeException ex) {
+            if (job != null) {
+                abort(job, ex);
+            }
+        }
+    }
+
+    private void onImage() {
+        final Job job = mJob;
+        if (job == null || !job.rendered) {
+            // stale image of aborted decoding
+            try {
+                Image image = mReader.acquireNextImage();
+                if (image != null) {
+                    image.close();
+                }
+            } catch (RuntimeException ex) {
+                Log.d(TAG, "HEVC stale image is dropped", ex);
+            }
+            return;
+        }
+        Image image;
+        try {
+            image = mReader.acquireNextImage();
+        } catch (UnsupportedOperationException ex) {
+            finish(job, null, new FormatFallbackException(ex));
+            return;
+        } catch (RuntimeException ex) {
+            abort(job, ex);
+            return;
+        }
+        finish(job, image, null);
+    }
+
+    /**
+     * Reset decoder for next image, then complete the job.
+     */
+    private void finish(Job job, Image image, Throwable error) {
+        mHandler.removeCallbacks(job.timeout);
+        mJob = null;
+        try {
+            mCodec.flush();
+            mInputBuffers.clear();
+            // restart after callbacks which are queued before flush
+            mAccepting = false;
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (mBroken) {
+                        return;
+                    }
+                    mAccepting = true;
+                    try {
+                        mCodec.start();
+                    } catch (IllegalStateException ex) {
+                        Log.w(TAG, "HEVC decoder restart failure", ex);
+                        mBroken = true;
+                    }
+                }
+            });
+        } catch (IllegalStateException ex) {
+            Log.w(TAG, "HEVC decoder flush failure", ex);
+            mBroken = true;
+        }
+        boolean completed = (error == null) ? job.future.complete(image) : job.future.fail(error);
+        if (!completed && image != null) {
+            image.close();
+        }
+    }
+
+    /**
+     * Abort the job, and the decoder is left in unknown state.
+     *
+     * @param error cause of failure, or null if cancelled.
+     */
+    private void abort(Job job, Throwable error) {
+        if (mJob != job) {
+            return;
+        }
+        mHandler.removeCallbacks(job.timeout);
+        mJob = null;
+        mBroken = true;
+        if (error != null) {
+            job.future.fail(error);
+        }
+    }
+
+    void release() {
+        try {
+            mCodec.stop();
+        } catch (IllegalStateException ex) {
+            Log.w(TAG, "HEVC decoder stop failure", ex);
+        }
+        mCodec.release();
+        mReader.close();
+    }
+
+    /**
+     * Requested image format is not supported by decoder output.
+     */
+    static final class FormatFallbackException extends Exception {
+        FormatFallbackException(Throwable ex) {
+            super(ex);
+        }
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright (c) 2017 yohhoy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package jp.yohhoy.heifreader;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Result of asynchronous decoding
+ *
+ * Minimal completable future, because java.util.concurrent.CompletableFuture requires API 24.
+ * The future is completed by decoder, and listeners are called on the completing thread
+ * (or immediately if already completed). Cancellation stops decoding in progress.
+ *
+ * @param <T> result type.
+ */
+public final class DecodeFuture<T> implements Future<T> {
+    /**
+     * Listener of completion
+     */
+    public interface Listener<T> {
+        /**
+         * Called once when the future is completed, failed or cancelled.
+         */
+        void onComplete(DecodeFuture<T> future);
+    }
+
+    private static final int PENDING = 0;
+    private static final int SUCCEEDED = 1;
+    private static final int FAILED = 2;
+    private static final int CANCELLED = 3;
+    private static final Runnable NO_ACTION = new Runnable() {
+        @Override
+        public void run() {
+        }
+    };
+
+    private int mState = PENDING;
+    private T mValue;
+    private Throwable mError;
+    private List<Listener<T>> mListeners = new ArrayList<>();
+    private Runnable mCancelAction = NO_ACTION;
+
+    DecodeFuture() {
+    }
+
+    /**
+     * Run task on executor as future. Cancellation interrupts the task.
+     */
+    static <T> DecodeFuture<T> submit(ExecutorService executor, final Callable<T> task) {
+        final DecodeFuture<T> future = new DecodeFuture<>();
+        final Future<?> submitted;
+        try {
+            submitted = executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        future.complete(task.call());
+                    } catch (Exception | Error ex) {
+                        future.fail(ex);
+                    }
+                }
+            });
+        } catch (RuntimeException ex) {
+            future.fail(ex);
+            return future;
+        }
+        future.setCancelAction(new Runnable() {
+            @Override
+            public void run() {
+                submitted.cancel(true);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Set action on cancellation, which is run immediately if already cancelled.
+     */
+    void setCancelAction(Runnable action) {
+        synchronized (this) {
+            if (mState == PENDING) {
+                mCancelAction = action;
+                return;
+            } else if (mState != CANCELLED) {
+                return;
+            }
+        }
+        action.run();
+    }
+
+    /**
+     * @return true if the future is completed by this call.
+     */
+    boolean complete(T value) {
+        return finish(SUCCEEDED, value, null) != null;
+    }
+
+    /**
+     * @return true if the future is failed by this call.
+     */
+    boolean fail(Throwable error) {
+        return finish(FAILED, null, error) != null;
+    }
+
+    /**
+     * Cancel decoding. Resources of decoding in progress are released asynchronously.
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        Runnable action = finish(CANCELLED, null, null);
+        if (action == null) {
+            return false;
+        }
+        action.run();
+        return true;
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return mState == CANCELLED;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return mState != PENDING;
+    }
+
+    /**
+     * @return true if the future is completed successfully.
+     */
+    public synchronized boolean isSucceeded() {
+        return mState == SUCCEEDED;
+    }
+
+    @Override
+    public synchronized T get() throws InterruptedException, ExecutionException {
+        while (mState == PENDING) {
+            wait();
+        }
+        return result();
+    }
+
+    @Override
+    public synchronized T get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        long remaining = unit.toNanos(timeout);
+        final long deadline = System.nanoTime() + remaining;
+        while (mState == PENDING) {
+            if (remaining <= 0) {
+                throw new TimeoutException();
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            remaining = deadline - System.nanoTime();
+        }
+        return result();
+    }
+
+    /**
+     * Add listener, which is called on the completing thread, or immediately if already done.
+     */
+    public void addListener(Listener<T> listener) {
+        synchronized (this) {
+            if (mState == PENDING) {
+                mListeners.add(listener);
+                return;
+            }
+        }
+        listener.onComplete(this);
+    }
+
+    private T result() throws ExecutionException {
+        switch (mState) {
+            case SUCCEEDED:
+                return mValue;
+            case FAILED:
+                throw new ExecutionException(mError);
+            default:
+                throw new CancellationException();
+        }
+    }
+
+    /**
+     * Cancel action is taken under the same lock as the state change, so an action replaced
+     * concurrently is either run by {@link #cancel} or by {@link #setCancelAction} itself.
+     *
+     * @return the cancel action (or NO_ACTION) if the future is finished by this call, otherwise null.
+     */
+    private Runnable finish(int state, T value, Throwable error) {
+        List<Listener<T>> listeners;
+        Runnable action;
+        synchronized (this) {
+            if (mState != PENDING) {
+                return null;
+            }
+            mState = state;
+            mValue = value;
+            mError = error;
+            action = mCancelAction;
+            mCancelAction = null;
+            listeners = mListeners;
+            mListeners = null;
+            notifyAll();
+        }
+        for (Listener<T> listener : listeners) {
+            listener.onComplete(this);
+        }
+        return action;
+    }
+}
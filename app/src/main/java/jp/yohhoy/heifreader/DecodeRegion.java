@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2017 yohhoy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package jp.yohhoy.heifreader;
+
+/**
+ * Region of image to be decoded
+ *
+ * Crop rectangle in image coordinates and downsampling factor. Decoded output has
+ * ceil(width / sampleSize) x ceil(height / sampleSize) pixels, and each output pixel is
+ * the average of sampleSize x sampleSize box (see {@link YuvConverter}).
+ */
+final class DecodeRegion {
+    final int left;
+    final int top;
+    final int width;
+    final int height;
+    final int sampleSize;
+
+    DecodeRegion(int left, int top, int width, int height, int sampleSize) {
+        if (left < 0 || top < 0 || width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("invalid region(" + left + "," + top + " " + width + "x" + height + ")");
+        }
+        if (sampleSize < 1) {
+            throw new IllegalArgumentException("invalid sampleSize(" + sampleSize + ")");
+        }
+        this.left = left;
+        this.top = top;
+        this.width = width;
+        this.height = height;
+        this.sampleSize = sampleSize;
+    }
+
+    /**
+     * Whole image without downsampling.
+     */
+    static DecodeRegion full(int imageWidth, int imageHeight) {
+        return new DecodeRegion(0, 0, imageWidth, imageHeight, 1);
+    }
+
+    int right() {
+        return left + width;
+    }
+
+    int bottom() {
+        return top + height;
+    }
+
+    int outputWidth() {
+        return (width + sampleSize - 1) / sampleSize;
+    }
+
+    int outputHeight() {
+        return (height + sampleSize - 1) / sampleSize;
+    }
+
+    /**
+     * @return true if the region is whole image without downsampling.
+     */
+    boolean isFull(int imageWidth, int imageHeight) {
+        return left == 0 && top == 0 && width == imageWidth && height == imageHeight && sampleSize == 1;
+    }
+
+    /**
+     * @return true if the rectangle overlaps the region.
+     */
+    boolean intersects(int x, int y, int w, int h) {
+        return x < right() && left < x + w && y < bottom() && top < y + h;
+    }
+
+    /**
+     * Get the largest sample size which keeps output not smaller than target size.
+     *
+     * @param targetWidth target width, or 0 if not constrained.
+     * @param targetHeight target height, or 0 if not constrained.
+     * @return The sample size, which is 1 if target size is larger than the image.
+     */
+    static int sampleSizeForTarget(int width, int height, int targetWidth, int targetHeight) {
+        int sampleSize = Integer.MAX_VALUE;
+        if (0 < targetWidth) {
+            sampleSize = Math.min(sampleSize, width / targetWidth);
+        }
+        if (0 < targetHeight) {
+            sampleSize = Math.min(sampleSize, height / targetHeight);
+        }
+        if (sampleSize == Integer.MAX_VALUE) {
+            return 1;
+        }
+        return Math.max(1, sampleSize);
+    }
+
+    @Override
+    public String toString() {
+        return "DecodeRegion[" + left + "," + top + " " + width + "x" + height + ";sampleSize=" + sampleSize + "]";
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2017 yohhoy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package jp.yohhoy.heifreader;
+
+import java.util.Arrays;
+
+/**
+ * Capability of a MediaCodec HEVC decoder
+ *
+ * Limits are read from MediaCodecInfo by {@link DecoderProbe}, and kept in persisted file.
+ * Size limits follow MediaCodecInfo.VideoCapabilities; width and height are limited separately,
+ * and number of pixels is also limited (e.g. 4096x2304 decoder may not decode 4096x4096 image).
+ */
+final class DecoderCapability {
+    final String name;
+    /** true if the decoder is software implementation. */
+    final boolean software;
+    final int maxWidth;
+    final int maxHeight;
+    /** maximum number of pixels of a frame. */
+    final long maxPixels;
+    final int widthAlignment;
+    final int heightAlignment;
+    /** supported color formats. (MediaCodecInfo.CodecCapabilities.COLOR_*) */
+    final int[] colorFormats;
+    /** true if Main10 profile is supported. */
+    final boolean main10;
+    /** maximum number of concurrent instances, or 0 if unknown. (before API 23) */
+    final int maxInstances;
+
+    DecoderCapability(String name, boolean software, int maxWidth, int maxHeight, long maxPixels,
+                      int widthAlignment, int heightAlignment, int[] colorFormats, boolean main10, int maxInstances) {
+        this.name = name;
+        this.software = software;
+        this.maxWidth = maxWidth;
+        this.maxHeight = maxHeight;
+        this.maxPixels = maxPixels;
+        this.widthAlignment = widthAlignment;
+        this.heightAlignment = heightAlignment;
+        this.colorFormats = colorFormats;
+        this.main10 = main10;
+        this.maxInstances = maxInstances;
+    }
+
+    /**
+     * @return true if the decoder supports image of the size, which is rounded up to alignment.
+     */
+    boolean supportsSize(int width, int height) {
+        final long alignedWidth = roundUp(width, widthAlignment);
+        final long alignedHeight = roundUp(height, heightAlignment);
+        return alignedWidth <= maxWidth && alignedHeight <= maxHeight && alignedWidth * alignedHeight <= maxPixels;
+    }
+
+    private static long roundUp(int value, int alignment) {
+        return (alignment <= 1) ? value : ((long) value + alignment - 1) / alignment * alignment;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        DecoderCapability that = (DecoderCapability) o;
+        return software == that.software && maxWidth == that.maxWidth && maxHeight == that.maxHeight
+                && maxPixels == that.maxPixels && widthAlignment == that.widthAlignment
+                && heightAlignment == that.heightAlignment && main10 == that.main10
+                && maxInstances == that.maxInstances && name.equals(that.name)
+                && Arrays.equals(colorFormats, that.colorFormats);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = name.hashCode();
+        result = 31 * result + (software ? 1 : 0);
+        result = 31 * result + maxWidth;
+        result = 31 * result + maxHeight;
+        result = 31 * result + (int) (maxPixels ^ (maxPixels >>> 32));
+        result = 31 * result + widthAlignment;
+        result = 31 * result + heightAlignment;
+        result = 31 * result + Arrays.hashCode(colorFormats);
+        result = 31 * result + (main10 ? 1 : 0);
+        result = 31 * result + maxInstances;
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "DecoderCapability[\"" + name + "\"" + (software ? "(sw)" : "")
+                + ";max-size=" + maxWidth + "x" + maxHeight + ";max-pixels=" + maxPixels
+                + ";alignment=" + widthAlignment + "x" + heightAlignment + ";color-formats=" + Arrays.toString(colorFormats) + ";main10=" + main10
+                + ";max-instances=" + maxInstances + "]";
+    }
+}
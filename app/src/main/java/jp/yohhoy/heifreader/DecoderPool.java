@@ -0,0 +1,228 @@
+/*
+ * Copyright (c) 2017 yohhoy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package jp.yohhoy.heifreader;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pool of started decoder sessions
+ *
+ * Idle sessions are kept per key and reused by later decoding, and released after idle timeout
+ * or when the number of idle sessions exceeds limit (least recently used first).
+ *
+ * @param <K> session key type, which shall implement equals/hashCode.
+ * @param <S> session type.
+ */
+final class DecoderPool<K, S> {
+    /**
+     * Create/release decoder session.
+     */
+    interface SessionFactory<K, S> {
+        S create(K key) throws IOException;
+
+        void release(S session);
+    }
+
+    /**
+     * Monotonic time source.
+     */
+    interface Ticker {
+        long nanoTime();
+    }
+
+    private static final Ticker SYSTEM_TICKER = new Ticker() {
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+    };
+
+    private final SessionFactory<K, S> mFactory;
+    private final long mIdleTimeoutNanos;
+    private final int mMaxIdleSessions;
+    private final Ticker mTicker;
+    private final ScheduledExecutorService mEvictor;
+    // idle sessions, least recently used first
+    private final ArrayDeque<IdleSession<K, S>> mIdleSessions = new ArrayDeque<>();
+    private boolean mEvictionScheduled;
+    private boolean mShutdown;
+
+    DecoderPool(SessionFactory<K, S> factory, long idleTimeout, TimeUnit unit, int maxIdleSessions) {
+        this(factory, unit.toNanos(idleTimeout), maxIdleSessions, SYSTEM_TICKER,
+                Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "DecoderPool-evictor");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                }));
+    }
+
+    /**
+     * @param evictor scheduler for idle timeout eviction, or null to evict on {@link #evictIdle()} only.
+     */
+    DecoderPool(SessionFactory<K, S> factory, long idleTimeoutNanos, int maxIdleSessions,
+                Ticker ticker, ScheduledExecutorService evictor) {
+        mFactory = factory;
+        mIdleTimeoutNanos = idleTimeoutNanos;
+        mMaxIdleSessions = maxIdleSessions;
+        mTicker = ticker;
+        mEvictor = evictor;
+    }
+
+    /**
+     * Lease a session, reuse idle session if exists.
+     *
+     * @param key session key.
+     * @return The session which shall be returned with {@link #recycle} or {@link #discard}.
+     * @throws IOException if new session could not be created.
+     */
+    S acquire(K key) throws IOException {
+        synchronized (this) {
+            if (mShutdown) {
+                throw new IllegalStateException("DecoderPool is shut down");
+            }
+            Iterator<IdleSession<K, S>> it = mIdleSessions.descendingIterator();
+            while (it.hasNext()) {
+                IdleSession<K, S> idle = it.next();
+                if (idle.key.equals(key)) {
+                    it.remove();
+                    return idle.session;
+                }
+            }
+        }
+        return mFactory.create(key);
+    }
+
+    /**
+     * Return a leased session which can be reused.
+     */
+    void recycle(K key, S session) {
+        List<S> evicted = new ArrayList<>();
+        synchronized (this) {
+            if (mShutdown) {
+                evicted.add(session);
+            } else {
+                long now = mTicker.nanoTime();
+                mIdleSessions.addLast(new IdleSession<>(key, session, now));
+                pollExpired(now, evicted);
+                while (mMaxIdleSessions < mIdleSessions.size()) {
+                    evicted.add(mIdleSessions.pollFirst().session);
+                }
+                scheduleEviction();
+            }
+        }
+        releaseAll(evicted);
+    }
+
+    /**
+     * Return a leased session which is broken or in unknown state.
+     */
+    void discard(S session) {
+        mFactory.release(session);
+    }
+
+    /**
+     * Release idle sessions over idle timeout.
+     *
+     * @return number of released sessions.
+     */
+    int evictIdle() {
+        List<S> evicted = new ArrayList<>();
+        synchronized (this) {
+            mEvictionScheduled = false;
+            pollExpired(mTicker.nanoTime(), evicted);
+            scheduleEviction();
+        }
+        releaseAll(evicted);
+        return evicted.size();
+    }
+
+    /**
+     * Release all idle sessions. Leased sessions are released when returned.
+     */
+    void shutdown() {
+        List<S> evicted = new ArrayList<>();
+        synchronized (this) {
+            mShutdown = true;
+            for (IdleSession<K, S> idle : mIdleSessions) {
+                evicted.add(idle.session);
+            }
+            mIdleSessions.clear();
+        }
+        releaseAll(evicted);
+        if (mEvictor != null) {
+            mEvictor.shutdownNow();
+        }
+    }
+
+    synchronized int getIdleCount() {
+        return mIdleSessions.size();
+    }
+
+    private void pollExpired(long now, List<S> evicted) {
+        while (!mIdleSessions.isEmpty() && mIdleTimeoutNanos <= now - mIdleSessions.peekFirst().since) {
+            evicted.add(mIdleSessions.pollFirst().session);
+        }
+    }
+
+    private void scheduleEviction() {
+        if (mEvictor == null || mEvictionScheduled || mIdleSessions.isEmpty()) {
+            return;
+        }
+        long delay = mIdleSessions.peekFirst().since + mIdleTimeoutNanos - mTicker.nanoTime();
+        mEvictor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                evictIdle();
+            }
+        }, Math.max(delay, 0), TimeUnit.NANOSECONDS);
+        mEvictionScheduled = true;
+    }
+
+    private void releaseAll(List<S> sessions) {
+        for (S session : sessions) {
+            mFactory.release(session);
+        }
+    }
+
+    private static final class IdleSession<K, S> {
+        final K key;
+        final S session;
+        final long since;
+
+        IdleSession(K key, S session, long since) {
+            this.key = key;
+            this.session = session;
+            this.since = since;
+        }
+    }
+}
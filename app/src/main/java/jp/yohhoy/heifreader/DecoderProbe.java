@@ -0,0 +1,299 @@
+/*
+ * Copyright (c) 2017 yohhoy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package jp.yohhoy.heifreader;
+
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.media.MediaFormat;
+import android.os.Build;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Lazy probe of HEVC decoder capabilities
+ *
+ * Scanning MediaCodecList takes tens of milliseconds, so the probe runs on background thread,
+ * and {@link #get()} blocks only until the probe is finished. The result is saved in a file
+ * with build fingerprint, and later processes on same system build read the file instead of
+ * scanning. Probes are shared by file in a process.
+ */
+final class DecoderProbe {
+    static final String FILE_NAME = "heif-decoders.bin";
+    private static final int FILE_MAGIC = 0x48455643;   // 'HEVC'
+    private static final int FILE_VERSION = 2;
+
+    /**
+     * Source of decoder capabilities
+     */
+    interface Scanner {
+        List<DecoderCapability> scan();
+    }
+
+    static final Scanner MEDIA_CODEC_LIST = new Scanner() {
+        @Override
+        public List<DecoderCapability> scan() {
+            return scanMediaCodecList();
+        }
+    };
+
+    private static final Map<String, DecoderProbe> sProbes = new HashMap<>();
+
+    private final File mFile;
+    private final String mFingerprint;
+    private final FutureTask<List<DecoderCapability>> mTask;
+
+    /**
+     * @param file persisted file, or null to scan always.
+     * @param fingerprint fingerprint of system build, which invalidates persisted file.
+     */
+    DecoderProbe(File file, String fingerprint, final Scanner scanner) {
+        mFile = file;
+        mFingerprint = fingerprint;
+        mTask = new FutureTask<>(new Callable<List<DecoderCapability>>() {
+            @Override
+            public List<DecoderCapability> call() {
+                return probe(scanner);
+            }
+        });
+    }
+
+    /**
+     * Get shared probe of MediaCodecList, which is persisted in cache directory.
+     *
+     * @param cacheDir cache directory, or null.
+     */
+    static DecoderProbe getInstance(File cacheDir) {
+        File file = (cacheDir != null) ? new File(cacheDir, FILE_NAME) : null;
+        String key = (file != null) ? file.getAbsolutePath() : "";
+        synchronized (sProbes) {
+            DecoderProbe probe = sProbes.get(key);
+            if (probe == null) {
+                probe = new DecoderProbe(file, Build.FINGERPRINT, MEDIA_CODEC_LIST);
+                sProbes.put(key, probe);
+            }
+            return probe;
+        }
+    }
+
+    /**
+     * Start probe on background thread, if not started.
+     */
+    void start() {
+        if (mTask.isDone()) {
+            return;
+        }
+        Thread thread = new Thread(mTask, "HeifDecoder-probe");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Get decoder capabilities. If the probe is not started, it runs on calling thread.
+     *
+     * @return The capabilities of HEVC decoders.
+     * @throws InterruptedIOException if the calling thread is interrupted while waiting the probe.
+     */
+    List<DecoderCapability> get() throws IOException {
+        mTask.run();    // no-op if running or done
+        try {
+            return mTask.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("HEVC decoder probe is interrupted");
+        } catch (ExecutionException ex) {
+            throw new IOException("HEVC decoder probe failure", ex.getCause());
+        }
+    }
+
+    /**
+     * Read persisted file, or scan decoders and write the file. Broken file is overwritten.
+     */
+    private List<DecoderCapability> probe(Scanner scanner) {
+        if (mFile != null) {
+            try {
+                List<DecoderCapability> decoders = load(mFile, mFingerprint);
+                if (decoders != null) {
+                    return decoders;
+                }
+            } catch (IOException ex) {
+                // scan again
+            }
+        }
+        List<DecoderCapability> decoders = Collections.unmodifiableList(scanner.scan());
+        if (mFile != null) {
+            try {
+                save(mFile, mFingerprint, decoders);
+            } catch (IOException ex) {
+                // scan again on next process
+            }
+        }
+        return decoders;
+    }
+
+    /**
+     * Read persisted capabilities.
+     *
+     * @return The capabilities, or null if the file does not exist or is for other build.
+     * @throws IOException if the file is broken.
+     */
+    static List<DecoderCapability> load(File file, String fingerprint) throws IOException {
+        DataInputStream in;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        } catch (FileNotFoundException ex) {
+            return null;
+        }
+        try {
+            if (in.readInt() != FILE_MAGIC || in.readInt() != FILE_VERSION || !in.readUTF().equals(fingerprint)) {
+                return null;
+            }
+            final int count = in.readInt();
+            if (count < 0) {
+                throw new IOException("invalid decoder count(" + count + ")");
+            }
+            List<DecoderCapability> decoders = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                String name = in.readUTF();
+                boolean software = in.readBoolean();
+                int maxWidth = in.readInt();
+                int maxHeight = in.readInt();
+                long maxPixels = in.readLong();
+                int widthAlignment = in.readInt();
+                int heightAlignment = in.readInt();
+                int[] colorFormats = new int[in.readUnsignedShort()];
+                for (int j = 0; j < colorFormats.length; j++) {
+                    colorFormats[j] = in.readInt();
+                }
+                boolean main10 = in.readBoolean();
+                int maxInstances = in.readInt();
+                decoders.add(new DecoderCapability(name, software, maxWidth, maxHeight, maxPixels,
+                        widthAlignment, heightAlignment, colorFormats, main10, maxInstances));
+            }
+            return Collections.unmodifiableList(decoders);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Write capabilities into temporary file, then rename it.
+     */
+    static void save(File file, String fingerprint, List<DecoderCapability> decoders) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(FILE_VERSION);
+            out.writeUTF(fingerprint);
+            out.writeInt(decoders.size());
+            for (DecoderCapability decoder : decoders) {
+                out.writeUTF(decoder.name);
+                out.writeBoolean(decoder.software);
+                out.writeInt(decoder.maxWidth);
+                out.writeInt(decoder.maxHeight);
+                out.writeLong(decoder.maxPixels);
+                out.writeInt(decoder.widthAlignment);
+                out.writeInt(decoder.heightAlignment);
+                out.writeShort(decoder.colorFormats.length);
+                for (int colorFormat : decoder.colorFormats) {
+                    out.writeInt(colorFormat);
+                }
+                out.writeBoolean(decoder.main10);
+                out.writeInt(decoder.maxInstances);
+            }
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("rename failure " + temp);
+        }
+    }
+
+    private static List<DecoderCapability> scanMediaCodecList() {
+        List<DecoderCapability> decoders = new ArrayList<>();
+        int numCodecs = MediaCodecList.getCodecCount();
+        for (int i = 0; i < numCodecs; i++) {
+            MediaCodecInfo codecInfo = MediaCodecList.getCodecInfoAt(i);
+            if (codecInfo.isEncoder()) {
+                continue;
+            }
+            for (String type : codecInfo.getSupportedTypes()) {
+                if (!type.equalsIgnoreCase(MediaFormat.MIMETYPE_VIDEO_HEVC)) {
+                    continue;
+                }
+                MediaCodecInfo.CodecCapabilities cap = codecInfo.getCapabilitiesForType(MediaFormat.MIMETYPE_VIDEO_HEVC);
+                MediaCodecInfo.VideoCapabilities vcap = cap.getVideoCapabilities();
+                boolean main10 = false;
+                for (MediaCodecInfo.CodecProfileLevel profileLevel : cap.profileLevels) {
+                    if (profileLevel.profile == MediaCodecInfo.CodecProfileLevel.HEVCProfileMain10
+                            || profileLevel.profile == MediaCodecInfo.CodecProfileLevel.HEVCProfileMain10HDR10) {
+                        main10 = true;
+                    }
+                }
+                int maxInstances = (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) ? cap.getMaxSupportedInstances() : 0;
+                final int maxWidth = vcap.getSupportedWidths().getUpper();
+                final int maxHeight = vcap.getSupportedHeights().getUpper();
+                decoders.add(new DecoderCapability(codecInfo.getName(), isSoftware(codecInfo),
+                        maxWidth, maxHeight, maxPixels(vcap, maxWidth, maxHeight),
+                        vcap.getWidthAlignment(), vcap.getHeightAlignment(), cap.colorFormats, main10, maxInstances));
+            }
+        }
+        return decoders;
+    }
+
+    private static boolean isSoftware(MediaCodecInfo codecInfo) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            return codecInfo.isSoftwareOnly();
+        }
+        String name = codecInfo.getName();
+        return name.startsWith("OMX.google.") || name.startsWith("c2.android.");
+    }
+
+    /**
+     * @return The number of pixels of largest frame, which is limited by block count of decoder.
+     */
+    private static long maxPixels(MediaCodecInfo.VideoCapabilities vcap, int maxWidth, int maxHeight) {
+        long maxPixels = 0;
+        try {
+            maxPixels = Math.max(maxPixels, (long) maxWidth * vcap.getSupportedHeightsFor(maxWidth).getUpper());
+            maxPixels = Math.max(maxPixels, (long) maxHeight * vcap.getSupportedWidthsFor(maxHeight).getUpper());
+        } catch (IllegalArgumentException ex) {
+            // unsupported width or height
+        }
+        return (maxPixels != 0) ? maxPixels : (long) maxWidth * maxHeight;
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2017 yohhoy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package jp.yohhoy.heifreader;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Selection of HEVC decoder for image size
+ *
+ * Decoders are ranked hardware first, and in order of MediaCodecList (preference of platform)
+ * within hardware or software decoders. For each image (or tile of grid image), the first decoder
+ * which supports its size is selected, so tiles can be decoded by hardware decoder even if whole
+ * image exceeds its limits. This class is pure function of capabilities.
+ */
+final class DecoderSelector {
+    private DecoderSelector() {
+    }
+
+    /**
+     * @param decoders decoders in order of MediaCodecList.
+     * @return The decoders, hardware decoders first.
+     */
+    static List<DecoderCapability> rank(List<DecoderCapability> decoders) {
+        List<DecoderCapability> ranked = new ArrayList<>(decoders.size());
+        for (DecoderCapability decoder : decoders) {
+            if (!decoder.software) {
+                ranked.add(decoder);
+            }
+        }
+        for (DecoderCapability decoder : decoders) {
+            if (decoder.software) {
+                ranked.add(decoder);
+            }
+        }
+        return ranked;
+    }
+
+    /**
+     * Select decoder for image.
+     *
+     * Decoder which supports Main10 profile is preferred for image of high bit depth.
+     *
+     * @param ranked decoders from {@link #rank}.
+     * @param bitDepth bit depth of luma.
+     * @return The first decoder which supports the size, or null if no decoder supports it.
+     */
+    static DecoderCapability select(List<DecoderCapability> ranked, int width, int height, int bitDepth) {
+        DecoderCapability fallback = null;
+        for (DecoderCapability decoder : ranked) {
+            if (!decoder.supportsSize(width, height)) {
+                continue;
+            }
+            if (bitDepth <= 8 || decoder.main10) {
+                return decoder;
+            }
+            if (fallback == null) {
+                fallback = decoder;
+            }
+        }
+        return fallback;
+    }
+
+    /**
+     * @return The decoder which supports largest frame, or null if no decoder.
+     */
+    static DecoderCapability largest(List<DecoderCapability> decoders) {
+        DecoderCapability largest = null;
+        for (DecoderCapability decoder : decoders) {
+            if (largest == null || largest.maxPixels < decoder.maxPixels) {
+                largest = decoder;
+            }
+        }
+        return largest;
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright (c) 2017 yohhoy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package jp.yohhoy.heifreader;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Size-bounded cache of files in a directory
+ *
+ * Each entry is a file named by its key, so entries survive process restarts. Recency of
+ * entries is recorded as last modified time, and least recently used entries are deleted
+ * when total size exceeds limit. Entries are read with memory mapping, and written into
+ * temporary file which is renamed on completion. This class is thread-safe.
+ */
+final class DiskCache {
+    private static final String ENTRY_SUFFIX = ".cache";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /**
+     * Writer of entry content
+     */
+    interface Writer {
+        /**
+         * @param dst mapped buffer of entry size.
+         */
+        void write(ByteBuffer dst) throws IOException;
+    }
+
+    private final File mDirectory;
+    private final long mMaxBytes;
+    // access-ordered, least recently used first
+    private final LinkedHashMap<String, Long> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+    private long mTotalBytes;
+    private boolean mLoaded;
+    private int mTempCount;
+
+    /**
+     * @param directory cache directory, which is created if not exist.
+     * @param maxBytes maximum total size of entries.
+     */
+    DiskCache(File directory, long maxBytes) {
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("invalid maxBytes(" + maxBytes + ")");
+        }
+        mDirectory = directory;
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Get an entry.
+     *
+     * @param key entry key, which shall be valid file name.
+     * @return read-only mapped content, or null if not cached.
+     */
+    ByteBuffer get(String key) throws IOException {
+        File file;
+        synchronized (this) {
+            load();
+            if (mEntries.get(key) == null) {
+                return null;
+            }
+            file = entryFile(key);
+            if (!file.setLastModified(System.currentTimeMillis())) {
+                // deleted by others
+                mTotalBytes -= mEntries.remove(key);
+                return null;
+            }
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            FileChannel channel = raf.getChannel();
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    /**
+     * Put an entry. An entry larger than the limit is not cached.
+     *
+     * @param key entry key, which shall be valid file name.
+     * @param size byte size of entry.
+     * @param writer writer of entry content.
+     */
+    void put(String key, int size, Writer writer) throws IOException {
+        if (mMaxBytes < size) {
+            return;
+        }
+        File temp;
+        synchronized (this) {
+            load();
+            temp = new File(mDirectory, key + "." + (mTempCount++) + TEMP_SUFFIX);
+        }
+        try {
+            try (RandomAccessFile raf = new RandomAccessFile(temp, "rw")) {
+                raf.setLength(size);
+                MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+                writer.write(buffer);
+                buffer.force();
+            }
+            List<File> evicted = new ArrayList<>();
+            synchronized (this) {
+                File file = entryFile(key);
+                if (!temp.renameTo(file)) {
+                    throw new IOException("rename failure: " + file);
+                }
+                Long previous = mEntries.put(key, (long) size);
+                if (previous != null) {
+                    mTotalBytes -= previous;
+                }
+                mTotalBytes += size;
+                trim(evicted);
+            }
+            deleteAll(evicted);
+        } finally {
+            temp.delete();
+        }
+    }
+
+    /**
+     * Delete all entries.
+     */
+    synchronized void clear() {
+        load();
+        for (String key : mEntries.keySet()) {
+            entryFile(key).delete();
+        }
+        mEntries.clear();
+        mTotalBytes = 0;
+    }
+
+    synchronized int getCount() {
+        load();
+        return mEntries.size();
+    }
+
+    synchronized long getTotalBytes() {
+        load();
+        return mTotalBytes;
+    }
+
+    /**
+     * Remove least recently used entries over the limit.
+     */
+    private void trim(List<File> evicted) {
+        Iterator<Map.Entry<String, Long>> it = mEntries.entrySet().iterator();
+        while (mMaxBytes < mTotalBytes && it.hasNext()) {
+            Map.Entry<String, Long> entry = it.next();
+            mTotalBytes -= entry.getValue();
+            evicted.add(entryFile(entry.getKey()));
+            it.remove();
+        }
+    }
+
+    private static void deleteAll(List<File> files) {
+        for (File file : files) {
+            // mapped content of deleted file is still readable
+            file.delete();
+        }
+    }
+
+    private File entryFile(String key) {
+        return new File(mDirectory, key + ENTRY_SUFFIX);
+    }
+
+    /**
+     * Load entries of previous processes, in order of last modified time.
+     */
+    private void load() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            return;
+        }
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        final long[] modified = new long[files.length];
+        Integer[] order = new Integer[files.length];
+        for (int i = 0; i < files.length; i++) {
+            modified[i] = files[i].lastModified();
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Long.compare(modified[a], modified[b]);
+            }
+        });
+        for (int i : order) {
+            String name = files[i].getName();
+            if (name.endsWith(TEMP_SUFFIX)) {
+                // incomplete entry of previous process
+                files[i].delete();
+            } else if (name.endsWith(ENTRY_SUFFIX)) {
+                long size = files[i].length();
+                mEntries.put(name.substring(0, name.length() - ENTRY_SUFFIX.length()), size);
+                mTotalBytes += size;
+            }
+        }
+        // the limit may be smaller than previous process
+        List<File> evicted = new ArrayList<>();
+        trim(evicted);
+        deleteAll(evicted);
+    }
+}
@@ -0,0 +1,292 @@
+/*
+ * Copyright (c) 2017 yohhoy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package jp.yohhoy.heifreader;
+
+import android.graphics.Bitmap;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Two-tier cache of decoded HEIF images
+ *
+ * Decoded primary images are kept in memory LRU of Bitmaps, and on disk as raw pixels.
+ * Entries are keyed by content of the primary image ('hvcC' and bitstream of all tiles, see
+ * {@link TileIndex#contentKey()}), so the same image is found even if it is re-downloaded or
+ * copied. Disk entries survive process restarts, and a hit costs a memory-mapped read instead
+ * of HEVC decoding. Both tiers are bounded by byte size. This class is thread-safe.
+ *
+ * Returned Bitmaps are shared by cache, and shall not be modified or recycled by caller.
+ */
+public final class HeifCache {
+    private static final String TAG = "HeifReader";
+
+    /**
+     * default size limits of memory and disk cache.
+     */
+    public static final long DEFAULT_MEMORY_BYTES = 32 * 1024 * 1024;    // 32[MB]
+    public static final long DEFAULT_DISK_BYTES = 128 * 1024 * 1024;     // 128[MB]
+
+    /**
+     * disk entry: magic, format, width, height, then pixels.
+     */
+    private static final int ENTRY_MAGIC = 0x48454943;  // 'HEIC'
+    private static final int ENTRY_HEADER_SIZE = 16;
+    private static final int ENTRY_FORMAT_RGBA8888 = 1;
+    private static final int ENTRY_FORMAT_RGB565 = 2;
+
+    private final HeifDecoder mDecoder;
+    private final long mMaxMemoryBytes;
+    // access-ordered, least recently used first
+    private final LinkedHashMap<String, Bitmap> mMemory = new LinkedHashMap<>(16, 0.75f, true);
+    private long mMemoryBytes;
+    private final DiskCache mDisk;
+
+    /**
+     * Create cache with default limits, whose disk entries are stored under cache directory of decoder.
+     *
+     * @param decoder decoder for cache miss, which is not owned by the cache.
+     */
+    public HeifCache(HeifDecoder decoder) {
+        this(decoder, new File(decoder.getCacheDir(), "heif-cache"), DEFAULT_MEMORY_BYTES, DEFAULT_DISK_BYTES);
+    }
+
+    /**
+     * @param decoder decoder for cache miss, which is not owned by the cache.
+     * @param directory directory of disk entries, which shall not be shared with other caches.
+     * @param maxMemoryBytes maximum total size of Bitmaps in memory.
+     * @param maxDiskBytes maximum total size of disk entries.
+     */
+    public HeifCache(HeifDecoder decoder, File directory, long maxMemoryBytes, long maxDiskBytes) {
+        if (maxMemoryBytes < 0) {
+            throw new IllegalArgumentException("invalid maxMemoryBytes(" + maxMemoryBytes + ")");
+        }
+        mDecoder = decoder;
+        mMaxMemoryBytes = maxMemoryBytes;
+        mDisk = new DiskCache(directory, maxDiskBytes);
+    }
+
+    /**
+     * Decode a bitmap from the specified byte array through cache.
+     *
+     * @param data byte array of compressed image data.
+     * @return The decoded bitmap, or null if the image could not be decoded.
+     */
+    public Bitmap decodeByteArray(byte[] data) {
+        mDecoder.assertNotClosed();
+        try {
+            ByteBuffer heif = ByteBuffer.wrap(data);
+            return decodeCached(heif, mDecoder.parseInfo(heif, null));
+        } catch (IOException ex) {
+            Log.e(TAG, "decodeByteArray failure", ex);
+            return null;
+        }
+    }
+
+    /**
+     * Decode a file path into a bitmap through cache.
+     *
+     * @param pathName complete path name for the file to be decoded.
+     * @return The decoded bitmap, or null if the image could not be decoded.
+     */
+    public Bitmap decodeFile(String pathName) {
+        mDecoder.assertNotClosed();
+        try {
+            ByteBuffer heif = HeifDecoder.mapFile(pathName);
+            return decodeCached(heif, mDecoder.parseInfo(heif, pathName));
+        } catch (IOException ex) {
+            Log.e(TAG, "decodeFile failure", ex);
+            return null;
+        }
+    }
+
+    /**
+     * Decode an input stream into a bitmap through cache.
+     *
+     * The stream is read until the last extent of primary image to compute the key, like
+     * {@link HeifDecoder#decodeStream(InputStream)}.
+     *
+     * @param is The input stream that holds the raw data to be decoded into a bitmap.
+     * @return The decoded bitmap, or null if the image could not be decoded.
+     */
+    public Bitmap decodeStream(InputStream is) {
+        mDecoder.assertNotClosed();
+        try {
+            HeifStreamReader.Result result = HeifStreamReader.read(is, mDecoder.getCacheDir(),
+                    HeifDecoder.LIMIT_FILESIZE);
+            return decodeCached(result.data, result.info);
+        } catch (IOException ex) {
+            Log.e(TAG, "decodeStream failure", ex);
+            return null;
+        }
+    }
+
+    /**
+     * Drop Bitmaps in memory, e.g. on ComponentCallbacks2.onTrimMemory. Disk entries are kept.
+     */
+    public void clearMemory() {
+        synchronized (mMemory) {
+            mMemory.clear();
+            mMemoryBytes = 0;
+        }
+    }
+
+    /**
+     * Drop all entries in memory and on disk.
+     */
+    public void clear() {
+        clearMemory();
+        mDisk.clear();
+    }
+
+    /**
+     * @return total size of Bitmaps in memory.
+     */
+    public long getMemoryBytes() {
+        synchronized (mMemory) {
+            return mMemoryBytes;
+        }
+    }
+
+    /**
+     * @return total size of disk entries.
+     */
+    public long getDiskBytes() {
+        return mDisk.getTotalBytes();
+    }
+
+    private Bitmap decodeCached(ByteBuffer heif, HeifInfo info) throws IOException {
+        TileIndex tiles = mDecoder.buildTileIndex(heif, info, info.getPrimaryItem());
+        final String key = tiles.contentKey();
+        Bitmap bmp = getMemory(key);
+        if (bmp != null) {
+            Log.d(TAG, "HEIC cache hit(memory) key=" + key);
+            return bmp;
+        }
+        long beginTime = SystemClock.elapsedRealtimeNanos();
+        bmp = readDisk(key);
+        if (bmp != null) {
+            long endTime = SystemClock.elapsedRealtimeNanos();
+            Log.d(TAG, "HEIC cache hit(disk) key=" + key + " elapsed=" + (endTime - beginTime) / 1000000.f + "[msec]");
+            putMemory(key, bmp);
+            return bmp;
+        }
+        ImageCanvas canvas = mDecoder.decodeCanvas(tiles, DecodeRegion.full(tiles.getWidth(), tiles.getHeight()), null);
+        if (canvas == null) {
+            return null;
+        }
+        bmp = mDecoder.toBitmap(null, canvas);
+        putMemory(key, bmp);
+        try {
+            writeDisk(key, canvas);
+        } catch (IOException ex) {
+            Log.w(TAG, "HEIC cache write failure key=" + key, ex);
+        }
+        return bmp;
+    }
+
+    private Bitmap getMemory(String key) {
+        synchronized (mMemory) {
+            return mMemory.get(key);
+        }
+    }
+
+    private void putMemory(String key, Bitmap bmp) {
+        final int byteCount = bmp.getAllocationByteCount();
+        if (mMaxMemoryBytes < byteCount) {
+            return;
+        }
+        synchronized (mMemory) {
+            Bitmap previous = mMemory.put(key, bmp);
+            if (previous != null) {
+                mMemoryBytes -= previous.getAllocationByteCount();
+            }
+            mMemoryBytes += byteCount;
+            Iterator<Map.Entry<String, Bitmap>> it = mMemory.entrySet().iterator();
+            while (mMaxMemoryBytes < mMemoryBytes && it.hasNext()) {
+                mMemoryBytes -= it.next().getValue().getAllocationByteCount();
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * @return Bitmap of disk entry, or null if not cached or broken.
+     */
+    private Bitmap readDisk(String key) {
+        ByteBuffer entry;
+        try {
+            entry = mDisk.get(key);
+        } catch (IOException ex) {
+            Log.w(TAG, "HEIC cache read failure key=" + key, ex);
+            return null;
+        }
+        if (entry == null || entry.remaining() < ENTRY_HEADER_SIZE) {
+            return null;
+        }
+        entry.order(ByteOrder.BIG_ENDIAN);
+        final int format = entry.getInt(4);
+        final int width = entry.getInt(8);
+        final int height = entry.getInt(12);
+        final Bitmap.Config config = (format == ENTRY_FORMAT_RGB565) ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+        if (entry.getInt(0) != ENTRY_MAGIC || (format != ENTRY_FORMAT_RGBA8888 && format != ENTRY_FORMAT_RGB565)
+                || width <= 0 || height <= 0
+                || entry.remaining() - ENTRY_HEADER_SIZE < (long) width * height * BitmapPool.bytesPerPixel(config)) {
+            Log.w(TAG, "HEIC cache entry is broken key=" + key);
+            return null;
+        }
+        Bitmap bmp = mDecoder.obtainBitmap(null, width, height, config);
+        entry.position(ENTRY_HEADER_SIZE);
+        bmp.copyPixelsFromBuffer(entry.slice());
+        return bmp;
+    }
+
+    /**
+     * Write canvas as disk entry, in memory layout of Bitmap.
+     */
+    private void writeDisk(String key, final ImageCanvas canvas) throws IOException {
+        final boolean rgb565 = (canvas.format == ImageCanvas.FORMAT_RGB565);
+        final int pixelBytes = canvas.width * canvas.height * (rgb565 ? 2 : 4);
+        mDisk.put(key, ENTRY_HEADER_SIZE + pixelBytes, new DiskCache.Writer() {
+            @Override
+            public void write(ByteBuffer dst) {
+                dst.putInt(ENTRY_MAGIC);
+                dst.putInt(rgb565 ? ENTRY_FORMAT_RGB565 : ENTRY_FORMAT_RGBA8888);
+                dst.putInt(canvas.width);
+                dst.putInt(canvas.height);
+                if (rgb565) {
+                    dst.put(canvas.data, 0, pixelBytes);
+                } else {
+                    canvas.writeRgba(dst, canvas.width * 4);
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,1676 @@
+/*
+ * Copyright (c) 2017 yohhoy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package jp.yohhoy.heifreader;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jp.yohhoy.heifreader.CodecSession.FormatFallbackException;
+import jp.yohhoy.heifreader.hevc.SoftwareHevcDecoder;
+
+/**
+ * HEIF(High Efficiency Image Format) decoder
+ *
+ * HeifDecoder is immutable after {@link Builder#build()}, and decode methods are thread-safe;
+ * multiple threads can decode images in parallel with one instance.
+ * Each thread uses its own scratch buffer (up to {@link #MAX_SCRATCH_BYTES}), and HEVC decoders are
+ * leased from shared pool.
+ * Tiles of 'grid' image are decoded in parallel on worker threads, and decoded YUV image is
+ * converted to ARGB by {@link YuvConverter} on ForkJoin pool.
+ * When no MediaCodec HEVC decoder is available, the pure-Java {@link SoftwareHevcDecoder} is used.
+ */
+public final class HeifDecoder implements Closeable {
+    private static final String TAG = "HeifReader";
+
+    /**
+     * input data size limitation for safety.
+     */
+    static final long LIMIT_FILESIZE = 20 * 1024 * 1024;  // 20[MB]
+
+    /**
+     * worker threads of each stage, and maximum number of images in pipeline for {@link #decodeAll}.
+     */
+    private static final int[] PIPELINE_THREADS = {1, 2, 2};
+    private static final int PIPELINE_CAPACITY = 6;
+
+    /**
+     * maximum size of each scratch buffer kept by a thread, larger buffer is allocated for each use.
+     */
+    static final int MAX_SCRATCH_BYTES = 4 * 1024 * 1024;  // 4[MB]
+
+    private final File mCacheDir;
+    // MediaCodec decoder is created on first use after the probe
+    private final DecoderProbe mProbe;
+    private volatile HevcDecoder mHevcDecoder;
+    private final String mDecoderName;
+    private final long mIdleTimeoutMsec;
+    private final int mMaxIdleDecoders;
+    private final long mDecodeTimeoutMsec;
+    private final ThreadPoolExecutor mTileExecutor;
+    private final ForkJoinPool mConvertPool;
+    private final BitmapPool mBitmapPool;
+    private final HeifInfoCache mInfoCache;
+    private final HeifMetrics mMetrics;
+    // scratch of all threads, which are released on close
+    private final List<Scratch> mScratches = new ArrayList<>();
+    private final ThreadLocal<Scratch> mScratch = new ThreadLocal<Scratch>() {
+        @Override
+        protected Scratch initialValue() {
+            Scratch scratch = new Scratch();
+            synchronized (mScratches) {
+                mScratches.add(scratch);
+            }
+            return scratch;
+        }
+    };
+    private volatile boolean mClosed;
+
+    /**
+     * Options for decoding, like BitmapFactory.Options
+     */
+    public static final class Options {
+        /**
+         * If set, decode methods reuse this Bitmap for the decoded image, like
+         * BitmapFactory.Options.inBitmap. The Bitmap shall be mutable, and its allocation shall be
+         * large enough for the decoded image; the Bitmap is reconfigured to the image size and
+         * config. Otherwise, new Bitmap is allocated (or taken from {@link BitmapPool}).
+         */
+        public Bitmap inBitmap;
+
+        /**
+         * If set to a value &gt; 1, the image is downsampled by the factor, like
+         * BitmapFactory.Options.inSampleSize. Any integer can be used, and each output pixel is
+         * the average of inSampleSize x inSampleSize pixels.
+         */
+        public int inSampleSize;
+
+        /**
+         * If set to positive values, the image is downsampled by the largest factor which keeps
+         * output not smaller than the target size. (0 = not constrained)
+         * Downsampling is fused into YUV to RGB conversion, so full resolution pixels are not allocated.
+         */
+        public int inTargetWidth;
+        public int inTargetHeight;
+
+        /**
+         * If set, only the rectangle of the image is decoded. The rectangle is clipped by image bounds,
+         * and tiles of grid image outside the rectangle are not decoded.
+         * Target size is applied to the size of rectangle.
+         */
+        public Rect inCropRect;
+    }
+
+    /**
+     * Source image of {@link #decodeAll}
+     */
+    public static final class Source {
+        private final String mPathName;
+        private final byte[] mData;
+        private final Options mOptions;
+
+        private Source(String pathName, byte[] data, Options options) {
+            mPathName = pathName;
+            mData = data;
+            mOptions = options;
+        }
+
+        /**
+         * @param pathName complete path name for the file to be decoded.
+         * @param opts decoding options, or null. ({@link Options#inBitmap} shall be distinct for each source)
+         */
+        public static Source fromFile(String pathName, Options opts) {
+            return new Source(pathName, null, opts);
+        }
+
+        public static Source fromFile(String pathName) {
+            return fromFile(pathName, null);
+        }
+
+        /**
+         * @param data byte array of compressed image data.
+         * @param opts decoding options, or null. ({@link Options#inBitmap} shall be distinct for each source)
+         */
+        public static Source fromByteArray(byte[] data, Options opts) {
+            return new Source(null, data, opts);
+        }
+
+        public static Source fromByteArray(byte[] data) {
+            return fromByteArray(data, null);
+        }
+
+        ByteBuffer read() throws IOException {
+            return (mPathName != null) ? mapFile(mPathName) : ByteBuffer.wrap(mData);
+        }
+
+        @Override
+        public String toString() {
+            return "Source[" + ((mPathName != null) ? mPathName : "byte[" + mData.length + "]") + "]";
+        }
+    }
+
+    /**
+     * Result of {@link #decodeAll}
+     */
+    public static final class Result {
+        /** index of source in the list */
+        public final int index;
+        public final Source source;
+        /** decoded image, or null if failed */
+        public final Bitmap bitmap;
+        /** cause of failure, or null if succeeded */
+        public final Throwable error;
+
+        Result(int index, Source source, Bitmap bitmap, Throwable error) {
+            this.index = index;
+            this.source = source;
+            this.bitmap = bitmap;
+            this.error = error;
+        }
+    }
+
+    /**
+     * Receiver of {@link #decodeAll} results
+     */
+    public interface ResultCallback {
+        /**
+         * Called on a worker thread for each source, in completion order.
+         */
+        void onResult(Result result);
+    }
+
+    /**
+     * Builder of HeifDecoder
+     */
+    public static final class Builder {
+        private File mCacheDir;
+        private String mDecoderName;
+        private HevcDecoder mHevcDecoder;
+        private long mIdleTimeoutMsec = 5000;
+        private int mMaxIdleDecoders = 4;
+        private int mMaxParallelTiles = 4;
+        private long mDecodeTimeoutMsec = 10000;
+        private int mMaxCachedInfos = 16;
+        private BitmapPool mBitmapPool;
+        private HeifMetrics mMetrics;
+
+        /**
+         * @param context Context.
+         */
+        public Builder(Context context) {
+            mCacheDir = context.getCacheDir();
+        }
+
+        /**
+         * Set directory for temporary files. (default: {@link Context#getCacheDir()})
+         */
+        public Builder setCacheDir(File cacheDir) {
+            mCacheDir = cacheDir;
+            return this;
+        }
+
+        /**
+         * Use the specified HEVC decoder only. (default: decoder is selected for each image size
+         * from all decoders, hardware decoders first)
+         */
+        public Builder setDecoderName(String decoderName) {
+            mDecoderName = decoderName;
+            return this;
+        }
+
+        /**
+         * Use the specified HEVC decoder implementation instead of MediaCodec.
+         *
+         * The decoder is owned by HeifDecoder, and closed by {@link HeifDecoder#close()}.
+         */
+        public Builder setHevcDecoder(HevcDecoder hevcDecoder) {
+            mHevcDecoder = hevcDecoder;
+            return this;
+        }
+
+        /**
+         * Set timeout to release idle HEVC decoders. (default: 5[sec])
+         */
+        public Builder setDecoderIdleTimeout(long timeout, TimeUnit unit) {
+            mIdleTimeoutMsec = unit.toMillis(timeout);
+            return this;
+        }
+
+        /**
+         * Set maximum number of idle HEVC decoders kept in pool. (default: 4)
+         */
+        public Builder setMaxIdleDecoders(int maxIdleDecoders) {
+            mMaxIdleDecoders = maxIdleDecoders;
+            return this;
+        }
+
+        /**
+         * Set maximum number of tiles decoded in parallel for 'grid' image. (default: 4)
+         *
+         * This limits the number of HEVC decoders used by one grid image.
+         */
+        public Builder setMaxParallelTiles(int maxParallelTiles) {
+            mMaxParallelTiles = maxParallelTiles;
+            return this;
+        }
+
+        /**
+         * Set timeout of decoding an image (or a tile) with MediaCodec. (default: 10[sec])
+         *
+         * Stuck HEVC decoder fails decoding after the timeout, and is released.
+         */
+        public Builder setDecodeTimeout(long timeout, TimeUnit unit) {
+            mDecodeTimeoutMsec = unit.toMillis(timeout);
+            return this;
+        }
+
+        /**
+         * Set maximum number of parsed HEIF metadata kept in cache. (default: 16)
+         *
+         * Decoding same file (e.g. thumbnail, then whole image) skips parsing of metadata.
+         * Set 0 to disable the cache.
+         */
+        public Builder setMaxCachedMetadata(int maxCachedInfos) {
+            mMaxCachedInfos = maxCachedInfos;
+            return this;
+        }
+
+        /**
+         * Reuse Bitmaps in the pool for decoded images. (default: none)
+         *
+         * The pool is not owned by HeifDecoder; Bitmaps which are no longer used shall be
+         * returned to the pool by caller.
+         */
+        public Builder setBitmapPool(BitmapPool bitmapPool) {
+            mBitmapPool = bitmapPool;
+            return this;
+        }
+
+        /**
+         * Report elapsed time of decoding stages to the metrics. (default: none)
+         *
+         * @see HistogramMetrics
+         */
+        public Builder setMetrics(HeifMetrics metrics) {
+            mMetrics = metrics;
+            return this;
+        }
+
+        /**
+         * Create HeifDecoder.
+         *
+         * MediaCodec HEVC decoders are probed on background thread, and the result is kept in
+         * cache directory for later processes. Decoding waits for the probe if it is not finished,
+         * so this method can be called on main thread.
+         *
+         * @return The decoder, which shall be closed after use.
+         */
+        public HeifDecoder build() {
+            if (mHevcDecoder != null) {
+                return new HeifDecoder(this, mHevcDecoder, null);
+            }
+            // probe HEVC decoders on background, and select one on first decoding
+            DecoderProbe probe = DecoderProbe.getInstance(mCacheDir);
+            probe.start();
+            return new HeifDecoder(this, null, probe);
+        }
+    }
+
+    private HeifDecoder(Builder builder, HevcDecoder hevcDecoder, DecoderProbe probe) {
+        mCacheDir = builder.mCacheDir;
+        mHevcDecoder = hevcDecoder;
+        mProbe = probe;
+        mDecoderName = builder.mDecoderName;
+        mIdleTimeoutMsec = builder.mIdleTimeoutMsec;
+        mMaxIdleDecoders = builder.mMaxIdleDecoders;
+        mDecodeTimeoutMsec = builder.mDecodeTimeoutMsec;
+        mBitmapPool = builder.mBitmapPool;
+        mInfoCache = new HeifInfoCache(builder.mMaxCachedInfos);
+        mMetrics = builder.mMetrics;
+        mTileExecutor = new ThreadPoolExecutor(builder.mMaxParallelTiles, builder.mMaxParallelTiles,
+                1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "HeifDecoder-tile-" + mCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        mTileExecutor.allowCoreThreadTimeOut(true);
+        mConvertPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Release pooled HEVC decoders and worker threads.
+     *
+     * Decoding in progress on other threads shall be finished before close.
+     */
+    @Override
+    public void close() {
+        HevcDecoder hevcDecoder;
+        synchronized (this) {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            hevcDecoder = mHevcDecoder;
+        }
+        mTileExecutor.shutdown();
+        mConvertPool.shutdown();
+        if (hevcDecoder != null) {
+            hevcDecoder.close();
+        }
+        // ThreadLocal values remain on pooled threads, so drop their buffers
+        synchronized (mScratches) {
+            for (Scratch scratch : mScratches) {
+                scratch.clear();
+            }
+            mScratches.clear();
+        }
+    }
+
+    /**
+     * Get HEVC decoder, which is created when the probe is finished.
+     *
+     * @throws IOException if the decoder is closed, or waiting the probe is interrupted.
+     */
+    HevcDecoder hevcDecoder() throws IOException {
+        HevcDecoder hevcDecoder = mHevcDecoder;
+        if (hevcDecoder != null) {
+            return hevcDecoder;
+        }
+        List<DecoderCapability> decoders = mProbe.get();
+        synchronized (this) {
+            if (mClosed) {
+                throw new IOException("HeifDecoder is closed");
+            }
+            if (mHevcDecoder == null) {
+                mHevcDecoder = createHevcDecoder(decoders);
+            }
+            return mHevcDecoder;
+        }
+    }
+
+    /**
+     * Create MediaCodec decoder with all HEVC decoders, or the specified decoder.
+     */
+    private HevcDecoder createHevcDecoder(List<DecoderCapability> decoders) {
+        List<DecoderCapability> candidates = new ArrayList<>();
+        for (DecoderCapability decoder : decoders) {
+            Log.d(TAG, "HEVC " + decoder);
+            if (mDecoderName == null || mDecoderName.equals(decoder.name)) {
+                candidates.add(decoder);
+            }
+        }
+        if (candidates.isEmpty()) {
+            Log.w(TAG, "no HEVC decoder; fallback to software decoder");
+            return new SoftwareHevcDecoder();
+        }
+        return new MediaCodecHevcDecoder(DecoderSelector.rank(candidates),
+                mIdleTimeoutMsec, mMaxIdleDecoders, mDecodeTimeoutMsec, mMetrics);
+    }
+
+    /**
+     * Decode a bitmap from the specified byte array.
+     *
+     * @param data byte array of compressed image data.
+     * @return The decoded bitmap, or null if the image could not be decoded.
+     */
+    public Bitmap decodeByteArray(byte[] data) {
+        return decodeByteArray(data, null);
+    }
+
+    /**
+     * Decode a bitmap from the specified byte array.
+     *
+     * @param data byte array of compressed image data.
+     * @param opts decoding options, or null.
+     * @return The decoded bitmap, or null if the image could not be decoded.
+     */
+    public Bitmap decodeByteArray(byte[] data, Options opts) {
+        assertNotClosed();
+        try {
+            return decodeBuffer(ByteBuffer.wrap(data), null, opts);
+        } catch (IOException ex) {
+            Log.e(TAG, "decodeByteArray failure", ex);
+            return null;
+        }
+    }
+
+    /**
+     * Decode a file path into a bitmap.
+     *
+     * @see #decodeFile(String, Options)
+     */
+    public Bitmap decodeFile(String pathName) {
+        return decodeFile(pathName, null);
+    }
+
+    /**
+     * Decode a file path into a bitmap.
+     *
+     * The file is memory-mapped, so HEVC bitstream is read directly from the mapping
+     * without copying whole file into Java heap.
+     *
+     * @param pathName complete path name for the file to be decoded.
+     * @param opts decoding options, or null.
+     * @return The decoded bitmap, or null if the image could not be decoded.
+     */
+    public Bitmap decodeFile(String pathName, Options opts) {
+        assertNotClosed();
+        try {
+            return decodeBuffer(mapFile(pathName), pathName, opts);
+        } catch (IOException ex) {
+            Log.e(TAG, "decodeFile failure", ex);
+            return null;
+        }
+    }
+
+    /**
+     * Decode a raw resource into a bitmap.
+     *
+     * @see #decodeResource(Resources, int, Options)
+     */
+    public Bitmap decodeResource(Resources res, int id) {
+        return decodeResource(res, id, null);
+    }
+
+    /**
+     * Decode a raw resource into a bitmap.
+     *
+     * @param res The resources object containing the image data.
+     * @param id The resource id of the image data.
+     * @param opts decoding options, or null.
+     * @return The decoded bitmap, or null if the image could not be decoded.
+     */
+    public Bitmap decodeResource(Resources res, int id, Options opts) {
+        assertNotClosed();
+        try {
+            int length = (int) res.openRawResourceFd(id).getLength();
+            byte[] data = new byte[length];
+            res.openRawResource(id).read(data);
+            return decodeByteArray(data, opts);
+        } catch (IOException ex) {
+            Log.e(TAG, "decodeResource failure", ex);
+            return null;
+        }
+    }
+
+    /**
+     * Decode an input stream into a bitmap.
+     *
+     * @see #decodeStream(InputStream, Options)
+     */
+    public Bitmap decodeStream(InputStream is) {
+        return decodeStream(is, null);
+    }
+
+    /**
+     * Decode an input stream into a bitmap.
+     *
+     * HEIF metadata is parsed as bytes arrive, and only item data of the primary image is kept
+     * in memory. Decoding starts when the last required extent is read, and the rest of stream
+     * is not read. If 'mdat' box precedes 'meta' box, the preceding boxes are spilled to
+     * temporary file on cache directory, which is deleted after reading.
+     *
+     * @param is The input stream that holds the raw data to be decoded into a bitmap.
+     * @param opts decoding options, or null.
+     * @return The decoded bitmap, or null if the image could not be decoded.
+     */
+    public Bitmap decodeStream(InputStream is, Options opts) {
+        assertNotClosed();
+        try {
+            long beginTime = SystemClock.elapsedRealtimeNanos();
+            HeifStreamReader.Result result = HeifStreamReader.read(is, mCacheDir, LIMIT_FILESIZE);
+            long endTime = SystemClock.elapsedRealtimeNanos();
+            Log.i(TAG, "HEIC streaming elapsed=" + (endTime - beginTime) / 1000000.f + "[msec]");
+            HeifInfo info = result.info;
+            report(HeifMetrics.STAGE_PARSE, endTime - beginTime, result.data.remaining(),
+                    info.getWidth(), info.getHeight(), false);
+            Log.i(TAG, "HEIC image size=" + info.getWidth() + "x" + info.getHeight());
+            return decodeItem(result.data, info, info.getPrimaryItem(), opts);
+        } catch (IOException ex) {
+            Log.e(TAG, "decodeStream failure", ex);
+            return null;
+        }
+    }
+
+    /**
+     * Decode a thumbnail bitmap from the specified byte array.
+     *
+     * @see #decodeThumbnail(byte[], Options)
+     */
+    public Bitmap decodeThumbnail(byte[] data) {
+        return decodeThumbnail(data, null);
+    }
+
+    /**
+     * Decode a thumbnail bitmap from the specified byte array.
+     *
+     * The thumbnail item which refers primary image with 'thmb' reference is decoded.
+     * If there is no thumbnail, the primary image is decoded.
+     *
+     * @param data byte array of compressed image data.
+     * @param opts decoding options, or null.
+     * @return The decoded bitmap, or null if the image could not be decoded.
+     */
+    public Bitmap decodeThumbnail(byte[] data, Options opts) {
+        assertNotClosed();
+        try {
+            return decodeThumbnailBuffer(ByteBuffer.wrap(data), null, opts);
+        } catch (IOException ex) {
+            Log.e(TAG, "decodeThumbnail failure", ex);
+            return null;
+        }
+    }
+
+    /**
+     * Decode a thumbnail bitmap from the specified file.
+     *
+     * @see #decodeThumbnail(String, Options)
+     */
+    public Bitmap decodeThumbnail(String pathName) {
+        return decodeThumbnail(pathName, null);
+    }
+
+    /**
+     * Decode a thumbnail bitmap from the specified file.
+     *
+     * @param pathName complete path name for the file to be decoded.
+     * @param opts decoding options, or null.
+     * @return The decoded bitmap, or null if the image could not be decoded.
+     * @see #decodeThumbnail(byte[], Options)
+     */
+    public Bitmap decodeThumbnail(String pathName, Options opts) {
+        assertNotClosed();
+        try {
+            return decodeThumbnailBuffer(mapFile(pathName), pathName, opts);
+        } catch (IOException ex) {
+            Log.e(TAG, "decodeThumbnail failure", ex);
+            return null;
+        }
+    }
+
+    /**
+     * Decode image items of the specified file.
+     *
+     * @see #decodeItems(byte[], int[], Options)
+     */
+    public Bitmap[] decodeItems(String pathName, int[] itemIds, Options opts) {
+        assertNotClosed();
+        try {
+            return decodeItemsBuffer(mapFile(pathName), pathName, itemIds, opts);
+        } catch (IOException ex) {
+            Log.e(TAG, "decodeItems failure", ex);
+            return new Bitmap[itemIds.length];
+        }
+    }
+
+    /**
+     * Decode image items, like burst photos or image collection.
+     *
+     * Item IDs can be enumerated by {@link HeifInfo#getHevcItems()} of {@link HeifReader#decodeBounds}.
+     * Consecutive 'hvc1' items of same size and 'hvcC' are decoded with one configured HEVC decoder.
+     * 'grid' items can be also decoded.
+     *
+     * @param data byte array of compressed image data.
+     * @param itemIds item_IDs of images to be decoded.
+     * @param opts decoding options, or null. ({@link Options#inBitmap} is not supported, and throws IllegalArgumentException)
+     * @return The decoded bitmaps in order of itemIds, whose element is null if the item could not be decoded.
+     */
+    public Bitmap[] decodeItems(byte[] data, int[] itemIds, Options opts) {
+        assertNotClosed();
+        try {
+            return decodeItemsBuffer(ByteBuffer.wrap(data), null, itemIds, opts);
+        } catch (IOException ex) {
+            Log.e(TAG, "decodeItems failure", ex);
+            return new Bitmap[itemIds.length];
+        }
+    }
+
+    /**
+     * Decode primary image into caller-owned ARGB pixels.
+     *
+     * Pixels are written in {@link android.graphics.Color} int format, like
+     * {@link Bitmap#getPixels}. Decoded YUV image is converted directly into the array.
+     * Image size can be read by {@link HeifReader#decodeBounds} in advance.
+     *
+     * @param data byte array of compressed image data.
+     * @param dst destination array.
+     * @param offset index of top-left pixel in dst.
+     * @param stride pixel distance between rows in dst, which is not less than image width.
+     * @return true if the image is decoded, or false if the image could not be decoded.
+     * @throws IllegalArgumentException if dst is too small for the image.
+     */
+    public boolean decodeInto(byte[] data, int[] dst, int offset, int stride) {
+        assertNotClosed();
+        try {
+            ByteBuffer heif = ByteBuffer.wrap(data);
+            HeifInfo info = parseInfo(heif, null);
+            HeifInfo.Item item = info.getPrimaryItem();
+            TileIndex tiles = buildTileIndex(heif, info, item);
+            DecodeRegion region = DecodeRegion.full(tiles.getWidth(), tiles.getHeight());
+            ImageCanvas canvas = new ImageCanvas(region.width, region.height, dst, offset, stride);
+            return decodeCanvas(tiles, region, canvas) != null;
+        } catch (IOException ex) {
+            Log.e(TAG, "decodeInto failure", ex);
+            return false;
+        }
+    }
+
+    /**
+     * Decode primary image into caller-owned buffer.
+     *
+     * Pixels are written from current position of dst in R, G, B, A byte order, which is memory
+     * layout of {@link Bitmap.Config#ARGB_8888} (see {@link Bitmap#copyPixelsFromBuffer}).
+     * The position of dst is not modified.
+     *
+     * @param data byte array of compressed image data.
+     * @param dst destination buffer, which may be direct buffer.
+     * @param rowStride byte distance between rows in dst, which is not less than 4 * image width.
+     * @return true if the image is decoded, or false if the image could not be decoded.
+     * @throws IllegalArgumentException if dst is too small for the image.
+     */
+    public boolean decodeInto(byte[] data, ByteBuffer dst, int rowStride) {
+        assertNotClosed();
+        try {
+            ByteBuffer heif = ByteBuffer.wrap(data);
+            HeifInfo info = parseInfo(heif, null);
+            HeifInfo.Item item = info.getPrimaryItem();
+            TileIndex tiles = buildTileIndex(heif, info, item);
+            final int width = tiles.getWidth();
+            final int height = tiles.getHeight();
+            if (rowStride < 4 * width || (0 < height && dst.remaining() < (long) (height - 1) * rowStride + 4 * width)) {
+                throw new IllegalArgumentException("buffer is too small");
+            }
+            ImageCanvas canvas = decodeCanvas(tiles, DecodeRegion.full(width, height), null);
+            if (canvas == null) {
+                return false;
+            }
+            canvas.writeRgba(dst, rowStride);
+            return true;
+        } catch (IOException ex) {
+            Log.e(TAG, "decodeInto failure", ex);
+            return false;
+        }
+    }
+
+    /**
+     * Decode multiple images with pipelined stages.
+     *
+     * Reading and parsing, HEVC decoding, and YUV to RGB conversion run on separate worker threads,
+     * so the stages of successive images overlap. The number of images in the pipeline is limited,
+     * and this method blocks while the pipeline is full. Results are delivered to callback in
+     * completion order, and this method returns after all results are delivered.
+     *
+     * @param sources images to be decoded.
+     * @param callback receiver of decoded images.
+     * @return The throughput of each stage.
+     * @throws InterruptedException if the calling thread is interrupted.
+     */
+    public PipelineStats decodeAll(List<Source> sources, final ResultCallback callback) throws InterruptedException {
+        assertNotClosed();
+        Pipeline<Source, Parsed, Decoded, Bitmap> pipeline = new Pipeline<>(
+                new Pipeline.Stage<Source, Parsed>() {
+                    @Override
+                    public Parsed process(Source source) throws Exception {
+                        ByteBuffer heif = source.read();
+                        HeifInfo info = parseInfo(heif, source.mPathName);
+                        TileIndex tiles = buildTileIndex(heif, info, info.getPrimaryItem());
+                        return new Parsed(tiles, decodeRegion(tiles.getWidth(), tiles.getHeight(), source.mOptions),
+                                source.mOptions);
+                    }
+                },
+                new Pipeline.Stage<Parsed, Decoded>() {
+                    @Override
+                    public Decoded process(Parsed parsed) throws Exception {
+                        int[] indices = parsed.tiles.findTiles(parsed.region);
+                        ImageCanvas[] tileCanvases = new ImageCanvas[indices.length];
+                        for (int i = 0; i < indices.length; i++) {
+                            tileCanvases[i] = decodeTileCanvas(parsed.tiles, indices[i]);
+                        }
+                        return new Decoded(parsed, indices, tileCanvases);
+                    }
+                },
+                new Pipeline.Stage<Decoded, Bitmap>() {
+                    @Override
+                    public Bitmap process(Decoded decoded) {
+                        Parsed parsed = decoded.parsed;
+                        ImageCanvas canvas = scratchArgbCanvas(parsed.region.outputWidth(), parsed.region.outputHeight());
+                        for (int i = 0; i < decoded.indices.length; i++) {
+                            drawTileCanvas(decoded.tileCanvases[i], parsed.tiles, decoded.indices[i], parsed.region,
+                                    canvas, null);
+                        }
+                        Bitmap bmp = obtainBitmap(parsed.opts, canvas.width, canvas.height, Bitmap.Config.ARGB_8888);
+                        bmp.setPixels(canvas.argb, canvas.argbOffset, canvas.argbStride, 0, 0, canvas.width, canvas.height);
+                        return bmp;
+                    }
+                },
+                PIPELINE_THREADS, PIPELINE_CAPACITY);
+        PipelineStats stats = pipeline.run(sources, new Pipeline.Sink<Source, Bitmap>() {
+            @Override
+            public void onResult(int index, Source source, Bitmap bitmap, Throwable error) {
+                if (error != null) {
+                    Log.e(TAG, "decodeAll failure " + source, error);
+                }
+                callback.onResult(new Result(index, source, bitmap, error));
+            }
+        });
+        Log.i(TAG, "HEIC batch " + stats);
+        return stats;
+    }
+
+    /**
+     * Decode a file path into a bitmap asynchronously.
+     *
+     * @see #decodeFileAsync(String, Options)
+     */
+    public DecodeFuture<Bitmap> decodeFileAsync(String pathName) {
+        return decodeFileAsync(pathName, null);
+    }
+
+    /**
+     * Decode a file path into a bitmap asynchronously.
+     *
+     * The file is parsed on calling thread, then tiles are decoded by MediaCodec in callback mode
+     * without blocking threads, and converted to RGB on ForkJoin pool.
+     * Cancellation of the future stops HEVC decoding in progress.
+     *
+     * @param pathName complete path name for the file to be decoded.
+     * @param opts decoding options, or null.
+     * @return The future of decoded bitmap, which fails if the image could not be decoded.
+     */
+    public DecodeFuture<Bitmap> decodeFileAsync(String pathName, Options opts) {
+        assertNotClosed();
+        ByteBuffer heif;
+        try {
+            heif = mapFile(pathName);
+        } catch (IOException ex) {
+            DecodeFuture<Bitmap> result = new DecodeFuture<>();
+            result.fail(ex);
+            return result;
+        }
+        return decodeBufferAsync(heif, pathName, opts);
+    }
+
+    /**
+     * Decode a bitmap from the specified byte array asynchronously.
+     *
+     * @see #decodeFileAsync(String, Options)
+     */
+    public DecodeFuture<Bitmap> decodeByteArrayAsync(byte[] data) {
+        return decodeByteArrayAsync(data, null);
+    }
+
+    /**
+     * Decode a bitmap from the specified byte array asynchronously.
+     *
+     * @param data byte array of compressed image data.
+     * @param opts decoding options, or null.
+     * @return The future of decoded bitmap, which fails if the image could not be decoded.
+     * @see #decodeFileAsync(String, Options)
+     */
+    public DecodeFuture<Bitmap> decodeByteArrayAsync(byte[] data, Options opts) {
+        assertNotClosed();
+        return decodeBufferAsync(ByteBuffer.wrap(data), null, opts);
+    }
+
+    private DecodeFuture<Bitmap> decodeBufferAsync(ByteBuffer heif, String pathName, Options opts) {
+        AsyncImage image;
+        try {
+            HeifInfo info = parseInfo(heif, pathName);
+            TileIndex tiles = buildTileIndex(heif, info, info.getPrimaryItem());
+            DecodeRegion region = decodeRegion(tiles.getWidth(), tiles.getHeight(), opts);
+            image = new AsyncImage(tiles, region, opts);
+        } catch (IOException | RuntimeException ex) {
+            DecodeFuture<Bitmap> result = new DecodeFuture<>();
+            result.fail(ex);
+            return result;
+        }
+        image.start(mTileExecutor.getMaximumPoolSize());
+        return image.result;
+    }
+
+    /**
+     * Asynchronous decoding of an image
+     *
+     * Tiles are decoded up to the number of parallel tiles at a time, and next tile is started
+     * on completion of previous one. After all tiles are decoded, they are converted on ForkJoin pool.
+     */
+    private final class AsyncImage {
+        final TileIndex tiles;
+        final DecodeRegion region;
+        final Options opts;
+        final int[] indices;
+        final ImageCanvas[] tileCanvases;
+        final DecodeFuture<Bitmap> result = new DecodeFuture<>();
+        private final List<DecodeFuture<ImageCanvas>> mTileFutures = new ArrayList<>();
+        private final AtomicInteger mNextTile = new AtomicInteger();
+        private final AtomicInteger mRemainingTiles;
+
+        AsyncImage(TileIndex tiles, DecodeRegion region, Options opts) {
+            this.tiles = tiles;
+            this.region = region;
+            this.opts = opts;
+            this.indices = tiles.findTiles(region);
+            this.tileCanvases = new ImageCanvas[indices.length];
+            mRemainingTiles = new AtomicInteger(indices.length);
+        }
+
+        void start(int maxParallelTiles) {
+            result.addListener(new DecodeFuture.Listener<Bitmap>() {
+                @Override
+                public void onComplete(DecodeFuture<Bitmap> future) {
+                    if (!future.isSucceeded()) {
+                        cancelTiles();
+                    }
+                }
+            });
+            for (int i = 0; i < maxParallelTiles; i++) {
+                startNextTile();
+            }
+        }
+
+        private void startNextTile() {
+            final int i = mNextTile.getAndIncrement();
+            if (indices.length <= i || result.isDone()) {
+                return;
+            }
+            DecodeFuture<ImageCanvas> future = decodeTileCanvasAsync(tiles, indices[i]);
+            synchronized (mTileFutures) {
+                mTileFutures.add(future);
+            }
+            if (result.isDone() && !result.isSucceeded()) {
+                future.cancel(true);
+                return;
+            }
+            future.addListener(new DecodeFuture.Listener<ImageCanvas>() {
+                @Override
+                public void onComplete(DecodeFuture<ImageCanvas> future) {
+                    try {
+                        tileCanvases[i] = future.get();
+                    } catch (ExecutionException ex) {
+                        Throwable cause = ex.getCause();
+                        if (cause instanceof FormatFallbackException) {
+                            cause = new IOException("HEVC output format is not supported", cause);
+                        }
+                        result.fail(cause);
+                        return;
+                    } catch (InterruptedException | CancellationException ex) {
+                        return;
+                    }
+                    if (mRemainingTiles.decrementAndGet() == 0) {
+                        convert();
+                    } else {
+                        startNextTile();
+                    }
+                }
+            });
+        }
+
+        private void cancelTiles() {
+            synchronized (mTileFutures) {
+                for (DecodeFuture<ImageCanvas> future : mTileFutures) {
+                    future.cancel(true);
+                }
+            }
+        }
+
+        private void convert() {
+            try {
+                mConvertPool.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (result.isDone()) {
+                            return;
+                        }
+                        try {
+                            ImageCanvas canvas = scratchArgbCanvas(region.outputWidth(), region.outputHeight());
+                            for (int i = 0; i < indices.length; i++) {
+                                drawTileCanvas(tileCanvases[i], tiles, indices[i], region, canvas, mConvertPool);
+                            }
+                            Bitmap bmp = obtainBitmap(opts, canvas.width, canvas.height, Bitmap.Config.ARGB_8888);
+                            bmp.setPixels(canvas.argb, canvas.argbOffset, canvas.argbStride, 0, 0,
+                                    canvas.width, canvas.height);
+                            result.complete(bmp);
+                        } catch (RuntimeException | Error ex) {
+                            result.fail(ex);
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException ex) {
+                result.fail(ex);
+            }
+        }
+    }
+
+    /**
+     * parsed image in pipeline
+     */
+    private static final class Parsed {
+        final TileIndex tiles;
+        final DecodeRegion region;
+        final Options opts;
+
+        Parsed(TileIndex tiles, DecodeRegion region, Options opts) {
+            this.tiles = tiles;
+            this.region = region;
+            this.opts = opts;
+        }
+    }
+
+    /**
+     * decoded tiles in pipeline
+     */
+    private static final class Decoded {
+        final Parsed parsed;
+        final int[] indices;
+        final ImageCanvas[] tileCanvases;
+
+        Decoded(Parsed parsed, int[] indices, ImageCanvas[] tileCanvases) {
+            this.parsed = parsed;
+            this.indices = indices;
+            this.tileCanvases = tileCanvases;
+        }
+    }
+
+    static ByteBuffer mapFile(String pathName) throws IOException {
+        try (FileInputStream fis = new FileInputStream(pathName)) {
+            FileChannel channel = fis.getChannel();
+            long fileSize = channel.size();
+            if (Integer.MAX_VALUE < fileSize) {
+                throw new IOException("file size exceeds limit(" + Integer.MAX_VALUE + ")");
+            }
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+        }
+    }
+
+    private Bitmap decodeThumbnailBuffer(ByteBuffer heif, String pathName, Options opts) throws IOException {
+        HeifInfo info = parseInfo(heif, pathName);
+        HeifInfo.Item item = info.getThumbnailItem();
+        if (item == null) {
+            Log.i(TAG, "HEIC thumbnail not found; decode primary image");
+            item = info.getPrimaryItem();
+        }
+        Log.i(TAG, "HEIC image size=" + item.getWidth() + "x" + item.getHeight() + " item=" + item);
+        return decodeItem(heif, info, item, opts);
+    }
+
+    private Bitmap[] decodeItemsBuffer(ByteBuffer heif, String pathName, int[] itemIds, Options opts)
+            throws IOException {
+        if (opts != null && opts.inBitmap != null) {
+            throw new IllegalArgumentException("inBitmap is not supported for multiple items");
+        }
+        HeifInfo info = parseInfo(heif, pathName);
+        HevcDecoder hevcDecoder = hevcDecoder();
+        HeifInfo.Item[] items = new HeifInfo.Item[itemIds.length];
+        for (int i = 0; i < itemIds.length; i++) {
+            items[i] = info.findItem(itemIds[i]);
+        }
+        Bitmap[] bitmaps = new Bitmap[itemIds.length];
+        int start = 0;
+        while (start < items.length) {
+            final HeifInfo.Item item = items[start];
+            int end = start + 1;
+            if (item != null && hevcDecoder instanceof SequenceHevcDecoder) {
+                while (end < items.length && items[end] != null && item.hasSameDecoderConfig(items[end])) {
+                    end++;
+                }
+            }
+            try {
+                if (item == null) {
+                    throw new IOException("item(" + itemIds[start] + ") not found");
+                } else if (!item.isDecodable() && !HeifInfo.Item.TYPE_GRID.equals(item.getType())) {
+                    throw new IOException("item(" + item.getId() + ") is not image");
+                } else if (end - start == 1) {
+                    bitmaps[start] = decodeItem(heif, info, item, opts);
+                } else {
+                    decodeItemSequence(heif, info, Arrays.copyOfRange(items, start, end), opts, bitmaps, start);
+                }
+            } catch (IOException ex) {
+                Log.e(TAG, "decodeItems failure item=" + item, ex);
+            }
+            start = end;
+        }
+        return bitmaps;
+    }
+
+    /**
+     * Decode items of same size and 'hvcC' with {@link SequenceHevcDecoder}.
+     * Each decoded image is converted into Bitmap on output, so decoded images are not kept.
+     */
+    private void decodeItemSequence(ByteBuffer heif, HeifInfo info, HeifInfo.Item[] items, Options opts,
+                                    Bitmap[] bitmaps, int offset) throws IOException {
+        final HeifInfo.Item first = items[0];
+        final TileIndex[] tiles = new TileIndex[items.length];
+        List<List<ByteBuffer>> bitstreams = new ArrayList<>(items.length);
+        for (int i = 0; i < items.length; i++) {
+            tiles[i] = buildTileIndex(heif, info, items[i]);
+            bitstreams.add(tiles[i].getBitstream(0));
+        }
+        final DecodeRegion region = decodeRegion(first.getWidth(), first.getHeight(), opts);
+        Log.i(TAG, "HEIC item sequence count=" + items.length + " size=" + first.getWidth() + "x" + first.getHeight());
+        SequenceHevcDecoder decoder = (SequenceHevcDecoder) hevcDecoder();
+        long beginTime = SystemClock.elapsedRealtimeNanos();
+        if (!decoder.decodeSequence(first.getHevcConfig(), first.getWidth(), first.getHeight(), bitstreams,
+                HevcDecoder.FORMAT_YUV420, itemOutputs(tiles, region, ImageCanvas.FORMAT_YUV420, bitmaps, offset))) {
+            Log.w(TAG, "rendering YV12 format failure; fallback to RGB565");
+            if (!decoder.decodeSequence(first.getHevcConfig(), first.getWidth(), first.getHeight(), bitstreams,
+                    HevcDecoder.FORMAT_RGB565, itemOutputs(tiles, region, ImageCanvas.FORMAT_RGB565, bitmaps, offset))) {
+                throw new IOException("HEVC output format is not supported");
+            }
+        }
+        long endTime = SystemClock.elapsedRealtimeNanos();
+        Log.i(TAG, "HEVC decoding elapsed=" + (endTime - beginTime) / 1000000.f + "[msec]");
+    }
+
+    /**
+     * @return outputs which convert decoded images of items into bitmaps.
+     */
+    private HevcDecoder.Output[] itemOutputs(final TileIndex[] tiles, final DecodeRegion region, final int format,
+                                             final Bitmap[] bitmaps, final int offset) {
+        HevcDecoder.Output[] outputs = new HevcDecoder.Output[tiles.length];
+        // items are decoded one by one, so decoding of an item is from previous output
+        final long[] outputTime = {System.nanoTime()};
+        for (int i = 0; i < tiles.length; i++) {
+            final int index = i;
+            outputs[i] = new HevcDecoder.Output() {
+                @Override
+                public void writeImage(HevcDecoder.Plane[] planes, int width, int height) {
+                    reportTileDecoded(tiles[index], 0, outputTime[0], format == ImageCanvas.FORMAT_RGB565);
+                    final int tileWidth = tiles[index].getTileWidth();
+                    final int tileHeight = tiles[index].getTileHeight();
+                    ImageCanvas tile = new ImageCanvas(tileWidth, tileHeight, format,
+                            mScratch.get().rawBuffer(ImageCanvas.requiredSize(tileWidth, tileHeight, format)));
+                    tileOutput(tile).writeImage(planes, width, height);
+                    ImageCanvas canvas = scratchArgbCanvas(region.outputWidth(), region.outputHeight());
+                    drawTileCanvas(tile, tiles[index], 0, region, canvas, mConvertPool);
+                    Bitmap bmp = obtainBitmap(null, canvas.width, canvas.height, Bitmap.Config.ARGB_8888);
+                    bmp.setPixels(canvas.argb, canvas.argbOffset, canvas.argbStride, 0, 0, canvas.width, canvas.height);
+                    bitmaps[offset + index] = bmp;
+                    outputTime[0] = System.nanoTime();
+                }
+            };
+        }
+        return outputs;
+    }
+
+    private Bitmap decodeBuffer(ByteBuffer heif, String pathName, Options opts) throws IOException {
+        HeifInfo info = parseInfo(heif, pathName);
+        Log.i(TAG, "HEIC image size=" + info.getWidth() + "x" + info.getHeight());
+        Log.d(TAG, "HEIC " + info + " " + info.getHevcConfig());
+        return decodeItem(heif, info, info.getPrimaryItem(), opts);
+    }
+
+    /**
+     * Parse HEIF metadata through metadata cache.
+     *
+     * @param pathName path of mapped file, or null if heif is not file.
+     */
+    HeifInfo parseInfo(ByteBuffer heif, String pathName) throws IOException {
+        final long beginTime = System.nanoTime();
+        final int size = heif.remaining();
+        HeifInfo info = (pathName != null) ? mInfoCache.parse(new File(pathName), heif) : mInfoCache.parse(heif);
+        report(HeifMetrics.STAGE_PARSE, System.nanoTime() - beginTime, size, info.getWidth(), info.getHeight(), false);
+        return info;
+    }
+
+    void assertNotClosed() {
+        if (mClosed) {
+            throw new IllegalStateException("HeifDecoder is closed.");
+        }
+    }
+
+    TileIndex buildTileIndex(ByteBuffer heif, HeifInfo info, HeifInfo.Item item) throws IOException {
+        final long beginTime = System.nanoTime();
+        TileIndex tiles = TileIndex.build(heif, info, item);
+        report(HeifMetrics.STAGE_EXTRACT, System.nanoTime() - beginTime, tiles.getBitstreamSize(),
+                tiles.getWidth(), tiles.getHeight(), false);
+        Log.d(TAG, "HEIC " + tiles);
+        return tiles;
+    }
+
+    /**
+     * Report finished stage to metrics.
+     */
+    private void report(int stage, long elapsedNanos, long bytes, int width, int height, boolean fallback) {
+        if (mMetrics != null) {
+            mMetrics.onEvent(new HeifMetrics.Event(stage, elapsedNanos, bytes, width, height, fallback));
+        }
+    }
+
+    /**
+     * Get decoding region from crop rectangle and sampling options.
+     */
+    private static DecodeRegion decodeRegion(int imageWidth, int imageHeight, Options opts) {
+        if (opts == null) {
+            return DecodeRegion.full(imageWidth, imageHeight);
+        }
+        Rect crop = new Rect(0, 0, imageWidth, imageHeight);
+        if (opts.inCropRect != null && !crop.intersect(opts.inCropRect)) {
+            throw new IllegalArgumentException("crop rectangle is outside of image");
+        }
+        int sampleSize = Math.max(Math.max(1, opts.inSampleSize), DecodeRegion.sampleSizeForTarget(
+                crop.width(), crop.height(), opts.inTargetWidth, opts.inTargetHeight));
+        return new DecodeRegion(crop.left, crop.top, crop.width(), crop.height(), sampleSize);
+    }
+
+    private Bitmap decodeItem(ByteBuffer heif, HeifInfo info, HeifInfo.Item item, Options opts) throws IOException {
+        TileIndex tiles = buildTileIndex(heif, info, item);
+        DecodeRegion region = decodeRegion(tiles.getWidth(), tiles.getHeight(), opts);
+        Log.d(TAG, "HEIC " + region);
+        ImageCanvas canvas = decodeCanvas(tiles, region, null);
+        if (canvas == null) {
+            return null;
+        }
+        return toBitmap(opts, canvas);
+    }
+
+    /**
+     * Copy ARGB or RGB565 canvas into Bitmap.
+     */
+    Bitmap toBitmap(Options opts, ImageCanvas canvas) {
+        if (canvas.format == ImageCanvas.FORMAT_ARGB8888) {
+            Bitmap bmp = obtainBitmap(opts, canvas.width, canvas.height, Bitmap.Config.ARGB_8888);
+            bmp.setPixels(canvas.argb, canvas.argbOffset, canvas.argbStride, 0, 0, canvas.width, canvas.height);
+            return bmp;
+        } else {
+            Bitmap bmp = obtainBitmap(opts, canvas.width, canvas.height, Bitmap.Config.RGB_565);
+            bmp.copyPixelsFromBuffer(ByteBuffer.wrap(canvas.data, 0, canvas.width * canvas.height * 2));
+            return bmp;
+        }
+    }
+
+    /**
+     * Decode region of image into canvas.
+     *
+     * YUV image is converted (and downsampled) into ARGB canvas. If HEVC decoder could not output
+     * YUV image, whole RGB565 image is decoded into scratch canvas, and expanded into ARGB canvas
+     * if specified or the region is not whole image.
+     *
+     * @param argbCanvas destination ARGB canvas, or null to use scratch buffer.
+     * @return The decoded canvas, or null if any output format is not supported.
+     */
+    ImageCanvas decodeCanvas(TileIndex tiles, DecodeRegion region, ImageCanvas argbCanvas)
+            throws IOException {
+        final int width = tiles.getWidth();
+        final int height = tiles.getHeight();
+        ImageCanvas canvas = argbCanvas;
+        if (canvas == null) {
+            canvas = scratchArgbCanvas(region.outputWidth(), region.outputHeight());
+        }
+        try {
+            decodeItemWithFormat(tiles, region, canvas, HevcDecoder.FORMAT_YUV420);
+            return canvas;
+        } catch (FormatFallbackException ex) {
+            Log.w(TAG, "rendering YV12 format failure; fallback to RGB565");
+        }
+        int canvasSize = ImageCanvas.requiredSize(width, height, ImageCanvas.FORMAT_RGB565);
+        ImageCanvas rgbCanvas = new ImageCanvas(width, height, ImageCanvas.FORMAT_RGB565,
+                mScratch.get().rawBuffer(canvasSize));
+        try {
+            decodeItemWithFormat(tiles, region, rgbCanvas, HevcDecoder.FORMAT_RGB565);
+        } catch (FormatFallbackException ex2) {
+            Log.e(TAG, "rendering RGB565 format failure", ex2);
+            return null;
+        }
+        if (argbCanvas == null && region.isFull(width, height)) {
+            return rgbCanvas;
+        }
+        final long beginTime = System.nanoTime();
+        rgbCanvas.expandRgb565(canvas, -region.left, -region.top, region.sampleSize);
+        report(HeifMetrics.STAGE_CONVERT, System.nanoTime() - beginTime, canvasSize, width, height, true);
+        return canvas;
+    }
+
+    /**
+     * @param canvas ARGB canvas of region, or whole image canvas in other formats.
+     */
+    private void decodeItemWithFormat(final TileIndex tiles, final DecodeRegion region, final ImageCanvas canvas,
+                                      final int imageFormat) throws IOException, FormatFallbackException {
+        long beginTime = SystemClock.elapsedRealtimeNanos();
+        if (tiles.getTileCount() == 1) {
+            decodeTile(tiles, 0, region, canvas, imageFormat, mConvertPool);
+        } else {
+            // tiles outside of the region are not decoded
+            forEachTile(tiles.findTiles(region), new TileTask() {
+                @Override
+                public void run(int index) throws IOException, FormatFallbackException {
+                    // tiles are converted on each tile thread
+                    decodeTile(tiles, index, region, canvas, imageFormat, null);
+                }
+            });
+        }
+        long endTime = SystemClock.elapsedRealtimeNanos();
+        Log.i(TAG, "HEVC decoding elapsed=" + (endTime - beginTime) / 1000000.f + "[msec]");
+    }
+
+    /**
+     * Get Bitmap for decoded image from {@link Options#inBitmap}, BitmapPool, or new allocation.
+     */
+    Bitmap obtainBitmap(Options opts, int width, int height, Bitmap.Config config) {
+        final long beginTime = System.nanoTime();
+        Bitmap bmp = allocateBitmap(opts, width, height, config);
+        report(HeifMetrics.STAGE_ALLOCATE, System.nanoTime() - beginTime,
+                (long) width * height * BitmapPool.bytesPerPixel(config), width, height,
+                config == Bitmap.Config.RGB_565);
+        return bmp;
+    }
+
+    private Bitmap allocateBitmap(Options opts, int width, int height, Bitmap.Config config) {
+        Bitmap bmp = (opts != null) ? opts.inBitmap : null;
+        if (bmp != null) {
+            if (bmp.isMutable() && !bmp.isRecycled()
+                    && width * height * BitmapPool.bytesPerPixel(config) <= bmp.getAllocationByteCount()) {
+                if (bmp.getWidth() != width || bmp.getHeight() != height || bmp.getConfig() != config) {
+                    bmp.reconfigure(width, height, config);
+                }
+                return bmp;
+            }
+            Log.d(TAG, "inBitmap is not reusable; allocate new Bitmap");
+        }
+        if (mBitmapPool != null) {
+            bmp = mBitmapPool.get(width, height, config);
+            if (bmp != null) {
+                return bmp;
+            }
+        }
+        return Bitmap.createBitmap(width, height, config);
+    }
+
+    /**
+     * Task for each tile
+     */
+    interface TileTask {
+        void run(int index) throws IOException, FormatFallbackException;
+    }
+
+    /**
+     * Run tasks for tiles in parallel on tile threads, and wait all tasks.
+     * When a task fails, remaining tasks are skipped and the first failure is thrown.
+     */
+    void forEachTile(int[] indices, final TileTask task) throws IOException, FormatFallbackException {
+        final AtomicBoolean failed = new AtomicBoolean();
+        List<Future<Void>> futures = new ArrayList<>(indices.length);
+        for (final int index : indices) {
+            futures.add(mTileExecutor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    if (failed.get()) {
+                        return null;    // skip remaining tiles
+                    }
+                    try {
+                        task.run(index);
+                    } catch (Exception | Error ex) {
+                        failed.set(true);
+                        throw ex;
+                    }
+                    return null;
+                }
+            }));
+        }
+
+        // wait all tasks, because they write into canvas
+        Throwable cause = null;
+        boolean interrupted = false;
+        for (Future<Void> future : futures) {
+            while (true) {
+                try {
+                    future.get();
+                    break;
+                } catch (InterruptedException ex) {
+                    interrupted = true;
+                } catch (ExecutionException ex) {
+                    if (cause == null) {
+                        cause = ex.getCause();
+                    }
+                    break;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (cause instanceof IOException) {
+            throw (IOException) cause;
+        } else if (cause instanceof FormatFallbackException) {
+            throw (FormatFallbackException) cause;
+        } else if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+        } else if (cause instanceof Error) {
+            throw (Error) cause;
+        } else if (cause != null) {
+            throw new RuntimeException(cause);
+        }
+    }
+
+    /**
+     * Decode a tile (or single image) into canvas.
+     *
+     * @param canvas ARGB canvas of region, or whole image canvas in other formats.
+     */
+    private void decodeTile(final TileIndex tiles, final int index, final DecodeRegion region,
+                            final ImageCanvas canvas, int imageFormat, final ForkJoinPool convertPool)
+            throws IOException, FormatFallbackException {
+        HeifInfo.Item item = tiles.getTile(index);
+        final YuvConverter converter = YuvConverter.forConfig(item.getHevcConfig());
+        final long beginTime = System.nanoTime();
+        final long[] convertNanos = new long[1];
+        boolean decoded = hevcDecoder().decode(item.getHevcConfig(), item.getWidth(), item.getHeight(),
+                tiles.getBitstream(index), imageFormat, new HevcDecoder.Output() {
+                    @Override
+                    public void writeImage(HevcDecoder.Plane[] planes, int width, int height) {
+                        if (canvas.format == ImageCanvas.FORMAT_ARGB8888) {
+                            final long convertTime = System.nanoTime();
+                            convertTile(converter, planes, width, height, tiles, index, region, canvas, convertPool);
+                            convertNanos[0] = System.nanoTime() - convertTime;
+                            report(HeifMetrics.STAGE_CONVERT, convertNanos[0],
+                                    ImageCanvas.requiredSize(width, height, ImageCanvas.FORMAT_YUV420),
+                                    width, height, false);
+                        } else {
+                            HevcDecoder.Plane plane = planes[0];
+                            canvas.copyPlane(0, plane.buffer, width, height, plane.rowStride, plane.pixelStride,
+                                    tiles.getTileLeft(index), tiles.getTileTop(index));
+                        }
+                    }
+                });
+        if (!decoded) {
+            throw new FormatFallbackException(
+                    new UnsupportedOperationException("image format(" + imageFormat + ") is not supported"));
+        }
+        // conversion is fused into output of decoder
+        report(HeifMetrics.STAGE_DECODE, System.nanoTime() - beginTime - convertNanos[0],
+                tiles.getBitstreamSize(index), item.getWidth(), item.getHeight(),
+                imageFormat == HevcDecoder.FORMAT_RGB565);
+    }
+
+    /**
+     * Decode a tile into its own canvas, which can be kept for later conversion.
+     *
+     * @return The tile canvas in YUV420, or RGB565 if HEVC decoder could not output YUV image.
+     * @throws FormatFallbackException if any output format is not supported.
+     */
+    ImageCanvas decodeTileCanvas(TileIndex tiles, int index) throws IOException, FormatFallbackException {
+        HeifInfo.Item item = tiles.getTile(index);
+        final int width = tiles.getTileWidth();
+        final int height = tiles.getTileHeight();
+        final ImageCanvas yuvCanvas = new ImageCanvas(width, height, ImageCanvas.FORMAT_YUV420,
+                new byte[ImageCanvas.requiredSize(width, height, ImageCanvas.FORMAT_YUV420)]);
+        long beginTime = System.nanoTime();
+        HevcDecoder hevcDecoder = hevcDecoder();
+        boolean decoded = hevcDecoder.decode(item.getHevcConfig(), width, height, tiles.getBitstream(index),
+                HevcDecoder.FORMAT_YUV420, tileOutput(yuvCanvas));
+        if (decoded) {
+            reportTileDecoded(tiles, index, beginTime, false);
+            return yuvCanvas;
+        }
+        Log.w(TAG, "rendering YV12 format failure; fallback to RGB565");
+        final ImageCanvas rgbCanvas = new ImageCanvas(width, height, ImageCanvas.FORMAT_RGB565,
+                new byte[ImageCanvas.requiredSize(width, height, ImageCanvas.FORMAT_RGB565)]);
+        beginTime = System.nanoTime();
+        decoded = hevcDecoder.decode(item.getHevcConfig(), width, height, tiles.getBitstream(index),
+                HevcDecoder.FORMAT_RGB565, tileOutput(rgbCanvas));
+        if (!decoded) {
+            throw new FormatFallbackException(new UnsupportedOperationException("RGB565 is not supported"));
+        }
+        reportTileDecoded(tiles, index, beginTime, true);
+        return rgbCanvas;
+    }
+
+    private void reportTileDecoded(TileIndex tiles, int index, long beginTime, boolean fallback) {
+        report(HeifMetrics.STAGE_DECODE, System.nanoTime() - beginTime, tiles.getBitstreamSize(index),
+                tiles.getTileWidth(), tiles.getTileHeight(), fallback);
+    }
+
+    /**
+     * Decode a tile into its own canvas asynchronously, like {@link #decodeTileCanvas}.
+     *
+     * If HEVC decoder does not support asynchronous decoding, the tile is decoded on tile thread.
+     */
+    private DecodeFuture<ImageCanvas> decodeTileCanvasAsync(final TileIndex tiles, final int index) {
+        HevcDecoder hevcDecoder;
+        try {
+            hevcDecoder = hevcDecoder();
+        } catch (IOException ex) {
+            DecodeFuture<ImageCanvas> result = new DecodeFuture<>();
+            result.fail(ex);
+            return result;
+        }
+        if (!(hevcDecoder instanceof AsyncHevcDecoder)) {
+            return DecodeFuture.submit(mTileExecutor, new Callable<ImageCanvas>() {
+                @Override
+                public ImageCanvas call() throws Exception {
+                    return decodeTileCanvas(tiles, index);
+                }
+            });
+        }
+        final AsyncHevcDecoder decoder = (AsyncHevcDecoder) hevcDecoder;
+        final HeifInfo.Item item = tiles.getTile(index);
+        final int width = tiles.getTileWidth();
+        final int height = tiles.getTileHeight();
+        final ImageCanvas yuvCanvas = new ImageCanvas(width, height, ImageCanvas.FORMAT_YUV420,
+                new byte[ImageCanvas.requiredSize(width, height, ImageCanvas.FORMAT_YUV420)]);
+        final DecodeFuture<ImageCanvas> result = new DecodeFuture<>();
+        final long beginTime = System.nanoTime();
+        final DecodeFuture<Boolean> yuv = decoder.decodeAsync(item.getHevcConfig(), width, height,
+                tiles.getBitstream(index), HevcDecoder.FORMAT_YUV420, tileOutput(yuvCanvas));
+        result.setCancelAction(new Runnable() {
+            @Override
+            public void run() {
+                yuv.cancel(true);
+            }
+        });
+        yuv.addListener(new DecodeFuture.Listener<Boolean>() {
+            @Override
+            public void onComplete(DecodeFuture<Boolean> future) {
+                if (!forwardFailure(future, result)) {
+                    return;
+                }
+                if (getDecoded(future)) {
+                    reportTileDecoded(tiles, index, beginTime, false);
+                    result.complete(yuvCanvas);
+                    return;
+                }
+                Log.w(TAG, "rendering YV12 format failure; fallback to RGB565");
+                final ImageCanvas rgbCanvas = new ImageCanvas(width, height, ImageCanvas.FORMAT_RGB565,
+                        new byte[ImageCanvas.requiredSize(width, height, ImageCanvas.FORMAT_RGB565)]);
+                final long fallbackTime = System.nanoTime();
+                final DecodeFuture<Boolean> rgb = decoder.decodeAsync(item.getHevcConfig(), width, height,
+                        tiles.getBitstream(index), HevcDecoder.FORMAT_RGB565, tileOutput(rgbCanvas));
+                result.setCancelAction(new Runnable() {
+                    @Override
+                    public void run() {
+                        rgb.cancel(true);
+                    }
+                });
+                rgb.addListener(new DecodeFuture.Listener<Boolean>() {
+                    @Override
+                    public void onComplete(DecodeFuture<Boolean> future) {
+                        if (!forwardFailure(future, result)) {
+                            return;
+                        }
+                        if (getDecoded(future)) {
+                            reportTileDecoded(tiles, index, fallbackTime, true);
+                            result.complete(rgbCanvas);
+                        } else {
+                            result.fail(new FormatFallbackException(
+                                    new UnsupportedOperationException("RGB565 is not supported")));
+                        }
+                    }
+                });
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Forward failure of HEVC decoding to the result.
+     *
+     * @return true if HEVC decoding is succeeded.
+     */
+    private static boolean forwardFailure(DecodeFuture<Boolean> decoding, DecodeFuture<ImageCanvas> result) {
+        if (decoding.isSucceeded()) {
+            return true;
+        }
+        try {
+            decoding.get();
+        } catch (ExecutionException ex) {
+            result.fail(ex.getCause());
+        } catch (InterruptedException | CancellationException ex) {
+            result.cancel(true);
+        }
+        return false;
+    }
+
+    private static boolean getDecoded(DecodeFuture<Boolean> decoding) {
+        try {
+            return decoding.get();
+        } catch (InterruptedException | ExecutionException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * @return The output which copies decoded image into canvas of same format.
+     */
+    private static HevcDecoder.Output tileOutput(final ImageCanvas canvas) {
+        return new HevcDecoder.Output() {
+            @Override
+            public void writeImage(HevcDecoder.Plane[] planes, int width, int height) {
+                final int count = (canvas.format == ImageCanvas.FORMAT_YUV420) ? 3 : 1;
+                for (int i = 0; i < count; i++) {
+                    HevcDecoder.Plane plane = planes[i];
+                    int w = (i == 0) ? width : (width + 1) / 2;
+                    int h = (i == 0) ? height : (height + 1) / 2;
+                    canvas.copyPlane(i, plane.buffer, w, h, plane.rowStride, plane.pixelStride, 0, 0);
+                }
+            }
+        };
+    }
+
+    /**
+     * Convert decoded tile into ARGB canvas of region.
+     *
+     * The tile is clipped by the region, which also excludes padding of grid tiles.
+     */
+    static void convertTile(YuvConverter converter, HevcDecoder.Plane[] planes, int width, int height,
+                            TileIndex tiles, int index, DecodeRegion region, ImageCanvas canvas, ForkJoinPool pool) {
+        final int left = tiles.getTileLeft(index);
+        final int top = tiles.getTileTop(index);
+        converter.convert(planes, Math.min(width, region.right() - left), Math.min(height, region.bottom() - top),
+                canvas, left - region.left, top - region.top, region.sampleSize, pool);
+    }
+
+    /**
+     * Convert tile canvas from {@link #decodeTileCanvas} into ARGB canvas of region.
+     */
+    void drawTileCanvas(ImageCanvas tile, TileIndex tiles, int index, DecodeRegion region,
+                        ImageCanvas canvas, ForkJoinPool pool) {
+        final long beginTime = System.nanoTime();
+        if (tile.format == ImageCanvas.FORMAT_YUV420) {
+            YuvConverter converter = YuvConverter.forConfig(tiles.getTile(index).getHevcConfig());
+            convertTile(converter, tile.yuvPlanes(), tile.width, tile.height, tiles, index, region, canvas, pool);
+        } else {
+            tile.expandRgb565(canvas, tiles.getTileLeft(index) - region.left, tiles.getTileTop(index) - region.top,
+                    region.sampleSize);
+        }
+        report(HeifMetrics.STAGE_CONVERT, System.nanoTime() - beginTime,
+                ImageCanvas.requiredSize(tile.width, tile.height, tile.format), tile.width, tile.height,
+                tile.format == ImageCanvas.FORMAT_RGB565);
+    }
+
+    File getCacheDir() {
+        return mCacheDir;
+    }
+
+    ForkJoinPool getConvertPool() {
+        return mConvertPool;
+    }
+
+    ImageCanvas scratchArgbCanvas(int width, int height) {
+        return new ImageCanvas(width, height, mScratch.get().argbBuffer(width * height), 0, width);
+    }
+
+    /**
+     * per-thread scratch state
+     *
+     * Buffers up to {@link #MAX_SCRATCH_BYTES} are kept for next use on the thread. Larger buffers
+     * are not kept, so a thread does not hold memory of the largest image it has ever decoded.
+     */
+    private static final class Scratch {
+        private byte[] mRawBuffer;
+        private int[] mArgbBuffer;
+
+        synchronized byte[] rawBuffer(int size) {
+            if (MAX_SCRATCH_BYTES < size) {
+                return new byte[size];
+            }
+            if (mRawBuffer == null || mRawBuffer.length < size) {
+                mRawBuffer = new byte[size];
+            }
+            return mRawBuffer;
+        }
+
+        synchronized int[] argbBuffer(int size) {
+            if (MAX_SCRATCH_BYTES / 4 < size) {
+                return new int[size];
+            }
+            if (mArgbBuffer == null || mArgbBuffer.length < size) {
+                mArgbBuffer = new int[size];
+            }
+            return mArgbBuffer;
+        }
+
+        synchronized void clear() {
+            mRawBuffer = null;
+            mArgbBuffer = null;
+        }
+    }
+}
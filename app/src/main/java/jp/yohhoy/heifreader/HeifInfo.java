@@ -0,0 +1,353 @@
+/*
+ * Copyright (c) 2017 yohhoy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package jp.yohhoy.heifreader;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * HEIF metadata
+ *
+ * Immutable snapshot of item table, item properties and item locations.
+ */
+public final class HeifInfo {
+    private final String mMajorBrand;
+    private final int mPrimaryItemId;
+    private final List<Item> mItems;
+    private final List<Reference> mReferences;
+    private final byte[] mItemData;
+
+    HeifInfo(String majorBrand, int primaryItemId, List<Item> items, List<Reference> references,
+             byte[] itemData) {
+        mMajorBrand = majorBrand;
+        mPrimaryItemId = primaryItemId;
+        mItems = Collections.unmodifiableList(items);
+        mReferences = Collections.unmodifiableList(references);
+        mItemData = itemData;
+    }
+
+    /**
+     * @return copy of this metadata with replaced item table.
+     */
+    HeifInfo withItems(List<Item> items) {
+        return new HeifInfo(mMajorBrand, mPrimaryItemId, items, mReferences, mItemData);
+    }
+
+    public String getMajorBrand() {
+        return mMajorBrand;
+    }
+
+    public int getPrimaryItemId() {
+        return mPrimaryItemId;
+    }
+
+    public Item getPrimaryItem() {
+        return findItem(mPrimaryItemId);
+    }
+
+    /**
+     * Find item with item_ID.
+     *
+     * @param itemId item_ID
+     * @return The item, or null if not found.
+     */
+    public Item findItem(int itemId) {
+        for (Item item : mItems) {
+            if (item.mId == itemId) {
+                return item;
+            }
+        }
+        return null;
+    }
+
+    public List<Item> getItems() {
+        return mItems;
+    }
+
+    /**
+     * Get HEVC coded image items, which may be burst photos or collection of images.
+     *
+     * @return 'hvc1' items in 'iinf' order, including tiles of grid image and thumbnails.
+     */
+    public List<Item> getHevcItems() {
+        List<Item> items = new ArrayList<>();
+        for (Item item : mItems) {
+            if (Item.TYPE_HEVC.equals(item.mType)) {
+                items.add(item);
+            }
+        }
+        return items;
+    }
+
+    /**
+     * @return item references in 'iref' box.
+     */
+    public List<Reference> getReferences() {
+        return mReferences;
+    }
+
+    /**
+     * Get referenced item_IDs.
+     *
+     * @param type reference type. (e.g. "dimg", "thmb")
+     * @param fromItemId from_item_ID
+     * @return to_item_IDs in order, or empty array if no reference.
+     */
+    public int[] getReferencedItemIds(String type, int fromItemId) {
+        for (Reference ref : mReferences) {
+            if (ref.mType.equals(type) && ref.mFromItemId == fromItemId) {
+                return ref.mToItemIds.clone();
+            }
+        }
+        return new int[0];
+    }
+
+    /**
+     * Get item data box('idat') which is referred by construction_method=1.
+     *
+     * @return read-only buffer, or null if 'idat' box is not present.
+     */
+    ByteBuffer getItemData() {
+        return (mItemData != null) ? ByteBuffer.wrap(mItemData).asReadOnlyBuffer() : null;
+    }
+
+    /**
+     * Find thumbnail image of primary image.
+     *
+     * If multiple thumbnails exist, the smallest one is chosen.
+     *
+     * @return HEVC coded thumbnail item, or null if not found.
+     */
+    public Item getThumbnailItem() {
+        Item thumbnail = null;
+        for (Reference ref : mReferences) {
+            if (!ref.mType.equals(Reference.TYPE_THUMBNAIL)) {
+                continue;
+            }
+            for (int toItemId : ref.mToItemIds) {
+                if (toItemId != mPrimaryItemId) {
+                    continue;
+                }
+                Item item = findItem(ref.mFromItemId);
+                if (item == null || !item.isDecodable()) {
+                    continue;
+                }
+                if (thumbnail == null
+                        || (long) item.mWidth * item.mHeight < (long) thumbnail.mWidth * thumbnail.mHeight) {
+                    thumbnail = item;
+                }
+            }
+        }
+        return thumbnail;
+    }
+
+    /**
+     * @return width of primary image.
+     */
+    public int getWidth() {
+        return getPrimaryItem().mWidth;
+    }
+
+    /**
+     * @return height of primary image.
+     */
+    public int getHeight() {
+        return getPrimaryItem().mHeight;
+    }
+
+    /**
+     * @return HEVC decoder configuration of primary image. (of first tile for 'grid' image)
+     */
+    public HevcConfig getHevcConfig() {
+        Item item = getPrimaryItem();
+        if (Item.TYPE_GRID.equals(item.mType)) {
+            int[] tileIds = getReferencedItemIds(Reference.TYPE_DERIVED_IMAGE, item.mId);
+            item = (0 < tileIds.length) ? findItem(tileIds[0]) : null;
+        }
+        return (item != null) ? item.mHevcConfig : null;
+    }
+
+    @Override
+    public String toString() {
+        return "HeifInfo[majorBrand=" + mMajorBrand + ";primaryItemId=" + mPrimaryItemId
+                + ";items=" + mItems + "]";
+    }
+
+    /**
+     * HEIF item
+     */
+    public static final class Item {
+        public static final String TYPE_HEVC = "hvc1";
+        public static final String TYPE_GRID = "grid";
+
+        private final int mId;
+        private final String mType;
+        private final String mName;
+        private final int mWidth;
+        private final int mHeight;
+        private final HevcConfig mHevcConfig;
+        private final int mConstructionMethod;
+        private final long[] mExtentOffsets;
+        private final long[] mExtentLengths;
+
+        Item(int id, String type, String name, int width, int height, HevcConfig hevcConfig,
+             int constructionMethod, long[] extentOffsets, long[] extentLengths) {
+            mId = id;
+            mType = type;
+            mName = name;
+            mWidth = width;
+            mHeight = height;
+            mHevcConfig = hevcConfig;
+            mConstructionMethod = constructionMethod;
+            mExtentOffsets = extentOffsets;
+            mExtentLengths = extentLengths;
+        }
+
+        public int getId() {
+            return mId;
+        }
+
+        /**
+         * @return item_type. (e.g. "hvc1", "grid", "Exif")
+         */
+        public String getType() {
+            return mType;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        /**
+         * @return image width from 'ispe' property, or 0 if not present.
+         */
+        public int getWidth() {
+            return mWidth;
+        }
+
+        /**
+         * @return image height from 'ispe' property, or 0 if not present.
+         */
+        public int getHeight() {
+            return mHeight;
+        }
+
+        /**
+         * @return HEVC decoder configuration from 'hvcC' property, or null if not present.
+         */
+        public HevcConfig getHevcConfig() {
+            return mHevcConfig;
+        }
+
+        /**
+         * @return construction_method. (0=file offset, 1=idat offset)
+         */
+        public int getConstructionMethod() {
+            return mConstructionMethod;
+        }
+
+        /**
+         * @return true if the item is HEVC coded image with required properties.
+         */
+        boolean isDecodable() {
+            return TYPE_HEVC.equals(mType) && 0 < mWidth && 0 < mHeight && mHevcConfig != null
+                    && 0 < mExtentOffsets.length;
+        }
+
+        /**
+         * @return true if both items are HEVC coded images which can be decoded with one configured
+         * decoder, that is, they have same size and 'hvcC' parameter sets.
+         */
+        boolean hasSameDecoderConfig(Item other) {
+            return isDecodable() && other.isDecodable() && mWidth == other.mWidth && mHeight == other.mHeight
+                    && mHevcConfig.hasSameParamset(other.mHevcConfig);
+        }
+
+        /**
+         * @return copy of this item with replaced extents.
+         */
+        Item withExtents(long[] extentOffsets, long[] extentLengths) {
+            return new Item(mId, mType, mName, mWidth, mHeight, mHevcConfig, mConstructionMethod,
+                    extentOffsets, extentLengths);
+        }
+
+        public int getExtentCount() {
+            return mExtentOffsets.length;
+        }
+
+        /**
+         * @return extent offset, base_offset is already added.
+         */
+        public long getExtentOffset(int index) {
+            return mExtentOffsets[index];
+        }
+
+        public long getExtentLength(int index) {
+            return mExtentLengths[index];
+        }
+
+        @Override
+        public String toString() {
+            return "Item[id=" + mId + ";type=" + mType + ";size=" + mWidth + "x" + mHeight
+                    + ";extents=" + mExtentOffsets.length + "]";
+        }
+    }
+
+    /**
+     * Item reference (SingleItemTypeReferenceBox)
+     */
+    public static final class Reference {
+        /** derived image: from 'grid' item to tile items */
+        public static final String TYPE_DERIVED_IMAGE = "dimg";
+        /** thumbnail: from thumbnail item to master image item */
+        public static final String TYPE_THUMBNAIL = "thmb";
+
+        private final String mType;
+        private final int mFromItemId;
+        private final int[] mToItemIds;
+
+        Reference(String type, int fromItemId, int[] toItemIds) {
+            mType = type;
+            mFromItemId = fromItemId;
+            mToItemIds = toItemIds;
+        }
+
+        public String getType() {
+            return mType;
+        }
+
+        public int getFromItemId() {
+            return mFromItemId;
+        }
+
+        public int[] getToItemIds() {
+            return mToItemIds.clone();
+        }
+
+        @Override
+        public String toString() {
+            return "Reference[type=" + mType + ";from=" + mFromItemId + ";to=" + mToItemIds.length + " items]";
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2017 yohhoy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package jp.yohhoy.heifreader;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * LRU cache of parsed HEIF metadata
+ *
+ * Decoding thumbnail, region and whole image of one file parses same metadata repeatedly.
+ * HeifInfo is immutable, so parsed metadata is shared between decodings. Files are keyed
+ * by (path, size, last modified time) without reading, and buffers are keyed by digest of
+ * 'ftyp' and 'meta' boxes, which contain all item locations. This class is thread-safe.
+ */
+final class HeifInfoCache {
+    private final int mMaxEntries;
+    // access-ordered, least recently used first
+    private final LinkedHashMap<String, HeifInfo> mEntries;
+
+    /**
+     * @param maxEntries maximum number of cached metadata, or 0 to disable cache.
+     */
+    HeifInfoCache(final int maxEntries) {
+        if (maxEntries < 0) {
+            throw new IllegalArgumentException("invalid maxEntries(" + maxEntries + ")");
+        }
+        mMaxEntries = maxEntries;
+        mEntries = new LinkedHashMap<String, HeifInfo>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, HeifInfo> eldest) {
+                return maxEntries < size();
+            }
+        };
+    }
+
+    /**
+     * Parse metadata of whole HEIF data in buffer.
+     */
+    HeifInfo parse(ByteBuffer heif) throws IOException {
+        if (mMaxEntries == 0) {
+            return HeifParser.parse(heif);
+        }
+        ByteBuffer[] boxes = HeifParser.scan(heif);
+        MessageDigest digest = TileIndex.sha1();
+        digest.update(boxes[0].duplicate());
+        digest.update(boxes[1].duplicate());
+        String key = "sha1:" + TileIndex.toHex(digest.digest());
+        HeifInfo info = get(key);
+        if (info == null) {
+            info = HeifParser.parseBoxes(boxes[0], boxes[1]);
+            put(key, info);
+        }
+        return info;
+    }
+
+    /**
+     * Parse metadata of file.
+     *
+     * @param file the file, whose attributes are used as key.
+     * @param heif whole data of the file, which is parsed on cache miss.
+     */
+    HeifInfo parse(File file, ByteBuffer heif) throws IOException {
+        if (mMaxEntries == 0) {
+            return HeifParser.parse(heif);
+        }
+        String key = "file:" + file.getAbsolutePath() + ":" + file.length() + ":" + file.lastModified();
+        HeifInfo info = get(key);
+        if (info == null) {
+            info = HeifParser.parse(heif);
+            put(key, info);
+        }
+        return info;
+    }
+
+    synchronized void clear() {
+        mEntries.clear();
+    }
+
+    synchronized int getCount() {
+        return mEntries.size();
+    }
+
+    private synchronized HeifInfo get(String key) {
+        return mEntries.get(key);
+    }
+
+    private synchronized void put(String key, HeifInfo info) {
+        mEntries.put(key, info);
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2017 yohhoy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package jp.yohhoy.heifreader;
+
+import java.util.Locale;
+
+/**
+ * Listener of decoding stages
+ *
+ * An event is reported on the thread which ran the stage, after the stage is finished.
+ * Decode and convert stages of grid image are reported for each tile, and a stage which failed
+ * is not reported. Listener shall be thread-safe and return quickly.
+ *
+ * @see HeifDecoder.Builder#setMetrics
+ * @see HistogramMetrics
+ */
+public interface HeifMetrics {
+    /** parse HEIF metadata (with brand check), or hit of metadata cache. */
+    int STAGE_PARSE = 0;
+    /** locate HEVC bitstream of tiles in item data. */
+    int STAGE_EXTRACT = 1;
+    /** create and configure new MediaCodec decoder, when no idle decoder is pooled. */
+    int STAGE_CONFIGURE = 2;
+    /** HEVC decoding of a tile, including configure stage of new decoder. */
+    int STAGE_DECODE = 3;
+    /** YUV to RGB conversion (and downsampling) of a tile, or expansion of RGB565 image. */
+    int STAGE_CONVERT = 4;
+    /** obtain Bitmap from {@link HeifDecoder.Options#inBitmap}, BitmapPool, or new allocation. */
+    int STAGE_ALLOCATE = 5;
+    int STAGE_COUNT = 6;
+
+    void onEvent(Event event);
+
+    /**
+     * Finished stage
+     */
+    final class Event {
+        private static final String[] STAGE_NAMES = {"parse", "extract", "configure", "decode", "convert", "allocate"};
+
+        /** one of STAGE_*. */
+        public final int stage;
+        public final long elapsedNanos;
+        /**
+         * input size of stage: HEIF data for parse, HEVC bitstream for extract and decode, maximum input size
+         * for configure, decoded image for convert, or pixels of Bitmap for allocate.
+         */
+        public final long bytes;
+        /** size of image or tile. */
+        public final int width;
+        public final int height;
+        /** true if HEVC decoder could not output YV12 image, and the stage is on RGB565 fallback path. */
+        public final boolean fallback;
+
+        public Event(int stage, long elapsedNanos, long bytes, int width, int height, boolean fallback) {
+            this.stage = stage;
+            this.elapsedNanos = elapsedNanos;
+            this.bytes = bytes;
+            this.width = width;
+            this.height = height;
+            this.fallback = fallback;
+        }
+
+        public static String stageName(int stage) {
+            return STAGE_NAMES[stage];
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "Event[%s=%.3f[msec];bytes=%d;size=%dx%d%s]", STAGE_NAMES[stage],
+                    elapsedNanos / 1e6, bytes, width, height, fallback ? ";fallback" : "");
+        }
+    }
+}
@@ -0,0 +1,455 @@
+/*
+ * Copyright (c) 2017 yohhoy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package jp.yohhoy.heifreader;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ * HEIF metadata parser
+ *
+ * Read 'ftyp' and 'meta' boxes only. Other top-level boxes (e.g. 'mdat') are skipped without reading.
+ * Boxes in 'meta' are parsed by {@link ItemTables}, without reflection-based box framework.
+ */
+public final class HeifParser {
+    /**
+     * 'ftyp'/'meta' box size limitation for safety.
+     */
+    private static final long LIMIT_BOXSIZE = 1024 * 1024;  // 1[MB]
+
+    private HeifParser() {
+    }
+
+    /**
+     * Parse HEIF metadata from the specified buffer.
+     *
+     * @param heif buffer of whole HEIF data. (position is not modified)
+     * @return The parsed metadata.
+     * @throws IOException if the data is not supported HEIF.
+     */
+    public static HeifInfo parse(ByteBuffer heif) throws IOException {
+        return parse(new BufferSource(heif.duplicate()));
+    }
+
+    /**
+     * Parse HEIF metadata from the specified file.
+     *
+     * @param file HEIF file.
+     * @return The parsed metadata.
+     * @throws IOException if the file could not be read or is not supported HEIF.
+     */
+    public static HeifInfo parse(File file) throws IOException {
+        try (FileInputStream fis = new FileInputStream(file)) {
+            return parse(new ChannelSource(fis.getChannel()));
+        }
+    }
+
+    /**
+     * Parse HEIF metadata from the specified input stream.
+     *
+     * The stream is consumed until 'meta' box, and is not closed.
+     *
+     * @param is input stream of HEIF data.
+     * @return The parsed metadata.
+     * @throws IOException if the stream could not be read or is not supported HEIF.
+     */
+    public static HeifInfo parse(InputStream is) throws IOException {
+        return parse(new StreamSource(is));
+    }
+
+    private static HeifInfo parse(Source src) throws IOException {
+        ByteBuffer[] boxes = scan(src);
+        return parseBoxes(boxes[0], boxes[1]);
+    }
+
+    /**
+     * Read 'ftyp' and 'meta' boxes from the specified buffer.
+     *
+     * @return {'ftyp' box, 'meta' box}
+     */
+    static ByteBuffer[] scan(ByteBuffer heif) throws IOException {
+        return scan(new BufferSource(heif.duplicate()));
+    }
+
+    /**
+     * Read 'ftyp' and 'meta' boxes from the specified source.
+     * The source is consumed until both boxes are read.
+     *
+     * @return {'ftyp' box, 'meta' box}
+     */
+    static ByteBuffer[] scan(Source src) throws IOException {
+        // scan top-level boxes
+        ByteBuffer ftypBox = null;
+        ByteBuffer metaBox = null;
+        ByteBuffer header = ByteBuffer.allocate(16);
+        while (ftypBox == null || metaBox == null) {
+            header.clear().limit(8);
+            if (!src.readFully(header)) {
+                break;
+            }
+            long size = header.getInt(0) & 0xffffffffL;
+            String type = new String(header.array(), 4, 4, "ISO-8859-1");
+            if (size == 1) {
+                header.limit(16);
+                if (!src.readFully(header)) {
+                    throw new EOFException("truncated box header");
+                }
+                size = header.getLong(8);
+            } else if (size == 0) {
+                // box extends to end of data
+                if ("ftyp".equals(type) || "meta".equals(type)) {
+                    throw new IOException("unsupported box size(0) of '" + type + "'");
+                }
+                break;
+            }
+            int headerSize = header.position();
+            if (size < headerSize) {
+                throw new IOException("invalid box size(" + size + ") of '" + type + "'");
+            }
+
+            if ("ftyp".equals(type) || "meta".equals(type)) {
+                if (LIMIT_BOXSIZE < size) {
+                    throw new IOException("'" + type + "' box size exceeds limit(" + LIMIT_BOXSIZE + ")");
+                }
+                ByteBuffer box = ByteBuffer.allocate((int) size);
+                header.flip();
+                box.put(header);
+                if (!src.readFully(box)) {
+                    throw new EOFException("truncated '" + type + "' box");
+                }
+                box.flip();
+                if ("ftyp".equals(type)) {
+                    ftypBox = box;
+                } else {
+                    metaBox = box;
+                }
+            } else {
+                src.skip(size - headerSize);
+            }
+        }
+        if (ftypBox == null) {
+            throw new IOException("FileTypeBox('ftyp') not found");
+        }
+        if (metaBox == null) {
+            throw new IOException("MetaBox('meta') not found");
+        }
+
+        return new ByteBuffer[]{ftypBox, metaBox};
+    }
+
+    /**
+     * Build HEIF metadata from 'ftyp' and 'meta' boxes.
+     */
+    static HeifInfo parseBoxes(ByteBuffer ftypBox, ByteBuffer metaBox) throws IOException {
+        // validate brand compatibility ('ftyp' box)
+        String majorBrand;
+        boolean supported;
+        try {
+            ByteBuffer buf = ftypBox.duplicate();
+            buf.limit(ItemTables.readBoxHeader(buf, ItemTables.TYPE_FTYP));
+            majorBrand = ItemTables.fourccToString(buf.getInt());
+            buf.getInt();   // minor_version
+            supported = isSupportedBrand(majorBrand);
+            while (4 <= buf.remaining()) {
+                supported |= isSupportedBrand(ItemTables.fourccToString(buf.getInt()));
+            }
+        } catch (BufferUnderflowException ex) {
+            throw new IOException("FileTypeBox('ftyp') is truncated", ex);
+        }
+        if (!supported) {
+            throw new IOException("unsupported FileTypeBox('ftyp') brands");
+        }
+
+        ItemTables tables = ItemTables.parse(metaBox);
+        if (tables.primaryItemId < 0) {
+            throw new IOException("PrimaryItemBox('pitm') not found");
+        }
+        if (tables.propertyCount == 0) {
+            throw new IOException("ItemPropertiesBox('iprp') not found");
+        }
+        if (tables.locationCount == 0) {
+            throw new IOException("ItemLocationBox('iloc') not found");
+        }
+
+        // build item table
+        List<HeifInfo.Item> items = new ArrayList<>(tables.itemCount);
+        HevcConfig[] hevcConfigs = new HevcConfig[tables.propertyCount];
+        for (int i = 0; i < tables.itemCount; i++) {
+            items.add(parseItem(tables, i, hevcConfigs));
+        }
+
+        // get item references
+        List<HeifInfo.Reference> references = new ArrayList<>(tables.referenceCount);
+        for (int i = 0; i < tables.referenceCount; i++) {
+            int[] toItemIds = Arrays.copyOfRange(tables.referenceToIds,
+                    tables.referenceStarts[i], tables.referenceStarts[i + 1]);
+            references.add(new HeifInfo.Reference(ItemTables.fourccToString(tables.referenceTypes[i]),
+                    tables.referenceFromIds[i], toItemIds));
+        }
+
+        // get item data
+        byte[] itemData = null;
+        if (0 <= tables.itemDataOffset) {
+            itemData = new byte[tables.itemDataLength];
+            ByteBuffer data = metaBox.duplicate();
+            data.position(tables.itemDataOffset);
+            data.get(itemData);
+        }
+
+        HeifInfo info = new HeifInfo(majorBrand, tables.primaryItemId, items, references, itemData);
+        validate(info);
+        return info;
+    }
+
+    /**
+     * Validate primary item and its derived tiles.
+     */
+    static void validate(HeifInfo info) throws IOException {
+        HeifInfo.Item primaryItem = info.getPrimaryItem();
+        if (primaryItem == null) {
+            throw new IOException("primary item(" + info.getPrimaryItemId() + ") not found");
+        }
+        if (primaryItem.getWidth() == 0 || primaryItem.getHeight() == 0) {
+            throw new IOException("ImageSpatialExtentsBox('ispe') not found");
+        }
+        if (HeifInfo.Item.TYPE_GRID.equals(primaryItem.getType())) {
+            if (primaryItem.getExtentCount() == 0) {
+                throw new IOException("grid item location not found");
+            }
+            int[] tileIds = info.getReferencedItemIds(HeifInfo.Reference.TYPE_DERIVED_IMAGE, primaryItem.getId());
+            if (tileIds.length == 0) {
+                throw new IOException("grid item has no 'dimg' reference");
+            }
+            for (int tileId : tileIds) {
+                validateCodedImage(info.findItem(tileId), tileId);
+            }
+        } else {
+            validateCodedImage(primaryItem, primaryItem.getId());
+        }
+    }
+
+    /**
+     * Check that the item is a decodable HEVC coded image.
+     *
+     * @param item coded image item, or null if not found.
+     * @param itemId ID of the item for error message.
+     * @throws IOException if the item cannot be decoded.
+     */
+    static void validateCodedImage(HeifInfo.Item item, int itemId) throws IOException {
+        if (item == null) {
+            throw new IOException("item(" + itemId + ") not found");
+        }
+        if (!HeifInfo.Item.TYPE_HEVC.equals(item.getType())) {
+            throw new IOException("unsupported item_type(" + item.getType() + ") of item(" + itemId + ")");
+        }
+        if (item.getWidth() == 0 || item.getHeight() == 0) {
+            throw new IOException("ImageSpatialExtentsBox('ispe') not found");
+        }
+        HevcConfig hevcConfig = item.getHevcConfig();
+        if (hevcConfig == null) {
+            throw new IOException("HevcConfigurationBox('hvcC') not found");
+        }
+        if (hevcConfig.getNalLengthSize() == 3) {
+            throw new IOException("unsupported DecoderConfigurationRecord.LengthSizeMinusOne("
+                    + (hevcConfig.getNalLengthSize() - 1) + ")");
+        }
+        if (item.getExtentCount() == 0) {
+            throw new IOException("item(" + itemId + ") location not found");
+        }
+    }
+
+    static boolean isSupportedBrand(String brand) {
+        return "mif1".equals(brand) || "heic".equals(brand);
+    }
+
+    /**
+     * @param hevcConfigs cache of parsed 'hvcC' indexed by property, tiles usually share one.
+     */
+    private static HeifInfo.Item parseItem(ItemTables tables, int index, HevcConfig[] hevcConfigs)
+            throws IOException {
+        final int itemId = tables.itemIds[index];
+
+        // get associative item properties
+        int width = 0;
+        int height = 0;
+        HevcConfig hevcConfig = null;
+        int assoc = tables.findAssociation(itemId);
+        if (0 <= assoc) {
+            for (int i = tables.associationStarts[assoc]; i < tables.associationStarts[assoc + 1]; i++) {
+                int propertyIndex = tables.propertyIndices[i];
+                ByteBuffer prop = tables.getProperty(propertyIndex);
+                if (prop == null) {
+                    continue;   // no property
+                }
+                int type = tables.propertyTypes[propertyIndex - 1];
+                if (type == ItemTables.TYPE_ISPE && width == 0) {
+                    // get image size
+                    try {
+                        prop.getInt();  // version, flags
+                        width = prop.getInt();
+                        height = prop.getInt();
+                    } catch (BufferUnderflowException ex) {
+                        throw new IOException("ImageSpatialExtentsBox('ispe') is truncated", ex);
+                    }
+                } else if (type == ItemTables.TYPE_HVCC && hevcConfig == null) {
+                    // get HEVC decoder configuration
+                    if (hevcConfigs[propertyIndex - 1] == null) {
+                        hevcConfigs[propertyIndex - 1] = HevcConfig.parse(prop);
+                    }
+                    hevcConfig = hevcConfigs[propertyIndex - 1];
+                }
+            }
+        }
+
+        // get item location
+        int constructionMethod = 0;
+        long[] extentOffsets = new long[0];
+        long[] extentLengths = new long[0];
+        int loc = tables.findLocation(itemId);
+        if (0 <= loc) {
+            constructionMethod = tables.constructionMethods[loc];
+            int from = tables.extentStarts[loc];
+            int to = tables.extentStarts[loc + 1];
+            extentOffsets = Arrays.copyOfRange(tables.extentOffsets, from, to);
+            extentLengths = Arrays.copyOfRange(tables.extentLengths, from, to);
+        }
+
+        return new HeifInfo.Item(itemId, ItemTables.fourccToString(tables.itemTypes[index]),
+                tables.itemNames[index], width, height, hevcConfig,
+                constructionMethod, extentOffsets, extentLengths);
+    }
+
+    /**
+     * sequential data source which supports skip
+     */
+    static abstract class Source {
+        abstract int read(ByteBuffer dst) throws IOException;
+
+        abstract void skip(long n) throws IOException;
+
+        /**
+         * @return false if end of data is reached before any byte is read.
+         */
+        boolean readFully(ByteBuffer dst) throws IOException {
+            boolean first = true;
+            while (dst.hasRemaining()) {
+                if (read(dst) < 0) {
+                    if (first) {
+                        return false;
+                    }
+                    throw new EOFException();
+                }
+                first = false;
+            }
+            return true;
+        }
+    }
+
+    private static class BufferSource extends Source {
+        private final ByteBuffer mBuffer;
+
+        BufferSource(ByteBuffer buffer) {
+            mBuffer = buffer;
+        }
+
+        @Override
+        int read(ByteBuffer dst) {
+            if (!mBuffer.hasRemaining()) {
+                return -1;
+            }
+            int len = Math.min(dst.remaining(), mBuffer.remaining());
+            ByteBuffer src = mBuffer.slice();
+            src.limit(len);
+            dst.put(src);
+            mBuffer.position(mBuffer.position() + len);
+            return len;
+        }
+
+        @Override
+        void skip(long n) throws IOException {
+            if (mBuffer.remaining() < n) {
+                throw new EOFException();
+            }
+            mBuffer.position(mBuffer.position() + (int) n);
+        }
+    }
+
+    private static class ChannelSource extends Source {
+        private final FileChannel mChannel;
+
+        ChannelSource(FileChannel channel) {
+            mChannel = channel;
+        }
+
+        @Override
+        int read(ByteBuffer dst) throws IOException {
+            return mChannel.read(dst);
+        }
+
+        @Override
+        void skip(long n) throws IOException {
+            mChannel.position(mChannel.position() + n);
+        }
+    }
+
+    static class StreamSource extends Source {
+        private final InputStream mStream;
+
+        StreamSource(InputStream stream) {
+            mStream = stream;
+        }
+
+        @Override
+        int read(ByteBuffer dst) throws IOException {
+            int len = mStream.read(dst.array(), dst.arrayOffset() + dst.position(), dst.remaining());
+            if (0 < len) {
+                dst.position(dst.position() + len);
+            }
+            return len;
+        }
+
+        @Override
+        void skip(long n) throws IOException {
+            while (0 < n) {
+                long len = mStream.skip(n);
+                if (len <= 0) {
+                    // InputStream.skip may not skip; read to move forward
+                    if (mStream.read() < 0) {
+                        throw new EOFException();
+                    }
+                    len = 1;
+                }
+                n -= len;
+            }
+        }
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright (c) 2017 yohhoy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package jp.yohhoy.heifreader;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+
+import jp.yohhoy.heifreader.CodecSession.FormatFallbackException;
+
+/**
+ * Region decoder of HEIF image, like BitmapRegionDecoder
+ *
+ * HEIF metadata is parsed and tile locations are indexed once when the decoder is created.
+ * Each {@link #decodeRegion} decodes only tiles of 'grid' image which intersect the region, and
+ * decoded tiles are kept in LRU cache, so panning over large image does not decode whole image.
+ * Cached tiles are converted (and downsampled) into the region by {@link YuvConverter}.
+ * HEVC decoders and tile threads are shared with {@link HeifDecoder}.
+ * This class is thread-safe.
+ */
+public final class HeifRegionDecoder implements Closeable {
+    private static final String TAG = "HeifReader";
+
+    /**
+     * default size of decoded tile cache.
+     */
+    public static final long DEFAULT_CACHE_BYTES = 16 * 1024 * 1024;  // 16[MB]
+
+    private final HeifDecoder mDecoder;
+    private final TileIndex mTiles;
+    private final TileCache mCache;
+    private volatile boolean mClosed;
+
+    private HeifRegionDecoder(HeifDecoder decoder, ByteBuffer heif, String pathName, long maxCacheBytes)
+            throws IOException {
+        HeifInfo info = decoder.parseInfo(heif, pathName);
+        Log.i(TAG, "HEIC image size=" + info.getWidth() + "x" + info.getHeight());
+        mDecoder = decoder;
+        mTiles = decoder.buildTileIndex(heif, info, info.getPrimaryItem());
+        mCache = new TileCache(maxCacheBytes);
+    }
+
+    /**
+     * Create region decoder of the file with default cache size.
+     *
+     * @see #newInstance(HeifDecoder, String, long)
+     */
+    public static HeifRegionDecoder newInstance(HeifDecoder decoder, String pathName) throws IOException {
+        return newInstance(decoder, pathName, DEFAULT_CACHE_BYTES);
+    }
+
+    /**
+     * Create region decoder of the file.
+     *
+     * The file is memory-mapped while the region decoder is used.
+     *
+     * @param decoder decoder which is used for decoding tiles.
+     * @param pathName complete path name for the file to be decoded.
+     * @param maxCacheBytes maximum total size of cached tiles.
+     * @return The region decoder.
+     * @throws IOException if the file could not be read or parsed.
+     */
+    public static HeifRegionDecoder newInstance(HeifDecoder decoder, String pathName, long maxCacheBytes)
+            throws IOException {
+        decoder.assertNotClosed();
+        return new HeifRegionDecoder(decoder, HeifDecoder.mapFile(pathName), pathName, maxCacheBytes);
+    }
+
+    /**
+     * Create region decoder of the byte array.
+     *
+     * @param decoder decoder which is used for decoding tiles.
+     * @param data byte array of compressed image data, which shall not be modified.
+     * @param maxCacheBytes maximum total size of cached tiles.
+     * @return The region decoder.
+     * @throws IOException if the data could not be parsed.
+     */
+    public static HeifRegionDecoder newInstance(HeifDecoder decoder, byte[] data, long maxCacheBytes)
+            throws IOException {
+        decoder.assertNotClosed();
+        return new HeifRegionDecoder(decoder, ByteBuffer.wrap(data), null, maxCacheBytes);
+    }
+
+    /**
+     * @return width of the image.
+     */
+    public int getWidth() {
+        return mTiles.getWidth();
+    }
+
+    /**
+     * @return height of the image.
+     */
+    public int getHeight() {
+        return mTiles.getHeight();
+    }
+
+    /**
+     * Decode a rectangle region of the image.
+     *
+     * @param rect rectangle in image coordinates, which is clipped by image bounds.
+     * @param sampleSize downsampling factor, like BitmapFactory.Options.inSampleSize.
+     * @return The decoded bitmap, or null if the region could not be decoded.
+     * @throws IllegalArgumentException if the rectangle is outside of image.
+     */
+    public Bitmap decodeRegion(Rect rect, int sampleSize) {
+        assertNotClosed();
+        Rect crop = new Rect(0, 0, getWidth(), getHeight());
+        if (!crop.intersect(rect)) {
+            throw new IllegalArgumentException("rectangle is outside of image");
+        }
+        final DecodeRegion region = new DecodeRegion(crop.left, crop.top, crop.width(), crop.height(),
+                Math.max(1, sampleSize));
+        final ImageCanvas canvas = mDecoder.scratchArgbCanvas(region.outputWidth(), region.outputHeight());
+        try {
+            if (mTiles.getTileCount() == 1) {
+                drawTile(0, region, canvas, mDecoder.getConvertPool());
+            } else {
+                mDecoder.forEachTile(mTiles.findTiles(region), new HeifDecoder.TileTask() {
+                    @Override
+                    public void run(int index) throws IOException, FormatFallbackException {
+                        drawTile(index, region, canvas, null);
+                    }
+                });
+            }
+        } catch (IOException | FormatFallbackException ex) {
+            Log.e(TAG, "decodeRegion failure", ex);
+            return null;
+        }
+        Bitmap bmp = mDecoder.obtainBitmap(null, canvas.width, canvas.height, Bitmap.Config.ARGB_8888);
+        bmp.setPixels(canvas.argb, canvas.argbOffset, canvas.argbStride, 0, 0, canvas.width, canvas.height);
+        return bmp;
+    }
+
+    /**
+     * Release cached tiles. The region decoder can not be used after this call.
+     */
+    @Override
+    public void close() {
+        mClosed = true;
+        mCache.clear();
+    }
+
+    private void assertNotClosed() {
+        if (mClosed) {
+            throw new IllegalStateException("HeifRegionDecoder is closed.");
+        }
+    }
+
+    private void drawTile(int index, DecodeRegion region, ImageCanvas canvas, ForkJoinPool pool)
+            throws IOException, FormatFallbackException {
+        ImageCanvas tile = mCache.get(index);
+        if (tile == null) {
+            tile = mDecoder.decodeTileCanvas(mTiles, index);
+            mCache.put(index, tile);
+        }
+        mDecoder.drawTileCanvas(tile, mTiles, index, region, canvas, pool);
+    }
+}
@@ -0,0 +1,323 @@
+/*
+ * Copyright (c) 2017 yohhoy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package jp.yohhoy.heifreader;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+
+/**
+ * Incremental HEIF reader for input stream
+ *
+ * Read 'ftyp' and 'meta' boxes as bytes arrive, then keep only extents of the primary image
+ * (and its tiles) in memory. Item locations are unknown until 'meta' box, so top-level boxes
+ * preceding 'meta' (e.g. 'mdat') are spilled to temporary file. The stream is not read after
+ * the last required extent.
+ */
+final class HeifStreamReader {
+    private HeifStreamReader() {
+    }
+
+    /**
+     * Primary image data read from stream
+     */
+    static final class Result {
+        /** metadata, extent offsets of primary image are relocated into {@link #data} */
+        final HeifInfo info;
+        /** item data of primary image */
+        final ByteBuffer data;
+
+        Result(HeifInfo info, ByteBuffer data) {
+            this.info = info;
+            this.data = data;
+        }
+    }
+
+    /**
+     * Read primary image from the specified input stream.
+     *
+     * @param is input stream of HEIF data, which is not closed.
+     * @param spillDir directory for temporary file.
+     * @param limit size limit of spilled data and item data respectively.
+     * @return The metadata and item data.
+     * @throws IOException if the stream could not be read or is not supported HEIF.
+     */
+    static Result read(InputStream is, File spillDir, long limit) throws IOException {
+        try (SpillingSource src = new SpillingSource(is, spillDir, limit)) {
+            ByteBuffer[] boxes = HeifParser.scan(src);
+            HeifInfo info = HeifParser.parseBoxes(boxes[0], boxes[1]);
+            src.stopSpilling();
+            return readItemData(src, info, limit);
+        }
+    }
+
+    private static Result readItemData(SpillingSource src, HeifInfo info, long limit) throws IOException {
+        // collect items of primary image
+        List<HeifInfo.Item> items = new ArrayList<>();
+        HeifInfo.Item primaryItem = info.getPrimaryItem();
+        items.add(primaryItem);
+        if (HeifInfo.Item.TYPE_GRID.equals(primaryItem.getType())) {
+            for (int tileId : info.getReferencedItemIds(HeifInfo.Reference.TYPE_DERIVED_IMAGE, primaryItem.getId())) {
+                HeifInfo.Item tile = info.findItem(tileId);
+                if (!items.contains(tile)) {
+                    items.add(tile);
+                }
+            }
+        }
+
+        // merge extent ranges in file, end=-1 means end of stream
+        List<long[]> extents = new ArrayList<>();
+        for (HeifInfo.Item item : items) {
+            if (item.getConstructionMethod() != 0) {
+                continue;
+            }
+            for (int i = 0; i < item.getExtentCount(); i++) {
+                long length = item.getExtentLength(i);
+                long start = item.getExtentOffset(i);
+                extents.add(new long[]{start, (length == 0) ? -1 : start + length});
+            }
+        }
+        long[][] ranges = mergeRanges(extents);
+
+        // read ranges into buffer
+        long[] dataOffsets = new long[ranges.length];
+        long[] dataLengths = new long[ranges.length];
+        long totalSize = 0;
+        for (long[] range : ranges) {
+            totalSize += (range[1] < 0) ? 0 : range[1] - range[0];
+        }
+        if (limit < totalSize) {
+            throw new IOException("item data size exceeds limit(" + limit + ")");
+        }
+        byte[] data = new byte[(int) totalSize];
+        int dataSize = 0;
+        for (int i = 0; i < ranges.length; i++) {
+            long start = ranges[i][0];
+            long end = ranges[i][1];
+            dataOffsets[i] = dataSize;
+            if (src.getPosition() <= start) {
+                src.skip(start - src.getPosition());
+                if (0 <= end) {
+                    src.readFully(data, dataSize, (int) (end - start));
+                    dataSize += (int) (end - start);
+                } else {
+                    // read until end of stream
+                    int len;
+                    while (true) {
+                        if (data.length == dataSize) {
+                            if (limit <= dataSize) {
+                                throw new IOException("item data size exceeds limit(" + limit + ")");
+                            }
+                            data = Arrays.copyOf(data, (int) Math.min(Math.max(dataSize * 2L, 4096), limit));
+                        }
+                        len = src.read(data, dataSize, data.length - dataSize);
+                        if (len < 0) {
+                            break;
+                        }
+                        dataSize += len;
+                    }
+                }
+            } else if (0 <= end && src.readSpilled(start, data, dataSize, (int) (end - start))) {
+                dataSize += (int) (end - start);
+            } else {
+                throw new IOException("unsupported item location(offset=" + start + ")");
+            }
+            dataLengths[i] = dataSize - dataOffsets[i];
+        }
+
+        // relocate extents into buffer
+        List<HeifInfo.Item> relocatedItems = new ArrayList<>(info.getItems());
+        for (HeifInfo.Item item : items) {
+            if (item.getConstructionMethod() != 0) {
+                continue;
+            }
+            long[] offsets = new long[item.getExtentCount()];
+            long[] lengths = new long[item.getExtentCount()];
+            for (int i = 0; i < offsets.length; i++) {
+                long offset = item.getExtentOffset(i);
+                int r = findRange(ranges, offset);
+                offsets[i] = dataOffsets[r] + (offset - ranges[r][0]);
+                lengths[i] = (item.getExtentLength(i) == 0)
+                        ? dataLengths[r] - (offset - ranges[r][0]) : item.getExtentLength(i);
+            }
+            relocatedItems.set(relocatedItems.indexOf(item), item.withExtents(offsets, lengths));
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(data, 0, dataSize).slice();
+        return new Result(info.withItems(relocatedItems), buffer);
+    }
+
+    /**
+     * @param extents list of {start, end} (end=-1 means end of stream)
+     * @return sorted and merged ranges.
+     */
+    private static long[][] mergeRanges(List<long[]> extents) {
+        long[][] sorted = extents.toArray(new long[extents.size()][]);
+        Arrays.sort(sorted, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] a, long[] b) {
+                return Long.compare(a[0], b[0]);
+            }
+        });
+        List<long[]> merged = new ArrayList<>();
+        for (long[] extent : sorted) {
+            long[] last = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+            if (last != null && (last[1] < 0 || extent[0] <= last[1])) {
+                if (last[1] >= 0) {
+                    last[1] = (extent[1] < 0) ? -1 : Math.max(last[1], extent[1]);
+                }
+            } else {
+                merged.add(new long[]{extent[0], extent[1]});
+            }
+        }
+        return merged.toArray(new long[merged.size()][]);
+    }
+
+    private static int findRange(long[][] ranges, long offset) {
+        for (int i = ranges.length - 1; 0 <= i; i--) {
+            if (ranges[i][0] <= offset) {
+                return i;
+            }
+        }
+        throw new IllegalStateException();
+    }
+
+    /**
+     * Stream source which spills skipped bytes to temporary file.
+     */
+    private static final class SpillingSource extends HeifParser.StreamSource implements Closeable {
+        private final InputStream mStream;
+        private final File mSpillDir;
+        private final long mLimit;
+        private long mPosition;
+        private boolean mSpilling = true;
+        private File mSpillFile;
+        private RandomAccessFile mSpill;
+        // spilled segments: {stream offset, length}, stored sequentially in spill file
+        private final List<long[]> mSegments = new ArrayList<>();
+        private long mSpilledSize;
+
+        SpillingSource(InputStream stream, File spillDir, long limit) {
+            super(stream);
+            mStream = stream;
+            mSpillDir = spillDir;
+            mLimit = limit;
+        }
+
+        long getPosition() {
+            return mPosition;
+        }
+
+        void stopSpilling() {
+            mSpilling = false;
+        }
+
+        @Override
+        int read(ByteBuffer dst) throws IOException {
+            int len = super.read(dst);
+            if (0 < len) {
+                mPosition += len;
+            }
+            return len;
+        }
+
+        int read(byte[] b, int off, int len) throws IOException {
+            int n = mStream.read(b, off, len);
+            if (0 < n) {
+                mPosition += n;
+            }
+            return n;
+        }
+
+        void readFully(byte[] b, int off, int len) throws IOException {
+            while (0 < len) {
+                int n = read(b, off, len);
+                if (n < 0) {
+                    throw new EOFException("truncated item data");
+                }
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        void skip(long n) throws IOException {
+            if (!mSpilling) {
+                super.skip(n);
+                mPosition += n;
+                return;
+            }
+            if (mLimit < mSpilledSize + n) {
+                throw new IOException("spilled data size exceeds limit(" + mLimit + ")");
+            }
+            if (mSpill == null) {
+                mSpillFile = File.createTempFile("heifreader", ".heif", mSpillDir);
+                mSpill = new RandomAccessFile(mSpillFile, "rw");
+            }
+            mSegments.add(new long[]{mPosition, n});
+            byte[] buf = new byte[8192];
+            long remaining = n;
+            while (0 < remaining) {
+                int len = (int) Math.min(buf.length, remaining);
+                readFully(buf, 0, len);
+                mSpill.write(buf, 0, len);
+                remaining -= len;
+            }
+            mSpilledSize += n;
+        }
+
+        /**
+         * @return false if the range is not in a spilled segment.
+         */
+        boolean readSpilled(long start, byte[] b, int off, int len) throws IOException {
+            long fileOffset = 0;
+            for (long[] segment : mSegments) {
+                if (segment[0] <= start && start + len <= segment[0] + segment[1]) {
+                    mSpill.seek(fileOffset + (start - segment[0]));
+                    mSpill.readFully(b, off, len);
+                    return true;
+                }
+                fileOffset += segment[1];
+            }
+            return false;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (mSpill != null) {
+                mSpill.close();
+                mSpill = null;
+            }
+            if (mSpillFile != null && !mSpillFile.delete()) {
+                mSpillFile.deleteOnExit();
+            }
+        }
+    }
+}
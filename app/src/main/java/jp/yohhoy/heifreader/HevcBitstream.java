@@ -0,0 +1,186 @@
+/*
+ * Copyright (c) 2017 yohhoy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package jp.yohhoy.heifreader;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * HEVC bitstream conversion
+ *
+ * HEIF stores HEVC bitstream in hvcC format, where each NAL unit is prefixed with its length
+ * (LengthSizeMinusOne + 1 bytes). MediaCodec requires Annex.B format with start code prefix.
+ */
+final class HevcBitstream {
+    private static final byte[] START_CODE = {0x00, 0x00, 0x00, 0x01};
+
+    private HevcBitstream() {
+    }
+
+    /**
+     * Get size of bitstream in Annex.B format.
+     *
+     * @see #annexBSize(List, int)
+     */
+    static int annexBSize(ByteBuffer src, int nalLengthSize) throws IOException {
+        return annexBSize(Collections.singletonList(src), nalLengthSize);
+    }
+
+    /**
+     * Get size of bitstream in Annex.B format.
+     *
+     * Annex.B bitstream is larger than hvcC format when NAL unit length field is shorter
+     * than start code.
+     *
+     * @param src bitstream in hvcC format, which may be split into multiple extents.
+     *            NAL units and their length fields may span extent boundaries. (positions are not modified)
+     * @param nalLengthSize byte length of NAL unit length field. (1, 2 or 4)
+     * @return The size of converted bitstream.
+     * @throws IOException if the bitstream is truncated.
+     */
+    static int annexBSize(List<ByteBuffer> src, int nalLengthSize) throws IOException {
+        checkNalLengthSize(nalLengthSize);
+        Cursor cursor = new Cursor(src);
+        long size = 0;
+        while (0 < cursor.remaining()) {
+            if (cursor.remaining() < nalLengthSize) {
+                throw new IOException("truncated NAL unit length");
+            }
+            int nalUnitSize = cursor.readNalLength(nalLengthSize);
+            if (nalUnitSize < 0 || cursor.remaining() < nalUnitSize) {
+                throw new IOException("truncated NAL unit");
+            }
+            cursor.skip(nalUnitSize);
+            size += START_CODE.length + nalUnitSize;
+        }
+        if (Integer.MAX_VALUE < size) {
+            throw new IOException("too large bitstream");
+        }
+        return (int) size;
+    }
+
+    /**
+     * Convert hvcC format to Annex.B format while copying.
+     *
+     * @see #toAnnexB(List, int, ByteBuffer)
+     */
+    static int toAnnexB(ByteBuffer src, int nalLengthSize, ByteBuffer dst) {
+        return toAnnexB(Collections.singletonList(src), nalLengthSize, dst);
+    }
+
+    /**
+     * Convert hvcC format to Annex.B format while copying.
+     *
+     * NAL unit length fields are rewritten to start code on the fly, so the bitstream can be
+     * written directly into decoder input buffer without intermediate buffer.
+     *
+     * @param src bitstream in hvcC format, which is validated by {@link #annexBSize}. (positions are not modified)
+     * @param nalLengthSize byte length of NAL unit length field. (1, 2 or 4)
+     * @param dst destination buffer, which has at least {@link #annexBSize} bytes.
+     * @return The number of bytes written.
+     */
+    static int toAnnexB(List<ByteBuffer> src, int nalLengthSize, ByteBuffer dst) {
+        checkNalLengthSize(nalLengthSize);
+        final int start = dst.position();
+        Cursor cursor = new Cursor(src);
+        while (0 < cursor.remaining()) {
+            int nalUnitSize = cursor.readNalLength(nalLengthSize);
+            dst.put(START_CODE);
+            cursor.copyTo(dst, nalUnitSize);
+        }
+        return dst.position() - start;
+    }
+
+    private static void checkNalLengthSize(int nalLengthSize) {
+        if (nalLengthSize != 1 && nalLengthSize != 2 && nalLengthSize != 4) {
+            throw new IllegalArgumentException("invalid NAL unit length size(" + nalLengthSize + ")");
+        }
+    }
+
+    /**
+     * sequential reader over scatter-gather buffers
+     */
+    private static final class Cursor {
+        private final ByteBuffer[] mBuffers;
+        private int mIndex;
+        private long mRemaining;
+
+        Cursor(List<ByteBuffer> buffers) {
+            mBuffers = new ByteBuffer[buffers.size()];
+            for (int i = 0; i < mBuffers.length; i++) {
+                mBuffers[i] = buffers.get(i).duplicate().order(ByteOrder.BIG_ENDIAN);
+                mRemaining += mBuffers[i].remaining();
+            }
+        }
+
+        long remaining() {
+            return mRemaining;
+        }
+
+        private ByteBuffer current() {
+            while (!mBuffers[mIndex].hasRemaining()) {
+                mIndex++;
+            }
+            return mBuffers[mIndex];
+        }
+
+        int readNalLength(int nalLengthSize) {
+            ByteBuffer buf = current();
+            if (nalLengthSize == 4 && 4 <= buf.remaining()) {
+                mRemaining -= 4;
+                return buf.getInt();
+            }
+            int value = 0;
+            for (int i = 0; i < nalLengthSize; i++) {
+                value = (value << 8) | (current().get() & 0xff);
+            }
+            mRemaining -= nalLengthSize;
+            return value;
+        }
+
+        void skip(int n) {
+            mRemaining -= n;
+            while (0 < n) {
+                ByteBuffer buf = current();
+                int len = Math.min(n, buf.remaining());
+                buf.position(buf.position() + len);
+                n -= len;
+            }
+        }
+
+        void copyTo(ByteBuffer dst, int n) {
+            mRemaining -= n;
+            while (0 < n) {
+                ByteBuffer buf = current();
+                int len = Math.min(n, buf.remaining());
+                int limit = buf.limit();
+                buf.limit(buf.position() + len);
+                dst.put(buf);
+                buf.limit(limit);
+                n -= len;
+            }
+        }
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright (c) 2017 yohhoy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package jp.yohhoy.heifreader;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import jp.yohhoy.heifreader.hevc.VideoSignalType;
+
+/**
+ * HEVC decoder configuration ('hvcC' item property)
+ */
+public final class HevcConfig {
+    private static final byte[] START_CODE = {0x00, 0x00, 0x00, 0x01};
+    private static final int NAL_TYPE_SPS = 33;
+
+    private final byte[] mParamset;
+    private final int mNalLengthSize;
+    private final int mProfileIdc;
+    private final int mLevelIdc;
+    private final int mChromaFormat;
+    private final int mBitDepthLuma;
+    private final int mBitDepthChroma;
+    private final int mMatrixCoeffs;
+    private final boolean mFullRange;
+
+    HevcConfig(byte[] paramset, int nalLengthSize, int profileIdc, int levelIdc,
+               int chromaFormat, int bitDepthLuma, int bitDepthChroma) {
+        mParamset = paramset;
+        mNalLengthSize = nalLengthSize;
+        mProfileIdc = profileIdc;
+        mLevelIdc = levelIdc;
+        mChromaFormat = chromaFormat;
+        mBitDepthLuma = bitDepthLuma;
+        mBitDepthChroma = bitDepthChroma;
+        VideoSignalType signalType = parseVideoSignalType(paramset);
+        mMatrixCoeffs = (signalType != null) ? signalType.matrixCoeffs : VideoSignalType.MATRIX_UNSPECIFIED;
+        mFullRange = (signalType != null) && signalType.fullRange;
+    }
+
+    /**
+     * Parse video signal type in VUI of the first SPS.
+     *
+     * @param paramset parameter sets in Annex.B format.
+     * @return The video signal type, or null if there is no valid SPS.
+     */
+    private static VideoSignalType parseVideoSignalType(byte[] paramset) {
+        int pos = 0;
+        while (pos + 3 < paramset.length) {
+            if (paramset[pos] != 0 || paramset[pos + 1] != 0 || paramset[pos + 2] != 1) {
+                pos++;
+                continue;
+            }
+            final int start = pos + 3;
+            // NAL unit ends at next start code (or trailing zero bytes)
+            int end = start;
+            while (end + 2 < paramset.length
+                    && !(paramset[end] == 0 && paramset[end + 1] == 0 && (paramset[end + 2] & 0xfe) == 0)) {
+                end++;
+            }
+            if (end + 2 >= paramset.length) {
+                end = paramset.length;
+            }
+            if (((paramset[start] >> 1) & 0x3f) == NAL_TYPE_SPS) {
+                try {
+                    return VideoSignalType.parse(ByteBuffer.wrap(paramset, start, end - start).slice());
+                } catch (IOException ex) {
+                    return null;
+                }
+            }
+            pos = end;
+        }
+        return null;
+    }
+
+    /**
+     * Parse HEVCDecoderConfigurationRecord. (ISO/IEC 14496-15, 8.3.3.1)
+     *
+     * @param record content of 'hvcC' box.
+     * @return The parsed configuration.
+     * @throws IOException if the record is invalid.
+     */
+    static HevcConfig parse(ByteBuffer record) throws IOException {
+        ByteBuffer buf = record.duplicate();
+        try {
+            buf.get();  // configurationVersion
+            int profileIdc = buf.get() & 0x1f;
+            buf.position(buf.position() + 4 + 6);   // compatibility_flags, constraint_indicator_flags
+            int levelIdc = buf.get() & 0xff;
+            buf.position(buf.position() + 2 + 1);   // min_spatial_segmentation_idc, parallelismType
+            int chromaFormat = buf.get() & 0x03;
+            int bitDepthLuma = (buf.get() & 0x07) + 8;
+            int bitDepthChroma = (buf.get() & 0x07) + 8;
+            buf.position(buf.position() + 2);   // avgFrameRate
+            int nalLengthSize = (buf.get() & 0x03) + 1;
+            int numOfArrays = buf.get() & 0xff;
+
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            for (int i = 0; i < numOfArrays; i++) {
+                buf.get();  // array_completeness, NAL_unit_type
+                int numNalus = buf.getShort() & 0xffff;
+                for (int j = 0; j < numNalus; j++) {
+                    int nalUnitLength = buf.getShort() & 0xffff;
+                    byte[] nalUnit = new byte[nalUnitLength];
+                    buf.get(nalUnit);
+                    baos.write(START_CODE, 0, START_CODE.length);
+                    baos.write(nalUnit, 0, nalUnitLength);
+                }
+            }
+            return new HevcConfig(baos.toByteArray(), nalLengthSize, profileIdc, levelIdc,
+                    chromaFormat, bitDepthLuma, bitDepthChroma);
+        } catch (BufferUnderflowException | IllegalArgumentException ex) {
+            throw new IOException("HevcConfigurationBox('hvcC') is truncated", ex);
+        }
+    }
+
+    /**
+     * Get parameter sets(VPS/SPS/PPS) in Annex.B format, which is suitable for "csd-0".
+     *
+     * @return new buffer of parameter sets.
+     */
+    public ByteBuffer getParamset() {
+        return ByteBuffer.wrap(mParamset.clone());
+    }
+
+    /**
+     * @return byte length of NAL unit length field. (LengthSizeMinusOne + 1)
+     */
+    public int getNalLengthSize() {
+        return mNalLengthSize;
+    }
+
+    /**
+     * @return general_profile_idc. (1=Main, 2=Main10, 3=MainStillPicture)
+     */
+    public int getProfileIdc() {
+        return mProfileIdc;
+    }
+
+    /**
+     * @return general_level_idc. (level number multiplied by 30)
+     */
+    public int getLevelIdc() {
+        return mLevelIdc;
+    }
+
+    /**
+     * @return chroma_format_idc. (1=4:2:0)
+     */
+    public int getChromaFormat() {
+        return mChromaFormat;
+    }
+
+    public int getBitDepthLuma() {
+        return mBitDepthLuma;
+    }
+
+    public int getBitDepthChroma() {
+        return mBitDepthChroma;
+    }
+
+    /**
+     * @return matrix_coeffs in VUI of SPS. (1=BT.709, 5,6=BT.601, 2=unspecified)
+     */
+    public int getMatrixCoefficients() {
+        return mMatrixCoeffs;
+    }
+
+    /**
+     * @return video_full_range_flag in VUI of SPS.
+     */
+    public boolean isFullRange() {
+        return mFullRange;
+    }
+
+    /**
+     * @return true if both configurations have same parameter sets and NAL unit length size,
+     * so that one configured decoder can decode images of both.
+     */
+    boolean hasSameParamset(HevcConfig other) {
+        return this == other || (other != null && mNalLengthSize == other.mNalLengthSize
+                && Arrays.equals(mParamset, other.mParamset));
+    }
+
+    @Override
+    public String toString() {
+        return "HevcConfig[profile=" + mProfileIdc + ";level=" + (mLevelIdc / 30f)
+                + ";bitDepth=" + mBitDepthLuma + ";nalLengthSize=" + mNalLengthSize
+                + ";matrix=" + mMatrixCoeffs + ";fullRange=" + mFullRange + "]";
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2017 yohhoy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package jp.yohhoy.heifreader;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * HEVC decoder for still image
+ *
+ * HeifDecoder decodes each 'hvc1' item (or each tile of 'grid' image) through this interface.
+ * The default implementation uses Android MediaCodec, and
+ * {@link jp.yohhoy.heifreader.hevc.SoftwareHevcDecoder} is a pure-Java implementation
+ * which also works on JVM without Android framework.
+ * Implementations shall be thread-safe; multiple images are decoded in parallel.
+ */
+public interface HevcDecoder extends Closeable {
+    /**
+     * YUV 4:2:0 planar output: Y plane, then Cb and Cr planes.
+     */
+    int FORMAT_YUV420 = 1;
+    /**
+     * 16bit packed RGB output in single plane.
+     */
+    int FORMAT_RGB565 = 2;
+
+    /**
+     * Plane of decoded image, like android.media.Image.Plane
+     */
+    final class Plane {
+        /**
+         * plane data, whose first sample is at index 0.
+         */
+        public final ByteBuffer buffer;
+        /**
+         * byte distance between rows.
+         */
+        public final int rowStride;
+        /**
+         * byte distance between samples in a row.
+         */
+        public final int pixelStride;
+
+        public Plane(ByteBuffer buffer, int rowStride, int pixelStride) {
+            this.buffer = buffer;
+            this.rowStride = rowStride;
+            this.pixelStride = pixelStride;
+        }
+    }
+
+    /**
+     * Receiver of decoded image
+     */
+    interface Output {
+        /**
+         * Write decoded image.
+         *
+         * @param planes image planes, which are valid only during this call.
+         *               {@link #FORMAT_YUV420}: Y, Cb and Cr planes. (chroma planes are subsampled)
+         *               {@link #FORMAT_RGB565}: single plane.
+         * @param width width of the image in pixels.
+         * @param height height of the image in pixels.
+         */
+        void writeImage(Plane[] planes, int width, int height);
+    }
+
+    /**
+     * Decode HEVC image.
+     *
+     * @param config HEVC decoder configuration of the image item.
+     * @param width width of the image item. ('ispe' property)
+     * @param height height of the image item. ('ispe' property)
+     * @param bitstream HEVC bitstream in hvcC format, which may be split into multiple extents.
+     * @param format requested output format. ({@link #FORMAT_YUV420} or {@link #FORMAT_RGB565})
+     * @param output receiver of decoded image.
+     * @return true if the image is decoded, or false if the output format is not supported.
+     * @throws IOException if the bitstream could not be decoded.
+     */
+    boolean decode(HevcConfig config, int width, int height, List<ByteBuffer> bitstream, int format, Output output)
+            throws IOException;
+
+    /**
+     * Release resources of the decoder.
+     */
+    @Override
+    void close();
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2017 yohhoy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package jp.yohhoy.heifreader;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Metrics which collect elapsed time of each stage into {@link LatencyHistogram}
+ *
+ * Percentiles can be exported periodically to telemetry, then cleared with {@link #reset()}.
+ */
+public final class HistogramMetrics implements HeifMetrics {
+    private final LatencyHistogram[] mHistograms = new LatencyHistogram[STAGE_COUNT];
+    private final AtomicLongArray mBytes = new AtomicLongArray(STAGE_COUNT);
+    private final AtomicLongArray mFallbacks = new AtomicLongArray(STAGE_COUNT);
+
+    public HistogramMetrics() {
+        for (int stage = 0; stage < STAGE_COUNT; stage++) {
+            mHistograms[stage] = new LatencyHistogram();
+        }
+    }
+
+    @Override
+    public void onEvent(Event event) {
+        mHistograms[event.stage].recordValue(event.elapsedNanos);
+        mBytes.addAndGet(event.stage, event.bytes);
+        if (event.fallback) {
+            mFallbacks.incrementAndGet(event.stage);
+        }
+    }
+
+    /**
+     * @param stage one of STAGE_*.
+     * @return histogram of elapsed time in nanoseconds.
+     */
+    public LatencyHistogram getHistogram(int stage) {
+        return mHistograms[stage];
+    }
+
+    /**
+     * @param stage one of STAGE_*.
+     * @return total bytes of events.
+     */
+    public long getBytes(int stage) {
+        return mBytes.get(stage);
+    }
+
+    /**
+     * @param stage one of STAGE_*.
+     * @return number of events on RGB565 fallback path.
+     */
+    public long getFallbackCount(int stage) {
+        return mFallbacks.get(stage);
+    }
+
+    public void reset() {
+        for (int stage = 0; stage < STAGE_COUNT; stage++) {
+            mHistograms[stage].reset();
+            mBytes.set(stage, 0);
+            mFallbacks.set(stage, 0);
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("HistogramMetrics[");
+        for (int stage = 0; stage < STAGE_COUNT; stage++) {
+            LatencyHistogram histogram = mHistograms[stage];
+            if (0 < stage) {
+                sb.append(';');
+            }
+            sb.append(Event.stageName(stage)).append('=').append(histogram.getCount())
+                    .append(String.format(Locale.US, "(p50=%.2f,p99=%.2f[msec])",
+                            histogram.getValueAtPercentile(50) / 1e6, histogram.getValueAtPercentile(99) / 1e6));
+        }
+        return sb.append(']').toString();
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright (c) 2017 yohhoy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package jp.yohhoy.heifreader;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Output buffer of decoded image
+ *
+ * Decoded images (or tiles of grid image) are copied into the canvas, and the canvas is
+ * converted to Bitmap at once.
+ * <ul>
+ * <li>{@link #FORMAT_YUV420}: Y plane, then two chroma planes(1/2 width and height).</li>
+ * <li>{@link #FORMAT_RGB565}: 16bit packed RGB.</li>
+ * <li>{@link #FORMAT_ARGB8888}: ARGB pixels in {@link #argb}, which are converted from YUV
+ * by {@link YuvConverter}. The array may be owned by caller, and rows may be padded.</li>
+ * </ul>
+ * Each plane of byte array formats has no padding between rows.
+ */
+final class ImageCanvas {
+    static final int FORMAT_YUV420 = 1;
+    static final int FORMAT_RGB565 = 2;
+    static final int FORMAT_ARGB8888 = 3;
+
+    final int width;
+    final int height;
+    final int format;
+    /** null for {@link #FORMAT_ARGB8888} */
+    final byte[] data;
+    /** null except {@link #FORMAT_ARGB8888} */
+    final int[] argb;
+    /** index of top-left pixel in {@link #argb} */
+    final int argbOffset;
+    /** pixel distance between rows in {@link #argb} */
+    final int argbStride;
+
+    /**
+     * @param data buffer which has at least {@link #requiredSize} bytes.
+     */
+    ImageCanvas(int width, int height, int format, byte[] data) {
+        if (data.length < requiredSize(width, height, format)) {
+            throw new IllegalArgumentException("buffer is too small");
+        }
+        this.width = width;
+        this.height = height;
+        this.format = format;
+        this.data = data;
+        this.argb = null;
+        this.argbOffset = 0;
+        this.argbStride = 0;
+    }
+
+    /**
+     * Create {@link #FORMAT_ARGB8888} canvas.
+     *
+     * @param argb buffer of ARGB pixels.
+     * @param offset index of top-left pixel.
+     * @param stride pixel distance between rows, which is not less than width.
+     */
+    ImageCanvas(int width, int height, int[] argb, int offset, int stride) {
+        if (offset < 0 || stride < width) {
+            throw new IllegalArgumentException("invalid offset(" + offset + ") or stride(" + stride + ")");
+        }
+        if (0 < height && argb.length < offset + (long) (height - 1) * stride + width) {
+            throw new IllegalArgumentException("buffer is too small");
+        }
+        this.width = width;
+        this.height = height;
+        this.format = FORMAT_ARGB8888;
+        this.data = null;
+        this.argb = argb;
+        this.argbOffset = offset;
+        this.argbStride = stride;
+    }
+
+    static int requiredSize(int width, int height, int format) {
+        switch (format) {
+            case FORMAT_YUV420:
+                return width * height + (width / 2) * (height / 2) * 2;
+            case FORMAT_RGB565:
+                return width * height * 2;
+            default:
+                throw new IllegalArgumentException("unknown format(" + format + ")");
+        }
+    }
+
+    /**
+     * Copy a plane of decoded image into canvas. The region outside of canvas is clipped.
+     *
+     * @param plane plane index. (0=Y or RGB, 1,2=chroma)
+     * @param src plane buffer. (position is not modified)
+     * @param srcWidth width of plane in pixels.
+     * @param srcHeight height of plane in pixels.
+     * @param rowStride row stride of plane in bytes.
+     * @param pixelStride pixel stride of plane in bytes.
+     * @param left destination position in pixels of plane.
+     * @param top destination position in pixels of plane.
+     */
+    void copyPlane(int plane, ByteBuffer src, int srcWidth, int srcHeight, int rowStride, int pixelStride,
+                   int left, int top) {
+        final int bytesPerPixel = (format == FORMAT_RGB565) ? 2 : 1;
+        final int planeWidth = (plane == 0) ? width : width / 2;
+        final int planeHeight = (plane == 0) ? height : height / 2;
+        final int planeOffset;
+        switch (plane) {
+            case 0:
+                planeOffset = 0;
+                break;
+            case 1:
+                planeOffset = width * height;
+                break;
+            case 2:
+                planeOffset = width * height + planeWidth * planeHeight;
+                break;
+            default:
+                throw new IllegalArgumentException("invalid plane(" + plane + ")");
+        }
+        if (format == FORMAT_ARGB8888 || (plane != 0 && format != FORMAT_YUV420)) {
+            throw new IllegalArgumentException("invalid plane(" + plane + ")");
+        }
+
+        final int copyWidth = Math.min(srcWidth, planeWidth - left);
+        final int copyHeight = Math.min(srcHeight, planeHeight - top);
+        if (copyWidth <= 0 || copyHeight <= 0) {
+            return;
+        }
+        ByteBuffer buf = src.duplicate();
+        buf.position(0);
+        for (int y = 0; y < copyHeight; y++) {
+            int dstPos = planeOffset + ((top + y) * planeWidth + left) * bytesPerPixel;
+            int srcPos = y * rowStride;
+            if (pixelStride == bytesPerPixel) {
+                buf.position(srcPos);
+                buf.get(data, dstPos, copyWidth * bytesPerPixel);
+            } else {
+                for (int x = 0; x < copyWidth; x++) {
+                    data[dstPos + x] = buf.get(srcPos + x * pixelStride);
+                }
+            }
+        }
+    }
+
+    /**
+     * Expand {@link #FORMAT_RGB565} canvas into {@link #FORMAT_ARGB8888} canvas of same size.
+     * RGB565 pixels are in little endian, which is native order of Bitmap.
+     */
+    void expandRgb565(ImageCanvas dst) {
+        if (width != dst.width || height != dst.height) {
+            throw new IllegalArgumentException("incompatible canvas");
+        }
+        expandRgb565(dst, 0, 0, 1);
+    }
+
+    /**
+     * Expand {@link #FORMAT_RGB565} canvas into {@link #FORMAT_ARGB8888} canvas with downsampling.
+     *
+     * The canvas is placed at (left, top) in full resolution, like {@link YuvConverter}, and
+     * destination pixel (dx, dy) is the top-left pixel of its sampleSize x sampleSize box.
+     * The region outside of destination is clipped.
+     */
+    void expandRgb565(ImageCanvas dst, int left, int top, int sampleSize) {
+        if (format != FORMAT_RGB565 || dst.format != FORMAT_ARGB8888) {
+            throw new IllegalArgumentException("incompatible canvas");
+        }
+        final int dx0 = Math.max(0, ceilDiv(left, sampleSize));
+        final int dx1 = Math.min(dst.width, ceilDiv(left + width, sampleSize));
+        final int dy0 = Math.max(0, ceilDiv(top, sampleSize));
+        final int dy1 = Math.min(dst.height, ceilDiv(top + height, sampleSize));
+        for (int y = dy0; y < dy1; y++) {
+            int srcPos = ((y * sampleSize - top) * width + (dx0 * sampleSize - left)) * 2;
+            int dstPos = dst.argbOffset + y * dst.argbStride;
+            for (int x = dx0; x < dx1; x++, srcPos += 2 * sampleSize) {
+                int rgb = (data[srcPos] & 0xff) | (data[srcPos + 1] & 0xff) << 8;
+                int r = (rgb >> 11) & 0x1f;
+                int g = (rgb >> 5) & 0x3f;
+                int b = rgb & 0x1f;
+                dst.argb[dstPos + x] = 0xff000000 | (r << 3 | r >> 2) << 16 | (g << 2 | g >> 4) << 8 | (b << 3 | b >> 2);
+            }
+        }
+    }
+
+    /**
+     * ceil(a / b) for positive b
+     */
+    private static int ceilDiv(int a, int b) {
+        return (0 <= a) ? (a + b - 1) / b : -(-a / b);
+    }
+
+    /**
+     * @return Y, Cb and Cr planes of {@link #FORMAT_YUV420} canvas, which can be converted by {@link YuvConverter}.
+     */
+    HevcDecoder.Plane[] yuvPlanes() {
+        if (format != FORMAT_YUV420) {
+            throw new IllegalStateException("canvas format(" + format + ") is not YUV");
+        }
+        final int chromaWidth = width / 2;
+        final int chromaSize = chromaWidth * (height / 2);
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        return new HevcDecoder.Plane[]{
+                new HevcDecoder.Plane(slice(buf, 0, width * height), width, 1),
+                new HevcDecoder.Plane(slice(buf, width * height, chromaSize), chromaWidth, 1),
+                new HevcDecoder.Plane(slice(buf, width * height + chromaSize, chromaSize), chromaWidth, 1)};
+    }
+
+    private static ByteBuffer slice(ByteBuffer buf, int offset, int length) {
+        ByteBuffer dup = buf.duplicate();
+        dup.position(offset);
+        dup.limit(offset + length);
+        return dup.slice();
+    }
+
+    /**
+     * Write pixels of canvas in R, G, B, A byte order, which is memory layout of ARGB_8888 Bitmap.
+     *
+     * @param dst destination buffer. (position is not modified)
+     * @param rowStride byte distance between rows in dst.
+     */
+    void writeRgba(ByteBuffer dst, int rowStride) {
+        if (format != FORMAT_ARGB8888) {
+            ImageCanvas canvas = new ImageCanvas(width, height, new int[width * height], 0, width);
+            expandRgb565(canvas);
+            canvas.writeRgba(dst, rowStride);
+            return;
+        }
+        ByteBuffer buf = dst.duplicate().order(ByteOrder.BIG_ENDIAN);
+        final int base = dst.position();
+        for (int y = 0; y < height; y++) {
+            int pos = base + y * rowStride;
+            int src = argbOffset + y * argbStride;
+            for (int x = 0; x < width; x++, pos += 4) {
+                buf.putInt(pos, Integer.rotateLeft(argb[src + x], 8));
+            }
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2017 yohhoy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package jp.yohhoy.heifreader;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Image grid derivation ('grid' item data)
+ *
+ * <pre>
+ * aligned(8) class ImageGrid {
+ *  unsigned int(8) version = 0;
+ *  unsigned int(8) flags;
+ *  FieldLength = ((flags &amp; 1) + 1) * 16;
+ *  unsigned int(8) rows_minus_one;
+ *  unsigned int(8) columns_minus_one;
+ *  unsigned int(FieldLength) output_width;
+ *  unsigned int(FieldLength) output_height;
+ * }
+ * </pre>
+ */
+public final class ImageGrid {
+    private final int mRows;
+    private final int mColumns;
+    private final int mOutputWidth;
+    private final int mOutputHeight;
+    private final int[] mTileItemIds;
+
+    private ImageGrid(int rows, int columns, int outputWidth, int outputHeight, int[] tileItemIds) {
+        mRows = rows;
+        mColumns = columns;
+        mOutputWidth = outputWidth;
+        mOutputHeight = outputHeight;
+        mTileItemIds = tileItemIds;
+    }
+
+    /**
+     * Parse ImageGrid structure.
+     *
+     * @param data item data of 'grid' item. (position is not modified)
+     * @param tileItemIds input images in row-major order, referenced by 'dimg'.
+     * @return The parsed grid.
+     * @throws IOException if the data is invalid.
+     */
+    public static ImageGrid parse(ByteBuffer data, int[] tileItemIds) throws IOException {
+        ByteBuffer buf = data.duplicate();
+        if (buf.remaining() < 8) {
+            throw new IOException("ImageGrid is truncated");
+        }
+        int version = buf.get() & 0xff;
+        int flags = buf.get() & 0xff;
+        if (version != 0) {
+            throw new IOException("unsupported ImageGrid version(" + version + ")");
+        }
+        int rows = (buf.get() & 0xff) + 1;
+        int columns = (buf.get() & 0xff) + 1;
+        long outputWidth;
+        long outputHeight;
+        if ((flags & 1) == 0) {
+            outputWidth = buf.getShort() & 0xffff;
+            outputHeight = buf.getShort() & 0xffff;
+        } else {
+            if (buf.remaining() < 8) {
+                throw new IOException("ImageGrid is truncated");
+            }
+            outputWidth = buf.getInt() & 0xffffffffL;
+            outputHeight = buf.getInt() & 0xffffffffL;
+        }
+        if (outputWidth == 0 || outputHeight == 0 || Integer.MAX_VALUE < outputWidth * outputHeight) {
+            throw new IOException("invalid ImageGrid output size(" + outputWidth + "x" + outputHeight + ")");
+        }
+        if (tileItemIds.length != rows * columns) {
+            throw new IOException("ImageGrid requires " + (rows * columns) + " tiles, but "
+                    + tileItemIds.length + " tiles are referenced");
+        }
+        return new ImageGrid(rows, columns, (int) outputWidth, (int) outputHeight, tileItemIds.clone());
+    }
+
+    public int getRows() {
+        return mRows;
+    }
+
+    public int getColumns() {
+        return mColumns;
+    }
+
+    public int getOutputWidth() {
+        return mOutputWidth;
+    }
+
+    public int getOutputHeight() {
+        return mOutputHeight;
+    }
+
+    public int getTileCount() {
+        return mTileItemIds.length;
+    }
+
+    /**
+     * @param index tile index in row-major order.
+     * @return item_ID of the tile.
+     */
+    public int getTileItemId(int index) {
+        return mTileItemIds[index];
+    }
+
+    @Override
+    public String toString() {
+        return "ImageGrid[" + mColumns + "x" + mRows + " tiles;output=" + mOutputWidth + "x" + mOutputHeight + "]";
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2017 yohhoy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package jp.yohhoy.heifreader;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+
+/**
+ * Item data resolver
+ *
+ * Resolve item extents into scatter-gather list of buffer slices, without concatenating copy.
+ * <ul>
+ * <li>construction_method=0: extents are file offsets.</li>
+ * <li>construction_method=1: extents are offsets in 'idat' box.</li>
+ * </ul>
+ */
+final class ItemDataResolver {
+    private ItemDataResolver() {
+    }
+
+    /**
+     * Resolve item data.
+     *
+     * @param heif buffer of whole HEIF data.
+     * @param info HEIF metadata.
+     * @param item item to be resolved.
+     * @return read-only slices of each extent, in order.
+     * @throws IOException if the item location is invalid.
+     */
+    static List<ByteBuffer> resolve(ByteBuffer heif, HeifInfo info, HeifInfo.Item item) throws IOException {
+        ByteBuffer source;
+        switch (item.getConstructionMethod()) {
+            case 0:     // file offset
+                source = heif;
+                break;
+            case 1:     // idat offset
+                source = info.getItemData();
+                if (source == null) {
+                    throw new IOException("ItemDataBox('idat') not found");
+                }
+                break;
+            default:
+                throw new IOException("unsupported construction_method(" + item.getConstructionMethod() + ")");
+        }
+        final int count = item.getExtentCount();
+        if (count == 0) {
+            throw new IOException("item(" + item.getId() + ") location not found");
+        }
+        List<ByteBuffer> extents = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            long offset = item.getExtentOffset(i);
+            long length = item.getExtentLength(i);
+            if (length == 0) {
+                // extent_length=0 means entire length of the source
+                length = source.limit() - offset;
+            }
+            if (offset < 0 || length < 0 || source.limit() < offset + length) {
+                throw new IOException("item data exceeds data size");
+            }
+            ByteBuffer data = source.duplicate();
+            data.limit((int) (offset + length));
+            data.position((int) offset);
+            extents.add(data.slice().asReadOnlyBuffer());
+        }
+        return Collections.unmodifiableList(extents);
+    }
+
+    /**
+     * @return total size of item data.
+     */
+    static long size(List<ByteBuffer> extents) {
+        long size = 0;
+        for (ByteBuffer extent : extents) {
+            size += extent.remaining();
+        }
+        return size;
+    }
+
+    /**
+     * Get item data as single buffer. Multiple extents are copied into new buffer, so this
+     * method is intended for small item data. (e.g. ImageGrid)
+     *
+     * @return The item data.
+     */
+    static ByteBuffer toContiguous(List<ByteBuffer> extents) {
+        if (extents.size() == 1) {
+            return extents.get(0).duplicate();
+        }
+        ByteBuffer data = ByteBuffer.allocate((int) size(extents));
+        for (ByteBuffer extent : extents) {
+            data.put(extent.duplicate());
+        }
+        data.flip();
+        return data;
+    }
+}
@@ -0,0 +1,446 @@
+/*
+ * Copyright (c) 2017 yohhoy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package jp.yohhoy.heifreader;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Item tables in 'meta' box
+ *
+ * Streaming box reader which parses 'pitm', 'iinf', 'iloc', 'iprp'('ipco', 'ipma'), 'iref' and
+ * 'idat' boxes into flat primitive arrays. Item properties are kept as offset/length into
+ * 'meta' box buffer, and parsed on demand.
+ */
+final class ItemTables {
+    static final int TYPE_FTYP = fourcc("ftyp");
+    static final int TYPE_META = fourcc("meta");
+    static final int TYPE_PITM = fourcc("pitm");
+    static final int TYPE_IINF = fourcc("iinf");
+    static final int TYPE_INFE = fourcc("infe");
+    static final int TYPE_ILOC = fourcc("iloc");
+    static final int TYPE_IPRP = fourcc("iprp");
+    static final int TYPE_IPCO = fourcc("ipco");
+    static final int TYPE_IPMA = fourcc("ipma");
+    static final int TYPE_IREF = fourcc("iref");
+    static final int TYPE_IDAT = fourcc("idat");
+    static final int TYPE_ISPE = fourcc("ispe");
+    static final int TYPE_HVCC = fourcc("hvcC");
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /** 'meta' box buffer */
+    final ByteBuffer meta;
+
+    // 'pitm'
+    int primaryItemId = -1;
+
+    // 'iinf'
+    int itemCount;
+    int[] itemIds = new int[0];
+    int[] itemTypes = new int[0];
+    String[] itemNames = new String[0];
+
+    // 'iloc': extents of location[i] are extentOffsets/Lengths[extentStarts[i]..extentStarts[i+1])
+    int locationCount;
+    int[] locationItemIds = new int[0];
+    int[] constructionMethods = new int[0];
+    int[] extentStarts = new int[1];
+    long[] extentOffsets = new long[0];
+    long[] extentLengths = new long[0];
+
+    // 'ipco': content(w/o box header) of property[i] is meta[propertyOffsets[i]..+propertyLengths[i])
+    int propertyCount;
+    int[] propertyTypes = new int[0];
+    int[] propertyOffsets = new int[0];
+    int[] propertyLengths = new int[0];
+
+    // 'ipma': property indices(1-based) of association[i] are propertyIndices[associationStarts[i]..associationStarts[i+1])
+    int associationCount;
+    int[] associationItemIds = new int[0];
+    int[] associationStarts = new int[1];
+    int[] propertyIndices = new int[0];
+
+    // 'iref': to_item_IDs of reference[i] are referenceToIds[referenceStarts[i]..referenceStarts[i+1])
+    int referenceCount;
+    int[] referenceTypes = new int[0];
+    int[] referenceFromIds = new int[0];
+    int[] referenceStarts = new int[1];
+    int[] referenceToIds = new int[0];
+
+    // 'idat'
+    int itemDataOffset = -1;
+    int itemDataLength;
+
+    private ItemTables(ByteBuffer meta) {
+        this.meta = meta;
+    }
+
+    /**
+     * Parse 'meta' box.
+     *
+     * @param metaBox whole 'meta' box including box header. (position is not modified)
+     * @return The parsed tables.
+     * @throws IOException if the box is invalid.
+     */
+    static ItemTables parse(ByteBuffer metaBox) throws IOException {
+        ByteBuffer buf = metaBox.duplicate();
+        ItemTables tables = new ItemTables(metaBox);
+        try {
+            int end = readBoxHeader(buf, TYPE_META);
+            buf.limit(end);
+            buf.getInt();   // version, flags
+            while (buf.hasRemaining()) {
+                int start = buf.position();
+                int boxEnd = readBoxHeader(buf, 0);
+                int type = buf.getInt(start + 4);
+                ByteBuffer content = buf.duplicate();
+                content.limit(boxEnd);
+                if (type == TYPE_PITM) {
+                    tables.parsePitm(content);
+                } else if (type == TYPE_IINF) {
+                    tables.parseIinf(content);
+                } else if (type == TYPE_ILOC) {
+                    tables.parseIloc(content);
+                } else if (type == TYPE_IPRP) {
+                    tables.parseIprp(content);
+                } else if (type == TYPE_IREF) {
+                    tables.parseIref(content);
+                } else if (type == TYPE_IDAT) {
+                    tables.itemDataOffset = content.position();
+                    tables.itemDataLength = content.remaining();
+                }
+                buf.position(boxEnd);
+            }
+        } catch (BufferUnderflowException | IndexOutOfBoundsException ex) {
+            throw new IOException("MetaBox('meta') is truncated", ex);
+        }
+        return tables;
+    }
+
+    /**
+     * Read box header, and move position to box content.
+     *
+     * @param expectedType expected 4cc, or 0 for any type.
+     * @return end position of the box.
+     */
+    static int readBoxHeader(ByteBuffer buf, int expectedType) throws IOException {
+        int start = buf.position();
+        long size = buf.getInt() & 0xffffffffL;
+        int type = buf.getInt();
+        if (size == 1) {
+            size = buf.getLong();
+        } else if (size == 0) {
+            size = buf.limit() - start;
+        }
+        if (expectedType != 0 && type != expectedType) {
+            throw new IOException("unexpected box '" + fourccToString(type) + "'");
+        }
+        if (size < buf.position() - start || buf.limit() - start < size) {
+            throw new IOException("invalid box size(" + size + ") of '" + fourccToString(type) + "'");
+        }
+        return start + (int) size;
+    }
+
+    private void parsePitm(ByteBuffer buf) {
+        int version = buf.get() & 0xff;
+        skip(buf, 3);   // flags
+        primaryItemId = (version == 0) ? readU16(buf) : buf.getInt();
+    }
+
+    private void parseIinf(ByteBuffer buf) throws IOException {
+        int version = buf.get() & 0xff;
+        skip(buf, 3);   // flags
+        // each entry is 'infe' box, which has at least box header
+        int entryCount = checkCount((version == 0) ? readU16(buf) : readUInt(buf, 4), buf, 8,
+                "ItemInfoBox('iinf') entry_count");
+        itemIds = new int[entryCount];
+        itemTypes = new int[entryCount];
+        itemNames = new String[entryCount];
+        itemCount = 0;
+        while (buf.hasRemaining() && itemCount < entryCount) {
+            int start = buf.position();
+            int end = readBoxHeader(buf, 0);
+            if (buf.getInt(start + 4) == TYPE_INFE) {
+                int infeVersion = buf.get() & 0xff;
+                skip(buf, 3);   // flags
+                int itemId = (infeVersion < 3) ? readU16(buf) : buf.getInt();
+                readU16(buf);   // item_protection_index
+                int itemType = (2 <= infeVersion) ? buf.getInt() : 0;
+                itemIds[itemCount] = itemId;
+                itemTypes[itemCount] = itemType;
+                itemNames[itemCount] = readString(buf, end);
+                itemCount++;
+            }
+            buf.position(end);
+        }
+    }
+
+    private void parseIloc(ByteBuffer buf) throws IOException {
+        int version = buf.get() & 0xff;
+        skip(buf, 3);   // flags
+        int tmp = buf.get() & 0xff;
+        final int offsetSize = tmp >>> 4;
+        final int lengthSize = tmp & 0xf;
+        tmp = buf.get() & 0xff;
+        final int baseOffsetSize = tmp >>> 4;
+        final int indexSize = (version == 1 || version == 2) ? (tmp & 0xf) : 0;
+        // each item has item_ID, construction_method, data_reference_index, base_offset and extent_count
+        int count = checkCount((version < 2) ? readU16(buf) : readUInt(buf, 4), buf,
+                ((version < 2) ? 2 : 4) + ((version == 1 || version == 2) ? 2 : 0) + 2 + baseOffsetSize + 2,
+                "ItemLocationBox('iloc') item_count");
+        locationItemIds = new int[count];
+        constructionMethods = new int[count];
+        extentStarts = new int[count + 1];
+        extentOffsets = new long[count];
+        extentLengths = new long[count];
+        int extentCount = 0;
+        for (int i = 0; i < count; i++) {
+            locationItemIds[i] = (version < 2) ? readU16(buf) : buf.getInt();
+            if (version == 1 || version == 2) {
+                constructionMethods[i] = readU16(buf) & 0xf;
+            }
+            readU16(buf);   // data_reference_index
+            long baseOffset = readUInt(buf, baseOffsetSize);
+            int numExtents = checkCount(readU16(buf), buf, Math.max(1, indexSize + offsetSize + lengthSize),
+                    "ItemLocationBox('iloc') extent_count");
+            if (extentOffsets.length < extentCount + numExtents) {
+                int capacity = Math.max(extentOffsets.length * 2, extentCount + numExtents);
+                extentOffsets = Arrays.copyOf(extentOffsets, capacity);
+                extentLengths = Arrays.copyOf(extentLengths, capacity);
+            }
+            for (int j = 0; j < numExtents; j++) {
+                readUInt(buf, indexSize);   // extent_index
+                extentOffsets[extentCount] = baseOffset + readUInt(buf, offsetSize);
+                extentLengths[extentCount] = readUInt(buf, lengthSize);
+                extentCount++;
+            }
+            extentStarts[i + 1] = extentCount;
+        }
+        locationCount = count;
+    }
+
+    private void parseIprp(ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            int start = buf.position();
+            int end = readBoxHeader(buf, 0);
+            int type = buf.getInt(start + 4);
+            ByteBuffer content = buf.duplicate();
+            content.limit(end);
+            if (type == TYPE_IPCO) {
+                parseIpco(content);
+            } else if (type == TYPE_IPMA) {
+                parseIpma(content);
+            }
+            buf.position(end);
+        }
+    }
+
+    private void parseIpco(ByteBuffer buf) throws IOException {
+        int capacity = 16;
+        propertyTypes = new int[capacity];
+        propertyOffsets = new int[capacity];
+        propertyLengths = new int[capacity];
+        propertyCount = 0;
+        while (buf.hasRemaining()) {
+            int start = buf.position();
+            int end = readBoxHeader(buf, 0);
+            if (propertyCount == capacity) {
+                capacity *= 2;
+                propertyTypes = Arrays.copyOf(propertyTypes, capacity);
+                propertyOffsets = Arrays.copyOf(propertyOffsets, capacity);
+                propertyLengths = Arrays.copyOf(propertyLengths, capacity);
+            }
+            propertyTypes[propertyCount] = buf.getInt(start + 4);
+            propertyOffsets[propertyCount] = buf.position();
+            propertyLengths[propertyCount] = end - buf.position();
+            propertyCount++;
+            buf.position(end);
+        }
+    }
+
+    private void parseIpma(ByteBuffer buf) throws IOException {
+        int version = buf.get() & 0xff;
+        int flags = (buf.get() & 0xff) << 16 | readU16(buf);
+        // each entry has item_ID and association_count
+        int entryCount = checkCount(readUInt(buf, 4), buf, ((version < 1) ? 2 : 4) + 1,
+                "ItemPropertyAssociation('ipma') entry_count");
+        // append to existing associations, 'ipma' may be split into multiple boxes
+        int base = associationCount;
+        associationItemIds = Arrays.copyOf(associationItemIds, base + entryCount);
+        associationStarts = Arrays.copyOf(associationStarts, base + entryCount + 1);
+        int indexCount = associationStarts[base];
+        for (int i = 0; i < entryCount; i++) {
+            associationItemIds[base + i] = (version < 1) ? readU16(buf) : buf.getInt();
+            int numAssociations = buf.get() & 0xff;
+            if (propertyIndices.length < indexCount + numAssociations) {
+                propertyIndices = Arrays.copyOf(propertyIndices,
+                        Math.max(propertyIndices.length * 2, indexCount + numAssociations));
+            }
+            for (int j = 0; j < numAssociations; j++) {
+                // drop essential flag
+                if ((flags & 1) == 1) {
+                    propertyIndices[indexCount++] = readU16(buf) & 0x7fff;
+                } else {
+                    propertyIndices[indexCount++] = buf.get() & 0x7f;
+                }
+            }
+            associationStarts[base + i + 1] = indexCount;
+        }
+        associationCount = base + entryCount;
+    }
+
+    /**
+     * Check entry count against remaining box size, before arrays are allocated by the count.
+     *
+     * @param minEntrySize minimum byte size of an entry.
+     * @return The count.
+     * @throws IOException if entries of the count could not fit in the box.
+     */
+    private static int checkCount(long count, ByteBuffer buf, int minEntrySize, String name) throws IOException {
+        if (buf.remaining() / minEntrySize < count) {
+            throw new IOException(name + "(" + count + ") exceeds box size");
+        }
+        return (int) count;
+    }
+
+    private void parseIref(ByteBuffer buf) throws IOException {
+        int version = buf.get() & 0xff;
+        skip(buf, 3);   // flags
+        int capacity = 4;
+        referenceTypes = new int[capacity];
+        referenceFromIds = new int[capacity];
+        referenceStarts = new int[capacity + 1];
+        referenceToIds = new int[capacity];
+        referenceCount = 0;
+        int toCount = 0;
+        while (buf.hasRemaining()) {
+            int start = buf.position();
+            int end = readBoxHeader(buf, 0);
+            if (referenceCount == capacity) {
+                capacity *= 2;
+                referenceTypes = Arrays.copyOf(referenceTypes, capacity);
+                referenceFromIds = Arrays.copyOf(referenceFromIds, capacity);
+                referenceStarts = Arrays.copyOf(referenceStarts, capacity + 1);
+            }
+            referenceTypes[referenceCount] = buf.getInt(start + 4);
+            referenceFromIds[referenceCount] = (version == 0) ? readU16(buf) : buf.getInt();
+            int numReferences = readU16(buf);
+            if (referenceToIds.length < toCount + numReferences) {
+                referenceToIds = Arrays.copyOf(referenceToIds,
+                        Math.max(referenceToIds.length * 2, toCount + numReferences));
+            }
+            for (int j = 0; j < numReferences; j++) {
+                referenceToIds[toCount++] = (version == 0) ? readU16(buf) : buf.getInt();
+            }
+            referenceCount++;
+            referenceStarts[referenceCount] = toCount;
+            buf.position(end);
+        }
+    }
+
+    /**
+     * @return index of the item in 'iloc', or -1 if not found.
+     */
+    int findLocation(int itemId) {
+        for (int i = 0; i < locationCount; i++) {
+            if (locationItemIds[i] == itemId) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return index of the item in 'ipma', or -1 if not found.
+     */
+    int findAssociation(int itemId) {
+        for (int i = 0; i < associationCount; i++) {
+            if (associationItemIds[i] == itemId) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return content of property, or null if the index is out of range.
+     */
+    ByteBuffer getProperty(int propertyIndex) {
+        if (propertyIndex < 1 || propertyCount < propertyIndex) {
+            return null;
+        }
+        ByteBuffer content = meta.duplicate();
+        content.position(propertyOffsets[propertyIndex - 1]);
+        content.limit(propertyOffsets[propertyIndex - 1] + propertyLengths[propertyIndex - 1]);
+        return content.slice();
+    }
+
+    static int fourcc(String type) {
+        return (type.charAt(0) << 24) | (type.charAt(1) << 16) | (type.charAt(2) << 8) | type.charAt(3);
+    }
+
+    static String fourccToString(int type) {
+        if (type == 0) {
+            return null;
+        }
+        char[] chars = {(char) ((type >>> 24) & 0xff), (char) ((type >>> 16) & 0xff),
+                (char) ((type >>> 8) & 0xff), (char) (type & 0xff)};
+        return new String(chars);
+    }
+
+    static int readU16(ByteBuffer buf) {
+        return buf.getShort() & 0xffff;
+    }
+
+    private static long readUInt(ByteBuffer buf, int size) throws IOException {
+        switch (size) {
+            case 0:
+                return 0;
+            case 4:
+                return buf.getInt() & 0xffffffffL;
+            case 8:
+                return buf.getLong();
+            default:
+                throw new IOException("unsupported field size(" + size + ")");
+        }
+    }
+
+    private static void skip(ByteBuffer buf, int n) {
+        buf.position(buf.position() + n);
+    }
+
+    private static String readString(ByteBuffer buf, int end) {
+        int start = buf.position();
+        int pos = start;
+        while (pos < end && buf.get(pos) != 0) {
+            pos++;
+        }
+        byte[] bytes = new byte[pos - start];
+        buf.get(bytes);
+        buf.position(Math.min(pos + 1, end));
+        return new String(bytes, UTF_8);
+    }
+}
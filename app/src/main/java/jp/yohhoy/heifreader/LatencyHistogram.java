@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2017 yohhoy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package jp.yohhoy.heifreader;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of latency values, like HdrHistogram
+ *
+ * Values are counted in buckets of power of two ranges, and each range is divided into
+ * linear sub-buckets, so recorded values keep 2 significant decimal digits (relative error
+ * is less than 1/64) over whole range. Recording is a few atomic increments without allocation.
+ * Reading while recording on other threads may miss values being recorded.
+ */
+public final class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int SUB_BUCKET_HALF_COUNT = SUB_BUCKET_COUNT / 2;
+    /** values not less than 2^VALUE_BITS (about 18 minutes in nanoseconds) are counted as maximum value */
+    private static final int VALUE_BITS = 40;
+    static final long MAX_TRACKABLE_VALUE = (1L << VALUE_BITS) - 1;
+
+    private final AtomicLongArray mCounts;
+    private final AtomicLong mTotalCount = new AtomicLong();
+    private final AtomicLong mTotalValue = new AtomicLong();
+    private final AtomicLong mMaxValue = new AtomicLong();
+
+    public LatencyHistogram() {
+        mCounts = new AtomicLongArray(countsIndex(MAX_TRACKABLE_VALUE) + 1);
+    }
+
+    /**
+     * @param value non-negative value, which is clamped to maximum trackable value.
+     */
+    public void recordValue(long value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("negative value(" + value + ")");
+        }
+        value = Math.min(value, MAX_TRACKABLE_VALUE);
+        mCounts.incrementAndGet(countsIndex(value));
+        mTotalCount.incrementAndGet();
+        mTotalValue.addAndGet(value);
+        long max;
+        while ((max = mMaxValue.get()) < value && !mMaxValue.compareAndSet(max, value)) {
+            // retry
+        }
+    }
+
+    public long getCount() {
+        return mTotalCount.get();
+    }
+
+    public long getMaxValue() {
+        return mMaxValue.get();
+    }
+
+    public double getMean() {
+        long count = mTotalCount.get();
+        return (count == 0) ? 0 : (double) mTotalValue.get() / count;
+    }
+
+    /**
+     * @param percentile percentile in [0, 100]. (e.g. 50 for median, 99 for p99)
+     * @return The highest value which is equivalent to the value at the percentile, or 0 if no value is recorded.
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (percentile < 0 || 100 < percentile) {
+            throw new IllegalArgumentException("invalid percentile(" + percentile + ")");
+        }
+        long total = 0;
+        final int length = mCounts.length();
+        long[] counts = new long[length];
+        for (int i = 0; i < length; i++) {
+            counts[i] = mCounts.get(i);
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        final long target = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long cumulative = 0;
+        for (int i = 0; i < length; i++) {
+            cumulative += counts[i];
+            if (target <= cumulative) {
+                return Math.min(highestEquivalentValue(i), mMaxValue.get());
+            }
+        }
+        return mMaxValue.get();
+    }
+
+    /**
+     * Clear recorded values. Values recorded during reset may be partially cleared.
+     */
+    public void reset() {
+        for (int i = 0; i < mCounts.length(); i++) {
+            mCounts.set(i, 0);
+        }
+        mTotalCount.set(0);
+        mTotalValue.set(0);
+        mMaxValue.set(0);
+    }
+
+    /**
+     * Bucket 0 has SUB_BUCKET_COUNT sub-buckets of unit width, and bucket n(>0) has upper half
+     * sub-buckets of width 2^n.
+     */
+    static int countsIndex(long value) {
+        final int bucketIndex = 64 - Long.numberOfLeadingZeros(value | (SUB_BUCKET_COUNT - 1)) - SUB_BUCKET_BITS;
+        final int subBucketIndex = (int) (value >>> bucketIndex);
+        return bucketIndex * SUB_BUCKET_HALF_COUNT + subBucketIndex;
+    }
+
+    static long highestEquivalentValue(int index) {
+        int bucketIndex = index / SUB_BUCKET_HALF_COUNT - 1;
+        long subBucketIndex = index % SUB_BUCKET_HALF_COUNT + SUB_BUCKET_HALF_COUNT;
+        if (bucketIndex < 0) {
+            bucketIndex = 0;
+            subBucketIndex -= SUB_BUCKET_HALF_COUNT;
+        }
+        return ((subBucketIndex + 1) << bucketIndex) - 1;
+    }
+
+    @Override
+    public String toString() {
+        return "LatencyHistogram[count=" + getCount() + ";p50=" + getValueAtPercentile(50)
+                + ";p99=" + getValueAtPercentile(99) + ";max=" + getMaxValue() + "]";
+    }
+}
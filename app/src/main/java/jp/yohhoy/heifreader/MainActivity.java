@@ -43,6 +43,8 @@ public class MainActivity extends Activity {
 
     ListView mListView;
     ArrayAdapter<String> mArrayAdapter;
+    HeifDecoder mDecoder;
+    HeifCache mCache;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -58,7 +60,7 @@ public class MainActivity extends Activity {
                 final Context context = MainActivity.this;
                 if (position == 0) {
                     // show internal resource
-                    Bitmap bitmap = HeifReader.decodeResource(context.getResources(), R.raw.lena_std);
+                    Bitmap bitmap = mDecoder.decodeResource(context.getResources(), R.raw.lena_std);
                     showImage(bitmap);
                     return;
                 }
@@ -69,7 +71,8 @@ public class MainActivity extends Activity {
                     @Override
                     protected Bitmap doInBackground(String... strings) {
                         try {
-                            return HeifReader.decodeStream(new URL(strings[0]).openStream());
+                            // decoded images are cached by content
+                            return mCache.decodeStream(new URL(strings[0]).openStream());
                         } catch (IOException ex) {
                             Log.e(TAG, "invalid URL", ex);
                             return null;
@@ -84,8 +87,17 @@ public class MainActivity extends Activity {
             }
         });
 
-        // initialize HefiReader module
-        HeifReader.initialize(this);
+        // one decoder (and its cache) for this activity, instead of default instance of HeifReader
+        mDecoder = new HeifDecoder.Builder(this).build();
+        mCache = new HeifCache(mDecoder);
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        // release decoders and threads, disk cache entries are kept for next launch
+        mCache.clearMemory();
+        mDecoder.close();
     }
 
     private void showImage(Bitmap bitmap) {
@@ -0,0 +1,331 @@
+/*
+ * Copyright (c) 2017 yohhoy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package jp.yohhoy.heifreader;
+
+import android.graphics.ImageFormat;
+import android.media.Image;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import jp.yohhoy.heifreader.CodecSession.FormatFallbackException;
+
+/**
+ * HEVC decoder with Android MediaCodec
+ *
+ * Started decoders are leased from pool for each image, and decoded image is rendered to
+ * ImageReader in YV12 or RGB565 format.
+ * Decoders run in asynchronous callback mode on a handler thread; synchronous {@link #decode}
+ * waits for asynchronous decoding, so a stuck decoder fails with timeout instead of blocking forever.
+ * A sequence of images with same configuration is decoded with one leased decoder.
+ * Decoder is selected for each image (or tile) size by {@link DecoderSelector}.
+ */
+final class MediaCodecHevcDecoder implements AsyncHevcDecoder, SequenceHevcDecoder {
+    private static final String TAG = "HeifReader";
+
+    private final List<DecoderCapability> mDecoders;
+    private final long mDecodeTimeoutMsec;
+    private final HandlerThread mImageThread;
+    private final DecoderPool<CodecSession.Key, CodecSession> mDecoderPool;
+    // broken decoders are released on another thread, because stuck decoder may block release
+    private final ExecutorService mReleaseExecutor;
+
+    /**
+     * @param decoders MediaCodec HEVC decoders ranked by {@link DecoderSelector#rank}, which is not empty.
+     * @param idleTimeoutMsec timeout to release idle decoders.
+     * @param maxIdleDecoders maximum number of idle decoders kept in pool.
+     * @param decodeTimeoutMsec timeout of decoding an image.
+     * @param metrics receiver of configure stage, or null.
+     */
+    MediaCodecHevcDecoder(List<DecoderCapability> decoders, long idleTimeoutMsec, int maxIdleDecoders,
+                          long decodeTimeoutMsec, HeifMetrics metrics) {
+        mDecoders = decoders;
+        mDecodeTimeoutMsec = decodeTimeoutMsec;
+        mImageThread = new HandlerThread("HeifDecoder");
+        mImageThread.start();
+        CodecSession.Factory factory = new CodecSession.Factory(new Handler(mImageThread.getLooper()), metrics);
+        mDecoderPool = new DecoderPool<>(factory, idleTimeoutMsec, TimeUnit.MILLISECONDS, maxIdleDecoders);
+        mReleaseExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "HeifDecoder-release");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Leased decoder and its decoding in progress
+     */
+    private static final class Decoding {
+        final CodecSession.Key key;
+        final CodecSession session;
+        final DecodeFuture<Image> image;
+
+        Decoding(CodecSession.Key key, CodecSession session, DecodeFuture<Image> image) {
+            this.key = key;
+            this.session = session;
+            this.image = image;
+        }
+    }
+
+    @Override
+    public boolean decode(HevcConfig config, int width, int height, List<ByteBuffer> bitstream, int format,
+                          Output output) throws IOException {
+        Decoding decoding = startDecoding(config, width, height, bitstream, format);
+        Image image;
+        try {
+            image = awaitImage(decoding.image);
+        } catch (FormatFallbackException ex) {
+            discard(decoding.session);
+            Log.d(TAG, "HEVC output format(" + decoding.key.imageFormat + ") is not supported", ex);
+            return false;
+        } catch (IOException | RuntimeException ex) {
+            discard(decoding.session);
+            throw ex;
+        }
+        // copy on caller thread, so that images are converted in parallel
+        finishDecoding(decoding, image, format, output);
+        return true;
+    }
+
+    @Override
+    public boolean decodeSequence(HevcConfig config, int width, int height, List<List<ByteBuffer>> bitstreams,
+                                  int format, Output[] outputs) throws IOException {
+        if (bitstreams.isEmpty()) {
+            return true;
+        }
+        // lease one decoder which accepts all images
+        int inputSize = 0;
+        for (List<ByteBuffer> bitstream : bitstreams) {
+            inputSize = Math.max(inputSize, HevcBitstream.annexBSize(bitstream, config.getNalLengthSize()));
+        }
+        final int imageFormat = (format == FORMAT_RGB565) ? ImageFormat.RGB_565 : ImageFormat.YV12;
+        CodecSession.Key key = new CodecSession.Key(selectDecoder(config, width, height), width, height,
+                inputSize, imageFormat);
+        CodecSession session = mDecoderPool.acquire(key);
+        boolean reusable = false;
+        try {
+            for (int i = 0; i < bitstreams.size(); i++) {
+                Image image = awaitImage(session.decode(config.getParamset(), bitstreams.get(i),
+                        config.getNalLengthSize(), mDecodeTimeoutMsec));
+                try {
+                    copyImage(image, format, outputs[i]);
+                } finally {
+                    image.close();
+                }
+            }
+            reusable = true;
+        } catch (FormatFallbackException ex) {
+            Log.d(TAG, "HEVC output format(" + imageFormat + ") is not supported", ex);
+            return false;
+        } finally {
+            if (reusable) {
+                mDecoderPool.recycle(key, session);
+            } else {
+                discard(session);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Wait for decoded image.
+     *
+     * @throws FormatFallbackException if the decoded image could not be acquired in requested format.
+     */
+    private static Image awaitImage(DecodeFuture<Image> future) throws IOException, FormatFallbackException {
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("HEVC decoding is interrupted");
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof FormatFallbackException) {
+                throw (FormatFallbackException) cause;
+            } else if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof TimeoutException) {
+                throw new IOException(cause.getMessage(), cause);
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    @Override
+    public DecodeFuture<Boolean> decodeAsync(HevcConfig config, int width, int height, List<ByteBuffer> bitstream,
+                                             final int format, final Output output) {
+        final DecodeFuture<Boolean> result = new DecodeFuture<>();
+        final Decoding decoding;
+        try {
+            decoding = startDecoding(config, width, height, bitstream, format);
+        } catch (IOException | RuntimeException ex) {
+            result.fail(ex);
+            return result;
+        }
+        result.setCancelAction(new Runnable() {
+            @Override
+            public void run() {
+                decoding.image.cancel(true);
+            }
+        });
+        decoding.image.addListener(new DecodeFuture.Listener<Image>() {
+            @Override
+            public void onComplete(DecodeFuture<Image> future) {
+                Image image;
+                try {
+                    image = future.get();
+                } catch (ExecutionException ex) {
+                    discard(decoding.session);
+                    Throwable cause = ex.getCause();
+                    if (cause instanceof FormatFallbackException) {
+                        Log.d(TAG, "HEVC output format(" + decoding.key.imageFormat + ") is not supported", cause);
+                        result.complete(false);
+                    } else {
+                        result.fail(cause);
+                    }
+                    return;
+                } catch (InterruptedException | CancellationException ex) {
+                    discard(decoding.session);
+                    return;
+                }
+                try {
+                    finishDecoding(decoding, image, format, output);
+                } catch (RuntimeException ex) {
+                    result.fail(ex);
+                    return;
+                }
+                result.complete(true);
+            }
+        });
+        return result;
+    }
+
+    private Decoding startDecoding(HevcConfig config, int width, int height, List<ByteBuffer> bitstream,
+                                   int format) throws IOException {
+        final int imageFormat = (format == FORMAT_RGB565) ? ImageFormat.RGB_565 : ImageFormat.YV12;
+        int inputSize = HevcBitstream.annexBSize(bitstream, config.getNalLengthSize());
+        CodecSession.Key key = new CodecSession.Key(selectDecoder(config, width, height), width, height,
+                inputSize, imageFormat);
+        CodecSession session = mDecoderPool.acquire(key);
+        DecodeFuture<Image> image = session.decode(config.getParamset(), bitstream,
+                config.getNalLengthSize(), mDecodeTimeoutMsec);
+        return new Decoding(key, session, image);
+    }
+
+    /**
+     * Select decoder which supports the image size, or decoder of largest frame if no decoder supports it.
+     */
+    private String selectDecoder(HevcConfig config, int width, int height) {
+        DecoderCapability decoder = DecoderSelector.select(mDecoders, width, height, config.getBitDepthLuma());
+        if (decoder == null) {
+            decoder = DecoderSelector.largest(mDecoders);
+            Log.w(TAG, "HEVC image(" + width + "x" + height + ") may exceed decoder capability");
+        }
+        return decoder.name;
+    }
+
+    /**
+     * Copy decoded image to output, then return the decoder to pool.
+     */
+    private void finishDecoding(Decoding decoding, Image image, int format, Output output) {
+        boolean reusable = false;
+        try {
+            copyImage(image, format, output);
+            reusable = true;
+        } finally {
+            image.close();
+            if (reusable) {
+                mDecoderPool.recycle(decoding.key, decoding.session);
+            } else {
+                discard(decoding.session);
+            }
+        }
+    }
+
+    private void discard(final CodecSession session) {
+        try {
+            mReleaseExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    mDecoderPool.discard(session);
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            mDecoderPool.discard(session);
+        }
+    }
+
+    private static void copyImage(Image image, int format, Output output) {
+        Image.Plane[] imagePlanes = image.getPlanes();
+        switch (image.getFormat()) {
+            case ImageFormat.YUV_420_888:
+            case ImageFormat.YV12:
+                if (format != FORMAT_YUV420) {
+                    break;
+                }
+                output.writeImage(toPlanes(imagePlanes, 3), image.getWidth(), image.getHeight());
+                return;
+            case ImageFormat.RGB_565:
+                if (format != FORMAT_RGB565) {
+                    break;
+                }
+                output.writeImage(toPlanes(imagePlanes, 1), image.getWidth(), image.getHeight());
+                return;
+        }
+        throw new RuntimeException("unsupported image format(" + image.getFormat() + ")");
+    }
+
+    private static Plane[] toPlanes(Image.Plane[] imagePlanes, int count) {
+        Plane[] planes = new Plane[count];
+        for (int i = 0; i < count; i++) {
+            planes[i] = new Plane(imagePlanes[i].getBuffer(), imagePlanes[i].getRowStride(),
+                    imagePlanes[i].getPixelStride());
+        }
+        return planes;
+    }
+
+    @Override
+    public void close() {
+        mDecoderPool.shutdown();
+        mImageThread.quitSafely();
+        mReleaseExecutor.shutdown();
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright (c) 2017 yohhoy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package jp.yohhoy.heifreader;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Bounded three-stage pipeline for batch decoding
+ *
+ * Each stage runs on its own worker threads, so the stages of different items overlap:
+ * parsing of item N+1, decoding of item N and conversion of item N-1 run at the same time.
+ * The number of items between admission and result is limited by capacity, so the caller
+ * blocks while downstream stages are busy (backpressure) and memory of intermediate data is bounded.
+ * Stages do not depend on Android framework, and can be replaced with stubs for testing.
+ *
+ * @param <A> input of the pipeline.
+ * @param <B> output of first stage.
+ * @param <C> output of second stage.
+ * @param <D> output of the pipeline.
+ */
+final class Pipeline<A, B, C, D> {
+    /**
+     * Stage of pipeline
+     */
+    interface Stage<I, O> {
+        O process(I input) throws Exception;
+    }
+
+    /**
+     * Receiver of results, which is called on stage threads.
+     */
+    interface Sink<A, D> {
+        /**
+         * @param index index of input.
+         * @param output output of last stage, or null if failed.
+         * @param error cause of failure, or null if succeeded.
+         */
+        void onResult(int index, A input, D output, Throwable error);
+    }
+
+    private final Stage<A, B> mFirst;
+    private final Stage<B, C> mSecond;
+    private final Stage<C, D> mThird;
+    private final int[] mThreads;
+    private final int mCapacity;
+
+    /**
+     * @param threads number of worker threads for each stage.
+     * @param capacity maximum number of items in pipeline.
+     */
+    Pipeline(Stage<A, B> first, Stage<B, C> second, Stage<C, D> third, int[] threads, int capacity) {
+        if (threads.length != PipelineStats.STAGE_COUNT || capacity < 1) {
+            throw new IllegalArgumentException("invalid threads or capacity(" + capacity + ")");
+        }
+        mFirst = first;
+        mSecond = second;
+        mThird = third;
+        mThreads = threads.clone();
+        mCapacity = capacity;
+    }
+
+    /**
+     * Process all inputs, and wait for all results.
+     *
+     * @return The statistics of stages.
+     * @throws RuntimeException thrown by sink, after all items are finished.
+     * @throws InterruptedException if the calling thread is interrupted; items in pipeline are abandoned.
+     */
+    PipelineStats run(List<A> inputs, final Sink<A, D> sink) throws InterruptedException {
+        final long beginTime = System.nanoTime();
+        final AtomicIntegerArray itemCounts = new AtomicIntegerArray(PipelineStats.STAGE_COUNT);
+        final AtomicLongArray busyNanos = new AtomicLongArray(PipelineStats.STAGE_COUNT);
+        final AtomicInteger failedCount = new AtomicInteger();
+        final AtomicReference<RuntimeException> sinkError = new AtomicReference<>();
+        final Semaphore slots = new Semaphore(mCapacity);
+        final CountDownLatch finished = new CountDownLatch(inputs.size());
+        final ExecutorService[] executors = new ExecutorService[PipelineStats.STAGE_COUNT];
+        for (int stage = 0; stage < executors.length; stage++) {
+            executors[stage] = newExecutor(stage, mThreads[stage]);
+        }
+
+        /*
+         * Each item is handed over to next stage executor by the stage thread.
+         */
+        final class Item<I> implements Runnable {
+            private final int mStage;
+            private final int mIndex;
+            private final A mInput;
+            private final I mValue;
+
+            Item(int stage, int index, A input, I value) {
+                mStage = stage;
+                mIndex = index;
+                mInput = input;
+                mValue = value;
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public void run() {
+                Object output;
+                long start = System.nanoTime();
+                try {
+                    switch (mStage) {
+                        case PipelineStats.STAGE_PARSE:
+                            output = mFirst.process((A) mValue);
+                            break;
+                        case PipelineStats.STAGE_DECODE:
+                            output = mSecond.process((B) mValue);
+                            break;
+                        default:
+                            output = mThird.process((C) mValue);
+                            break;
+                    }
+                } catch (Exception | Error ex) {
+                    record(start);
+                    failedCount.incrementAndGet();
+                    finish(null, ex);
+                    return;
+                }
+                record(start);
+                if (mStage + 1 < PipelineStats.STAGE_COUNT) {
+                    try {
+                        executors[mStage + 1].execute(new Item<>(mStage + 1, mIndex, mInput, output));
+                    } catch (RuntimeException ex) {
+                        failedCount.incrementAndGet();
+                        finish(null, ex);
+                    }
+                } else {
+                    finish((D) output, null);
+                }
+            }
+
+            private void record(long start) {
+                busyNanos.addAndGet(mStage, System.nanoTime() - start);
+                itemCounts.incrementAndGet(mStage);
+            }
+
+            private void finish(D output, Throwable error) {
+                try {
+                    sink.onResult(mIndex, mInput, output, error);
+                } catch (RuntimeException ex) {
+                    sinkError.compareAndSet(null, ex);
+                } finally {
+                    slots.release();
+                    finished.countDown();
+                }
+            }
+        }
+
+        try {
+            for (int i = 0; i < inputs.size(); i++) {
+                slots.acquire();    // block while pipeline is full
+                A input = inputs.get(i);
+                executors[PipelineStats.STAGE_PARSE].execute(
+                        new Item<>(PipelineStats.STAGE_PARSE, i, input, input));
+            }
+            finished.await();
+        } finally {
+            for (ExecutorService executor : executors) {
+                executor.shutdownNow();
+            }
+        }
+        if (sinkError.get() != null) {
+            throw sinkError.get();
+        }
+        int[] counts = new int[PipelineStats.STAGE_COUNT];
+        long[] busy = new long[PipelineStats.STAGE_COUNT];
+        for (int stage = 0; stage < PipelineStats.STAGE_COUNT; stage++) {
+            counts[stage] = itemCounts.get(stage);
+            busy[stage] = busyNanos.get(stage);
+        }
+        return new PipelineStats(counts, busy, failedCount.get(), System.nanoTime() - beginTime);
+    }
+
+    private static ExecutorService newExecutor(int stage, int threads) {
+        final String name = "HeifDecoder-" + PipelineStats.stageName(stage) + "-";
+        return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name + mCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+}
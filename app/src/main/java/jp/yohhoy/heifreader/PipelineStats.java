@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2017 yohhoy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package jp.yohhoy.heifreader;
+
+import java.util.Locale;
+
+/**
+ * Throughput of pipelined batch decoding
+ *
+ * Each stage reports the number of processed items and the time spent in the stage.
+ * Stage throughput is measured by the stage time, while overall throughput is measured by
+ * elapsed time of whole batch; overall throughput higher than any single stage shows overlap of stages.
+ *
+ * @see HeifDecoder#decodeAll
+ */
+public final class PipelineStats {
+    public static final int STAGE_PARSE = 0;
+    public static final int STAGE_DECODE = 1;
+    public static final int STAGE_CONVERT = 2;
+    static final int STAGE_COUNT = 3;
+
+    private static final String[] STAGE_NAMES = {"parse", "decode", "convert"};
+
+    private final int[] mItemCounts;
+    private final long[] mBusyNanos;
+    private final int mFailedCount;
+    private final long mElapsedNanos;
+
+    static String stageName(int stage) {
+        return STAGE_NAMES[stage];
+    }
+
+    PipelineStats(int[] itemCounts, long[] busyNanos, int failedCount, long elapsedNanos) {
+        mItemCounts = itemCounts;
+        mBusyNanos = busyNanos;
+        mFailedCount = failedCount;
+        mElapsedNanos = elapsedNanos;
+    }
+
+    /**
+     * @param stage one of STAGE_*.
+     * @return number of items processed by the stage, including failed items.
+     */
+    public int getItemCount(int stage) {
+        return mItemCounts[stage];
+    }
+
+    /**
+     * @param stage one of STAGE_*.
+     * @return total time spent in the stage over all threads.
+     */
+    public long getBusyNanos(int stage) {
+        return mBusyNanos[stage];
+    }
+
+    /**
+     * @param stage one of STAGE_*.
+     * @return items per second of a stage thread.
+     */
+    public double getThroughput(int stage) {
+        return (mBusyNanos[stage] == 0) ? 0 : mItemCounts[stage] * 1e9 / mBusyNanos[stage];
+    }
+
+    /**
+     * @return number of items which failed at any stage.
+     */
+    public int getFailedCount() {
+        return mFailedCount;
+    }
+
+    /**
+     * @return elapsed time of whole batch.
+     */
+    public long getElapsedNanos() {
+        return mElapsedNanos;
+    }
+
+    /**
+     * @return items per second of whole batch.
+     */
+    public double getOverallThroughput() {
+        return (mElapsedNanos == 0) ? 0 : mItemCounts[STAGE_PARSE] * 1e9 / mElapsedNanos;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("PipelineStats[");
+        for (int stage = 0; stage < STAGE_COUNT; stage++) {
+            sb.append(STAGE_NAMES[stage]).append('=').append(mItemCounts[stage])
+                    .append(String.format(Locale.US, "(%.1f/s)", getThroughput(stage))).append(';');
+        }
+        sb.append("failed=").append(mFailedCount);
+        sb.append(String.format(Locale.US, ";elapsed=%.1f[msec](%.1f/s)]", mElapsedNanos / 1e6, getOverallThroughput()));
+        return sb.toString();
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright (c) 2017 yohhoy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package jp.yohhoy.heifreader;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * HEVC decoder which decodes a sequence of images with one configured decoder
+ *
+ * HeifDecoder uses this interface for consecutive items of same size and 'hvcC', like burst
+ * photos or image collection, to avoid decoder setup for each item.
+ */
+interface SequenceHevcDecoder extends HevcDecoder {
+    /**
+     * Decode HEVC images which share decoder configuration and size.
+     *
+     * Parameters are same as {@link HevcDecoder#decode} except for bitstream and output of each image.
+     *
+     * @param bitstreams HEVC bitstream of each image in hvcC format.
+     * @param outputs receiver of each decoded image.
+     * @return true if all images are decoded, or false if the output format is not supported.
+     * @throws IOException if any bitstream could not be decoded.
+     */
+    boolean decodeSequence(HevcConfig config, int width, int height, List<List<ByteBuffer>> bitstreams, int format,
+                           Output[] outputs) throws IOException;
+}
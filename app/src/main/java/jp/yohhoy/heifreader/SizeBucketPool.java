@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2017 yohhoy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package jp.yohhoy.heifreader;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Pool of reusable buffers bucketed by byte size
+ *
+ * Buffers are found by required size from buckets of same byte size, and released when total
+ * size of pooled buffers exceeds limit (least recently pooled first).
+ * Buffers are distinguished by identity.
+ *
+ * @param <T> buffer type.
+ */
+final class SizeBucketPool<T> {
+    /**
+     * Measure/release pooled buffer.
+     */
+    interface Allocator<T> {
+        int byteCount(T buffer);
+
+        void release(T buffer);
+    }
+
+    /**
+     * Identity wrapper for LRU order
+     */
+    private static final class Entry<T> {
+        final T buffer;
+        final int byteCount;
+
+        Entry(T buffer, int byteCount) {
+            this.buffer = buffer;
+            this.byteCount = byteCount;
+        }
+    }
+
+    private final Allocator<T> mAllocator;
+    private final long mMaxBytes;
+    // buckets by byte size, each bucket is most recently pooled last
+    private final TreeMap<Integer, ArrayDeque<Entry<T>>> mBuckets = new TreeMap<>();
+    // all pooled entries, least recently pooled first
+    private final LinkedHashMap<Entry<T>, Boolean> mLruEntries = new LinkedHashMap<>();
+    private long mTotalBytes;
+
+    /**
+     * @param maxBytes maximum total size of pooled buffers.
+     */
+    SizeBucketPool(Allocator<T> allocator, long maxBytes) {
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("invalid maxBytes(" + maxBytes + ")");
+        }
+        mAllocator = allocator;
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Take a buffer whose size is in [minBytes, maxBytes].
+     *
+     * @return The smallest fitting buffer, or null if there is no buffer.
+     */
+    synchronized T acquire(int minBytes, int maxBytes) {
+        Map.Entry<Integer, ArrayDeque<Entry<T>>> bucket = mBuckets.ceilingEntry(minBytes);
+        if (bucket == null || maxBytes < bucket.getKey()) {
+            return null;
+        }
+        Entry<T> entry = bucket.getValue().pollLast();
+        if (bucket.getValue().isEmpty()) {
+            mBuckets.remove(bucket.getKey());
+        }
+        mLruEntries.remove(entry);
+        mTotalBytes -= entry.byteCount;
+        return entry.buffer;
+    }
+
+    /**
+     * Put a buffer into pool. Least recently pooled buffers are released if the pool is full.
+     */
+    void recycle(T buffer) {
+        ArrayDeque<T> evicted = new ArrayDeque<>();
+        synchronized (this) {
+            final int byteCount = mAllocator.byteCount(buffer);
+            if (mMaxBytes < byteCount) {
+                evicted.add(buffer);
+            } else {
+                Entry<T> entry = new Entry<>(buffer, byteCount);
+                ArrayDeque<Entry<T>> bucket = mBuckets.get(byteCount);
+                if (bucket == null) {
+                    bucket = new ArrayDeque<>();
+                    mBuckets.put(byteCount, bucket);
+                }
+                bucket.addLast(entry);
+                mLruEntries.put(entry, Boolean.TRUE);
+                mTotalBytes += byteCount;
+                evictTo(mMaxBytes, evicted);
+            }
+        }
+        releaseAll(evicted);
+    }
+
+    /**
+     * Release all pooled buffers.
+     */
+    void clear() {
+        ArrayDeque<T> evicted = new ArrayDeque<>();
+        synchronized (this) {
+            evictTo(0, evicted);
+        }
+        releaseAll(evicted);
+    }
+
+    synchronized long getTotalBytes() {
+        return mTotalBytes;
+    }
+
+    synchronized int getCount() {
+        return mLruEntries.size();
+    }
+
+    private void evictTo(long maxBytes, ArrayDeque<T> evicted) {
+        Iterator<Entry<T>> it = mLruEntries.keySet().iterator();
+        while (maxBytes < mTotalBytes && it.hasNext()) {
+            Entry<T> entry = it.next();
+            it.remove();
+            ArrayDeque<Entry<T>> bucket = mBuckets.get(entry.byteCount);
+            bucket.remove(entry);
+            if (bucket.isEmpty()) {
+                mBuckets.remove(entry.byteCount);
+            }
+            mTotalBytes -= entry.byteCount;
+            evicted.add(entry.buffer);
+        }
+    }
+
+    private void releaseAll(ArrayDeque<T> buffers) {
+        // release outside of lock
+        for (T buffer : buffers) {
+            mAllocator.release(buffer);
+        }
+    }
+}
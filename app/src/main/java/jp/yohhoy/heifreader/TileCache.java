@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2017 yohhoy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package jp.yohhoy.heifreader;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * LRU cache of decoded tiles
+ *
+ * Tile canvases are keyed by tile index, and least recently used tiles are dropped when
+ * total byte size exceeds limit. This class is thread-safe.
+ */
+final class TileCache {
+    private final long mMaxBytes;
+    // access-ordered, least recently used first
+    private final LinkedHashMap<Integer, ImageCanvas> mTiles = new LinkedHashMap<>(16, 0.75f, true);
+    private long mTotalBytes;
+
+    /**
+     * @param maxBytes maximum total size of cached tiles.
+     */
+    TileCache(long maxBytes) {
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("invalid maxBytes(" + maxBytes + ")");
+        }
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * @return The cached tile, or null if not cached.
+     */
+    synchronized ImageCanvas get(int index) {
+        return mTiles.get(index);
+    }
+
+    /**
+     * Put a tile into cache. A tile larger than the limit is not cached.
+     */
+    synchronized void put(int index, ImageCanvas tile) {
+        final int byteCount = tile.data.length;
+        if (mMaxBytes < byteCount) {
+            return;
+        }
+        ImageCanvas previous = mTiles.put(index, tile);
+        if (previous != null) {
+            mTotalBytes -= previous.data.length;
+        }
+        mTotalBytes += byteCount;
+        Iterator<Map.Entry<Integer, ImageCanvas>> it = mTiles.entrySet().iterator();
+        while (mMaxBytes < mTotalBytes && it.hasNext()) {
+            mTotalBytes -= it.next().getValue().data.length;
+            it.remove();
+        }
+    }
+
+    synchronized void clear() {
+        mTiles.clear();
+        mTotalBytes = 0;
+    }
+
+    synchronized int getCount() {
+        return mTiles.size();
+    }
+
+    synchronized long getTotalBytes() {
+        return mTotalBytes;
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright (c) 2017 yohhoy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package jp.yohhoy.heifreader;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tile layout of image item
+ *
+ * 'grid' image is split into tiles of same size in row-major order, and other image is a
+ * single tile. Item data of each tile is resolved from 'iloc' when the index is built, so
+ * tiles in any region can be decoded without parsing metadata again.
+ */
+final class TileIndex {
+    private final int mWidth;
+    private final int mHeight;
+    private final int mTileWidth;
+    private final int mTileHeight;
+    private final int mColumns;
+    private final HeifInfo.Item[] mTiles;
+    private final List<List<ByteBuffer>> mBitstreams;
+
+    private TileIndex(int width, int height, int tileWidth, int tileHeight, int columns,
+                      HeifInfo.Item[] tiles, List<List<ByteBuffer>> bitstreams) {
+        mWidth = width;
+        mHeight = height;
+        mTileWidth = tileWidth;
+        mTileHeight = tileHeight;
+        mColumns = columns;
+        mTiles = tiles;
+        mBitstreams = bitstreams;
+    }
+
+    /**
+     * Build tile index of image item.
+     *
+     * @param heif whole HEIF data.
+     * @param info parsed HEIF metadata.
+     * @param item 'grid' item or coded image item.
+     * @return The tile index.
+     * @throws IOException if the grid, item location or coded image of tiles is invalid.
+     */
+    static TileIndex build(ByteBuffer heif, HeifInfo info, HeifInfo.Item item) throws IOException {
+        if (!HeifInfo.Item.TYPE_GRID.equals(item.getType())) {
+            HeifParser.validateCodedImage(item, item.getId());
+            List<List<ByteBuffer>> bitstreams = new ArrayList<>(1);
+            bitstreams.add(ItemDataResolver.resolve(heif, info, item));
+            return new TileIndex(item.getWidth(), item.getHeight(), item.getWidth(), item.getHeight(), 1,
+                    new HeifInfo.Item[]{item}, bitstreams);
+        }
+
+        int[] tileIds = info.getReferencedItemIds(HeifInfo.Reference.TYPE_DERIVED_IMAGE, item.getId());
+        ByteBuffer gridData = ItemDataResolver.toContiguous(ItemDataResolver.resolve(heif, info, item));
+        ImageGrid grid = ImageGrid.parse(gridData, tileIds);
+        HeifInfo.Item[] tiles = new HeifInfo.Item[grid.getTileCount()];
+        List<List<ByteBuffer>> bitstreams = new ArrayList<>(tiles.length);
+        for (int i = 0; i < tiles.length; i++) {
+            tiles[i] = info.findItem(grid.getTileItemId(i));
+            HeifParser.validateCodedImage(tiles[i], grid.getTileItemId(i));
+            if (tiles[i].getWidth() != tiles[0].getWidth() || tiles[i].getHeight() != tiles[0].getHeight()) {
+                throw new IOException("grid tiles shall have same size");
+            }
+            bitstreams.add(ItemDataResolver.resolve(heif, info, tiles[i]));
+        }
+        final int tileWidth = tiles[0].getWidth();
+        final int tileHeight = tiles[0].getHeight();
+        if (tileWidth * grid.getColumns() < grid.getOutputWidth()
+                || tileHeight * grid.getRows() < grid.getOutputHeight()) {
+            throw new IOException("grid tiles do not cover output image");
+        }
+        return new TileIndex(grid.getOutputWidth(), grid.getOutputHeight(), tileWidth, tileHeight,
+                grid.getColumns(), tiles, bitstreams);
+    }
+
+    /**
+     * @return width of output image, which may be smaller than tiles.
+     */
+    int getWidth() {
+        return mWidth;
+    }
+
+    /**
+     * @return height of output image, which may be smaller than tiles.
+     */
+    int getHeight() {
+        return mHeight;
+    }
+
+    int getTileWidth() {
+        return mTileWidth;
+    }
+
+    int getTileHeight() {
+        return mTileHeight;
+    }
+
+    int getTileCount() {
+        return mTiles.length;
+    }
+
+    HeifInfo.Item getTile(int index) {
+        return mTiles[index];
+    }
+
+    int getTileLeft(int index) {
+        return (index % mColumns) * mTileWidth;
+    }
+
+    int getTileTop(int index) {
+        return (index / mColumns) * mTileHeight;
+    }
+
+    /**
+     * @return HEVC bitstream of the tile in hvcC format.
+     */
+    List<ByteBuffer> getBitstream(int index) {
+        return mBitstreams.get(index);
+    }
+
+    /**
+     * @return byte size of HEVC bitstream of the tile.
+     */
+    long getBitstreamSize(int index) {
+        long size = 0;
+        for (ByteBuffer extent : mBitstreams.get(index)) {
+            size += extent.remaining();
+        }
+        return size;
+    }
+
+    /**
+     * @return byte size of HEVC bitstream of all tiles.
+     */
+    long getBitstreamSize() {
+        long size = 0;
+        for (int i = 0; i < mTiles.length; i++) {
+            size += getBitstreamSize(i);
+        }
+        return size;
+    }
+
+    /**
+     * Find tiles which overlap the region.
+     *
+     * @return tile indices in row-major order.
+     */
+    int[] findTiles(DecodeRegion region) {
+        final int rows = mTiles.length / mColumns;
+        final int col0 = region.left / mTileWidth;
+        final int col1 = Math.min(mColumns, (region.right() + mTileWidth - 1) / mTileWidth);
+        final int row0 = region.top / mTileHeight;
+        final int row1 = Math.min(rows, (region.bottom() + mTileHeight - 1) / mTileHeight);
+        if (col1 <= col0 || row1 <= row0) {
+            return new int[0];
+        }
+        int[] indices = new int[(col1 - col0) * (row1 - row0)];
+        int n = 0;
+        for (int row = row0; row < row1; row++) {
+            for (int col = col0; col < col1; col++) {
+                indices[n++] = row * mColumns + col;
+            }
+        }
+        return indices;
+    }
+
+    /**
+     * Get content key of decoded image.
+     *
+     * The key is SHA-1 of tile layout, 'hvcC' and bitstream of all tiles, so same image has same
+     * key regardless of file layout or other items.
+     *
+     * @return hexadecimal digest.
+     */
+    String contentKey() {
+        MessageDigest digest = sha1();
+        ByteBuffer layout = ByteBuffer.allocate(24);
+        layout.putInt(mWidth).putInt(mHeight).putInt(mTileWidth).putInt(mTileHeight)
+                .putInt(mColumns).putInt(mTiles.length);
+        digest.update(layout.array());
+        for (int i = 0; i < mTiles.length; i++) {
+            HevcConfig config = mTiles[i].getHevcConfig();
+            digest.update((byte) config.getNalLengthSize());
+            digest.update(config.getParamset());
+            for (ByteBuffer extent : mBitstreams.get(i)) {
+                digest.update(extent.duplicate());
+            }
+        }
+        return toHex(digest.digest());
+    }
+
+    static MessageDigest sha1() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        return "TileIndex[" + mWidth + "x" + mHeight + ";tile=" + mTileWidth + "x" + mTileHeight
+                + ";count=" + mTiles.length + "]";
+    }
+}
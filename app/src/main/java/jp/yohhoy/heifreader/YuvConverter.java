@@ -0,0 +1,399 @@
+/*
+ * Copyright (c) 2017 yohhoy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package jp.yohhoy.heifreader;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import jp.yohhoy.heifreader.hevc.VideoSignalType;
+
+/**
+ * YUV 4:2:0 to ARGB_8888 conversion in pure Java
+ *
+ * Decoder output planes are read directly with their row/pixel strides, and ARGB pixels are
+ * written into int array in a single pass. Each chroma sample is multiplied once and applied to
+ * 2x2 luma samples. Rows can be split across ForkJoin pool.
+ * Image can be downsampled with box filter while converting.
+ * Conversion uses integer-only matrix with 16bit fraction, which is selected from VUI of SPS:
+ * BT.709 (matrix_coeffs=1) or BT.601 (otherwise), full or limited range.
+ */
+final class YuvConverter {
+    private static final int SHIFT = 16;
+    private static final int ROUNDING = 1 << (SHIFT - 1);
+
+    /**
+     * minimum number of rows converted in one ForkJoin task.
+     */
+    private static final int MIN_TASK_ROWS = 32;
+
+    /**
+     * BT.601 limited range, which uses same coefficients as RenderScript rsYuvToRGBA (8bit fraction)
+     * to keep output of previous versions.
+     */
+    static final YuvConverter BT601_LIMITED = new YuvConverter(16, 298 << 8, 409 << 8, 100 << 8, 208 << 8, 516 << 8);
+    static final YuvConverter BT601_FULL = new YuvConverter(0, 65536, 91881, 22553, 46802, 116130);
+    static final YuvConverter BT709_LIMITED = new YuvConverter(16, 76309, 117489, 13975, 34925, 138438);
+    static final YuvConverter BT709_FULL = new YuvConverter(0, 65536, 103206, 12276, 30679, 121609);
+
+    private final int mLumaOffset;
+    private final int mLumaScale;
+    private final int mCrToR;
+    private final int mCbToG;
+    private final int mCrToG;
+    private final int mCbToB;
+
+    /**
+     * R = Y' + crToR * Cr, G = Y' - cbToG * Cb - crToG * Cr, B = Y' + cbToB * Cb,
+     * where Y' = lumaScale * (Y - lumaOffset), and Cb, Cr are centered at 128.
+     */
+    private YuvConverter(int lumaOffset, int lumaScale, int crToR, int cbToG, int crToG, int cbToB) {
+        mLumaOffset = lumaOffset;
+        mLumaScale = lumaScale;
+        mCrToR = crToR;
+        mCbToG = cbToG;
+        mCrToG = crToG;
+        mCbToB = cbToB;
+    }
+
+    /**
+     * Select conversion matrix for the HEVC configuration.
+     */
+    static YuvConverter forConfig(HevcConfig config) {
+        return forVideoSignal(config.getMatrixCoefficients(), config.isFullRange());
+    }
+
+    /**
+     * Select conversion matrix.
+     *
+     * @param matrixCoeffs matrix_coeffs in VUI.
+     * @param fullRange video_full_range_flag in VUI.
+     */
+    static YuvConverter forVideoSignal(int matrixCoeffs, boolean fullRange) {
+        if (matrixCoeffs == VideoSignalType.MATRIX_BT709) {
+            return fullRange ? BT709_FULL : BT709_LIMITED;
+        }
+        return fullRange ? BT601_FULL : BT601_LIMITED;
+    }
+
+    /**
+     * Convert YUV 4:2:0 image into ARGB canvas. The region outside of canvas is clipped.
+     *
+     * @param planes Y, Cb and Cr planes. (positions are not modified)
+     * @param width width of the image in pixels.
+     * @param height height of the image in pixels.
+     * @param dst destination canvas in {@link ImageCanvas#FORMAT_ARGB8888}.
+     * @param left destination position in pixels, which shall be even.
+     * @param top destination position in pixels, which shall be even.
+     * @param pool ForkJoin pool to split rows, or null to convert on calling thread.
+     */
+    void convert(HevcDecoder.Plane[] planes, int width, int height, ImageCanvas dst, int left, int top,
+                 ForkJoinPool pool) {
+        convert(planes, width, height, dst, left, top, 1, pool);
+    }
+
+    /**
+     * Convert YUV 4:2:0 image into ARGB canvas with downsampling.
+     *
+     * Each canvas pixel (dx, dy) is the average of sampleSize x sampleSize box at
+     * (dx * sampleSize, dy * sampleSize) in full resolution, where the image is placed at (left, top).
+     * Luma and chroma samples are averaged before conversion, so full resolution ARGB image is
+     * never produced. A canvas pixel is written by the image which contains top-left corner of its box,
+     * and the box is clipped by the image. Therefore tiles of grid image can be converted
+     * independently, and negative position crops the image.
+     *
+     * @param planes Y, Cb and Cr planes. (positions are not modified)
+     * @param width width of the image in pixels, which may be smaller than decoded image to clip.
+     * @param height height of the image in pixels, which may be smaller than decoded image to clip.
+     * @param dst destination canvas in {@link ImageCanvas#FORMAT_ARGB8888}.
+     * @param left image position in full resolution pixels.
+     * @param top image position in full resolution pixels.
+     * @param sampleSize downsampling factor. (1 = no downsampling)
+     * @param pool ForkJoin pool to split rows, or null to convert on calling thread.
+     */
+    void convert(HevcDecoder.Plane[] planes, int width, int height, ImageCanvas dst, int left, int top,
+                 int sampleSize, ForkJoinPool pool) {
+        if (planes.length < 3) {
+            throw new IllegalArgumentException("YUV image requires 3 planes");
+        }
+        if (dst.format != ImageCanvas.FORMAT_ARGB8888) {
+            throw new IllegalArgumentException("invalid canvas format(" + dst.format + ")");
+        }
+        if (sampleSize < 1) {
+            throw new IllegalArgumentException("invalid sampleSize(" + sampleSize + ")");
+        }
+        final int dx0 = Math.max(0, ceilDiv(left, sampleSize));
+        final int dx1 = Math.min(dst.width, ceilDiv(left + width, sampleSize));
+        final int dy0 = Math.max(0, ceilDiv(top, sampleSize));
+        final int dy1 = Math.min(dst.height, ceilDiv(top + height, sampleSize));
+        if (dx1 <= dx0 || dy1 <= dy0) {
+            return;
+        }
+        Job job = new Job(planes, width, height, dst, left, top, sampleSize, dx0, dx1);
+        RowTask task = new RowTask(job, dy0, dy1);
+        if (pool != null && MIN_TASK_ROWS < (dy1 - dy0) * sampleSize) {
+            pool.invoke(task);
+        } else {
+            task.compute();
+        }
+    }
+
+    /**
+     * ceil(a / b) for positive b
+     */
+    private static int ceilDiv(int a, int b) {
+        return (0 <= a) ? (a + b - 1) / b : -(-a / b);
+    }
+
+    /**
+     * Conversion of an image into columns [dx0, dx1) of canvas
+     */
+    private static final class Job {
+        final HevcDecoder.Plane[] planes;
+        final int width;
+        final int height;
+        final ImageCanvas dst;
+        final int left;
+        final int top;
+        final int sampleSize;
+        final int dx0;
+        final int dx1;
+
+        Job(HevcDecoder.Plane[] planes, int width, int height, ImageCanvas dst, int left, int top,
+            int sampleSize, int dx0, int dx1) {
+            this.planes = planes;
+            this.width = width;
+            this.height = height;
+            this.dst = dst;
+            this.left = left;
+            this.top = top;
+            this.sampleSize = sampleSize;
+            this.dx0 = dx0;
+            this.dx1 = dx1;
+        }
+    }
+
+    /**
+     * Convert canvas rows [y0, y1)
+     */
+    private final class RowTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Job mJob;
+        private final int mY0;
+        private final int mY1;
+
+        RowTask(Job job, int y0, int y1) {
+            mJob = job;
+            mY0 = y0;
+            mY1 = y1;
+        }
+
+        @Override
+        protected void compute() {
+            final int rows = mY1 - mY0;
+            if (2 * MIN_TASK_ROWS <= rows * mJob.sampleSize && 2 <= rows && getPool() != null) {
+                // split at even row, because two luma rows share one chroma row
+                final int mid = mY0 + (rows / 2 & ~1);
+                invokeAll(new RowTask(mJob, mY0, mid), new RowTask(mJob, mid, mY1));
+            } else {
+                convertRows(mJob, mY0, mY1);
+            }
+        }
+    }
+
+    private void convertRows(Job job, int y0, int y1) {
+        final int srcX = job.dx0 - job.left;
+        final int srcY = y0 - job.top;
+        final ImageCanvas dst = job.dst;
+        if (job.sampleSize == 1 && (srcX & 1) == 0 && (srcY & 1) == 0) {
+            convertRows(job.planes, srcX, srcY, job.dx1 - job.dx0, y1 - y0, dst.argb,
+                    dst.argbOffset + y0 * dst.argbStride + job.dx0, dst.argbStride);
+        } else {
+            convertSampledRows(job, y0, y1);
+        }
+    }
+
+    /**
+     * Convert without downsampling, where each chroma sample is applied to 2x2 luma samples.
+     *
+     * @param srcX left position in image, which shall be even.
+     * @param srcY top position in image, which shall be even.
+     */
+    private void convertRows(HevcDecoder.Plane[] planes, int srcX, int srcY, int width, int rows,
+                             int[] argb, int argbOffset, int argbStride) {
+        final HevcDecoder.Plane lumaPlane = planes[0];
+        final HevcDecoder.Plane cbPlane = planes[1];
+        final HevcDecoder.Plane crPlane = planes[2];
+        final int chromaWidth = (width + 1) / 2;
+        final ByteBuffer luma = lumaPlane.buffer.duplicate();
+        final ByteBuffer cb = cbPlane.buffer.duplicate();
+        final ByteBuffer cr = crPlane.buffer.duplicate();
+        final byte[] lumaRow0 = new byte[rowBytes(width, lumaPlane.pixelStride)];
+        final byte[] lumaRow1 = new byte[lumaRow0.length];
+        final byte[] cbRow = new byte[rowBytes(chromaWidth, cbPlane.pixelStride)];
+        final byte[] crRow = new byte[rowBytes(chromaWidth, crPlane.pixelStride)];
+        final int lumaStep = lumaPlane.pixelStride;
+        final int cbStep = cbPlane.pixelStride;
+        final int crStep = crPlane.pixelStride;
+        final int lumaX = srcX * lumaStep;
+        final int cbX = (srcX / 2) * cbStep;
+        final int crX = (srcX / 2) * crStep;
+        final int lumaOffset = mLumaOffset;
+        final int lumaScale = mLumaScale;
+        final int crToR = mCrToR;
+        final int cbToG = mCbToG;
+        final int crToG = mCrToG;
+        final int cbToB = mCbToB;
+
+        for (int y = 0; y < rows; y += 2) {
+            final boolean pair = (y + 1 < rows);
+            readRow(luma, (srcY + y) * lumaPlane.rowStride + lumaX, lumaRow0);
+            if (pair) {
+                readRow(luma, (srcY + y + 1) * lumaPlane.rowStride + lumaX, lumaRow1);
+            }
+            readRow(cb, ((srcY + y) / 2) * cbPlane.rowStride + cbX, cbRow);
+            readRow(cr, ((srcY + y) / 2) * crPlane.rowStride + crX, crRow);
+            final int dst0 = argbOffset + y * argbStride;
+            final int dst1 = dst0 + argbStride;
+            for (int cx = 0; cx < chromaWidth; cx++) {
+                final int u = (cbRow[cx * cbStep] & 0xff) - 128;
+                final int v = (crRow[cx * crStep] & 0xff) - 128;
+                final int dr = crToR * v + ROUNDING;
+                final int dg = ROUNDING - cbToG * u - crToG * v;
+                final int db = cbToB * u + ROUNDING;
+                final int x = 2 * cx;
+                final boolean right = (x + 1 < width);
+                argb[dst0 + x] = pixel(lumaScale * ((lumaRow0[x * lumaStep] & 0xff) - lumaOffset), dr, dg, db);
+                if (right) {
+                    argb[dst0 + x + 1] = pixel(
+                            lumaScale * ((lumaRow0[(x + 1) * lumaStep] & 0xff) - lumaOffset), dr, dg, db);
+                }
+                if (pair) {
+                    argb[dst1 + x] = pixel(lumaScale * ((lumaRow1[x * lumaStep] & 0xff) - lumaOffset), dr, dg, db);
+                    if (right) {
+                        argb[dst1 + x + 1] = pixel(
+                                lumaScale * ((lumaRow1[(x + 1) * lumaStep] & 0xff) - lumaOffset), dr, dg, db);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Convert with box filter, where luma and chroma samples are summed up by columns of each box row,
+     * and then averaged in each box.
+     */
+    private void convertSampledRows(Job job, int y0, int y1) {
+        final HevcDecoder.Plane lumaPlane = job.planes[0];
+        final HevcDecoder.Plane cbPlane = job.planes[1];
+        final HevcDecoder.Plane crPlane = job.planes[2];
+        final int s = job.sampleSize;
+        // image columns [sx0, sx1) and chroma columns [cx0, cx1) which are read
+        final int sx0 = job.dx0 * s - job.left;
+        final int sx1 = Math.min(job.dx1 * s - job.left, job.width);
+        final int cx0 = sx0 / 2;
+        final int cx1 = (sx1 + 1) / 2;
+        final ByteBuffer luma = lumaPlane.buffer.duplicate();
+        final ByteBuffer cb = cbPlane.buffer.duplicate();
+        final ByteBuffer cr = crPlane.buffer.duplicate();
+        final byte[] lumaRow = new byte[rowBytes(sx1 - sx0, lumaPlane.pixelStride)];
+        final byte[] cbRow = new byte[rowBytes(cx1 - cx0, cbPlane.pixelStride)];
+        final byte[] crRow = new byte[rowBytes(cx1 - cx0, crPlane.pixelStride)];
+        final int[] lumaSum = new int[sx1 - sx0];
+        final int[] cbSum = new int[cx1 - cx0];
+        final int[] crSum = new int[cx1 - cx0];
+        final int[] argb = job.dst.argb;
+
+        for (int dy = y0; dy < y1; dy++) {
+            final int sy0 = dy * s - job.top;
+            final int sy1 = Math.min(sy0 + s, job.height);
+            final int cy0 = sy0 / 2;
+            final int cy1 = (sy1 + 1) / 2;
+            Arrays.fill(lumaSum, 0);
+            Arrays.fill(cbSum, 0);
+            Arrays.fill(crSum, 0);
+            for (int y = sy0; y < sy1; y++) {
+                readRow(luma, y * lumaPlane.rowStride + sx0 * lumaPlane.pixelStride, lumaRow);
+                sumRow(lumaRow, lumaPlane.pixelStride, lumaSum);
+            }
+            for (int y = cy0; y < cy1; y++) {
+                readRow(cb, y * cbPlane.rowStride + cx0 * cbPlane.pixelStride, cbRow);
+                sumRow(cbRow, cbPlane.pixelStride, cbSum);
+                readRow(cr, y * crPlane.rowStride + cx0 * crPlane.pixelStride, crRow);
+                sumRow(crRow, crPlane.pixelStride, crSum);
+            }
+
+            int pos = job.dst.argbOffset + dy * job.dst.argbStride + job.dx0;
+            for (int dx = job.dx0; dx < job.dx1; dx++, pos++) {
+                final int bx0 = dx * s - job.left;
+                final int bx1 = Math.min(bx0 + s, sx1);
+                final int y = average(lumaSum, bx0 - sx0, bx1 - sx0, sy1 - sy0);
+                final int u = average(cbSum, bx0 / 2 - cx0, (bx1 + 1) / 2 - cx0, cy1 - cy0) - 128;
+                final int v = average(crSum, bx0 / 2 - cx0, (bx1 + 1) / 2 - cx0, cy1 - cy0) - 128;
+                argb[pos] = pixel(mLumaScale * (y - mLumaOffset),
+                        mCrToR * v + ROUNDING, ROUNDING - mCbToG * u - mCrToG * v, mCbToB * u + ROUNDING);
+            }
+        }
+    }
+
+    private static void sumRow(byte[] row, int pixelStride, int[] sum) {
+        for (int x = 0; x < sum.length; x++) {
+            sum[x] += row[x * pixelStride] & 0xff;
+        }
+    }
+
+    /**
+     * rounded average of column sums [x0, x1), where each column has the number of rows.
+     */
+    private static int average(int[] sum, int x0, int x1, int rows) {
+        int total = 0;
+        for (int x = x0; x < x1; x++) {
+            total += sum[x];
+        }
+        final int count = (x1 - x0) * rows;
+        return (total + count / 2) / count;
+    }
+
+    private static int rowBytes(int samples, int pixelStride) {
+        return (samples - 1) * pixelStride + 1;
+    }
+
+    private static void readRow(ByteBuffer src, int offset, byte[] row) {
+        src.position(offset);
+        src.get(row, 0, row.length);
+    }
+
+    private static int pixel(int luma, int dr, int dg, int db) {
+        return 0xff000000 | (clamp((luma + dr) >> SHIFT) << 16) | (clamp((luma + dg) >> SHIFT) << 8)
+                | clamp((luma + db) >> SHIFT);
+    }
+
+    /**
+     * branchless clamp to [0, 255], which avoids misprediction on natural images.
+     */
+    private static int clamp(int v) {
+        v &= ~(v >> 31);
+        return (v | ((255 - v) >> 31)) & 0xff;
+    }
+}
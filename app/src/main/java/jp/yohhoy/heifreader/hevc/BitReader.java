@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2017 yohhoy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package jp.yohhoy.heifreader.hevc;
+
+import java.io.IOException;
+
+/**
+ * Bit reader of RBSP (raw byte sequence payload)
+ *
+ * Emulation prevention bytes shall be removed in advance. (see {@link NalUnit})
+ */
+final class BitReader {
+    private final byte[] mData;
+    private final int mEndBits;
+    private int mPos;
+
+    /**
+     * @param data RBSP data.
+     * @param offset byte offset to start reading.
+     * @param end byte offset of end of data.
+     */
+    BitReader(byte[] data, int offset, int end) {
+        mData = data;
+        mPos = offset * 8;
+        mEndBits = end * 8;
+    }
+
+    /**
+     * Read n bits as unsigned integer. u(n)
+     *
+     * @param n number of bits. (0-32)
+     */
+    int readBits(int n) throws IOException {
+        if (mEndBits - mPos < n) {
+            throw new IOException("RBSP is truncated");
+        }
+        int value = 0;
+        for (int i = 0; i < n; i++) {
+            value = (value << 1) | ((mData[mPos >> 3] >> (7 - (mPos & 7))) & 1);
+            mPos++;
+        }
+        return value;
+    }
+
+    boolean readFlag() throws IOException {
+        return readBits(1) != 0;
+    }
+
+    void skipBits(int n) throws IOException {
+        if (mEndBits - mPos < n) {
+            throw new IOException("RBSP is truncated");
+        }
+        mPos += n;
+    }
+
+    /**
+     * Read unsigned Exp-Golomb code. ue(v)
+     */
+    int readUe() throws IOException {
+        int leadingZeroBits = 0;
+        while (readBits(1) == 0) {
+            if (31 < ++leadingZeroBits) {
+                throw new IOException("invalid Exp-Golomb code");
+            }
+        }
+        if (leadingZeroBits == 0) {
+            return 0;
+        }
+        long value = (1L << leadingZeroBits) - 1 + (readBits(leadingZeroBits) & 0xffffffffL);
+        if (Integer.MAX_VALUE < value) {
+            throw new IOException("Exp-Golomb code exceeds limit");
+        }
+        return (int) value;
+    }
+
+    /**
+     * Read signed Exp-Golomb code. se(v)
+     */
+    int readSe() throws IOException {
+        int codeNum = readUe();
+        return ((codeNum & 1) != 0) ? (codeNum + 1) / 2 : -(codeNum / 2);
+    }
+
+    /**
+     * Read ue(v) and check its range.
+     */
+    int readUe(int max) throws IOException {
+        int value = readUe();
+        if (max < value) {
+            throw new IOException("syntax element exceeds limit(" + max + ")");
+        }
+        return value;
+    }
+
+    /**
+     * Read se(v) and check its range.
+     */
+    int readSe(int min, int max) throws IOException {
+        int value = readSe();
+        if (value < min || max < value) {
+            throw new IOException("syntax element is out of range[" + min + "," + max + "]");
+        }
+        return value;
+    }
+
+    /**
+     * Skip to next byte boundary.
+     */
+    void byteAlign() {
+        mPos = (mPos + 7) & ~7;
+    }
+
+    /**
+     * @return current position in bytes. (rounded down)
+     */
+    int bytePosition() {
+        return mPos >> 3;
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright (c) 2017 yohhoy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package jp.yohhoy.heifreader.hevc;
+
+/**
+ * CABAC(context-adaptive binary arithmetic coding) decoder
+ *
+ * Context variables for I slice (initType=0) are allocated in one array. The decoding engine
+ * keeps 7 extra bits in ivlOffset register and reads bitstream byte by byte.
+ *
+ * @see "ITU-T H.265, 9.3 CABAC parsing process for slice segment data"
+ */
+final class Cabac {
+    static final int CTX_SAO_MERGE = 0;
+    static final int CTX_SAO_TYPE = 1;
+    static final int CTX_SPLIT_CU = 2;
+    static final int CTX_TRANSQUANT_BYPASS = 5;
+    static final int CTX_PART_MODE = 6;
+    static final int CTX_PREV_INTRA_LUMA_PRED = 7;
+    static final int CTX_INTRA_CHROMA_PRED_MODE = 8;
+    static final int CTX_SPLIT_TRANSFORM = 9;
+    static final int CTX_CBF_LUMA = 12;
+    static final int CTX_CBF_CHROMA = 14;
+    static final int CTX_TRANSFORM_SKIP = 19;
+    static final int CTX_LAST_X_PREFIX = 21;
+    static final int CTX_LAST_Y_PREFIX = 39;
+    static final int CTX_CODED_SUB_BLOCK = 57;
+    static final int CTX_SIG_COEFF = 61;
+    static final int CTX_GREATER1 = 105;
+    static final int CTX_GREATER2 = 129;
+    static final int CTX_CU_QP_DELTA = 135;
+    static final int NUM_CONTEXTS = 137;
+
+    /** initValue for initType=0 (Table 9-5 to 9-37) */
+    private static final short[] INIT_VALUES = {
+            // sao_merge_left_flag, sao_type_idx
+            153, 200,
+            // split_cu_flag
+            139, 141, 157,
+            // cu_transquant_bypass_flag, part_mode, prev_intra_luma_pred_flag, intra_chroma_pred_mode
+            154, 184, 184, 63,
+            // split_transform_flag
+            153, 138, 138,
+            // cbf_luma
+            111, 141,
+            // cbf_cb, cbf_cr
+            94, 138, 182, 154, 154,
+            // transform_skip_flag (luma, chroma)
+            139, 139,
+            // last_sig_coeff_x_prefix
+            110, 110, 124, 125, 140, 153, 125, 127, 140, 109, 111, 143, 127, 111, 79, 108, 123, 63,
+            // last_sig_coeff_y_prefix
+            110, 110, 124, 125, 140, 153, 125, 127, 140, 109, 111, 143, 127, 111, 79, 108, 123, 63,
+            // coded_sub_block_flag
+            91, 171, 134, 141,
+            // sig_coeff_flag
+            111, 111, 125, 110, 110, 94, 124, 108, 124, 107, 125, 141, 179, 153, 125, 107,
+            125, 141, 179, 153, 125, 107, 125, 141, 179, 153, 125, 140, 139, 182, 182, 152,
+            136, 152, 136, 153, 136, 139, 111, 136, 139, 111, 141, 111,
+            // coeff_abs_level_greater1_flag
+            140, 92, 137, 138, 140, 152, 138, 139, 153, 74, 149, 92, 139, 107, 122, 152,
+            140, 179, 166, 182, 140, 227, 122, 197,
+            // coeff_abs_level_greater2_flag
+            138, 153, 136, 167, 152, 152,
+            // cu_qp_delta_abs
+            154, 154,
+    };
+
+    /** rangeTabLps[pStateIdx][qRangeIdx] (Table 9-46) */
+    private static final short[] RANGE_TAB_LPS = {
+            128, 176, 208, 240, 128, 167, 197, 227, 128, 158, 187, 216, 123, 150, 178, 205,
+            116, 142, 169, 195, 111, 135, 160, 185, 105, 128, 152, 175, 100, 122, 144, 166,
+            95, 116, 137, 158, 90, 110, 130, 150, 85, 104, 123, 142, 81, 99, 117, 135,
+            77, 94, 111, 128, 73, 89, 105, 122, 69, 85, 100, 116, 66, 80, 95, 110,
+            62, 76, 90, 104, 59, 72, 86, 99, 56, 69, 81, 94, 53, 65, 77, 89,
+            51, 62, 73, 85, 48, 59, 69, 80, 46, 56, 66, 76, 43, 53, 63, 72,
+            41, 50, 59, 69, 39, 48, 56, 65, 37, 45, 54, 62, 35, 43, 51, 59,
+            33, 41, 48, 56, 32, 39, 46, 53, 30, 37, 43, 50, 29, 35, 41, 48,
+            27, 33, 39, 45, 26, 31, 37, 43, 24, 30, 35, 41, 23, 28, 33, 39,
+            22, 27, 32, 37, 21, 26, 30, 35, 20, 24, 29, 33, 19, 23, 27, 31,
+            18, 22, 26, 30, 17, 21, 25, 28, 16, 20, 23, 27, 15, 19, 22, 25,
+            14, 18, 21, 24, 14, 17, 20, 23, 13, 16, 19, 22, 12, 15, 18, 21,
+            12, 14, 17, 20, 11, 14, 16, 19, 11, 13, 15, 18, 10, 12, 15, 17,
+            10, 12, 14, 16, 9, 11, 13, 15, 9, 11, 12, 14, 8, 10, 12, 14,
+            8, 9, 11, 13, 7, 9, 11, 12, 7, 9, 10, 12, 7, 8, 10, 11,
+            6, 8, 9, 11, 6, 7, 9, 10, 6, 7, 8, 9, 2, 2, 2, 2,
+    };
+
+    /** transIdxLps[pStateIdx] (Table 9-47) */
+    private static final byte[] TRANS_IDX_LPS = {
+            0, 0, 1, 2, 2, 4, 4, 5, 6, 7, 8, 9, 9, 11, 11, 12,
+            13, 13, 15, 15, 16, 16, 18, 18, 19, 19, 21, 21, 22, 22, 23, 24,
+            24, 25, 26, 26, 27, 27, 28, 29, 29, 30, 30, 30, 31, 32, 32, 33,
+            33, 33, 34, 34, 35, 35, 35, 36, 36, 36, 37, 37, 37, 38, 38, 63,
+    };
+
+    /** context variables: (pStateIdx << 1) | valMps */
+    private final byte[] mStates = new byte[NUM_CONTEXTS];
+
+    private byte[] mData;
+    private int mPos;
+    private int mEnd;
+    private int mRange;
+    private int mValue;
+    private int mBitsNeeded;
+
+    /**
+     * Initialize context variables. (9.3.2.2)
+     */
+    void initContexts(int sliceQpY) {
+        final int qp = Math.min(Math.max(sliceQpY, 0), 51);
+        for (int i = 0; i < NUM_CONTEXTS; i++) {
+            int initValue = INIT_VALUES[i];
+            int m = (initValue >> 4) * 5 - 45;
+            int n = ((initValue & 15) << 3) - 16;
+            int preCtxState = Math.min(Math.max(((m * qp) >> 4) + n, 1), 126);
+            mStates[i] = (byte) ((preCtxState <= 63) ? (63 - preCtxState) << 1 : ((preCtxState - 64) << 1) | 1);
+        }
+    }
+
+    /**
+     * Storage process for context variables. (9.3.2.3)
+     */
+    void saveContexts(byte[] dst) {
+        System.arraycopy(mStates, 0, dst, 0, NUM_CONTEXTS);
+    }
+
+    /**
+     * Synchronization process for context variables. (9.3.2.4)
+     */
+    void loadContexts(byte[] src) {
+        System.arraycopy(src, 0, mStates, 0, NUM_CONTEXTS);
+    }
+
+    /**
+     * Initialize arithmetic decoding engine. (9.3.2.5)
+     *
+     * @param data RBSP data.
+     * @param offset byte aligned start position.
+     * @param end end position of data.
+     */
+    void start(byte[] data, int offset, int end) {
+        mData = data;
+        mPos = offset;
+        mEnd = end;
+        mRange = 510;
+        mBitsNeeded = -8;
+        mValue = (readByte() << 8) | readByte();
+    }
+
+    /**
+     * Get byte aligned position after terminating bin equal to 1, which is the start of
+     * PCM samples or next substream.
+     */
+    int getAlignedPosition() {
+        return mPos;
+    }
+
+    private int readByte() {
+        return (mPos < mEnd) ? mData[mPos++] & 0xff : (mPos++ & 0);
+    }
+
+    /**
+     * Decode a bin with context. (9.3.4.3.2)
+     */
+    int decodeBin(int ctxIdx) {
+        final int state = mStates[ctxIdx];
+        final int pStateIdx = state >> 1;
+        int valMps = state & 1;
+        final int lps = RANGE_TAB_LPS[(pStateIdx << 2) + ((mRange >> 6) & 3)];
+        mRange -= lps;
+        final int scaledRange = mRange << 7;
+        if (mValue < scaledRange) {
+            // most probable symbol
+            mStates[ctxIdx] = (byte) ((pStateIdx < 62) ? state + 2 : state);
+            if (scaledRange < (256 << 7)) {
+                mRange = scaledRange >> 6;
+                mValue <<= 1;
+                if (++mBitsNeeded == 0) {
+                    mBitsNeeded = -8;
+                    mValue += readByte();
+                }
+            }
+            return valMps;
+        } else {
+            // least probable symbol
+            final int numBits = Integer.numberOfLeadingZeros(lps) - 23;
+            mValue = (mValue - scaledRange) << numBits;
+            mRange = lps << numBits;
+            if (pStateIdx == 0) {
+                valMps = 1 - valMps;
+            }
+            mStates[ctxIdx] = (byte) ((TRANS_IDX_LPS[pStateIdx] << 1) | valMps);
+            mBitsNeeded += numBits;
+            if (0 <= mBitsNeeded) {
+                mValue += readByte() << mBitsNeeded;
+                mBitsNeeded -= 8;
+            }
+            return 1 - (state & 1);
+        }
+    }
+
+    /**
+     * Decode a bypass bin. (9.3.4.3.4)
+     */
+    int decodeBypass() {
+        mValue <<= 1;
+        if (++mBitsNeeded == 0) {
+            mBitsNeeded = -8;
+            mValue += readByte();
+        }
+        final int scaledRange = mRange << 7;
+        if (scaledRange <= mValue) {
+            mValue -= scaledRange;
+            return 1;
+        }
+        return 0;
+    }
+
+    /**
+     * Decode bypass bins as fixed-length unsigned integer.
+     */
+    int decodeBypassBits(int numBits) {
+        int value = 0;
+        for (int i = 0; i < numBits; i++) {
+            value = (value << 1) | decodeBypass();
+        }
+        return value;
+    }
+
+    /**
+     * Decode a terminating bin. (9.3.4.3.5)
+     */
+    int decodeTerminate() {
+        mRange -= 2;
+        final int scaledRange = mRange << 7;
+        if (scaledRange <= mValue) {
+            return 1;
+        }
+        if (scaledRange < (256 << 7)) {
+            mRange = scaledRange >> 6;
+            mValue <<= 1;
+            if (++mBitsNeeded == 0) {
+                mBitsNeeded = -8;
+                mValue += readByte();
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,905 @@
+/*
+ * Copyright (c) 2017 yohhoy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package jp.yohhoy.heifreader.hevc;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Coding tree unit decoder for a substream of slice segment
+ *
+ * Substream is a range of CTUs which can be decoded independently: a tile, or a CTB row
+ * when wavefront parallel processing is enabled. Each CTU is parsed and reconstructed
+ * (intra prediction and residual) in a single pass.
+ *
+ * @see "ITU-T H.265, 7.3.8 Slice segment data syntax"
+ */
+final class CtuDecoder {
+    private static final int[] CTX_IDX_MAP = {0, 1, 4, 5, 2, 3, 4, 5, 6, 6, 8, 8, 7, 7, 8, 8};
+    /** QpC as a function of qPi (30..43) */
+    private static final int[] QPC_TABLE = {29, 30, 31, 32, 33, 33, 34, 34, 35, 35, 36, 36, 37, 37};
+    private static final int[] CHROMA_PRED_MODES = {
+            IntraPredictor.MODE_PLANAR, IntraPredictor.MODE_VERTICAL,
+            IntraPredictor.MODE_HORIZONTAL, IntraPredictor.MODE_DC,
+    };
+
+    private final PictureDecoder mPd;
+    private final Picture mPic;
+    private final SequenceParameterSet mSps;
+    private final PictureParameterSet mPps;
+    private final SliceHeader mSh;
+    private final Cabac mCabac = new Cabac();
+    private final int mLog2MinCuQpDeltaSize;
+    private final int mCtbMask;
+    private byte[] mData;
+    private int mEnd;
+
+    // QP derivation state
+    private int mQpY;
+    private int mQpYPred;
+    private boolean mCuQpDeltaCoded;
+    private int mCuQpDeltaVal;
+    // coding unit state
+    private boolean mTransquantBypass;
+    private int mChromaPredMode;
+    private int mMaxTrafoDepth;
+
+    // scratch buffers
+    private final int[] mCoeffs = new int[32 * 32];
+    private final int[] mResidual = new int[32 * 32];
+    private final int[] mTemp = new int[32 * 32];
+    private final int[] mPositions = new int[32 * 32];
+    private final int[] mCodedSubBlocks = new int[8 * 8];
+    private final int[] mSigPositions = new int[16];
+    private final int[] mLevels = new int[16];
+    private final int[] mRef = new int[4 * 32 + 1];
+    private final int[] mRefTemp = new int[4 * 32 + 1];
+    private final int[] mRefMain = new int[3 * 32 + 1];
+    private final boolean[] mRefAvailable = new boolean[4 * 32 + 1];
+    private final int[] mCandModes = new int[3];
+
+    CtuDecoder(PictureDecoder pd, SliceHeader sh) {
+        mPd = pd;
+        mPic = pd.picture;
+        mSps = sh.sps;
+        mPps = sh.pps;
+        mSh = sh;
+        mLog2MinCuQpDeltaSize = mSps.log2CtbSize - mPps.diffCuQpDeltaDepth;
+        mCtbMask = (1 << mSps.log2CtbSize) - 1;
+    }
+
+    /**
+     * Decode CTUs in substream.
+     *
+     * @param data RBSP of slice segment NAL unit.
+     * @param begin byte offset of substream.
+     * @param end byte offset of end of substream.
+     * @param startTs address of first CTB in tile scan.
+     * @param lastSubstream the substream is the last one in slice segment.
+     * @return The address of next CTB in tile scan.
+     */
+    int decode(byte[] data, int begin, int end, int startTs, boolean lastSubstream) throws IOException {
+        final PictureDecoder pd = mPd;
+        final int log2CtbSize = mSps.log2CtbSize;
+        final int widthInCtbs = mSps.picWidthInCtbs;
+        final int picSizeInCtbs = widthInCtbs * mSps.picHeightInCtbs;
+        mData = data;
+        mEnd = end;
+        mCabac.start(data, begin, end);
+        initSubstream(startTs);
+
+        int ctbAddrTs = startTs;
+        while (true) {
+            final int ctbAddrRs = pd.ctbAddrTsToRs[ctbAddrTs];
+            final int rx = ctbAddrRs % widthInCtbs;
+            final int ry = ctbAddrRs / widthInCtbs;
+            final int tileColumn = pd.tileIds[ctbAddrTs] % mPps.numTileColumns;
+            final int tileLeft = pd.colBd[tileColumn];
+            if (mPps.entropyCodingSyncEnabled) {
+                pd.awaitUpperRight(ctbAddrTs, rx, ry, tileColumn);
+            }
+            pd.ctbSlices[ctbAddrRs] = mSh;
+            if (mSh.saoLuma || mSh.saoChroma) {
+                parseSao(rx, ry, ctbAddrRs, ctbAddrTs);
+            }
+            codingQuadtree(rx << log2CtbSize, ry << log2CtbSize, log2CtbSize, 0);
+            if (mPps.entropyCodingSyncEnabled) {
+                if (rx == tileLeft + 1) {
+                    mCabac.saveContexts(pd.wppContexts(ry, tileColumn));
+                }
+                pd.ctbDecoded(ry, tileColumn, rx);
+            }
+            final boolean endOfSliceSegment = mCabac.decodeTerminate() != 0;
+            ctbAddrTs++;
+            if (endOfSliceSegment) {
+                if (!lastSubstream) {
+                    throw new IOException("slice segment ends before entry point");
+                }
+                if (mPps.dependentSliceSegmentsEnabled) {
+                    mCabac.saveContexts(pd.segmentContexts);
+                    pd.segmentQpY = mQpY;
+                }
+                return ctbAddrTs;
+            }
+            if (picSizeInCtbs <= ctbAddrTs) {
+                throw new IOException("slice segment exceeds picture");
+            }
+            if (pd.isSubstreamStart(ctbAddrTs)) {
+                if (mCabac.decodeTerminate() == 0) {
+                    throw new IOException("invalid end_of_subset_one_bit");
+                }
+                if (lastSubstream) {
+                    throw new IOException("entry point is missing");
+                }
+                return ctbAddrTs;
+            }
+        }
+    }
+
+    /**
+     * Initialize context variables and QP predictor at start of substream.
+     *
+     * @see "9.3.1 General (CABAC parsing process for slice segment data)"
+     */
+    private void initSubstream(int ctbAddrTs) throws IOException {
+        final PictureDecoder pd = mPd;
+        final int ctbAddrRs = pd.ctbAddrTsToRs[ctbAddrTs];
+        final int rx = ctbAddrRs % mSps.picWidthInCtbs;
+        final int ry = ctbAddrRs / mSps.picWidthInCtbs;
+        final int tileColumn = pd.tileIds[ctbAddrTs] % mPps.numTileColumns;
+        final boolean rowStart = mPps.entropyCodingSyncEnabled && rx == pd.colBd[tileColumn];
+        mQpY = mSh.sliceQpY;
+        if (pd.isTileStart(ctbAddrTs)) {
+            mCabac.initContexts(mSh.sliceQpY);
+        } else if (rowStart) {
+            final int ctbSize = 1 << mSps.log2CtbSize;
+            final int x0 = rx << mSps.log2CtbSize;
+            final int y0 = ry << mSps.log2CtbSize;
+            pd.awaitUpperRight(ctbAddrTs, rx, ry, tileColumn);
+            if (pd.isAvailable(x0, y0, x0 + ctbSize, y0 - ctbSize, mSh)) {
+                mCabac.loadContexts(pd.wppContexts(ry - 1, tileColumn));
+            } else {
+                mCabac.initContexts(mSh.sliceQpY);
+            }
+        } else if (mSh.dependentSliceSegment && ctbAddrRs == mSh.sliceSegmentAddress) {
+            mCabac.loadContexts(pd.segmentContexts);
+            mQpY = pd.segmentQpY;
+        } else {
+            mCabac.initContexts(mSh.sliceQpY);
+        }
+    }
+
+    /**
+     * @see "7.3.8.3 Sample adaptive offset syntax"
+     */
+    private void parseSao(int rx, int ry, int ctbAddrRs, int ctbAddrTs) {
+        final PictureDecoder pd = mPd;
+        final Cabac cabac = mCabac;
+        final int[] params = pd.saoParams;
+        final int base = ctbAddrRs * PictureDecoder.SAO_PARAMS;
+        final int tileId = pd.tileIds[ctbAddrTs];
+        final int widthInCtbs = mSps.picWidthInCtbs;
+        if (0 < rx) {
+            final boolean leftInSliceSeg = mSh.sliceAddrRs < ctbAddrRs;
+            final boolean leftInTile = tileId == pd.tileIds[pd.ctbAddrRsToTs[ctbAddrRs - 1]];
+            if (leftInSliceSeg && leftInTile && cabac.decodeBin(Cabac.CTX_SAO_MERGE) != 0) {
+                System.arraycopy(params, base - PictureDecoder.SAO_PARAMS, params, base, PictureDecoder.SAO_PARAMS);
+                return;
+            }
+        }
+        if (0 < ry) {
+            final boolean upInSliceSeg = mSh.sliceAddrRs <= ctbAddrRs - widthInCtbs;
+            final boolean upInTile = tileId == pd.tileIds[pd.ctbAddrRsToTs[ctbAddrRs - widthInCtbs]];
+            if (upInSliceSeg && upInTile && cabac.decodeBin(Cabac.CTX_SAO_MERGE) != 0) {
+                final int up = base - widthInCtbs * PictureDecoder.SAO_PARAMS;
+                System.arraycopy(params, up, params, base, PictureDecoder.SAO_PARAMS);
+                return;
+            }
+        }
+        for (int cIdx = 0; cIdx < 3; cIdx++) {
+            final int p = base + cIdx * 6;
+            if ((cIdx == 0) ? !mSh.saoLuma : !mSh.saoChroma) {
+                params[p] = PictureDecoder.SAO_NOT_APPLIED;
+                continue;
+            }
+            int type;
+            if (cIdx == 2) {
+                type = params[p - 6];
+            } else if (cabac.decodeBin(Cabac.CTX_SAO_TYPE) == 0) {
+                type = PictureDecoder.SAO_NOT_APPLIED;
+            } else {
+                type = (cabac.decodeBypass() == 0) ? PictureDecoder.SAO_BAND_OFFSET : PictureDecoder.SAO_EDGE_OFFSET;
+            }
+            params[p] = type;
+            if (type == PictureDecoder.SAO_NOT_APPLIED) {
+                continue;
+            }
+            for (int i = 0; i < 4; i++) {
+                int abs = 0;
+                while (abs < 7 && cabac.decodeBypass() != 0) {
+                    abs++;
+                }
+                params[p + 2 + i] = abs;
+            }
+            if (type == PictureDecoder.SAO_BAND_OFFSET) {
+                for (int i = 0; i < 4; i++) {
+                    if (params[p + 2 + i] != 0 && cabac.decodeBypass() != 0) {
+                        params[p + 2 + i] = -params[p + 2 + i];
+                    }
+                }
+                params[p + 1] = cabac.decodeBypassBits(5);
+            } else {
+                params[p + 4] = -params[p + 4];
+                params[p + 5] = -params[p + 5];
+                params[p + 1] = (cIdx == 2) ? params[p - 6 + 1] : cabac.decodeBypassBits(2);
+            }
+        }
+    }
+
+    /**
+     * @see "7.3.8.4 Coding quadtree syntax"
+     */
+    private void codingQuadtree(int x0, int y0, int log2CbSize, int ctDepth) throws IOException {
+        final Picture pic = mPic;
+        final int cbSize = 1 << log2CbSize;
+        boolean split;
+        if (x0 + cbSize <= pic.width && y0 + cbSize <= pic.height && mSps.log2MinCbSize < log2CbSize) {
+            int ctxInc = 0;
+            if (mPd.isAvailable(x0, y0, x0 - 1, y0, mSh) && ctDepth < pic.ctDepths[pic.blockIndex(x0 - 1, y0)]) {
+                ctxInc++;
+            }
+            if (mPd.isAvailable(x0, y0, x0, y0 - 1, mSh) && ctDepth < pic.ctDepths[pic.blockIndex(x0, y0 - 1)]) {
+                ctxInc++;
+            }
+            split = mCabac.decodeBin(Cabac.CTX_SPLIT_CU + ctxInc) != 0;
+        } else {
+            split = mSps.log2MinCbSize < log2CbSize;
+        }
+        if (mLog2MinCuQpDeltaSize <= log2CbSize) {
+            startQuantizationGroup(x0, y0);
+        }
+        if (split) {
+            final int x1 = x0 + (cbSize >> 1);
+            final int y1 = y0 + (cbSize >> 1);
+            codingQuadtree(x0, y0, log2CbSize - 1, ctDepth + 1);
+            if (x1 < pic.width) {
+                codingQuadtree(x1, y0, log2CbSize - 1, ctDepth + 1);
+            }
+            if (y1 < pic.height) {
+                codingQuadtree(x0, y1, log2CbSize - 1, ctDepth + 1);
+            }
+            if (x1 < pic.width && y1 < pic.height) {
+                codingQuadtree(x1, y1, log2CbSize - 1, ctDepth + 1);
+            }
+        } else {
+            codingUnit(x0, y0, log2CbSize, ctDepth);
+        }
+    }
+
+    /**
+     * Derive predicted luma QP of quantization group.
+     *
+     * @see "8.6.1 Derivation process for quantization parameters"
+     */
+    private void startQuantizationGroup(int xQg, int yQg) {
+        final Picture pic = mPic;
+        mCuQpDeltaCoded = false;
+        mCuQpDeltaVal = 0;
+        // QpY of last coding unit in previous quantization group
+        final int qpYPrev = mQpY;
+        final int qpYA = ((xQg & mCtbMask) != 0) ? pic.qpYs[pic.blockIndex(xQg - 1, yQg)] : qpYPrev;
+        final int qpYB = ((yQg & mCtbMask) != 0) ? pic.qpYs[pic.blockIndex(xQg, yQg - 1)] : qpYPrev;
+        mQpYPred = (qpYA + qpYB + 1) >> 1;
+        mQpY = mQpYPred;
+    }
+
+    /**
+     * @see "7.3.8.5 Coding unit syntax"
+     */
+    private void codingUnit(int x0, int y0, int log2CbSize, int ctDepth) throws IOException {
+        final Picture pic = mPic;
+        final Cabac cabac = mCabac;
+        final int cbSize = 1 << log2CbSize;
+        mTransquantBypass = mPps.transquantBypassEnabled && cabac.decodeBin(Cabac.CTX_TRANSQUANT_BYPASS) != 0;
+        mQpY = (mQpYPred + mCuQpDeltaVal + 52) % 52;
+        Picture.fill(pic, pic.ctDepths, x0, y0, cbSize, ctDepth);
+        final boolean partNxN = (log2CbSize == mSps.log2MinCbSize) && cabac.decodeBin(Cabac.CTX_PART_MODE) == 0;
+        boolean pcm = false;
+        if (!partNxN && mSps.pcmEnabled
+                && mSps.log2MinPcmCbSize <= log2CbSize && log2CbSize <= mSps.log2MaxPcmCbSize) {
+            pcm = cabac.decodeTerminate() != 0;
+        }
+        int flags = mTransquantBypass ? Picture.FLAG_NO_FILTER : 0;
+        if (pcm) {
+            Picture.fill(pic, pic.intraPredModes, x0, y0, cbSize, IntraPredictor.MODE_DC);
+            decodePcm(x0, y0, log2CbSize);
+            flags |= Picture.FLAG_PCM;
+            if (mSps.pcmLoopFilterDisabled) {
+                flags |= Picture.FLAG_NO_FILTER;
+            }
+        } else {
+            final int numParts = partNxN ? 4 : 1;
+            final int pbSize = partNxN ? (cbSize >> 1) : cbSize;
+            int prevIntraLumaPredFlags = 0;
+            for (int i = 0; i < numParts; i++) {
+                prevIntraLumaPredFlags |= cabac.decodeBin(Cabac.CTX_PREV_INTRA_LUMA_PRED) << i;
+            }
+            for (int i = 0; i < numParts; i++) {
+                final int x = x0 + (i & 1) * pbSize;
+                final int y = y0 + (i >> 1) * pbSize;
+                int value;
+                if ((prevIntraLumaPredFlags & (1 << i)) != 0) {
+                    // mpm_idx
+                    value = (cabac.decodeBypass() == 0) ? 0 : (cabac.decodeBypass() == 0) ? 1 : 2;
+                } else {
+                    // rem_intra_luma_pred_mode
+                    value = cabac.decodeBypassBits(5);
+                }
+                final int mode = deriveLumaPredMode(x, y, (prevIntraLumaPredFlags & (1 << i)) != 0, value);
+                Picture.fill(pic, pic.intraPredModes, x, y, pbSize, mode);
+            }
+            final int lumaMode = pic.intraPredModes[pic.blockIndex(x0, y0)];
+            if (cabac.decodeBin(Cabac.CTX_INTRA_CHROMA_PRED_MODE) == 0) {
+                mChromaPredMode = lumaMode;
+            } else {
+                mChromaPredMode = CHROMA_PRED_MODES[cabac.decodeBypassBits(2)];
+                if (mChromaPredMode == lumaMode) {
+                    mChromaPredMode = 34;
+                }
+            }
+            mMaxTrafoDepth = mSps.maxTransformHierarchyDepthIntra + (partNxN ? 1 : 0);
+            transformTree(x0, y0, x0, y0, log2CbSize, 0, 0, partNxN, true, true);
+        }
+        Picture.fill(pic, pic.blockFlags, x0, y0, cbSize, flags);
+        Picture.fill(pic, pic.qpYs, x0, y0, cbSize, mQpY);
+    }
+
+    /**
+     * @see "8.4.2 Derivation process for luma intra prediction mode"
+     */
+    private int deriveLumaPredMode(int xPb, int yPb, boolean mpm, int value) {
+        final Picture pic = mPic;
+        int candA = IntraPredictor.MODE_DC;
+        if (mPd.isAvailable(xPb, yPb, xPb - 1, yPb, mSh)) {
+            candA = pic.intraPredModes[pic.blockIndex(xPb - 1, yPb)];
+        }
+        int candB = IntraPredictor.MODE_DC;
+        if ((yPb & mCtbMask) != 0 && mPd.isAvailable(xPb, yPb, xPb, yPb - 1, mSh)) {
+            candB = pic.intraPredModes[pic.blockIndex(xPb, yPb - 1)];
+        }
+        final int[] cand = mCandModes;
+        if (candA == candB) {
+            if (candA < 2) {
+                cand[0] = IntraPredictor.MODE_PLANAR;
+                cand[1] = IntraPredictor.MODE_DC;
+                cand[2] = IntraPredictor.MODE_VERTICAL;
+            } else {
+                cand[0] = candA;
+                cand[1] = 2 + ((candA + 29) % 32);
+                cand[2] = 2 + ((candA - 2 + 1) % 32);
+            }
+        } else {
+            cand[0] = candA;
+            cand[1] = candB;
+            if (candA != IntraPredictor.MODE_PLANAR && candB != IntraPredictor.MODE_PLANAR) {
+                cand[2] = IntraPredictor.MODE_PLANAR;
+            } else if (candA != IntraPredictor.MODE_DC && candB != IntraPredictor.MODE_DC) {
+                cand[2] = IntraPredictor.MODE_DC;
+            } else {
+                cand[2] = IntraPredictor.MODE_VERTICAL;
+            }
+        }
+        if (mpm) {
+            return cand[value];
+        }
+        Arrays.sort(cand);
+        int mode = value;
+        for (int i = 0; i < 3; i++) {
+            if (cand[i] <= mode) {
+                mode++;
+            }
+        }
+        return mode;
+    }
+
+    /**
+     * @see "7.3.8.7 PCM sample syntax"
+     */
+    private void decodePcm(int x0, int y0, int log2CbSize) throws IOException {
+        final Picture pic = mPic;
+        BitReader br = new BitReader(mData, mCabac.getAlignedPosition(), mEnd);
+        for (int cIdx = 0; cIdx < 3; cIdx++) {
+            final int shift = (cIdx == 0) ? 0 : 1;
+            final int size = 1 << (log2CbSize - shift);
+            final int depth = (cIdx == 0) ? mSps.pcmBitDepthLuma : mSps.pcmBitDepthChroma;
+            final byte[] plane = pic.planes[cIdx];
+            final int stride = pic.planeWidths[cIdx];
+            for (int y = 0; y < size; y++) {
+                final int row = ((y0 >> shift) + y) * stride + (x0 >> shift);
+                for (int x = 0; x < size; x++) {
+                    plane[row + x] = (byte) (br.readBits(depth) << (8 - depth));
+                }
+            }
+        }
+        mCabac.start(mData, br.bytePosition(), mEnd);
+    }
+
+    /**
+     * @see "7.3.8.8 Transform tree syntax"
+     */
+    private void transformTree(int x0, int y0, int xBase, int yBase, int log2TrafoSize, int trafoDepth,
+                               int blkIdx, boolean intraSplit, boolean parentCbfCb, boolean parentCbfCr)
+            throws IOException {
+        final Cabac cabac = mCabac;
+        boolean split;
+        if (log2TrafoSize <= mSps.log2MaxTbSize && mSps.log2MinTbSize < log2TrafoSize
+                && trafoDepth < mMaxTrafoDepth && !(intraSplit && trafoDepth == 0)) {
+            split = cabac.decodeBin(Cabac.CTX_SPLIT_TRANSFORM + 5 - log2TrafoSize) != 0;
+        } else {
+            split = mSps.log2MaxTbSize < log2TrafoSize || (intraSplit && trafoDepth == 0);
+        }
+        // chroma cbf of 4x4 luma block is inherited from parent
+        boolean cbfCb = parentCbfCb;
+        boolean cbfCr = parentCbfCr;
+        if (2 < log2TrafoSize) {
+            cbfCb = parentCbfCb && cabac.decodeBin(Cabac.CTX_CBF_CHROMA + trafoDepth) != 0;
+            cbfCr = parentCbfCr && cabac.decodeBin(Cabac.CTX_CBF_CHROMA + trafoDepth) != 0;
+        }
+        if (split) {
+            final int x1 = x0 + (1 << (log2TrafoSize - 1));
+            final int y1 = y0 + (1 << (log2TrafoSize - 1));
+            transformTree(x0, y0, x0, y0, log2TrafoSize - 1, trafoDepth + 1, 0, intraSplit, cbfCb, cbfCr);
+            transformTree(x1, y0, x0, y0, log2TrafoSize - 1, trafoDepth + 1, 1, intraSplit, cbfCb, cbfCr);
+            transformTree(x0, y1, x0, y0, log2TrafoSize - 1, trafoDepth + 1, 2, intraSplit, cbfCb, cbfCr);
+            transformTree(x1, y1, x0, y0, log2TrafoSize - 1, trafoDepth + 1, 3, intraSplit, cbfCb, cbfCr);
+        } else {
+            final boolean cbfLuma = cabac.decodeBin(Cabac.CTX_CBF_LUMA + ((trafoDepth == 0) ? 1 : 0)) != 0;
+            transformUnit(x0, y0, xBase, yBase, log2TrafoSize, blkIdx, cbfLuma, cbfCb, cbfCr);
+        }
+    }
+
+    /**
+     * @see "7.3.8.10 Transform unit syntax"
+     */
+    private void transformUnit(int x0, int y0, int xBase, int yBase, int log2TrafoSize, int blkIdx,
+                               boolean cbfLuma, boolean cbfCb, boolean cbfCr) throws IOException {
+        final Picture pic = mPic;
+        markEdges(x0, y0, 1 << log2TrafoSize);
+        if ((cbfLuma || cbfCb || cbfCr) && mPps.cuQpDeltaEnabled && !mCuQpDeltaCoded) {
+            mCuQpDeltaVal = parseCuQpDelta();
+            mCuQpDeltaCoded = true;
+            mQpY = (mQpYPred + mCuQpDeltaVal + 52) % 52;
+        }
+        final int lumaMode = pic.intraPredModes[pic.blockIndex(x0, y0)];
+        predictIntra(0, x0, y0, log2TrafoSize, lumaMode);
+        if (cbfLuma) {
+            residualCoding(0, x0, y0, log2TrafoSize, lumaMode, mQpY);
+        }
+        if (2 < log2TrafoSize) {
+            decodeChroma(x0 >> 1, y0 >> 1, log2TrafoSize - 1, cbfCb, cbfCr);
+        } else if (blkIdx == 3) {
+            decodeChroma(xBase >> 1, yBase >> 1, 2, cbfCb, cbfCr);
+        }
+    }
+
+    private void decodeChroma(int xC, int yC, int log2Size, boolean cbfCb, boolean cbfCr) throws IOException {
+        predictIntra(1, xC, yC, log2Size, mChromaPredMode);
+        if (cbfCb) {
+            residualCoding(1, xC, yC, log2Size, mChromaPredMode, chromaQp(mPps.cbQpOffset + mSh.cbQpOffset));
+        }
+        predictIntra(2, xC, yC, log2Size, mChromaPredMode);
+        if (cbfCr) {
+            residualCoding(2, xC, yC, log2Size, mChromaPredMode, chromaQp(mPps.crQpOffset + mSh.crQpOffset));
+        }
+    }
+
+    private int chromaQp(int offset) {
+        final int qpi = Math.max(0, Math.min(57, mQpY + offset));
+        if (qpi < 30) {
+            return qpi;
+        } else if (43 < qpi) {
+            return qpi - 6;
+        }
+        return QPC_TABLE[qpi - 30];
+    }
+
+    private int parseCuQpDelta() throws IOException {
+        final Cabac cabac = mCabac;
+        int abs = 0;
+        while (abs < 5 && cabac.decodeBin(Cabac.CTX_CU_QP_DELTA + ((abs == 0) ? 0 : 1)) != 0) {
+            abs++;
+        }
+        if (abs == 5) {
+            // EG0 suffix
+            int k = 0;
+            while (cabac.decodeBypass() != 0) {
+                abs += 1 << k;
+                if (++k == 16) {
+                    throw new IOException("invalid cu_qp_delta_abs");
+                }
+            }
+            abs += cabac.decodeBypassBits(k);
+        }
+        if (26 < abs) {
+            throw new IOException("invalid cu_qp_delta_abs");
+        }
+        return (abs != 0 && cabac.decodeBypass() != 0) ? -abs : abs;
+    }
+
+    /**
+     * Mark transform block edges on 8x8 grid for deblocking filter.
+     */
+    private void markEdges(int x0, int y0, int size) {
+        final Picture pic = mPic;
+        final byte[] edges = pic.edgeFlags;
+        if ((x0 & 7) == 0 && 0 < x0) {
+            for (int y = 0; y < size; y += 4) {
+                edges[pic.blockIndex(x0, y0 + y)] |= Picture.EDGE_VER;
+            }
+        }
+        if ((y0 & 7) == 0 && 0 < y0) {
+            for (int x = 0; x < size; x += 4) {
+                edges[pic.blockIndex(x0 + x, y0)] |= Picture.EDGE_HOR;
+            }
+        }
+    }
+
+    /**
+     * Predict samples of transform block into picture.
+     *
+     * @see "8.4.4.2 Intra sample prediction"
+     */
+    private void predictIntra(int cIdx, int xTb, int yTb, int log2Size, int mode) {
+        final Picture pic = mPic;
+        final byte[] plane = pic.planes[cIdx];
+        final int stride = pic.planeWidths[cIdx];
+        final int nTbS = 1 << log2Size;
+        final int shift = (cIdx == 0) ? 0 : 1;
+        final int unit = 4 >> shift;
+        final int xCurr = xTb << shift;
+        final int yCurr = yTb << shift;
+        final int c = 2 * nTbS;
+        final int[] ref = mRef;
+        final boolean[] available = mRefAvailable;
+
+        // 8.4.4.2.2 Reference sample substitution process
+        int count = 0;
+        for (int y = 0; y < 2 * nTbS; y += unit) {
+            final boolean avail = mPd.isAvailable(xCurr, yCurr, xCurr - 1, (yTb + y) << shift, mSh);
+            for (int k = 0; k < unit; k++) {
+                available[c - 1 - y - k] = avail;
+                if (avail) {
+                    ref[c - 1 - y - k] = plane[(yTb + y + k) * stride + xTb - 1] & 0xff;
+                }
+            }
+            count += avail ? unit : 0;
+        }
+        available[c] = mPd.isAvailable(xCurr, yCurr, xCurr - 1, yCurr - 1, mSh);
+        if (available[c]) {
+            ref[c] = plane[(yTb - 1) * stride + xTb - 1] & 0xff;
+            count++;
+        }
+        for (int x = 0; x < 2 * nTbS; x += unit) {
+            final boolean avail = mPd.isAvailable(xCurr, yCurr, (xTb + x) << shift, yCurr - 1, mSh);
+            if (avail) {
+                final int row = (yTb - 1) * stride + xTb + x;
+                for (int k = 0; k < unit; k++) {
+                    ref[c + 1 + x + k] = plane[row + k] & 0xff;
+                }
+                count += unit;
+            }
+            for (int k = 0; k < unit; k++) {
+                available[c + 1 + x + k] = avail;
+            }
+        }
+        final int last = 4 * nTbS;
+        if (count == 0) {
+            Arrays.fill(ref, 0, last + 1, 128);
+        } else if (count < last + 1) {
+            if (!available[0]) {
+                int i = 1;
+                while (!available[i]) {
+                    i++;
+                }
+                ref[0] = ref[i];
+            }
+            for (int i = 1; i <= last; i++) {
+                if (!available[i]) {
+                    ref[i] = ref[i - 1];
+                }
+            }
+        }
+
+        if (cIdx == 0) {
+            IntraPredictor.filter(ref, mRefTemp, nTbS, mode, mSps.strongIntraSmoothingEnabled);
+        }
+        IntraPredictor.predict(ref, mRefMain, nTbS, mode, cIdx == 0 && nTbS < 32,
+                plane, yTb * stride + xTb, stride);
+    }
+
+    /**
+     * Parse residual coding, and add reconstructed residual to predicted samples.
+     *
+     * @param xTb x position of transform block in component samples.
+     * @param yTb y position of transform block in component samples.
+     * @see "7.3.8.11 Residual coding syntax"
+     */
+    private void residualCoding(int cIdx, int xTb, int yTb, int log2TrafoSize, int predModeIntra, int qp)
+            throws IOException {
+        final Cabac cabac = mCabac;
+        final int size = 1 << log2TrafoSize;
+        boolean transformSkip = false;
+        if (mPps.transformSkipEnabled && !mTransquantBypass && log2TrafoSize == 2) {
+            transformSkip = cabac.decodeBin(Cabac.CTX_TRANSFORM_SKIP + ((cIdx == 0) ? 0 : 1)) != 0;
+        }
+
+        // last significant coefficient position
+        final int cMax = (log2TrafoSize << 1) - 1;
+        final int ctxOffset;
+        final int ctxShift;
+        if (cIdx == 0) {
+            ctxOffset = 3 * (log2TrafoSize - 2) + ((log2TrafoSize - 1) >> 2);
+            ctxShift = (log2TrafoSize + 1) >> 2;
+        } else {
+            ctxOffset = 15;
+            ctxShift = log2TrafoSize - 2;
+        }
+        int lastX = 0;
+        while (lastX < cMax && cabac.decodeBin(Cabac.CTX_LAST_X_PREFIX + ctxOffset + (lastX >> ctxShift)) != 0) {
+            lastX++;
+        }
+        int lastY = 0;
+        while (lastY < cMax && cabac.decodeBin(Cabac.CTX_LAST_Y_PREFIX + ctxOffset + (lastY >> ctxShift)) != 0) {
+            lastY++;
+        }
+        if (3 < lastX) {
+            final int n = (lastX >> 1) - 1;
+            lastX = (1 << n) * (2 + (lastX & 1)) + cabac.decodeBypassBits(n);
+        }
+        if (3 < lastY) {
+            final int n = (lastY >> 1) - 1;
+            lastY = (1 << n) * (2 + (lastY & 1)) + cabac.decodeBypassBits(n);
+        }
+
+        int scanIdx = ScanOrder.DIAGONAL;
+        if (log2TrafoSize == 2 || (log2TrafoSize == 3 && cIdx == 0)) {
+            if (6 <= predModeIntra && predModeIntra <= 14) {
+                scanIdx = ScanOrder.VERTICAL;
+            } else if (22 <= predModeIntra && predModeIntra <= 30) {
+                scanIdx = ScanOrder.HORIZONTAL;
+            }
+        }
+        if (scanIdx == ScanOrder.VERTICAL) {
+            final int t = lastX;
+            lastX = lastY;
+            lastY = t;
+        }
+
+        final int[] coeffs = mCoeffs;
+        Arrays.fill(coeffs, 0, size * size, 0);
+        final int log2SbWidth = log2TrafoSize - 2;
+        final int sbWidth = 1 << log2SbWidth;
+        final int[] sbScan = ScanOrder.get(log2SbWidth, scanIdx);
+        final int[] posScan = ScanOrder.get(2, scanIdx);
+        int lastSubBlock = sbWidth * sbWidth - 1;
+        final int lastSb = ((lastY >> 2) << 8) | (lastX >> 2);
+        while (sbScan[lastSubBlock] != lastSb) {
+            lastSubBlock--;
+        }
+        int lastScanPos = 15;
+        final int lastPos = ((lastY & 3) << 8) | (lastX & 3);
+        while (posScan[lastScanPos] != lastPos) {
+            lastScanPos--;
+        }
+
+        final int[] coded = mCodedSubBlocks;
+        Arrays.fill(coded, 0, sbWidth * sbWidth, 0);
+        final int[] sigPos = mSigPositions;
+        final int[] levels = mLevels;
+        final int[] positions = mPositions;
+        final int sigCtxBase = Cabac.CTX_SIG_COEFF + ((cIdx == 0) ? 0 : 27);
+        final int greater1Base = Cabac.CTX_GREATER1 + ((cIdx == 0) ? 0 : 16);
+        final int greater2Base = Cabac.CTX_GREATER2 + ((cIdx == 0) ? 0 : 4);
+        final boolean signHidingEnabled = mPps.signDataHidingEnabled && !mTransquantBypass;
+        int greater1Ctx = 1;
+        int count = 0;
+        int maxX = 0;
+        int maxY = 0;
+
+        for (int i = lastSubBlock; 0 <= i; i--) {
+            final int xS = sbScan[i] & 0xff;
+            final int yS = sbScan[i] >> 8;
+            final int right = (xS + 1 < sbWidth) ? coded[yS * sbWidth + xS + 1] : 0;
+            final int below = (yS + 1 < sbWidth) ? coded[(yS + 1) * sbWidth + xS] : 0;
+            int numSig = 0;
+            int n = 15;
+            boolean inferSbDcSigCoeff = false;
+            boolean codedSubBlock = true;
+            if (i == lastSubBlock) {
+                sigPos[numSig++] = lastScanPos;
+                n = lastScanPos - 1;
+            } else if (0 < i) {
+                final int ctxInc = Math.min(right + below, 1) + ((cIdx == 0) ? 0 : 2);
+                codedSubBlock = cabac.decodeBin(Cabac.CTX_CODED_SUB_BLOCK + ctxInc) != 0;
+                inferSbDcSigCoeff = true;
+            }
+            if (!codedSubBlock) {
+                continue;
+            }
+            coded[yS * sbWidth + xS] = 1;
+
+            // sig_coeff_flag
+            final int prevCsbf = right | (below << 1);
+            for (; 0 <= n; n--) {
+                final int xP = posScan[n] & 0xff;
+                final int yP = posScan[n] >> 8;
+                if (n == 0 && inferSbDcSigCoeff) {
+                    sigPos[numSig++] = 0;
+                    break;
+                }
+                int sigCtx;
+                if (log2TrafoSize == 2) {
+                    sigCtx = CTX_IDX_MAP[(yP << 2) + xP];
+                } else if (xS == 0 && yS == 0 && xP == 0 && yP == 0) {
+                    sigCtx = 0;
+                } else {
+                    if (prevCsbf == 0) {
+                        sigCtx = (xP + yP == 0) ? 2 : (xP + yP < 3) ? 1 : 0;
+                    } else if (prevCsbf == 1) {
+                        sigCtx = (yP == 0) ? 2 : (yP == 1) ? 1 : 0;
+                    } else if (prevCsbf == 2) {
+                        sigCtx = (xP == 0) ? 2 : (xP == 1) ? 1 : 0;
+                    } else {
+                        sigCtx = 2;
+                    }
+                    if (cIdx == 0) {
+                        if (xS != 0 || yS != 0) {
+                            sigCtx += 3;
+                        }
+                        if (log2TrafoSize == 3) {
+                            sigCtx += (scanIdx == ScanOrder.DIAGONAL) ? 9 : 15;
+                        } else {
+                            sigCtx += 21;
+                        }
+                    } else {
+                        sigCtx += (log2TrafoSize == 3) ? 9 : 12;
+                    }
+                }
+                if (cabac.decodeBin(sigCtxBase + sigCtx) != 0) {
+                    sigPos[numSig++] = n;
+                    inferSbDcSigCoeff = false;
+                }
+            }
+            if (numSig == 0) {
+                continue;
+            }
+
+            // coeff_abs_level_greater1_flag, coeff_abs_level_greater2_flag
+            int ctxSet = (i == 0 || cIdx > 0) ? 0 : 2;
+            if (greater1Ctx == 0) {
+                ctxSet++;
+            }
+            greater1Ctx = 1;
+            int firstGreater1 = -1;
+            final int numGreater1 = Math.min(numSig, 8);
+            for (int k = 0; k < numGreater1; k++) {
+                final int flag = cabac.decodeBin(greater1Base + ctxSet * 4 + greater1Ctx);
+                levels[k] = 1 + flag;
+                if (flag != 0) {
+                    greater1Ctx = 0;
+                    if (firstGreater1 < 0) {
+                        firstGreater1 = k;
+                    }
+                } else if (0 < greater1Ctx && greater1Ctx < 3) {
+                    greater1Ctx++;
+                }
+            }
+            for (int k = numGreater1; k < numSig; k++) {
+                levels[k] = 1;
+            }
+            if (0 <= firstGreater1) {
+                levels[firstGreater1] += cabac.decodeBin(greater2Base + ctxSet);
+            }
+
+            // coeff_sign_flag
+            final boolean signHidden = signHidingEnabled && 3 < sigPos[0] - sigPos[numSig - 1];
+            final int numSigns = signHidden ? numSig - 1 : numSig;
+            final int signs = cabac.decodeBypassBits(numSigns) << (32 - numSigns);
+
+            // coeff_abs_level_remaining
+            int riceParam = 0;
+            int sumAbsLevel = 0;
+            for (int k = 0; k < numSig; k++) {
+                int baseLevel = levels[k];
+                final int threshold = (k < 8) ? ((k == firstGreater1) ? 3 : 2) : 1;
+                int absLevel = baseLevel;
+                if (baseLevel == threshold) {
+                    absLevel += decodeAbsLevelRemaining(riceParam);
+                    if (3 * (1 << riceParam) < absLevel) {
+                        riceParam = Math.min(riceParam + 1, 4);
+                    }
+                }
+                int level = ((signs << k) < 0) ? -absLevel : absLevel;
+                if (signHidden) {
+                    sumAbsLevel += absLevel;
+                    if (k == numSig - 1 && (sumAbsLevel & 1) != 0) {
+                        level = -level;
+                    }
+                }
+                final int xC = (xS << 2) + (posScan[sigPos[k]] & 0xff);
+                final int yC = (yS << 2) + (posScan[sigPos[k]] >> 8);
+                final int pos = (yC << log2TrafoSize) + xC;
+                coeffs[pos] = level;
+                positions[count++] = pos;
+                maxX = Math.max(maxX, xC);
+                maxY = Math.max(maxY, yC);
+            }
+        }
+
+        // scaling, transformation and reconstruction
+        int[] residual = mResidual;
+        if (mTransquantBypass) {
+            residual = coeffs;
+        } else {
+            int[] factors = null;
+            final ScalingList scalingList = (mPps.scalingList != null) ? mPps.scalingList : mSps.scalingList;
+            if (scalingList != null && !(transformSkip && 2 < log2TrafoSize)) {
+                factors = scalingList.getFactors(log2TrafoSize, cIdx);
+            }
+            Transform.dequantize(coeffs, positions, count, log2TrafoSize, qp, factors);
+            if (transformSkip) {
+                Transform.transformSkip(coeffs, log2TrafoSize, residual);
+            } else {
+                Transform.inverse(coeffs, log2TrafoSize, residual, mTemp,
+                        cIdx == 0 && log2TrafoSize == 2, maxX, maxY);
+            }
+        }
+        final byte[] plane = mPic.planes[cIdx];
+        final int stride = mPic.planeWidths[cIdx];
+        for (int y = 0; y < size; y++) {
+            final int row = (yTb + y) * stride + xTb;
+            for (int x = 0; x < size; x++) {
+                final int value = (plane[row + x] & 0xff) + residual[(y << log2TrafoSize) + x];
+                plane[row + x] = (byte) ((value < 0) ? 0 : (255 < value) ? 255 : value);
+            }
+        }
+    }
+
+    /**
+     * @see "9.3.3.11 Binarization process for coeff_abs_level_remaining"
+     */
+    private int decodeAbsLevelRemaining(int riceParam) throws IOException {
+        final Cabac cabac = mCabac;
+        int prefix = 0;
+        while (cabac.decodeBypass() != 0) {
+            if (++prefix == 32) {
+                throw new IOException("invalid coeff_abs_level_remaining");
+            }
+        }
+        if (prefix <= 3) {
+            return (prefix << riceParam) + cabac.decodeBypassBits(riceParam);
+        }
+        // prefix of TR binarization (4 bins) is followed by EGk with k = riceParam + 1
+        final int suffixLength = prefix - 3 + riceParam;
+        return (((1 << (prefix - 3)) + 2) << riceParam) + cabac.decodeBypassBits(suffixLength);
+    }
+}
@@ -0,0 +1,278 @@
+/*
+ * Copyright (c) 2017 yohhoy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package jp.yohhoy.heifreader.hevc;
+
+/**
+ * Deblocking filter
+ *
+ * All edges in intra picture have boundary filtering strength 2. Vertical edges of whole
+ * picture are filtered first, then horizontal edges. Each pass can be processed in parallel
+ * by CTB rows, because filtered samples of different rows do not overlap.
+ *
+ * @see "ITU-T H.265, 8.7.2 Deblocking filter process"
+ */
+final class DeblockingFilter {
+    private static final int[] BETA_TABLE = {
+            0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 17, 18, 20, 22, 24,
+            26, 28, 30, 32, 34, 36, 38, 40, 42, 44, 46, 48, 50, 52, 54, 56, 58, 60, 62, 64,
+    };
+    private static final int[] TC_TABLE = {
+            0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 1, 1, 1, 1, 1, 1, 1, 1, 1, 2, 2, 2, 2, 3,
+            3, 3, 3, 4, 4, 4, 5, 5, 6, 6, 7, 8, 9, 10, 11, 13, 14, 16, 18, 20, 22, 24,
+    };
+    private static final int[] QPC_TABLE = {29, 30, 31, 32, 33, 33, 34, 34, 35, 35, 36, 36, 37, 37};
+    /** boundary filtering strength of intra block edge */
+    private static final int BS_INTRA = 2;
+
+    private final PictureDecoder mPd;
+    private final Picture mPic;
+    private final int mLog2CtbSize;
+
+    DeblockingFilter(PictureDecoder pd) {
+        mPd = pd;
+        mPic = pd.picture;
+        mLog2CtbSize = pd.sps.log2CtbSize;
+    }
+
+    /**
+     * Filter vertical edges in CTB row.
+     */
+    void filterVerticalEdges(int ry) {
+        final Picture pic = mPic;
+        final int yEnd = Math.min(pic.height, (ry + 1) << mLog2CtbSize);
+        for (int y = ry << mLog2CtbSize; y < yEnd; y += 4) {
+            for (int x = 8; x < pic.width; x += 8) {
+                final int blockQ = pic.blockIndex(x, y);
+                if ((pic.edgeFlags[blockQ] & Picture.EDGE_VER) == 0) {
+                    continue;
+                }
+                final SliceHeader sh = getFilteringSlice(x - 1, y, x, y);
+                if (sh == null) {
+                    continue;
+                }
+                filterEdge(sh, blockQ - 1, blockQ, x, y, 1, pic.planeWidths[0], (y & 7) == 0 && (x & 15) == 0);
+            }
+        }
+    }
+
+    /**
+     * Filter horizontal edges in CTB row.
+     */
+    void filterHorizontalEdges(int ry) {
+        final Picture pic = mPic;
+        final int yEnd = Math.min(pic.height, (ry + 1) << mLog2CtbSize);
+        for (int y = Math.max(8, ry << mLog2CtbSize); y < yEnd; y += 8) {
+            for (int x = 0; x < pic.width; x += 4) {
+                final int blockQ = pic.blockIndex(x, y);
+                if ((pic.edgeFlags[blockQ] & Picture.EDGE_HOR) == 0) {
+                    continue;
+                }
+                final SliceHeader sh = getFilteringSlice(x, y - 1, x, y);
+                if (sh == null) {
+                    continue;
+                }
+                filterEdge(sh, blockQ - pic.blockStride, blockQ, x, y, pic.planeWidths[0], 1,
+                        (y & 15) == 0 && (x & 7) == 0);
+            }
+        }
+    }
+
+    /**
+     * Derive filterEdgeFlag of the edge between sample p0 and q0.
+     *
+     * @return The slice segment header which contains sample q0, or null if the edge is not filtered.
+     */
+    private SliceHeader getFilteringSlice(int xP, int yP, int xQ, int yQ) {
+        final PictureDecoder pd = mPd;
+        final int widthInCtbs = pd.sps.picWidthInCtbs;
+        final int ctbQ = (yQ >> mLog2CtbSize) * widthInCtbs + (xQ >> mLog2CtbSize);
+        final SliceHeader shQ = pd.ctbSlices[ctbQ];
+        if (shQ == null || shQ.deblockingFilterDisabled) {
+            return null;
+        }
+        final int ctbP = (yP >> mLog2CtbSize) * widthInCtbs + (xP >> mLog2CtbSize);
+        if (ctbP == ctbQ) {
+            return shQ;
+        }
+        final SliceHeader shP = pd.ctbSlices[ctbP];
+        if (shP == null) {
+            return null;
+        }
+        if (!pd.pps.loopFilterAcrossTilesEnabled
+                && pd.tileIds[pd.ctbAddrRsToTs[ctbP]] != pd.tileIds[pd.ctbAddrRsToTs[ctbQ]]) {
+            return null;
+        }
+        if (!shQ.loopFilterAcrossSlicesEnabled && shP.sliceAddrRs != shQ.sliceAddrRs) {
+            return null;
+        }
+        return shQ;
+    }
+
+    /**
+     * Filter 4 lines of luma edge, and 4 lines of chroma edge if requested.
+     *
+     * @param xStep sample step across the edge.
+     * @param lineStep sample step along the edge.
+     */
+    private void filterEdge(SliceHeader sh, int blockP, int blockQ, int x, int y, int xStep, int lineStep,
+                            boolean chroma) {
+        final Picture pic = mPic;
+        final int qpP = pic.qpYs[blockP];
+        final int qpQ = pic.qpYs[blockQ];
+        final int qpL = (qpQ + qpP + 1) >> 1;
+        final boolean filterP = (pic.blockFlags[blockP] & Picture.FLAG_NO_FILTER) == 0;
+        final boolean filterQ = (pic.blockFlags[blockQ] & Picture.FLAG_NO_FILTER) == 0;
+        final int beta = BETA_TABLE[clip3(0, 51, qpL + (sh.betaOffsetDiv2 << 1))];
+        final int tc = TC_TABLE[clip3(0, 53, qpL + 2 * (BS_INTRA - 1) + (sh.tcOffsetDiv2 << 1))];
+        filterLuma(pic.planes[0], y * pic.planeWidths[0] + x, xStep, lineStep, beta, tc, filterP, filterQ);
+        if (chroma) {
+            final PictureParameterSet pps = mPd.pps;
+            final int strideC = pic.planeWidths[1];
+            final int lineStepC = (lineStep == 1) ? 1 : strideC;
+            final int xStepC = (xStep == 1) ? 1 : strideC;
+            final int offset = (y >> 1) * strideC + (x >> 1);
+            filterChroma(pic.planes[1], offset, xStepC, lineStepC,
+                    chromaTc(qpL + pps.cbQpOffset, sh), filterP, filterQ);
+            filterChroma(pic.planes[2], offset, xStepC, lineStepC,
+                    chromaTc(qpL + pps.crQpOffset, sh), filterP, filterQ);
+        }
+    }
+
+    private static int chromaTc(int qpi, SliceHeader sh) {
+        final int qpc = (qpi < 30) ? qpi : (43 < qpi) ? qpi - 6 : QPC_TABLE[qpi - 30];
+        return TC_TABLE[clip3(0, 53, qpc + 2 * (BS_INTRA - 1) + (sh.tcOffsetDiv2 << 1))];
+    }
+
+    /**
+     * @see "8.7.2.5.3 Decision process for luma block edges"
+     * @see "8.7.2.5.7 Luma sample filtering process"
+     */
+    private static void filterLuma(byte[] s, int q0, int xStep, int lineStep, int beta, int tc,
+                                   boolean filterP, boolean filterQ) {
+        final int l3 = q0 + 3 * lineStep;
+        final int dp0 = Math.abs(s(s, q0 - 3 * xStep) - 2 * s(s, q0 - 2 * xStep) + s(s, q0 - xStep));
+        final int dp3 = Math.abs(s(s, l3 - 3 * xStep) - 2 * s(s, l3 - 2 * xStep) + s(s, l3 - xStep));
+        final int dq0 = Math.abs(s(s, q0 + 2 * xStep) - 2 * s(s, q0 + xStep) + s(s, q0));
+        final int dq3 = Math.abs(s(s, l3 + 2 * xStep) - 2 * s(s, l3 + xStep) + s(s, l3));
+        final int dpq0 = dp0 + dq0;
+        final int dpq3 = dp3 + dq3;
+        if (beta <= dpq0 + dpq3) {
+            return;
+        }
+        final boolean strong = isStrong(s, q0, xStep, 2 * dpq0, beta, tc)
+                && isStrong(s, l3, xStep, 2 * dpq3, beta, tc);
+        final int sideThreshold = (beta + (beta >> 1)) >> 3;
+        final boolean filterP1 = dp0 + dp3 < sideThreshold;
+        final boolean filterQ1 = dq0 + dq3 < sideThreshold;
+        final int tc2 = 2 * tc;
+        final int halfTc = tc >> 1;
+        for (int k = 0; k < 4; k++) {
+            final int q = q0 + k * lineStep;
+            final int p3 = s(s, q - 4 * xStep);
+            final int p2 = s(s, q - 3 * xStep);
+            final int p1 = s(s, q - 2 * xStep);
+            final int p0 = s(s, q - xStep);
+            final int q0v = s(s, q);
+            final int q1 = s(s, q + xStep);
+            final int q2 = s(s, q + 2 * xStep);
+            final int q3 = s(s, q + 3 * xStep);
+            if (strong) {
+                if (filterP) {
+                    s[q - xStep] = (byte) clip3(p0 - tc2, p0 + tc2, (p2 + 2 * p1 + 2 * p0 + 2 * q0v + q1 + 4) >> 3);
+                    s[q - 2 * xStep] = (byte) clip3(p1 - tc2, p1 + tc2, (p2 + p1 + p0 + q0v + 2) >> 2);
+                    s[q - 3 * xStep] = (byte) clip3(p2 - tc2, p2 + tc2, (2 * p3 + 3 * p2 + p1 + p0 + q0v + 4) >> 3);
+                }
+                if (filterQ) {
+                    s[q] = (byte) clip3(q0v - tc2, q0v + tc2, (p1 + 2 * p0 + 2 * q0v + 2 * q1 + q2 + 4) >> 3);
+                    s[q + xStep] = (byte) clip3(q1 - tc2, q1 + tc2, (p0 + q0v + q1 + q2 + 2) >> 2);
+                    s[q + 2 * xStep] = (byte) clip3(q2 - tc2, q2 + tc2, (p0 + q0v + q1 + 3 * q2 + 2 * q3 + 4) >> 3);
+                }
+            } else {
+                int delta = (9 * (q0v - p0) - 3 * (q1 - p1) + 8) >> 4;
+                if (10 * tc <= Math.abs(delta)) {
+                    continue;
+                }
+                delta = clip3(-tc, tc, delta);
+                if (filterP) {
+                    s[q - xStep] = (byte) clip8(p0 + delta);
+                    if (filterP1) {
+                        final int deltaP = clip3(-halfTc, halfTc, (((p2 + p0 + 1) >> 1) - p1 + delta) >> 1);
+                        s[q - 2 * xStep] = (byte) clip8(p1 + deltaP);
+                    }
+                }
+                if (filterQ) {
+                    s[q] = (byte) clip8(q0v - delta);
+                    if (filterQ1) {
+                        final int deltaQ = clip3(-halfTc, halfTc, (((q2 + q0v + 1) >> 1) - q1 - delta) >> 1);
+                        s[q + xStep] = (byte) clip8(q1 + deltaQ);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @see "8.7.2.5.6 Decision process for a luma sample"
+     */
+    private static boolean isStrong(byte[] s, int q0, int xStep, int dpq, int beta, int tc) {
+        final int p3 = s(s, q0 - 4 * xStep);
+        final int p0 = s(s, q0 - xStep);
+        final int q0v = s(s, q0);
+        final int q3 = s(s, q0 + 3 * xStep);
+        return dpq < (beta >> 2)
+                && Math.abs(p3 - p0) + Math.abs(q0v - q3) < (beta >> 3)
+                && Math.abs(p0 - q0v) < ((5 * tc + 1) >> 1);
+    }
+
+    /**
+     * @see "8.7.2.5.8 Chroma sample filtering process"
+     */
+    private static void filterChroma(byte[] s, int q0, int xStep, int lineStep, int tc,
+                                     boolean filterP, boolean filterQ) {
+        for (int k = 0; k < 4; k++) {
+            final int q = q0 + k * lineStep;
+            final int p1 = s(s, q - 2 * xStep);
+            final int p0 = s(s, q - xStep);
+            final int q0v = s(s, q);
+            final int q1 = s(s, q + xStep);
+            final int delta = clip3(-tc, tc, ((((q0v - p0) << 2) + p1 - q1 + 4) >> 3));
+            if (filterP) {
+                s[q - xStep] = (byte) clip8(p0 + delta);
+            }
+            if (filterQ) {
+                s[q] = (byte) clip8(q0v - delta);
+            }
+        }
+    }
+
+    private static int s(byte[] samples, int index) {
+        return samples[index] & 0xff;
+    }
+
+    private static int clip3(int min, int max, int value) {
+        return (value < min) ? min : (max < value) ? max : value;
+    }
+
+    private static int clip8(int value) {
+        return (value < 0) ? 0 : (255 < value) ? 255 : value;
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright (c) 2017 yohhoy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package jp.yohhoy.heifreader.hevc;
+
+/**
+ * Intra sample prediction
+ *
+ * Reference samples are stored in linear array of (4 * nTbS + 1) elements, from bottom-left
+ * p[-1][2*nTbS-1] through top-left p[-1][-1] to top-right p[2*nTbS-1][-1].
+ *
+ * @see "ITU-T H.265, 8.4.4.2 Intra sample prediction"
+ */
+final class IntraPredictor {
+    static final int MODE_PLANAR = 0;
+    static final int MODE_DC = 1;
+    static final int MODE_HORIZONTAL = 10;
+    static final int MODE_VERTICAL = 26;
+
+    private static final int[] INTRA_PRED_ANGLE = {
+            0, 0, 32, 26, 21, 17, 13, 9, 5, 2, 0, -2, -5, -9, -13, -17, -21,
+            -26, -32, -26, -21, -17, -13, -9, -5, -2, 0, 2, 5, 9, 13, 17, 21, 26, 32,
+    };
+    private static final int[] INV_ANGLE = {
+            -4096, -1638, -910, -630, -482, -390, -315, -256,
+            -315, -390, -482, -630, -910, -1638, -4096,
+    };
+
+    private IntraPredictor() {
+    }
+
+    /**
+     * Filter neighbouring samples.
+     *
+     * @param ref reference samples, which are filtered in place.
+     * @param tmp temporary buffer which has at least (4 * nTbS + 1) elements.
+     * @see "8.4.4.2.3 Filtering process of neighbouring samples"
+     */
+    static void filter(int[] ref, int[] tmp, int nTbS, int mode, boolean strongIntraSmoothing) {
+        if (mode == MODE_DC || nTbS == 4) {
+            return;
+        }
+        final int minDistVerHor = Math.min(Math.abs(mode - MODE_VERTICAL), Math.abs(mode - MODE_HORIZONTAL));
+        final int threshold = (nTbS == 8) ? 7 : (nTbS == 16) ? 1 : 0;
+        if (minDistVerHor <= threshold) {
+            return;
+        }
+        final int c = 2 * nTbS;
+        final int last = 4 * nTbS;
+        if (strongIntraSmoothing && nTbS == 32
+                && Math.abs(ref[c] + ref[last] - 2 * ref[c + nTbS]) < 8
+                && Math.abs(ref[c] + ref[0] - 2 * ref[c - nTbS]) < 8) {
+            final int corner = ref[c];
+            final int bottom = ref[0];
+            final int right = ref[last];
+            for (int i = 0; i < 63; i++) {
+                ref[c - 1 - i] = ((63 - i) * corner + (i + 1) * bottom + 32) >> 6;
+                ref[c + 1 + i] = ((63 - i) * corner + (i + 1) * right + 32) >> 6;
+            }
+            return;
+        }
+        System.arraycopy(ref, 0, tmp, 0, last + 1);
+        for (int i = 1; i < last; i++) {
+            ref[i] = (tmp[i - 1] + 2 * tmp[i] + tmp[i + 1] + 2) >> 2;
+        }
+    }
+
+    /**
+     * Predict samples of transform block.
+     *
+     * @param ref reference samples.
+     * @param refMain temporary buffer which has at least (3 * nTbS + 1) elements.
+     * @param edgeFilter apply boundary filters for DC, horizontal and vertical mode. (luma and nTbS &lt; 32)
+     * @param dst destination plane.
+     * @param offset offset of top-left sample in destination plane.
+     * @param stride row stride of destination plane.
+     */
+    static void predict(int[] ref, int[] refMain, int nTbS, int mode, boolean edgeFilter,
+                        byte[] dst, int offset, int stride) {
+        final int c = 2 * nTbS;
+        if (mode == MODE_PLANAR) {
+            final int shift = Integer.numberOfTrailingZeros(nTbS) + 1;
+            final int topRight = ref[c + 1 + nTbS];
+            final int bottomLeft = ref[c - 1 - nTbS];
+            for (int y = 0; y < nTbS; y++) {
+                final int left = ref[c - 1 - y];
+                final int row = offset + y * stride;
+                for (int x = 0; x < nTbS; x++) {
+                    int value = (nTbS - 1 - x) * left + (x + 1) * topRight
+                            + (nTbS - 1 - y) * ref[c + 1 + x] + (y + 1) * bottomLeft + nTbS;
+                    dst[row + x] = (byte) (value >> shift);
+                }
+            }
+        } else if (mode == MODE_DC) {
+            final int shift = Integer.numberOfTrailingZeros(nTbS) + 1;
+            int sum = nTbS;
+            for (int i = 0; i < nTbS; i++) {
+                sum += ref[c + 1 + i] + ref[c - 1 - i];
+            }
+            final int dc = sum >> shift;
+            for (int y = 0; y < nTbS; y++) {
+                final int row = offset + y * stride;
+                for (int x = 0; x < nTbS; x++) {
+                    dst[row + x] = (byte) dc;
+                }
+            }
+            if (edgeFilter) {
+                dst[offset] = (byte) ((ref[c - 1] + 2 * dc + ref[c + 1] + 2) >> 2);
+                for (int x = 1; x < nTbS; x++) {
+                    dst[offset + x] = (byte) ((ref[c + 1 + x] + 3 * dc + 2) >> 2);
+                }
+                for (int y = 1; y < nTbS; y++) {
+                    dst[offset + y * stride] = (byte) ((ref[c - 1 - y] + 3 * dc + 2) >> 2);
+                }
+            }
+        } else {
+            predictAngular(ref, refMain, nTbS, mode, edgeFilter, dst, offset, stride);
+        }
+    }
+
+    private static void predictAngular(int[] ref, int[] refMain, int nTbS, int mode, boolean edgeFilter,
+                                       byte[] dst, int offset, int stride) {
+        final int c = 2 * nTbS;
+        final int angle = INTRA_PRED_ANGLE[mode];
+        final boolean vertical = (18 <= mode);
+        // refMain[base + x] corresponds to ref[x] in specification
+        final int base = nTbS;
+        final int sign = vertical ? 1 : -1;
+        for (int x = 0; x <= 2 * nTbS; x++) {
+            refMain[base + x] = ref[c + sign * x];
+        }
+        final int start = (nTbS * angle) >> 5;
+        if (start < -1) {
+            final int invAngle = INV_ANGLE[mode - 11];
+            for (int x = start; x <= -1; x++) {
+                refMain[base + x] = ref[c - sign * ((x * invAngle + 128) >> 8)];
+            }
+        }
+        for (int j = 0; j < nTbS; j++) {
+            final int pos = (j + 1) * angle;
+            final int idx = base + (pos >> 5) + 1;
+            final int fact = pos & 31;
+            for (int i = 0; i < nTbS; i++) {
+                int value;
+                if (fact != 0) {
+                    value = ((32 - fact) * refMain[idx + i] + fact * refMain[idx + i + 1] + 16) >> 5;
+                } else {
+                    value = refMain[idx + i];
+                }
+                // vertical mode predicts row j, horizontal mode predicts column j
+                if (vertical) {
+                    dst[offset + j * stride + i] = (byte) value;
+                } else {
+                    dst[offset + i * stride + j] = (byte) value;
+                }
+            }
+        }
+        if (edgeFilter && angle == 0) {
+            final int corner = ref[c];
+            if (vertical) {
+                final int top = ref[c + 1];
+                for (int y = 0; y < nTbS; y++) {
+                    dst[offset + y * stride] = (byte) clip8(top + ((ref[c - 1 - y] - corner) >> 1));
+                }
+            } else {
+                final int left = ref[c - 1];
+                for (int x = 0; x < nTbS; x++) {
+                    dst[offset + x] = (byte) clip8(left + ((ref[c + 1 + x] - corner) >> 1));
+                }
+            }
+        }
+    }
+
+    private static int clip8(int value) {
+        return (value < 0) ? 0 : (255 < value) ? 255 : value;
+    }
+}
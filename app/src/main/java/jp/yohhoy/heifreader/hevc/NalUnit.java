@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2017 yohhoy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package jp.yohhoy.heifreader.hevc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * HEVC NAL unit
+ *
+ * Emulation prevention bytes are removed from payload. Their positions are kept to translate
+ * entry point offsets in slice segment header, which count the removed bytes.
+ */
+final class NalUnit {
+    static final int TYPE_IDR_W_RADL = 19;
+    static final int TYPE_IDR_N_LP = 20;
+    static final int TYPE_RSV_IRAP_23 = 23;
+    static final int TYPE_VPS = 32;
+    static final int TYPE_SPS = 33;
+    static final int TYPE_PPS = 34;
+
+    final int type;
+    final int layerId;
+    /** RBSP including 2 bytes NAL unit header */
+    final byte[] rbsp;
+    final int rbspLength;
+    /** positions of emulation prevention bytes in original NAL unit, in ascending order */
+    private final int[] mEscapePositions;
+    private final int mEscapeCount;
+
+    private NalUnit(int type, int layerId, byte[] rbsp, int rbspLength, int[] escapePositions, int escapeCount) {
+        this.type = type;
+        this.layerId = layerId;
+        this.rbsp = rbsp;
+        this.rbspLength = rbspLength;
+        mEscapePositions = escapePositions;
+        mEscapeCount = escapeCount;
+    }
+
+    /**
+     * Parse NAL unit.
+     *
+     * @param nal NAL unit without start code or length field. (position is not modified)
+     */
+    static NalUnit parse(ByteBuffer nal) throws IOException {
+        ByteBuffer buf = nal.duplicate();
+        final int length = buf.remaining();
+        if (length < 2) {
+            throw new IOException("NAL unit is too short");
+        }
+        byte[] rbsp = new byte[length];
+        int[] escapes = new int[0];
+        int escapeCount = 0;
+        int size = 0;
+        int zeros = 0;
+        for (int i = 0; i < length; i++) {
+            int b = buf.get() & 0xff;
+            if (2 <= zeros && b == 0x03) {
+                if (escapeCount == escapes.length) {
+                    escapes = Arrays.copyOf(escapes, Math.max(8, escapeCount * 2));
+                }
+                escapes[escapeCount++] = i;
+                zeros = 0;
+                continue;
+            }
+            rbsp[size++] = (byte) b;
+            zeros = (b == 0) ? zeros + 1 : 0;
+        }
+        int header = ((rbsp[0] & 0xff) << 8) | (rbsp[1] & 0xff);
+        if ((header & 0x8000) != 0) {
+            throw new IOException("forbidden_zero_bit is set");
+        }
+        return new NalUnit((header >> 9) & 0x3f, (header >> 3) & 0x3f, rbsp, size, escapes, escapeCount);
+    }
+
+    /**
+     * @return true if the NAL unit is VCL(coded slice segment).
+     */
+    boolean isSlice() {
+        return type <= 9 || (16 <= type && type <= 21);
+    }
+
+    /**
+     * @return true if the NAL unit is IRAP(intra random access point) picture.
+     */
+    boolean isIrap() {
+        return 16 <= type && type <= TYPE_RSV_IRAP_23;
+    }
+
+    /**
+     * Translate byte offset in original NAL unit into offset in RBSP.
+     */
+    int toRbspOffset(int nalOffset) {
+        int count = 0;
+        while (count < mEscapeCount && mEscapePositions[count] < nalOffset) {
+            count++;
+        }
+        return nalOffset - count;
+    }
+
+    /**
+     * Translate byte offset in RBSP into offset in original NAL unit.
+     */
+    int toNalOffset(int rbspOffset) {
+        int nalOffset = rbspOffset;
+        for (int i = 0; i < mEscapeCount && mEscapePositions[i] <= nalOffset; i++) {
+            nalOffset++;
+        }
+        return nalOffset;
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2017 yohhoy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package jp.yohhoy.heifreader.hevc;
+
+/**
+ * Decoded picture buffer with per-block metadata
+ *
+ * Sample planes are 8bit 4:2:0 with no padding. Metadata is kept for each 4x4 luma block,
+ * which is required by neighbouring block derivation and in-loop filters.
+ */
+final class Picture {
+    /** block is coded in PCM mode */
+    static final int FLAG_PCM = 1;
+    /** block is not modified by in-loop filters (PCM with pcm_loop_filter_disabled_flag, or lossless) */
+    static final int FLAG_NO_FILTER = 2;
+    /** transform block edge on left side of 4x4 block */
+    static final int EDGE_VER = 1;
+    /** transform block edge on top side of 4x4 block */
+    static final int EDGE_HOR = 2;
+
+    final int width;
+    final int height;
+    /** Y, Cb, Cr planes */
+    final byte[][] planes = new byte[3][];
+    final int[] planeWidths = new int[3];
+    final int[] planeHeights = new int[3];
+
+    /** number of 4x4 blocks in a row */
+    final int blockStride;
+    /** IntraPredModeY */
+    final byte[] intraPredModes;
+    /** CtDepth */
+    final byte[] ctDepths;
+    /** QpY */
+    final byte[] qpYs;
+    final byte[] blockFlags;
+    final byte[] edgeFlags;
+
+    Picture(int width, int height) {
+        this.width = width;
+        this.height = height;
+        for (int c = 0; c < 3; c++) {
+            planeWidths[c] = (c == 0) ? width : width / 2;
+            planeHeights[c] = (c == 0) ? height : height / 2;
+            planes[c] = new byte[planeWidths[c] * planeHeights[c]];
+        }
+        blockStride = width >> 2;
+        final int blocks = blockStride * (height >> 2);
+        intraPredModes = new byte[blocks];
+        ctDepths = new byte[blocks];
+        qpYs = new byte[blocks];
+        blockFlags = new byte[blocks];
+        edgeFlags = new byte[blocks];
+    }
+
+    /**
+     * @return index of 4x4 block which contains luma sample (x, y).
+     */
+    int blockIndex(int x, int y) {
+        return (y >> 2) * blockStride + (x >> 2);
+    }
+
+    /**
+     * Fill metadata of 4x4 blocks in rectangle.
+     */
+    static void fill(Picture pic, byte[] info, int x0, int y0, int size, int value) {
+        final int n = Math.min(size, pic.width - x0) >> 2;
+        final int m = Math.min(size, pic.height - y0) >> 2;
+        for (int j = 0; j < m; j++) {
+            int index = pic.blockIndex(x0, y0 + (j << 2));
+            for (int i = 0; i < n; i++) {
+                info[index + i] = (byte) value;
+            }
+        }
+    }
+}
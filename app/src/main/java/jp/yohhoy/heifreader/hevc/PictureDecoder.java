@@ -0,0 +1,409 @@
+/*
+ * Copyright (c) 2017 yohhoy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package jp.yohhoy.heifreader.hevc;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Decoding process of single intra picture
+ *
+ * Substreams of slice segment (tiles and/or CTB rows of wavefront parallel processing) and
+ * in-loop filters are processed in parallel on executor.
+ *
+ * @see "ITU-T H.265, 6.5 Scanning processes"
+ */
+final class PictureDecoder {
+    /** number of SAO parameters per CTB: (SaoTypeIdx, band position or EO class, 4 offsets) for each component */
+    static final int SAO_PARAMS = 3 * 6;
+    static final int SAO_NOT_APPLIED = 0;
+    static final int SAO_BAND_OFFSET = 1;
+    static final int SAO_EDGE_OFFSET = 2;
+
+    /**
+     * Parallel task
+     */
+    interface Task {
+        void run(int index) throws IOException;
+    }
+
+    final SequenceParameterSet sps;
+    final PictureParameterSet pps;
+    final Picture picture;
+    /** tile column boundaries in CTBs (numTileColumns + 1 elements) */
+    final int[] colBd;
+    /** tile row boundaries in CTBs (numTileRows + 1 elements) */
+    final int[] rowBd;
+    final int[] ctbAddrRsToTs;
+    final int[] ctbAddrTsToRs;
+    /** TileId indexed by CTB address in tile scan */
+    final int[] tileIds;
+    /** slice segment header of each CTB in raster scan, or null if not decoded */
+    final SliceHeader[] ctbSlices;
+    final int[] saoParams;
+    /** context variables and QpY at the end of previous slice segment */
+    final byte[] segmentContexts = new byte[Cabac.NUM_CONTEXTS];
+    int segmentQpY;
+
+    private final ExecutorService mExecutor;
+    private final int mParallelism;
+    private final int[] mTileStartTs;
+    /** MinTbAddrZs in 4x4 block granularity */
+    private final int[] mMinTbAddrZs;
+    private final byte[][] mWppContexts;
+    /** number of decoded CTBs (as x address) in each CTB row of tile column */
+    private final int[] mWppProgress;
+    private boolean mAborted;
+    private int mSegmentStartTs;
+    private int mNextCtbTs;
+
+    /**
+     * @param executor executor for parallel decoding, or null.
+     * @param parallelism maximum number of threads which decode the picture.
+     */
+    PictureDecoder(SequenceParameterSet sps, PictureParameterSet pps, ExecutorService executor, int parallelism) {
+        this.sps = sps;
+        this.pps = pps;
+        mExecutor = executor;
+        mParallelism = Math.max(1, parallelism);
+        picture = new Picture(sps.width, sps.height);
+        final int widthInCtbs = sps.picWidthInCtbs;
+        final int heightInCtbs = sps.picHeightInCtbs;
+        final int picSizeInCtbs = widthInCtbs * heightInCtbs;
+
+        // 6.5.1 CTB raster and tile scanning conversion process
+        colBd = new int[pps.numTileColumns + 1];
+        rowBd = new int[pps.numTileRows + 1];
+        for (int i = 0; i < pps.numTileColumns; i++) {
+            final int width = pps.uniformSpacing
+                    ? ((i + 1) * widthInCtbs) / pps.numTileColumns - (i * widthInCtbs) / pps.numTileColumns
+                    : (i < pps.numTileColumns - 1) ? pps.columnWidths[i] : widthInCtbs - colBd[i];
+            colBd[i + 1] = colBd[i] + width;
+        }
+        for (int j = 0; j < pps.numTileRows; j++) {
+            final int height = pps.uniformSpacing
+                    ? ((j + 1) * heightInCtbs) / pps.numTileRows - (j * heightInCtbs) / pps.numTileRows
+                    : (j < pps.numTileRows - 1) ? pps.rowHeights[j] : heightInCtbs - rowBd[j];
+            rowBd[j + 1] = rowBd[j] + height;
+        }
+        ctbAddrRsToTs = new int[picSizeInCtbs];
+        ctbAddrTsToRs = new int[picSizeInCtbs];
+        tileIds = new int[picSizeInCtbs];
+        mTileStartTs = new int[pps.numTileColumns * pps.numTileRows + 1];
+        int ctbAddrTs = 0;
+        for (int j = 0; j < pps.numTileRows; j++) {
+            for (int i = 0; i < pps.numTileColumns; i++) {
+                final int tileId = j * pps.numTileColumns + i;
+                mTileStartTs[tileId] = ctbAddrTs;
+                for (int y = rowBd[j]; y < rowBd[j + 1]; y++) {
+                    for (int x = colBd[i]; x < colBd[i + 1]; x++) {
+                        final int ctbAddrRs = y * widthInCtbs + x;
+                        ctbAddrRsToTs[ctbAddrRs] = ctbAddrTs;
+                        ctbAddrTsToRs[ctbAddrTs] = ctbAddrRs;
+                        tileIds[ctbAddrTs] = tileId;
+                        ctbAddrTs++;
+                    }
+                }
+            }
+        }
+        mTileStartTs[mTileStartTs.length - 1] = picSizeInCtbs;
+
+        // 6.5.2 Z-scan order array initialization process
+        final int log2BlocksInCtb = sps.log2CtbSize - 2;
+        final int blockRows = picture.height >> 2;
+        mMinTbAddrZs = new int[picture.blockStride * blockRows];
+        for (int y = 0; y < blockRows; y++) {
+            for (int x = 0; x < picture.blockStride; x++) {
+                final int ctbAddrRs = (y >> log2BlocksInCtb) * widthInCtbs + (x >> log2BlocksInCtb);
+                int addr = ctbAddrRsToTs[ctbAddrRs] << (2 * log2BlocksInCtb);
+                for (int i = 0; i < log2BlocksInCtb; i++) {
+                    final int m = 1 << i;
+                    addr += (((m & x) != 0) ? m * m : 0) + (((m & y) != 0) ? 2 * m * m : 0);
+                }
+                mMinTbAddrZs[y * picture.blockStride + x] = addr;
+            }
+        }
+
+        ctbSlices = new SliceHeader[picSizeInCtbs];
+        saoParams = new int[picSizeInCtbs * SAO_PARAMS];
+        if (pps.entropyCodingSyncEnabled) {
+            mWppContexts = new byte[heightInCtbs * pps.numTileColumns][Cabac.NUM_CONTEXTS];
+            mWppProgress = new int[heightInCtbs * pps.numTileColumns];
+        } else {
+            mWppContexts = null;
+            mWppProgress = null;
+        }
+    }
+
+    /**
+     * Decode slice segment data.
+     *
+     * Slice segments shall be decoded in order of slice_segment_address.
+     */
+    void decodeSliceSegment(NalUnit nal, final SliceHeader sh) throws IOException {
+        if (sh.sps != sps || sh.pps != pps) {
+            throw new IOException("parameter set is changed in picture");
+        }
+        final int startTs = ctbAddrRsToTs[sh.sliceSegmentAddress];
+        if (startTs < mNextCtbTs || (sh.dependentSliceSegment && startTs != mNextCtbTs)) {
+            throw new IOException("slice segment is missing or out of order");
+        }
+        // locate substreams by entry points
+        final int numSubstreams = sh.entryPointOffsets.length + 1;
+        final int[] startAddrs = new int[numSubstreams];
+        final int[] begins = new int[numSubstreams + 1];
+        startAddrs[0] = startTs;
+        begins[0] = sh.dataOffset;
+        int nalOffset = nal.toNalOffset(sh.dataOffset);
+        for (int k = 1; k < numSubstreams; k++) {
+            startAddrs[k] = nextSubstreamStart(startAddrs[k - 1]);
+            nalOffset += sh.entryPointOffsets[k - 1];
+            begins[k] = nal.toRbspOffset(nalOffset);
+            if (ctbAddrTsToRs.length <= startAddrs[k] || nal.rbspLength <= begins[k]) {
+                throw new IOException("invalid entry point");
+            }
+        }
+        begins[numSubstreams] = nal.rbspLength;
+
+        mSegmentStartTs = startTs;
+        final byte[] data = nal.rbsp;
+        final int[] ends = new int[numSubstreams];
+        runParallel(numSubstreams, new Task() {
+            @Override
+            public void run(int k) throws IOException {
+                CtuDecoder decoder = new CtuDecoder(PictureDecoder.this, sh);
+                ends[k] = decoder.decode(data, begins[k], begins[k + 1], startAddrs[k], k == numSubstreams - 1);
+            }
+        });
+        mNextCtbTs = ends[numSubstreams - 1];
+    }
+
+    /**
+     * Apply deblocking filter and sample adaptive offset to decoded picture.
+     */
+    void applyLoopFilters() throws IOException {
+        final int rows = sps.picHeightInCtbs;
+        final DeblockingFilter deblocking = new DeblockingFilter(this);
+        runParallel(rows, new Task() {
+            @Override
+            public void run(int ry) {
+                deblocking.filterVerticalEdges(ry);
+            }
+        });
+        runParallel(rows, new Task() {
+            @Override
+            public void run(int ry) {
+                deblocking.filterHorizontalEdges(ry);
+            }
+        });
+        if (sps.saoEnabled) {
+            final SampleAdaptiveOffset sao = new SampleAdaptiveOffset(this);
+            runParallel(rows, new Task() {
+                @Override
+                public void run(int ry) {
+                    sao.apply(ry);
+                }
+            });
+        }
+    }
+
+    boolean isTileStart(int ctbAddrTs) {
+        return ctbAddrTs == 0 || tileIds[ctbAddrTs] != tileIds[ctbAddrTs - 1];
+    }
+
+    /**
+     * @return true if the CTB is the first one in substream.
+     */
+    boolean isSubstreamStart(int ctbAddrTs) {
+        if (pps.tilesEnabled && isTileStart(ctbAddrTs)) {
+            return true;
+        }
+        if (pps.entropyCodingSyncEnabled) {
+            final int rx = ctbAddrTsToRs[ctbAddrTs] % sps.picWidthInCtbs;
+            return rx == colBd[tileIds[ctbAddrTs] % pps.numTileColumns];
+        }
+        return false;
+    }
+
+    private int nextSubstreamStart(int ctbAddrTs) {
+        final int tileId = tileIds[ctbAddrTs];
+        if (pps.entropyCodingSyncEnabled) {
+            final int ry = ctbAddrTsToRs[ctbAddrTs] / sps.picWidthInCtbs;
+            if (ry + 1 < rowBd[tileId / pps.numTileColumns + 1]) {
+                final int rx = colBd[tileId % pps.numTileColumns];
+                return ctbAddrRsToTs[(ry + 1) * sps.picWidthInCtbs + rx];
+            }
+        }
+        return mTileStartTs[tileId + 1];
+    }
+
+    /**
+     * Derivation process for z-scan order block availability.
+     *
+     * @param sh slice segment header of current block.
+     * @see "6.4.1 Derivation process for z-scan order block availability"
+     */
+    boolean isAvailable(int xCurr, int yCurr, int xNbY, int yNbY, SliceHeader sh) {
+        final Picture pic = picture;
+        if (xNbY < 0 || yNbY < 0 || pic.width <= xNbY || pic.height <= yNbY) {
+            return false;
+        }
+        if (mMinTbAddrZs[pic.blockIndex(xCurr, yCurr)] < mMinTbAddrZs[pic.blockIndex(xNbY, yNbY)]) {
+            return false;
+        }
+        final int log2CtbSize = sps.log2CtbSize;
+        final int ctbCurr = (yCurr >> log2CtbSize) * sps.picWidthInCtbs + (xCurr >> log2CtbSize);
+        final int ctbNb = (yNbY >> log2CtbSize) * sps.picWidthInCtbs + (xNbY >> log2CtbSize);
+        if (ctbCurr == ctbNb) {
+            return true;
+        }
+        // CTB in other tile may be decoded concurrently
+        if (tileIds[ctbAddrRsToTs[ctbCurr]] != tileIds[ctbAddrRsToTs[ctbNb]]) {
+            return false;
+        }
+        final SliceHeader shNb = ctbSlices[ctbNb];
+        return shNb != null && shNb.sliceAddrRs == sh.sliceAddrRs;
+    }
+
+    /**
+     * Storage for context variables of wavefront parallel processing.
+     */
+    byte[] wppContexts(int ry, int tileColumn) {
+        return mWppContexts[ry * pps.numTileColumns + tileColumn];
+    }
+
+    /**
+     * Wait until upper right CTB is decoded in wavefront parallel processing.
+     */
+    void awaitUpperRight(int ctbAddrTs, int rx, int ry, int tileColumn) throws IOException {
+        if (ry == rowBd[tileIds[ctbAddrTs] / pps.numTileColumns]) {
+            return;
+        }
+        final int x = Math.min(rx + 1, colBd[tileColumn + 1] - 1);
+        if (ctbAddrRsToTs[(ry - 1) * sps.picWidthInCtbs + x] < mSegmentStartTs) {
+            // decoded in preceding slice segment, or missing
+            return;
+        }
+        final int index = (ry - 1) * pps.numTileColumns + tileColumn;
+        synchronized (this) {
+            try {
+                while (!mAborted && mWppProgress[index] <= x) {
+                    wait();
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted");
+            }
+            if (mAborted) {
+                throw new IOException("decoding is aborted");
+            }
+        }
+    }
+
+    /**
+     * Notify the CTB is decoded in wavefront parallel processing.
+     */
+    synchronized void ctbDecoded(int ry, int tileColumn, int rx) {
+        mWppProgress[ry * pps.numTileColumns + tileColumn] = rx + 1;
+        notifyAll();
+    }
+
+    private synchronized void abort() {
+        mAborted = true;
+        notifyAll();
+    }
+
+    /**
+     * Run tasks in parallel, and wait for completion.
+     *
+     * Task indices are dispatched in ascending order, so a task may wait for completion of
+     * preceding task. The calling thread also runs tasks.
+     */
+    void runParallel(final int count, final Task task) throws IOException {
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final int[] completed = new int[1];
+        Runnable worker = new Runnable() {
+            @Override
+            public void run() {
+                int index;
+                while (failure.get() == null && (index = next.getAndIncrement()) < count) {
+                    try {
+                        task.run(index);
+                    } catch (IOException | RuntimeException | Error ex) {
+                        failure.compareAndSet(null, ex);
+                        abort();
+                    } finally {
+                        synchronized (completed) {
+                            completed[0]++;
+                            completed.notifyAll();
+                        }
+                    }
+                }
+            }
+        };
+        List<Future<?>> helpers = new ArrayList<>();
+        if (mExecutor != null) {
+            try {
+                for (int i = 1; i < Math.min(mParallelism, count); i++) {
+                    helpers.add(mExecutor.submit(worker));
+                }
+            } catch (RejectedExecutionException ex) {
+                // continue with submitted workers
+            }
+        }
+        worker.run();
+        // stop dispatching, and wait for tasks running on helper threads
+        final int dispatched = Math.min(next.getAndSet(count), count);
+        for (Future<?> helper : helpers) {
+            helper.cancel(false);
+        }
+        boolean interrupted = false;
+        synchronized (completed) {
+            while (completed[0] < dispatched) {
+                try {
+                    completed.wait();
+                } catch (InterruptedException ex) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        final Throwable ex = failure.get();
+        if (ex instanceof IOException) {
+            throw (IOException) ex;
+        } else if (ex instanceof RuntimeException) {
+            throw (RuntimeException) ex;
+        } else if (ex != null) {
+            throw (Error) ex;
+        }
+    }
+}
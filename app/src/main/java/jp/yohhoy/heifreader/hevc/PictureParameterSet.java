@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2017 yohhoy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package jp.yohhoy.heifreader.hevc;
+
+import java.io.IOException;
+
+/**
+ * Picture parameter set
+ *
+ * @see "ITU-T H.265, 7.3.2.3 Picture parameter set RBSP syntax"
+ */
+final class PictureParameterSet {
+    int ppsId;
+    int spsId;
+    boolean dependentSliceSegmentsEnabled;
+    boolean outputFlagPresent;
+    int numExtraSliceHeaderBits;
+    boolean signDataHidingEnabled;
+    int initQp;
+    boolean transformSkipEnabled;
+    boolean cuQpDeltaEnabled;
+    int diffCuQpDeltaDepth;
+    int cbQpOffset;
+    int crQpOffset;
+    boolean sliceChromaQpOffsetsPresent;
+    boolean transquantBypassEnabled;
+    boolean tilesEnabled;
+    boolean entropyCodingSyncEnabled;
+    int numTileColumns = 1;
+    int numTileRows = 1;
+    boolean uniformSpacing = true;
+    /** column_width_minus1 + 1, or null for uniform spacing */
+    int[] columnWidths;
+    int[] rowHeights;
+    boolean loopFilterAcrossTilesEnabled = true;
+    boolean loopFilterAcrossSlicesEnabled;
+    boolean deblockingFilterOverrideEnabled;
+    boolean deblockingFilterDisabled;
+    int betaOffsetDiv2;
+    int tcOffsetDiv2;
+    /** null if PPS does not have scaling_list_data() */
+    ScalingList scalingList;
+    boolean sliceSegmentHeaderExtensionPresent;
+
+    static PictureParameterSet parse(NalUnit nal) throws IOException {
+        BitReader br = new BitReader(nal.rbsp, 2, nal.rbspLength);
+        PictureParameterSet pps = new PictureParameterSet();
+        pps.ppsId = br.readUe(63);
+        pps.spsId = br.readUe(15);
+        pps.dependentSliceSegmentsEnabled = br.readFlag();
+        pps.outputFlagPresent = br.readFlag();
+        pps.numExtraSliceHeaderBits = br.readBits(3);
+        pps.signDataHidingEnabled = br.readFlag();
+        br.skipBits(1);     // cabac_init_present_flag
+        br.readUe();        // num_ref_idx_l0_default_active_minus1
+        br.readUe();        // num_ref_idx_l1_default_active_minus1
+        pps.initQp = 26 + br.readSe(-26, 25);
+        br.skipBits(1);     // constrained_intra_pred_flag
+        pps.transformSkipEnabled = br.readFlag();
+        pps.cuQpDeltaEnabled = br.readFlag();
+        if (pps.cuQpDeltaEnabled) {
+            pps.diffCuQpDeltaDepth = br.readUe(3);
+        }
+        pps.cbQpOffset = br.readSe(-12, 12);
+        pps.crQpOffset = br.readSe(-12, 12);
+        pps.sliceChromaQpOffsetsPresent = br.readFlag();
+        br.skipBits(2);     // weighted_pred_flag, weighted_bipred_flag
+        pps.transquantBypassEnabled = br.readFlag();
+        pps.tilesEnabled = br.readFlag();
+        pps.entropyCodingSyncEnabled = br.readFlag();
+        if (pps.tilesEnabled) {
+            pps.numTileColumns = br.readUe(19) + 1;
+            pps.numTileRows = br.readUe(21) + 1;
+            pps.uniformSpacing = br.readFlag();
+            if (!pps.uniformSpacing) {
+                pps.columnWidths = new int[pps.numTileColumns - 1];
+                for (int i = 0; i < pps.columnWidths.length; i++) {
+                    pps.columnWidths[i] = br.readUe(1023) + 1;
+                }
+                pps.rowHeights = new int[pps.numTileRows - 1];
+                for (int i = 0; i < pps.rowHeights.length; i++) {
+                    pps.rowHeights[i] = br.readUe(1023) + 1;
+                }
+            }
+            pps.loopFilterAcrossTilesEnabled = br.readFlag();
+        }
+        pps.loopFilterAcrossSlicesEnabled = br.readFlag();
+        if (br.readFlag()) {    // deblocking_filter_control_present_flag
+            pps.deblockingFilterOverrideEnabled = br.readFlag();
+            pps.deblockingFilterDisabled = br.readFlag();
+            if (!pps.deblockingFilterDisabled) {
+                pps.betaOffsetDiv2 = br.readSe(-6, 6);
+                pps.tcOffsetDiv2 = br.readSe(-6, 6);
+            }
+        }
+        if (br.readFlag()) {    // pps_scaling_list_data_present_flag
+            pps.scalingList = ScalingList.parse(br);
+        }
+        br.skipBits(1);     // lists_modification_present_flag
+        br.readUe();        // log2_parallel_merge_level_minus2
+        pps.sliceSegmentHeaderExtensionPresent = br.readFlag();
+        if (br.readFlag()) {    // pps_extension_present_flag
+            if (br.readFlag()) {    // pps_range_extension_flag
+                throw new UnsupportedFormatException("pps_range_extension");
+            }
+        }
+        return pps;
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright (c) 2017 yohhoy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package jp.yohhoy.heifreader.hevc;
+
+/**
+ * Sample adaptive offset
+ *
+ * Deblocked picture is copied before the process, because edge offset refers to deblocked
+ * samples of neighbouring CTBs.
+ *
+ * @see "ITU-T H.265, 8.7.3 Sample adaptive offset process"
+ */
+final class SampleAdaptiveOffset {
+    /** (hPos[0], vPos[0], hPos[1], vPos[1]) for each SaoEoClass */
+    private static final int[][] EO_POSITIONS = {
+            {-1, 0, 1, 0},
+            {0, -1, 0, 1},
+            {-1, -1, 1, 1},
+            {1, -1, -1, 1},
+    };
+    /** SaoOffsetVal index for edgeIdx = 2 + Sign(a) + Sign(b) */
+    private static final int[] EDGE_IDX = {1, 2, 0, 3, 4};
+
+    private final PictureDecoder mPd;
+    private final Picture mPic;
+    /** deblocked planes */
+    private final byte[][] mSource = new byte[3][];
+    private final boolean mCheckNoFilter;
+
+    SampleAdaptiveOffset(PictureDecoder pd) {
+        mPd = pd;
+        mPic = pd.picture;
+        for (int c = 0; c < 3; c++) {
+            mSource[c] = mPic.planes[c].clone();
+        }
+        mCheckNoFilter = pd.pps.transquantBypassEnabled || (pd.sps.pcmEnabled && pd.sps.pcmLoopFilterDisabled);
+    }
+
+    /**
+     * Apply SAO to CTB row.
+     */
+    void apply(int ry) {
+        final PictureDecoder pd = mPd;
+        final int widthInCtbs = pd.sps.picWidthInCtbs;
+        final boolean[] available = new boolean[9];
+        final int[] offsets = new int[5];
+        for (int rx = 0; rx < widthInCtbs; rx++) {
+            final int ctbAddrRs = ry * widthInCtbs + rx;
+            final SliceHeader sh = pd.ctbSlices[ctbAddrRs];
+            if (sh == null) {
+                continue;
+            }
+            boolean neighbours = false;
+            for (int cIdx = 0; cIdx < 3; cIdx++) {
+                final int p = ctbAddrRs * PictureDecoder.SAO_PARAMS + cIdx * 6;
+                final int type = pd.saoParams[p];
+                if (type == PictureDecoder.SAO_NOT_APPLIED || ((cIdx == 0) ? !sh.saoLuma : !sh.saoChroma)) {
+                    continue;
+                }
+                for (int i = 0; i < 4; i++) {
+                    offsets[i + 1] = pd.saoParams[p + 2 + i];
+                }
+                if (type == PictureDecoder.SAO_BAND_OFFSET) {
+                    applyBandOffset(rx, ry, cIdx, pd.saoParams[p + 1], offsets);
+                } else {
+                    if (!neighbours) {
+                        checkNeighbours(rx, ry, sh, available);
+                        neighbours = true;
+                    }
+                    applyEdgeOffset(rx, ry, cIdx, pd.saoParams[p + 1], offsets, available);
+                }
+            }
+        }
+    }
+
+    /**
+     * Check whether samples in 8 neighbouring CTBs can be referred.
+     *
+     * @param available availability of CTBs in 3x3 raster order.
+     */
+    private void checkNeighbours(int rx, int ry, SliceHeader sh, boolean[] available) {
+        final PictureDecoder pd = mPd;
+        final int widthInCtbs = pd.sps.picWidthInCtbs;
+        final int heightInCtbs = pd.sps.picHeightInCtbs;
+        final int ctbAddrTs = pd.ctbAddrRsToTs[ry * widthInCtbs + rx];
+        for (int j = -1; j <= 1; j++) {
+            for (int i = -1; i <= 1; i++) {
+                final int x = rx + i;
+                final int y = ry + j;
+                boolean avail = false;
+                if (0 <= x && x < widthInCtbs && 0 <= y && y < heightInCtbs) {
+                    final int nbAddrRs = y * widthInCtbs + x;
+                    final int nbAddrTs = pd.ctbAddrRsToTs[nbAddrRs];
+                    final SliceHeader shNb = pd.ctbSlices[nbAddrRs];
+                    avail = shNb != null;
+                    if (avail && shNb.sliceAddrRs != sh.sliceAddrRs) {
+                        // the flag of latter slice in decoding order controls the boundary
+                        avail = (nbAddrTs < ctbAddrTs) ? sh.loopFilterAcrossSlicesEnabled
+                                : shNb.loopFilterAcrossSlicesEnabled;
+                    }
+                    if (avail && !pd.pps.loopFilterAcrossTilesEnabled
+                            && pd.tileIds[nbAddrTs] != pd.tileIds[ctbAddrTs]) {
+                        avail = false;
+                    }
+                }
+                available[(j + 1) * 3 + (i + 1)] = avail;
+            }
+        }
+    }
+
+    private void applyBandOffset(int rx, int ry, int cIdx, int bandPosition, int[] offsets) {
+        final Picture pic = mPic;
+        final int[] table = new int[32];
+        for (int k = 0; k < 4; k++) {
+            table[(bandPosition + k) & 31] = offsets[k + 1];
+        }
+        final int shift = (cIdx == 0) ? 0 : 1;
+        final int ctbSize = (1 << mPd.sps.log2CtbSize) >> shift;
+        final int stride = pic.planeWidths[cIdx];
+        final int x0 = rx * ctbSize;
+        final int y0 = ry * ctbSize;
+        final int x1 = Math.min(x0 + ctbSize, stride);
+        final int y1 = Math.min(y0 + ctbSize, pic.planeHeights[cIdx]);
+        final byte[] src = mSource[cIdx];
+        final byte[] dst = pic.planes[cIdx];
+        for (int y = y0; y < y1; y++) {
+            for (int x = x0; x < x1; x++) {
+                if (mCheckNoFilter && isNoFilter(x << shift, y << shift)) {
+                    continue;
+                }
+                final int index = y * stride + x;
+                final int value = src[index] & 0xff;
+                dst[index] = (byte) clip8(value + table[value >> 3]);
+            }
+        }
+    }
+
+    private void applyEdgeOffset(int rx, int ry, int cIdx, int eoClass, int[] offsets, boolean[] available) {
+        final Picture pic = mPic;
+        final int shift = (cIdx == 0) ? 0 : 1;
+        final int ctbSize = (1 << mPd.sps.log2CtbSize) >> shift;
+        final int stride = pic.planeWidths[cIdx];
+        final int x0 = rx * ctbSize;
+        final int y0 = ry * ctbSize;
+        final int width = Math.min(ctbSize, stride - x0);
+        final int height = Math.min(ctbSize, pic.planeHeights[cIdx] - y0);
+        final int[] pos = EO_POSITIONS[eoClass];
+        final int offsetA = pos[1] * stride + pos[0];
+        final int offsetB = pos[3] * stride + pos[2];
+        final byte[] src = mSource[cIdx];
+        final byte[] dst = pic.planes[cIdx];
+        for (int j = 0; j < height; j++) {
+            // vertical position of neighbouring CTB (0: above, 1: current, 2: below)
+            final int rowA = (j + pos[1] < 0) ? 0 : (height <= j + pos[1]) ? 2 : 1;
+            final int rowB = (j + pos[3] < 0) ? 0 : (height <= j + pos[3]) ? 2 : 1;
+            for (int i = 0; i < width; i++) {
+                final int colA = (i + pos[0] < 0) ? 0 : (width <= i + pos[0]) ? 2 : 1;
+                final int colB = (i + pos[2] < 0) ? 0 : (width <= i + pos[2]) ? 2 : 1;
+                if (!available[rowA * 3 + colA] || !available[rowB * 3 + colB]) {
+                    continue;
+                }
+                final int x = x0 + i;
+                final int y = y0 + j;
+                if (mCheckNoFilter && isNoFilter(x << shift, y << shift)) {
+                    continue;
+                }
+                final int index = y * stride + x;
+                final int value = src[index] & 0xff;
+                final int edgeIdx = 2 + sign(value - (src[index + offsetA] & 0xff))
+                        + sign(value - (src[index + offsetB] & 0xff));
+                dst[index] = (byte) clip8(value + offsets[EDGE_IDX[edgeIdx]]);
+            }
+        }
+    }
+
+    private boolean isNoFilter(int x, int y) {
+        return (mPic.blockFlags[mPic.blockIndex(x, y)] & Picture.FLAG_NO_FILTER) != 0;
+    }
+
+    private static int sign(int value) {
+        return (value > 0) ? 1 : (value < 0) ? -1 : 0;
+    }
+
+    private static int clip8(int value) {
+        return (value < 0) ? 0 : (255 < value) ? 255 : value;
+    }
+}
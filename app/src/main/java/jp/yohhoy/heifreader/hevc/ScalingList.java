@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) 2017 yohhoy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package jp.yohhoy.heifreader.hevc;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Scaling list (quantization matrix)
+ *
+ * @see "ITU-T H.265, 7.3.4 Scaling list data syntax"
+ */
+final class ScalingList {
+    private static final int[] DEFAULT_INTRA = {
+            16, 16, 16, 16, 16, 16, 16, 16, 16, 16, 17, 16, 17, 16, 17, 18,
+            17, 18, 18, 17, 18, 21, 19, 20, 21, 20, 19, 21, 24, 22, 22, 24,
+            24, 22, 22, 24, 25, 25, 27, 30, 27, 25, 25, 29, 31, 35, 35, 31,
+            29, 36, 41, 44, 41, 36, 47, 54, 54, 47, 65, 70, 65, 88, 88, 115,
+    };
+    private static final int[] DEFAULT_INTER = {
+            16, 16, 16, 16, 16, 16, 16, 16, 16, 16, 17, 17, 17, 17, 17, 18,
+            18, 18, 18, 18, 18, 20, 20, 20, 20, 20, 20, 20, 24, 24, 24, 24,
+            24, 24, 24, 24, 25, 25, 25, 25, 25, 25, 25, 28, 28, 28, 28, 28,
+            28, 33, 33, 33, 33, 33, 41, 41, 41, 41, 54, 54, 54, 71, 71, 91,
+    };
+
+    /** ScalingList[sizeId][matrixId][i] in up-right diagonal order */
+    private final int[][][] mLists = new int[4][6][];
+    private final int[][] mDcCoefs = new int[4][6];
+    /** ScalingFactor[sizeId][matrixId][y * size + x] */
+    private final int[][][] mFactors = new int[4][6][];
+
+    private ScalingList() {
+    }
+
+    /**
+     * @return default scaling list. (Table 7-5, 7-6)
+     */
+    static ScalingList createDefault() {
+        ScalingList list = new ScalingList();
+        for (int sizeId = 0; sizeId < 4; sizeId++) {
+            for (int matrixId = 0; matrixId < 6; matrixId++) {
+                list.setDefault(sizeId, matrixId);
+            }
+        }
+        list.deriveFactors();
+        return list;
+    }
+
+    /**
+     * Parse scaling_list_data().
+     */
+    static ScalingList parse(BitReader br) throws IOException {
+        ScalingList list = new ScalingList();
+        for (int sizeId = 0; sizeId < 4; sizeId++) {
+            final int coefNum = Math.min(64, 1 << (4 + (sizeId << 1)));
+            for (int matrixId = 0; matrixId < 6; matrixId += (sizeId == 3) ? 3 : 1) {
+                if (!br.readFlag()) {   // scaling_list_pred_mode_flag
+                    int delta = br.readUe((sizeId == 3) ? matrixId / 3 : matrixId);
+                    if (delta == 0) {
+                        list.setDefault(sizeId, matrixId);
+                    } else {
+                        int refMatrixId = matrixId - delta * ((sizeId == 3) ? 3 : 1);
+                        list.mLists[sizeId][matrixId] = list.mLists[sizeId][refMatrixId].clone();
+                        list.mDcCoefs[sizeId][matrixId] = list.mDcCoefs[sizeId][refMatrixId];
+                    }
+                } else {
+                    int nextCoef = 8;
+                    if (1 < sizeId) {
+                        nextCoef = br.readSe(-7, 247) + 8;   // scaling_list_dc_coef_minus8
+                    }
+                    list.mDcCoefs[sizeId][matrixId] = nextCoef;
+                    int[] coefs = new int[coefNum];
+                    for (int i = 0; i < coefNum; i++) {
+                        nextCoef = (nextCoef + br.readSe(-128, 127) + 256) % 256;
+                        coefs[i] = nextCoef;
+                    }
+                    list.mLists[sizeId][matrixId] = coefs;
+                }
+            }
+        }
+        // 32x32 chroma matrices are not used in 4:2:0 format
+        list.mLists[3][1] = list.mLists[3][2] = list.mLists[3][0];
+        list.mLists[3][4] = list.mLists[3][5] = list.mLists[3][3];
+        list.deriveFactors();
+        return list;
+    }
+
+    private void setDefault(int sizeId, int matrixId) {
+        int[] coefs = new int[(sizeId == 0) ? 16 : 64];
+        if (sizeId == 0) {
+            Arrays.fill(coefs, 16);
+        } else {
+            System.arraycopy((matrixId < 3) ? DEFAULT_INTRA : DEFAULT_INTER, 0, coefs, 0, 64);
+        }
+        mLists[sizeId][matrixId] = coefs;
+        mDcCoefs[sizeId][matrixId] = 16;
+    }
+
+    /**
+     * Derive ScalingFactor from ScalingList. (7.4.5)
+     */
+    private void deriveFactors() {
+        for (int sizeId = 0; sizeId < 4; sizeId++) {
+            final int size = 4 << sizeId;
+            final int log2ListSize = (sizeId == 0) ? 2 : 3;
+            final int listSize = 1 << log2ListSize;
+            final int ratio = size / listSize;
+            final int[] scan = ScanOrder.get(log2ListSize, ScanOrder.DIAGONAL);
+            for (int matrixId = 0; matrixId < 6; matrixId++) {
+                int[] coefs = mLists[sizeId][matrixId];
+                int[] factors = new int[size * size];
+                for (int i = 0; i < listSize * listSize; i++) {
+                    int x = scan[i] & 0xff;
+                    int y = scan[i] >> 8;
+                    for (int k = 0; k < ratio; k++) {
+                        for (int j = 0; j < ratio; j++) {
+                            factors[(y * ratio + k) * size + x * ratio + j] = coefs[i];
+                        }
+                    }
+                }
+                if (1 < sizeId) {
+                    factors[0] = mDcCoefs[sizeId][matrixId];
+                }
+                mFactors[sizeId][matrixId] = factors;
+            }
+        }
+    }
+
+    /**
+     * @param log2Size log2 of transform block size. (2-5)
+     * @param matrixId matrixId. (0-2 for intra Y/Cb/Cr)
+     * @return ScalingFactor in raster order.
+     */
+    int[] getFactors(int log2Size, int matrixId) {
+        return mFactors[log2Size - 2][matrixId];
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2017 yohhoy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package jp.yohhoy.heifreader.hevc;
+
+/**
+ * Scan order arrays (6.5.3-6.5.5)
+ *
+ * Each position is packed as {@code (y << 8) | x}.
+ */
+final class ScanOrder {
+    static final int DIAGONAL = 0;
+    static final int HORIZONTAL = 1;
+    static final int VERTICAL = 2;
+
+    /** SCAN[log2BlockSize][scanIdx] for block size 1x1 to 8x8 */
+    private static final int[][][] SCAN = new int[4][3][];
+
+    static {
+        for (int log2Size = 0; log2Size < 4; log2Size++) {
+            final int size = 1 << log2Size;
+            int[] diagonal = new int[size * size];
+            int i = 0;
+            int x = 0;
+            int y = 0;
+            while (i < size * size) {
+                while (0 <= y) {
+                    if (x < size && y < size) {
+                        diagonal[i++] = (y << 8) | x;
+                    }
+                    y--;
+                    x++;
+                }
+                y = x;
+                x = 0;
+            }
+            int[] horizontal = new int[size * size];
+            int[] vertical = new int[size * size];
+            for (int j = 0; j < size * size; j++) {
+                horizontal[j] = ((j / size) << 8) | (j % size);
+                vertical[j] = ((j % size) << 8) | (j / size);
+            }
+            SCAN[log2Size][DIAGONAL] = diagonal;
+            SCAN[log2Size][HORIZONTAL] = horizontal;
+            SCAN[log2Size][VERTICAL] = vertical;
+        }
+    }
+
+    private ScanOrder() {
+    }
+
+    /**
+     * @param log2BlockSize log2 of block size. (0-3)
+     * @param scanIdx scan type.
+     * @return positions in scan order, which shall not be modified.
+     */
+    static int[] get(int log2BlockSize, int scanIdx) {
+        return SCAN[log2BlockSize][scanIdx];
+    }
+}
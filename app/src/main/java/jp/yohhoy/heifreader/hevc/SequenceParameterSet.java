@@ -0,0 +1,311 @@
+/*
+ * Copyright (c) 2017 yohhoy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package jp.yohhoy.heifreader.hevc;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Sequence parameter set
+ *
+ * Only syntax elements required for intra picture decoding are kept. VUI is parsed up to
+ * video signal type, and SPS extensions are ignored.
+ *
+ * @see "ITU-T H.265, 7.3.2.2 Sequence parameter set RBSP syntax"
+ */
+final class SequenceParameterSet {
+    int spsId;
+    int profileIdc;
+    int profileCompatibilityFlags;
+    int chromaFormatIdc;
+    int width;
+    int height;
+    int confWinLeft;
+    int confWinRight;
+    int confWinTop;
+    int confWinBottom;
+    int bitDepthLuma;
+    int bitDepthChroma;
+    int log2MaxPocLsb;
+    int log2MinCbSize;
+    int log2CtbSize;
+    int log2MinTbSize;
+    int log2MaxTbSize;
+    int maxTransformHierarchyDepthIntra;
+    /** null if scaling_list_enabled_flag is 0 */
+    ScalingList scalingList;
+    boolean saoEnabled;
+    boolean pcmEnabled;
+    int pcmBitDepthLuma;
+    int pcmBitDepthChroma;
+    int log2MinPcmCbSize;
+    int log2MaxPcmCbSize;
+    boolean pcmLoopFilterDisabled;
+    int numShortTermRefPicSets;
+    /** DeltaPocS0/S1 of each st_ref_pic_set, which are required to parse inter RPS prediction */
+    int[][] deltaPocS0;
+    int[][] deltaPocS1;
+    boolean longTermRefPicsPresent;
+    int numLongTermRefPicsSps;
+    boolean temporalMvpEnabled;
+    boolean strongIntraSmoothingEnabled;
+    boolean videoFullRange;
+    /** matrix_coeffs in VUI. (2=unspecified) */
+    int matrixCoeffs = 2;
+
+    int picWidthInCtbs;
+    int picHeightInCtbs;
+
+    /**
+     * Parse SPS which is supported by software decoder.
+     *
+     * @throws UnsupportedFormatException if the SPS is valid but not supported.
+     */
+    static SequenceParameterSet parse(NalUnit nal) throws IOException {
+        SequenceParameterSet sps = parseSyntax(nal);
+        // Main(1), Main10(2) and Main Still Picture(3) profile, or compatible with them
+        if (3 < sps.profileIdc && (sps.profileCompatibilityFlags & 0x70000000) == 0) {
+            throw new UnsupportedFormatException("general_profile_idc=" + sps.profileIdc);
+        }
+        if (sps.chromaFormatIdc != 1) {
+            throw new UnsupportedFormatException("chroma_format_idc=" + sps.chromaFormatIdc);
+        }
+        if (sps.bitDepthLuma != 8 || sps.bitDepthChroma != 8) {
+            throw new UnsupportedFormatException("bit depth=" + sps.bitDepthLuma + "/" + sps.bitDepthChroma);
+        }
+        return sps;
+    }
+
+    /**
+     * Parse SPS syntax of any profile, without checking decoder support.
+     */
+    static SequenceParameterSet parseSyntax(NalUnit nal) throws IOException {
+        BitReader br = new BitReader(nal.rbsp, 2, nal.rbspLength);
+        SequenceParameterSet sps = new SequenceParameterSet();
+        br.skipBits(4);     // sps_video_parameter_set_id
+        int maxSubLayersMinus1 = br.readBits(3);
+        br.skipBits(1);     // sps_temporal_id_nesting_flag
+        sps.parseProfileTierLevel(br, maxSubLayersMinus1);
+        sps.spsId = br.readUe(15);
+        sps.chromaFormatIdc = br.readUe(3);
+        if (sps.chromaFormatIdc == 3) {
+            br.skipBits(1);     // separate_colour_plane_flag
+        }
+        sps.width = br.readUe();
+        sps.height = br.readUe();
+        if (br.readFlag()) {    // conformance_window_flag
+            final int subWidthC = (sps.chromaFormatIdc == 1 || sps.chromaFormatIdc == 2) ? 2 : 1;
+            final int subHeightC = (sps.chromaFormatIdc == 1) ? 2 : 1;
+            sps.confWinLeft = br.readUe() * subWidthC;
+            sps.confWinRight = br.readUe() * subWidthC;
+            sps.confWinTop = br.readUe() * subHeightC;
+            sps.confWinBottom = br.readUe() * subHeightC;
+        }
+        sps.bitDepthLuma = br.readUe(8) + 8;
+        sps.bitDepthChroma = br.readUe(8) + 8;
+        sps.log2MaxPocLsb = br.readUe(12) + 4;
+        boolean subLayerOrderingInfo = br.readFlag();
+        for (int i = subLayerOrderingInfo ? 0 : maxSubLayersMinus1; i <= maxSubLayersMinus1; i++) {
+            br.readUe();    // sps_max_dec_pic_buffering_minus1
+            br.readUe();    // sps_max_num_reorder_pics
+            br.readUe();    // sps_max_latency_increase_plus1
+        }
+        sps.log2MinCbSize = br.readUe(3) + 3;
+        sps.log2CtbSize = sps.log2MinCbSize + br.readUe(3);
+        sps.log2MinTbSize = br.readUe(3) + 2;
+        sps.log2MaxTbSize = sps.log2MinTbSize + br.readUe(3);
+        if (6 < sps.log2CtbSize || sps.log2CtbSize < 4 || 5 < sps.log2MaxTbSize
+                || sps.log2MinCbSize <= sps.log2MinTbSize || sps.log2CtbSize < sps.log2MaxTbSize) {
+            throw new IOException("invalid block size");
+        }
+        if (sps.width == 0 || sps.height == 0 || 16888 < sps.width || 16888 < sps.height
+                || sps.width % (1 << sps.log2MinCbSize) != 0 || sps.height % (1 << sps.log2MinCbSize) != 0) {
+            throw new IOException("invalid picture size " + sps.width + "x" + sps.height);
+        }
+        if (sps.width <= sps.confWinLeft + sps.confWinRight || sps.height <= sps.confWinTop + sps.confWinBottom) {
+            throw new IOException("invalid conformance window");
+        }
+        br.readUe();    // max_transform_hierarchy_depth_inter
+        sps.maxTransformHierarchyDepthIntra = br.readUe(sps.log2CtbSize - sps.log2MinTbSize);
+        if (br.readFlag()) {    // scaling_list_enabled_flag
+            sps.scalingList = br.readFlag() ? ScalingList.parse(br) : ScalingList.createDefault();
+        }
+        br.skipBits(1);     // amp_enabled_flag
+        sps.saoEnabled = br.readFlag();
+        sps.pcmEnabled = br.readFlag();
+        if (sps.pcmEnabled) {
+            sps.pcmBitDepthLuma = br.readBits(4) + 1;
+            sps.pcmBitDepthChroma = br.readBits(4) + 1;
+            sps.log2MinPcmCbSize = br.readUe(2) + 3;
+            sps.log2MaxPcmCbSize = sps.log2MinPcmCbSize + br.readUe(2);
+            sps.pcmLoopFilterDisabled = br.readFlag();
+            if (sps.bitDepthLuma < sps.pcmBitDepthLuma || sps.bitDepthChroma < sps.pcmBitDepthChroma
+                    || 5 < sps.log2MaxPcmCbSize) {
+                throw new IOException("invalid PCM parameters");
+            }
+        }
+        sps.numShortTermRefPicSets = br.readUe(64);
+        sps.deltaPocS0 = new int[sps.numShortTermRefPicSets + 1][];
+        sps.deltaPocS1 = new int[sps.numShortTermRefPicSets + 1][];
+        for (int i = 0; i < sps.numShortTermRefPicSets; i++) {
+            sps.parseShortTermRefPicSet(br, i);
+        }
+        sps.longTermRefPicsPresent = br.readFlag();
+        if (sps.longTermRefPicsPresent) {
+            sps.numLongTermRefPicsSps = br.readUe(32);
+            br.skipBits(sps.numLongTermRefPicsSps * (sps.log2MaxPocLsb + 1));
+        }
+        sps.temporalMvpEnabled = br.readFlag();
+        sps.strongIntraSmoothingEnabled = br.readFlag();
+        if (br.readFlag()) {    // vui_parameters_present_flag
+            sps.parseVideoSignalType(br);
+        }
+
+        sps.picWidthInCtbs = (sps.width + (1 << sps.log2CtbSize) - 1) >> sps.log2CtbSize;
+        sps.picHeightInCtbs = (sps.height + (1 << sps.log2CtbSize) - 1) >> sps.log2CtbSize;
+        return sps;
+    }
+
+    private void parseProfileTierLevel(BitReader br, int maxSubLayersMinus1) throws IOException {
+        br.skipBits(3);     // general_profile_space, general_tier_flag
+        profileIdc = br.readBits(5);
+        profileCompatibilityFlags = br.readBits(32);
+        br.skipBits(4 + 43 + 1);
+        br.skipBits(8);     // general_level_idc
+        boolean[] profilePresent = new boolean[maxSubLayersMinus1];
+        boolean[] levelPresent = new boolean[maxSubLayersMinus1];
+        for (int i = 0; i < maxSubLayersMinus1; i++) {
+            profilePresent[i] = br.readFlag();
+            levelPresent[i] = br.readFlag();
+        }
+        if (0 < maxSubLayersMinus1) {
+            br.skipBits(2 * (8 - maxSubLayersMinus1));
+        }
+        for (int i = 0; i < maxSubLayersMinus1; i++) {
+            br.skipBits((profilePresent[i] ? 88 : 0) + (levelPresent[i] ? 8 : 0));
+        }
+    }
+
+    /**
+     * Parse st_ref_pic_set(stRpsIdx). (7.3.7)
+     *
+     * @param stRpsIdx index, which is equal to num_short_term_ref_pic_sets in slice header.
+     */
+    void parseShortTermRefPicSet(BitReader br, int stRpsIdx) throws IOException {
+        boolean interRefPicSetPrediction = (stRpsIdx != 0) && br.readFlag();
+        if (interRefPicSetPrediction) {
+            int deltaIdx = 1;
+            if (stRpsIdx == numShortTermRefPicSets) {
+                deltaIdx = br.readUe(stRpsIdx - 1) + 1;
+            }
+            int sign = br.readBits(1);
+            int deltaRps = (1 - 2 * sign) * (br.readUe(32767) + 1);
+            int refRpsIdx = stRpsIdx - deltaIdx;
+            int[] refS0 = deltaPocS0[refRpsIdx];
+            int[] refS1 = deltaPocS1[refRpsIdx];
+            int numDeltaPocs = refS0.length + refS1.length;
+            boolean[] useDelta = new boolean[numDeltaPocs + 1];
+            for (int j = 0; j <= numDeltaPocs; j++) {
+                boolean used = br.readFlag();
+                useDelta[j] = used || br.readFlag();
+            }
+            // derivation of DeltaPocS0 and DeltaPocS1 (7-61, 7-62)
+            int[] s0 = new int[numDeltaPocs + 1];
+            int[] s1 = new int[numDeltaPocs + 1];
+            int n0 = 0;
+            int n1 = 0;
+            for (int j = refS1.length - 1; 0 <= j; j--) {
+                int dPoc = refS1[j] + deltaRps;
+                if (dPoc < 0 && useDelta[refS0.length + j]) {
+                    s0[n0++] = dPoc;
+                }
+            }
+            if (deltaRps < 0 && useDelta[numDeltaPocs]) {
+                s0[n0++] = deltaRps;
+            }
+            for (int j = 0; j < refS0.length; j++) {
+                int dPoc = refS0[j] + deltaRps;
+                if (dPoc < 0 && useDelta[j]) {
+                    s0[n0++] = dPoc;
+                }
+            }
+            for (int j = refS0.length - 1; 0 <= j; j--) {
+                int dPoc = refS0[j] + deltaRps;
+                if (0 < dPoc && useDelta[j]) {
+                    s1[n1++] = dPoc;
+                }
+            }
+            if (0 < deltaRps && useDelta[numDeltaPocs]) {
+                s1[n1++] = deltaRps;
+            }
+            for (int j = 0; j < refS1.length; j++) {
+                int dPoc = refS1[j] + deltaRps;
+                if (0 < dPoc && useDelta[refS0.length + j]) {
+                    s1[n1++] = dPoc;
+                }
+            }
+            deltaPocS0[stRpsIdx] = Arrays.copyOf(s0, n0);
+            deltaPocS1[stRpsIdx] = Arrays.copyOf(s1, n1);
+        } else {
+            int numNegativePics = br.readUe(16);
+            int numPositivePics = br.readUe(16);
+            int[] s0 = new int[numNegativePics];
+            int[] s1 = new int[numPositivePics];
+            int poc = 0;
+            for (int i = 0; i < numNegativePics; i++) {
+                poc -= br.readUe(32767) + 1;
+                br.skipBits(1);     // used_by_curr_pic_s0_flag
+                s0[i] = poc;
+            }
+            poc = 0;
+            for (int i = 0; i < numPositivePics; i++) {
+                poc += br.readUe(32767) + 1;
+                br.skipBits(1);     // used_by_curr_pic_s1_flag
+                s1[i] = poc;
+            }
+            deltaPocS0[stRpsIdx] = s0;
+            deltaPocS1[stRpsIdx] = s1;
+        }
+    }
+
+    /**
+     * Parse vui_parameters() up to video signal type.
+     */
+    private void parseVideoSignalType(BitReader br) throws IOException {
+        if (br.readFlag()) {    // aspect_ratio_info_present_flag
+            if (br.readBits(8) == 255) {   // aspect_ratio_idc == EXTENDED_SAR
+                br.skipBits(32);
+            }
+        }
+        if (br.readFlag()) {    // overscan_info_present_flag
+            br.skipBits(1);
+        }
+        if (br.readFlag()) {    // video_signal_type_present_flag
+            br.skipBits(3);     // video_format
+            videoFullRange = br.readFlag();
+            if (br.readFlag()) {    // colour_description_present_flag
+                br.skipBits(16);    // colour_primaries, transfer_characteristics
+                matrixCoeffs = br.readBits(8);
+            }
+        }
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright (c) 2017 yohhoy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package jp.yohhoy.heifreader.hevc;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Slice segment header
+ *
+ * Dependent slice segment inherits slice header from preceding independent slice segment.
+ *
+ * @see "ITU-T H.265, 7.3.6 Slice segment header syntax"
+ */
+final class SliceHeader {
+    static final int SLICE_TYPE_I = 2;
+
+    SequenceParameterSet sps;
+    PictureParameterSet pps;
+    boolean firstSliceSegmentInPic;
+    boolean dependentSliceSegment;
+    int sliceSegmentAddress;
+    /** address of first CTB of the slice (SliceAddrRs) */
+    int sliceAddrRs;
+    int sliceType;
+    boolean saoLuma;
+    boolean saoChroma;
+    int sliceQpY;
+    int cbQpOffset;
+    int crQpOffset;
+    boolean deblockingFilterDisabled;
+    int betaOffsetDiv2;
+    int tcOffsetDiv2;
+    boolean loopFilterAcrossSlicesEnabled;
+    /** entry_point_offset_minus1 + 1 */
+    int[] entryPointOffsets;
+    /** byte offset of slice segment data in RBSP */
+    int dataOffset;
+
+    /**
+     * @param nal coded slice segment NAL unit.
+     * @param ppsMap picture parameter sets by pps_pic_parameter_set_id.
+     * @param spsMap sequence parameter sets by sps_seq_parameter_set_id.
+     * @param prev header of preceding slice segment in the picture, or null.
+     */
+    static SliceHeader parse(NalUnit nal, Map<Integer, PictureParameterSet> ppsMap,
+                             Map<Integer, SequenceParameterSet> spsMap, SliceHeader prev) throws IOException {
+        BitReader br = new BitReader(nal.rbsp, 2, nal.rbspLength);
+        SliceHeader sh = new SliceHeader();
+        sh.firstSliceSegmentInPic = br.readFlag();
+        if (nal.isIrap()) {
+            br.skipBits(1);     // no_output_of_prior_pics_flag
+        }
+        int ppsId = br.readUe(63);
+        PictureParameterSet pps = ppsMap.get(ppsId);
+        SequenceParameterSet sps = (pps != null) ? spsMap.get(pps.spsId) : null;
+        if (sps == null) {
+            throw new IOException("parameter set is not found");
+        }
+        if (!sh.firstSliceSegmentInPic) {
+            if (prev == null || prev.pps != pps) {
+                throw new IOException("first slice segment is missing");
+            }
+        } else if (prev != null) {
+            throw new IOException("multiple pictures are not supported");
+        }
+        sh.sps = sps;
+        sh.pps = pps;
+        final int picSizeInCtbs = sps.picWidthInCtbs * sps.picHeightInCtbs;
+        if (!sh.firstSliceSegmentInPic) {
+            if (pps.dependentSliceSegmentsEnabled) {
+                sh.dependentSliceSegment = br.readFlag();
+            }
+            sh.sliceSegmentAddress = br.readBits(ceilLog2(picSizeInCtbs));
+            if (picSizeInCtbs <= sh.sliceSegmentAddress) {
+                throw new IOException("invalid slice_segment_address");
+            }
+        }
+        if (sh.dependentSliceSegment) {
+            sh.copySliceHeader(prev);
+        } else {
+            sh.sliceAddrRs = sh.sliceSegmentAddress;
+            br.skipBits(pps.numExtraSliceHeaderBits);
+            sh.sliceType = br.readUe(2);
+            if (sh.sliceType != SLICE_TYPE_I) {
+                throw new UnsupportedFormatException("slice_type=" + sh.sliceType);
+            }
+            if (pps.outputFlagPresent) {
+                br.skipBits(1);     // pic_output_flag
+            }
+            if (nal.type != NalUnit.TYPE_IDR_W_RADL && nal.type != NalUnit.TYPE_IDR_N_LP) {
+                br.skipBits(sps.log2MaxPocLsb);     // slice_pic_order_cnt_lsb
+                if (!br.readFlag()) {   // short_term_ref_pic_set_sps_flag
+                    sps.parseShortTermRefPicSet(br, sps.numShortTermRefPicSets);
+                } else if (1 < sps.numShortTermRefPicSets) {
+                    br.skipBits(ceilLog2(sps.numShortTermRefPicSets));
+                }
+                if (sps.longTermRefPicsPresent) {
+                    int numLongTermSps = 0;
+                    if (0 < sps.numLongTermRefPicsSps) {
+                        numLongTermSps = br.readUe(sps.numLongTermRefPicsSps);
+                    }
+                    int numLongTermPics = br.readUe(32);
+                    for (int i = 0; i < numLongTermSps + numLongTermPics; i++) {
+                        if (i < numLongTermSps) {
+                            if (1 < sps.numLongTermRefPicsSps) {
+                                br.skipBits(ceilLog2(sps.numLongTermRefPicsSps));   // lt_idx_sps
+                            }
+                        } else {
+                            br.skipBits(sps.log2MaxPocLsb + 1);   // poc_lsb_lt, used_by_curr_pic_lt_flag
+                        }
+                        if (br.readFlag()) {    // delta_poc_msb_present_flag
+                            br.readUe();        // delta_poc_msb_cycle_lt
+                        }
+                    }
+                }
+                if (sps.temporalMvpEnabled) {
+                    br.skipBits(1);     // slice_temporal_mvp_enabled_flag
+                }
+            }
+            if (sps.saoEnabled) {
+                sh.saoLuma = br.readFlag();
+                sh.saoChroma = br.readFlag();
+            }
+            sh.sliceQpY = pps.initQp + br.readSe(-pps.initQp, 51 - pps.initQp);
+            if (pps.sliceChromaQpOffsetsPresent) {
+                sh.cbQpOffset = br.readSe(-12, 12);
+                sh.crQpOffset = br.readSe(-12, 12);
+            }
+            boolean deblockingFilterOverride = false;
+            if (pps.deblockingFilterOverrideEnabled) {
+                deblockingFilterOverride = br.readFlag();
+            }
+            sh.deblockingFilterDisabled = pps.deblockingFilterDisabled;
+            sh.betaOffsetDiv2 = pps.betaOffsetDiv2;
+            sh.tcOffsetDiv2 = pps.tcOffsetDiv2;
+            if (deblockingFilterOverride) {
+                sh.deblockingFilterDisabled = br.readFlag();
+                if (!sh.deblockingFilterDisabled) {
+                    sh.betaOffsetDiv2 = br.readSe(-6, 6);
+                    sh.tcOffsetDiv2 = br.readSe(-6, 6);
+                }
+            }
+            sh.loopFilterAcrossSlicesEnabled = pps.loopFilterAcrossSlicesEnabled;
+            if (pps.loopFilterAcrossSlicesEnabled
+                    && (sh.saoLuma || sh.saoChroma || !sh.deblockingFilterDisabled)) {
+                sh.loopFilterAcrossSlicesEnabled = br.readFlag();
+            }
+        }
+        sh.entryPointOffsets = new int[0];
+        if (pps.tilesEnabled || pps.entropyCodingSyncEnabled) {
+            int numEntryPoints = br.readUe(picSizeInCtbs - 1);
+            if (0 < numEntryPoints) {
+                int offsetLen = br.readUe(31) + 1;
+                sh.entryPointOffsets = new int[numEntryPoints];
+                for (int i = 0; i < numEntryPoints; i++) {
+                    long offset = (br.readBits(offsetLen) & 0xffffffffL) + 1;
+                    if (nal.rbspLength < offset) {
+                        throw new IOException("invalid entry_point_offset");
+                    }
+                    sh.entryPointOffsets[i] = (int) offset;
+                }
+            }
+        }
+        if (pps.sliceSegmentHeaderExtensionPresent) {
+            br.skipBits(8 * br.readUe(256));
+        }
+        // byte_alignment()
+        if (!br.readFlag()) {
+            throw new IOException("invalid byte_alignment");
+        }
+        br.byteAlign();
+        sh.dataOffset = br.bytePosition();
+        return sh;
+    }
+
+    private void copySliceHeader(SliceHeader src) {
+        sliceAddrRs = src.sliceAddrRs;
+        sliceType = src.sliceType;
+        saoLuma = src.saoLuma;
+        saoChroma = src.saoChroma;
+        sliceQpY = src.sliceQpY;
+        cbQpOffset = src.cbQpOffset;
+        crQpOffset = src.crQpOffset;
+        deblockingFilterDisabled = src.deblockingFilterDisabled;
+        betaOffsetDiv2 = src.betaOffsetDiv2;
+        tcOffsetDiv2 = src.tcOffsetDiv2;
+        loopFilterAcrossSlicesEnabled = src.loopFilterAcrossSlicesEnabled;
+    }
+
+    private static int ceilLog2(int value) {
+        return 32 - Integer.numberOfLeadingZeros(value - 1);
+    }
+}
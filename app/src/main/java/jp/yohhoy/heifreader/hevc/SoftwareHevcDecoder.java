@@ -0,0 +1,240 @@
+/*
+ * Copyright (c) 2017 yohhoy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package jp.yohhoy.heifreader.hevc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jp.yohhoy.heifreader.HevcConfig;
+import jp.yohhoy.heifreader.HevcDecoder;
+
+/**
+ * Pure-Java HEVC decoder for still image
+ *
+ * The decoder supports single intra picture of Main and Main Still Picture profile (8bit,
+ * 4:2:0) including tiles, wavefront parallel processing, PCM, transform skip, lossless
+ * coding and scaling lists. Substreams (tiles or CTB rows) and in-loop filters are processed
+ * in parallel on worker threads.
+ * Only {@link #FORMAT_YUV420} output is supported, and the output is cropped by conformance
+ * window.
+ *
+ * This class does not depend on Android framework, so it can be used on JVM.
+ */
+public final class SoftwareHevcDecoder implements HevcDecoder {
+    private final ThreadPoolExecutor mExecutor;
+    private final int mThreads;
+
+    /**
+     * Create decoder which uses all available processors.
+     */
+    public SoftwareHevcDecoder() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param threads maximum number of threads which decode one image, including calling thread.
+     */
+    public SoftwareHevcDecoder(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("invalid threads(" + threads + ")");
+        }
+        mThreads = threads;
+        if (1 < threads) {
+            mExecutor = new ThreadPoolExecutor(threads - 1, threads - 1,
+                    1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "SoftwareHevcDecoder-" + mCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            mExecutor.allowCoreThreadTimeOut(true);
+        } else {
+            mExecutor = null;
+        }
+    }
+
+    @Override
+    public boolean decode(HevcConfig config, int width, int height, List<ByteBuffer> bitstream, int format,
+                          Output output) throws IOException {
+        if (format != FORMAT_YUV420) {
+            return false;
+        }
+        List<ByteBuffer> nalUnits = splitAnnexB(config.getParamset());
+        nalUnits.addAll(splitLengthPrefixed(bitstream, config.getNalLengthSize()));
+        PictureDecoder pd = decodePicture(nalUnits);
+        writeOutput(pd, output);
+        return true;
+    }
+
+    /**
+     * Decode single picture.
+     *
+     * @param nalUnits parameter sets and coded slice segment NAL units of the picture.
+     * @return The decoding process, which holds decoded picture.
+     */
+    PictureDecoder decodePicture(List<ByteBuffer> nalUnits) throws IOException {
+        Map<Integer, SequenceParameterSet> spsMap = new HashMap<>();
+        Map<Integer, PictureParameterSet> ppsMap = new HashMap<>();
+        PictureDecoder pd = null;
+        SliceHeader prev = null;
+        try {
+            for (ByteBuffer buf : nalUnits) {
+                NalUnit nal = NalUnit.parse(buf);
+                if (nal.layerId != 0) {
+                    continue;
+                }
+                if (nal.type == NalUnit.TYPE_SPS) {
+                    SequenceParameterSet sps = SequenceParameterSet.parse(nal);
+                    spsMap.put(sps.spsId, sps);
+                } else if (nal.type == NalUnit.TYPE_PPS) {
+                    PictureParameterSet pps = PictureParameterSet.parse(nal);
+                    ppsMap.put(pps.ppsId, pps);
+                } else if (nal.isSlice()) {
+                    SliceHeader sh = SliceHeader.parse(nal, ppsMap, spsMap, prev);
+                    if (pd == null) {
+                        pd = new PictureDecoder(sh.sps, sh.pps, mExecutor, mThreads);
+                    }
+                    pd.decodeSliceSegment(nal, sh);
+                    prev = sh;
+                }
+            }
+            if (pd == null) {
+                throw new IOException("no coded picture");
+            }
+            pd.applyLoopFilters();
+        } catch (IndexOutOfBoundsException ex) {
+            throw new IOException("corrupted HEVC bitstream", ex);
+        }
+        return pd;
+    }
+
+    /**
+     * Write planes cropped by conformance window.
+     */
+    private static void writeOutput(PictureDecoder pd, Output output) {
+        final SequenceParameterSet sps = pd.sps;
+        final Picture pic = pd.picture;
+        final int width = sps.width - sps.confWinLeft - sps.confWinRight;
+        final int height = sps.height - sps.confWinTop - sps.confWinBottom;
+        Plane[] planes = new Plane[3];
+        for (int c = 0; c < 3; c++) {
+            final int shift = (c == 0) ? 0 : 1;
+            final int stride = pic.planeWidths[c];
+            final int offset = (sps.confWinTop >> shift) * stride + (sps.confWinLeft >> shift);
+            ByteBuffer src = ByteBuffer.wrap(pic.planes[c], offset, pic.planes[c].length - offset).slice();
+            planes[c] = new Plane(src, stride, 1);
+        }
+        output.writeImage(planes, width, height);
+    }
+
+    private static List<ByteBuffer> splitAnnexB(ByteBuffer src) {
+        List<ByteBuffer> nalUnits = new ArrayList<>();
+        final int end = src.limit();
+        int start = -1;
+        int pos = src.position();
+        while (pos + 3 <= end) {
+            if (src.get(pos) == 0 && src.get(pos + 1) == 0 && src.get(pos + 2) == 1) {
+                if (0 <= start) {
+                    nalUnits.add(slice(src, start, trimZeros(src, start, pos)));
+                }
+                pos += 3;
+                start = pos;
+            } else {
+                pos++;
+            }
+        }
+        if (0 <= start) {
+            nalUnits.add(slice(src, start, trimZeros(src, start, end)));
+        }
+        return nalUnits;
+    }
+
+    private static int trimZeros(ByteBuffer src, int start, int end) {
+        while (start < end && src.get(end - 1) == 0) {
+            end--;
+        }
+        return end;
+    }
+
+    private static List<ByteBuffer> splitLengthPrefixed(List<ByteBuffer> extents, int nalLengthSize)
+            throws IOException {
+        ByteBuffer src;
+        if (extents.size() == 1) {
+            src = extents.get(0).duplicate();
+        } else {
+            int size = 0;
+            for (ByteBuffer extent : extents) {
+                size += extent.remaining();
+            }
+            src = ByteBuffer.allocate(size);
+            for (ByteBuffer extent : extents) {
+                src.put(extent.duplicate());
+            }
+            src.flip();
+        }
+        src.order(ByteOrder.BIG_ENDIAN);
+        List<ByteBuffer> nalUnits = new ArrayList<>();
+        while (src.hasRemaining()) {
+            if (src.remaining() < nalLengthSize) {
+                throw new IOException("truncated NAL unit length");
+            }
+            int length = 0;
+            for (int i = 0; i < nalLengthSize; i++) {
+                length = (length << 8) | (src.get() & 0xff);
+            }
+            if (length < 0 || src.remaining() < length) {
+                throw new IOException("truncated NAL unit");
+            }
+            nalUnits.add(slice(src, src.position(), src.position() + length));
+            src.position(src.position() + length);
+        }
+        return nalUnits;
+    }
+
+    private static ByteBuffer slice(ByteBuffer src, int start, int end) {
+        ByteBuffer buf = src.duplicate();
+        buf.limit(end);
+        buf.position(start);
+        return buf.slice();
+    }
+
+    @Override
+    public void close() {
+        if (mExecutor != null) {
+            mExecutor.shutdown();
+        }
+    }
+}
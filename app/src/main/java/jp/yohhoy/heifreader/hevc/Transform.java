@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2017 yohhoy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package jp.yohhoy.heifreader.hevc;
+
+/**
+ * Scaling (dequantization) and inverse transform
+ *
+ * Inverse transform is computed as partial matrix multiplication, which skips zero coefficients
+ * outside of the bounding box of significant coefficients.
+ *
+ * @see "ITU-T H.265, 8.6 Scaling, transformation and array construction process"
+ */
+final class Transform {
+    private static final int[] LEVEL_SCALE = {40, 45, 51, 57, 64, 72};
+
+    /** DST-VII 4x4 transform matrix */
+    private static final int[] DST_MATRIX = {
+            29, 55, 74, 84,
+            74, 74, 0, -74,
+            84, -29, -74, 55,
+            55, -84, 74, -29,
+    };
+
+    /** DCT-II transform matrix for each log2TrafoSize */
+    private static final int[][] DCT_MATRIX = new int[6][];
+
+    static {
+        // transMatrix coefficients in column 0 (8.6.4.2, equation 8-315)
+        final int[] cos = {
+                64, 90, 90, 90, 89, 88, 87, 85, 83, 82, 80, 78, 75, 73, 70, 67,
+                64, 61, 57, 54, 50, 46, 43, 38, 36, 31, 25, 22, 18, 13, 9, 4,
+        };
+        for (int log2 = 2; log2 <= 5; log2++) {
+            final int n = 1 << log2;
+            final int[] matrix = new int[n * n];
+            for (int k = 0; k < n; k++) {
+                for (int i = 0; i < n; i++) {
+                    // angle in units of pi/64
+                    int angle = ((k << (5 - log2)) * (2 * i + 1)) & 127;
+                    int sign = 1;
+                    if (64 < angle) {
+                        angle = 128 - angle;
+                    }
+                    if (32 < angle) {
+                        angle = 64 - angle;
+                        sign = -1;
+                    }
+                    matrix[k * n + i] = (angle == 32) ? 0 : sign * cos[angle];
+                }
+            }
+            DCT_MATRIX[log2] = matrix;
+        }
+    }
+
+    private Transform() {
+    }
+
+    /**
+     * Scale transform coefficient levels in place.
+     *
+     * @param coeffs coefficients in raster order.
+     * @param positions raster positions of non-zero coefficients.
+     * @param count number of non-zero coefficients.
+     * @param factors scaling factors in raster order, or null for flat scaling.
+     */
+    static void dequantize(int[] coeffs, int[] positions, int count, int log2Size, int qp, int[] factors) {
+        final int bdShift = 8 + log2Size - 5;
+        final long round = 1L << (bdShift - 1);
+        final int scale = LEVEL_SCALE[qp % 6] << (qp / 6);
+        for (int i = 0; i < count; i++) {
+            final int pos = positions[i];
+            final int m = (factors != null) ? factors[pos] : 16;
+            long value = (coeffs[pos] * (long) m * scale + round) >> bdShift;
+            coeffs[pos] = clip16(value);
+        }
+    }
+
+    /**
+     * Inverse transform of scaled coefficients.
+     *
+     * @param coeffs scaled coefficients in raster order.
+     * @param log2Size log2 of transform block size.
+     * @param dst destination of residual samples in raster order.
+     * @param tmp temporary buffer which has at least (1 << log2Size)^2 elements.
+     * @param dst4x4 use DST for 4x4 intra luma block.
+     * @param maxX maximum column index of non-zero coefficient.
+     * @param maxY maximum row index of non-zero coefficient.
+     */
+    static void inverse(int[] coeffs, int log2Size, int[] dst, int[] tmp, boolean dst4x4, int maxX, int maxY) {
+        final int n = 1 << log2Size;
+        final int[] matrix = dst4x4 ? DST_MATRIX : DCT_MATRIX[log2Size];
+        // 1st stage: vertical transform of each column
+        for (int x = 0; x <= maxX; x++) {
+            for (int y = 0; y < n; y++) {
+                int sum = 0;
+                for (int k = 0; k <= maxY; k++) {
+                    sum += matrix[k * n + y] * coeffs[k * n + x];
+                }
+                tmp[y * n + x] = clip16((sum + 64) >> 7);
+            }
+        }
+        // 2nd stage: horizontal transform of each row
+        for (int y = 0; y < n; y++) {
+            final int row = y * n;
+            for (int x = 0; x < n; x++) {
+                int sum = 0;
+                for (int k = 0; k <= maxX; k++) {
+                    sum += matrix[k * n + x] * tmp[row + k];
+                }
+                dst[row + x] = (sum + 2048) >> 12;
+            }
+        }
+    }
+
+    /**
+     * Residual of transform skip block.
+     */
+    static void transformSkip(int[] coeffs, int log2Size, int[] dst) {
+        final int count = 1 << (2 * log2Size);
+        for (int i = 0; i < count; i++) {
+            dst[i] = ((coeffs[i] << 7) + 2048) >> 12;
+        }
+    }
+
+    private static int clip16(long value) {
+        return (int) Math.max(-32768, Math.min(32767, value));
+    }
+
+    private static int clip16(int value) {
+        return Math.max(-32768, Math.min(32767, value));
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2017 yohhoy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package jp.yohhoy.heifreader.hevc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Video signal type in VUI (video usability information) of sequence parameter set
+ *
+ * @see "ITU-T H.265, E.2.1 VUI parameters semantics"
+ */
+public final class VideoSignalType {
+    /**
+     * matrix_coeffs: ITU-R BT.709
+     */
+    public static final int MATRIX_BT709 = 1;
+    /**
+     * matrix_coeffs: unspecified
+     */
+    public static final int MATRIX_UNSPECIFIED = 2;
+    /**
+     * matrix_coeffs: ITU-R BT.470 System B, G (equivalent to BT.601)
+     */
+    public static final int MATRIX_BT470BG = 5;
+    /**
+     * matrix_coeffs: SMPTE 170M (equivalent to BT.601)
+     */
+    public static final int MATRIX_SMPTE170M = 6;
+
+    /**
+     * matrix_coeffs, which is {@link #MATRIX_UNSPECIFIED} if VUI has no colour description.
+     */
+    public final int matrixCoeffs;
+    /**
+     * video_full_range_flag
+     */
+    public final boolean fullRange;
+
+    private VideoSignalType(int matrixCoeffs, boolean fullRange) {
+        this.matrixCoeffs = matrixCoeffs;
+        this.fullRange = fullRange;
+    }
+
+    /**
+     * Parse video signal type from SPS of any profile.
+     *
+     * @param sps SPS NAL unit without start code. (position is not modified)
+     * @return The video signal type, which has default values if SPS has no VUI.
+     * @throws IOException if the SPS is invalid.
+     */
+    public static VideoSignalType parse(ByteBuffer sps) throws IOException {
+        NalUnit nal = NalUnit.parse(sps.duplicate());
+        if (nal.type != NalUnit.TYPE_SPS) {
+            throw new IOException("not SPS NAL unit(" + nal.type + ")");
+        }
+        SequenceParameterSet params = SequenceParameterSet.parseSyntax(nal);
+        return new VideoSignalType(params.matrixCoeffs, params.videoFullRange);
+    }
+
+    @Override
+    public String toString() {
+        return "VideoSignalType[matrix=" + matrixCoeffs + ";fullRange=" + fullRange + "]";
+    }
+}
@@ -0,0 +1,200 @@
+package jp.yohhoy.heifreader;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test for DecodeFuture.
+ */
+public class DecodeFutureTest {
+    static class CountingListener<T> implements DecodeFuture.Listener<T> {
+        final AtomicInteger calls = new AtomicInteger();
+
+        @Override
+        public void onComplete(DecodeFuture<T> future) {
+            assertTrue(future.isDone());
+            calls.incrementAndGet();
+        }
+    }
+
+    @Test
+    public void completeOnce() throws Exception {
+        DecodeFuture<String> future = new DecodeFuture<>();
+        CountingListener<String> listener = new CountingListener<>();
+        future.addListener(listener);
+        assertFalse(future.isDone());
+        assertEquals(0, listener.calls.get());
+
+        assertTrue(future.complete("a"));
+        assertFalse(future.complete("b"));
+        assertFalse(future.fail(new IOException()));
+        assertFalse(future.cancel(true));
+        assertTrue(future.isSucceeded());
+        assertEquals("a", future.get());
+        assertEquals(1, listener.calls.get());
+
+        // listener added after completion is called immediately
+        CountingListener<String> late = new CountingListener<>();
+        future.addListener(late);
+        assertEquals(1, late.calls.get());
+    }
+
+    @Test
+    public void failure() throws Exception {
+        DecodeFuture<String> future = new DecodeFuture<>();
+        IOException error = new IOException("broken");
+        assertTrue(future.fail(error));
+        assertTrue(future.isDone());
+        assertFalse(future.isSucceeded());
+        try {
+            future.get();
+            fail();
+        } catch (ExecutionException ex) {
+            assertSame(error, ex.getCause());
+        }
+    }
+
+    @Test
+    public void cancelRunsAction() throws Exception {
+        DecodeFuture<String> future = new DecodeFuture<>();
+        final AtomicInteger cancelled = new AtomicInteger();
+        future.setCancelAction(new Runnable() {
+            @Override
+            public void run() {
+                cancelled.incrementAndGet();
+            }
+        });
+        assertTrue(future.cancel(true));
+        assertFalse(future.cancel(true));
+        assertTrue(future.isCancelled());
+        assertEquals(1, cancelled.get());
+        assertFalse(future.complete("a"));
+        try {
+            future.get();
+            fail();
+        } catch (CancellationException ex) {
+            // expected
+        }
+
+        // action set after cancellation is run immediately
+        future.setCancelAction(new Runnable() {
+            @Override
+            public void run() {
+                cancelled.incrementAndGet();
+            }
+        });
+        assertEquals(2, cancelled.get());
+    }
+
+    @Test
+    public void cancelRunsReplacedAction() {
+        DecodeFuture<String> future = new DecodeFuture<>();
+        final AtomicInteger first = new AtomicInteger();
+        final AtomicInteger second = new AtomicInteger();
+        future.setCancelAction(new Runnable() {
+            @Override
+            public void run() {
+                first.incrementAndGet();
+            }
+        });
+        future.setCancelAction(new Runnable() {
+            @Override
+            public void run() {
+                second.incrementAndGet();
+            }
+        });
+        assertTrue(future.cancel(true));
+        assertEquals(0, first.get());
+        assertEquals(1, second.get());
+        assertFalse(future.cancel(true));
+        assertEquals(1, second.get());
+    }
+
+    @Test
+    public void cancelActionIsNotRunAfterCompletion() {
+        DecodeFuture<String> future = new DecodeFuture<>();
+        final AtomicInteger cancelled = new AtomicInteger();
+        future.setCancelAction(new Runnable() {
+            @Override
+            public void run() {
+                cancelled.incrementAndGet();
+            }
+        });
+        future.complete("a");
+        future.cancel(true);
+        assertEquals(0, cancelled.get());
+    }
+
+    @Test(expected = TimeoutException.class)
+    public void getTimeout() throws Exception {
+        new DecodeFuture<String>().get(10, TimeUnit.MILLISECONDS);
+    }
+
+    @Test
+    public void submitOnExecutor() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            DecodeFuture<String> future = DecodeFuture.submit(executor, new Callable<String>() {
+                @Override
+                public String call() {
+                    return "done";
+                }
+            });
+            assertEquals("done", future.get(1, TimeUnit.SECONDS));
+
+            DecodeFuture<String> failed = DecodeFuture.submit(executor, new Callable<String>() {
+                @Override
+                public String call() throws IOException {
+                    throw new IOException("broken");
+                }
+            });
+            try {
+                failed.get(1, TimeUnit.SECONDS);
+                fail();
+            } catch (ExecutionException ex) {
+                assertTrue(ex.getCause() instanceof IOException);
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void cancelInterruptsSubmittedTask() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final CountDownLatch started = new CountDownLatch(1);
+            final CountDownLatch interrupted = new CountDownLatch(1);
+            DecodeFuture<String> future = DecodeFuture.submit(executor, new Callable<String>() {
+                @Override
+                public String call() {
+                    started.countDown();
+                    try {
+                        Thread.sleep(10000);
+                    } catch (InterruptedException ex) {
+                        interrupted.countDown();
+                    }
+                    return "done";
+                }
+            });
+            assertTrue(started.await(1, TimeUnit.SECONDS));
+            assertTrue(future.cancel(true));
+            assertTrue(interrupted.await(1, TimeUnit.SECONDS));
+            assertTrue(future.isCancelled());
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
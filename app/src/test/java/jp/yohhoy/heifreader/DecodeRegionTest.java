@@ -0,0 +1,45 @@
+package jp.yohhoy.heifreader;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test for DecodeRegion.
+ */
+public class DecodeRegionTest {
+    @Test
+    public void outputSize() {
+        DecodeRegion region = new DecodeRegion(10, 20, 1440, 961, 4);
+        assertEquals(360, region.outputWidth());
+        assertEquals(241, region.outputHeight());
+        assertEquals(1450, region.right());
+        assertEquals(981, region.bottom());
+        assertFalse(region.isFull(1440, 961));
+        assertTrue(DecodeRegion.full(1440, 961).isFull(1440, 961));
+    }
+
+    @Test
+    public void intersects() {
+        DecodeRegion region = new DecodeRegion(512, 0, 100, 100, 1);
+        assertFalse(region.intersects(0, 0, 512, 512));
+        assertTrue(region.intersects(512, 0, 512, 512));
+        assertTrue(region.intersects(600, 99, 512, 512));
+        assertFalse(region.intersects(0, 100, 1024, 512));
+    }
+
+    @Test
+    public void sampleSizeForTarget() {
+        assertEquals(1, DecodeRegion.sampleSizeForTarget(1440, 960, 0, 0));
+        assertEquals(1, DecodeRegion.sampleSizeForTarget(1440, 960, 2000, 0));
+        // output keeps at least target size
+        assertEquals(4, DecodeRegion.sampleSizeForTarget(1440, 960, 300, 0));
+        assertEquals(3, DecodeRegion.sampleSizeForTarget(1440, 960, 300, 300));
+        assertEquals(13, DecodeRegion.sampleSizeForTarget(4032, 3024, 0, 232));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidSampleSize() {
+        new DecodeRegion(0, 0, 10, 10, 0);
+    }
+}
@@ -0,0 +1,148 @@
+package jp.yohhoy.heifreader;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test for DecoderPool.
+ */
+public class DecoderPoolTest {
+    private static final long TIMEOUT = 1000;
+
+    static class FakeCodec {
+        final String key;
+        boolean released;
+
+        FakeCodec(String key) {
+            this.key = key;
+        }
+    }
+
+    static class FakeFactory implements DecoderPool.SessionFactory<String, FakeCodec> {
+        final List<FakeCodec> created = new ArrayList<>();
+
+        @Override
+        public FakeCodec create(String key) throws IOException {
+            FakeCodec codec = new FakeCodec(key);
+            created.add(codec);
+            return codec;
+        }
+
+        @Override
+        public void release(FakeCodec session) {
+            assertFalse("double release", session.released);
+            session.released = true;
+        }
+    }
+
+    private FakeFactory mFactory;
+    private long mNow;
+    private DecoderPool<String, FakeCodec> mPool;
+
+    @Before
+    public void setUp() {
+        mFactory = new FakeFactory();
+        mNow = 0;
+        mPool = new DecoderPool<>(mFactory, TIMEOUT, 2, new DecoderPool.Ticker() {
+            @Override
+            public long nanoTime() {
+                return mNow;
+            }
+        }, null);
+    }
+
+    @Test
+    public void reuseSameKey() throws Exception {
+        FakeCodec codec = mPool.acquire("A");
+        mPool.recycle("A", codec);
+        assertSame(codec, mPool.acquire("A"));
+        assertEquals(1, mFactory.created.size());
+        assertEquals(0, mPool.getIdleCount());
+    }
+
+    @Test
+    public void createForDifferentKey() throws Exception {
+        FakeCodec codecA = mPool.acquire("A");
+        mPool.recycle("A", codecA);
+        FakeCodec codecB = mPool.acquire("B");
+        assertNotSame(codecA, codecB);
+        assertEquals("B", codecB.key);
+        assertEquals(1, mPool.getIdleCount());
+    }
+
+    @Test
+    public void concurrentLeases() throws Exception {
+        FakeCodec codec1 = mPool.acquire("A");
+        FakeCodec codec2 = mPool.acquire("A");
+        assertNotSame(codec1, codec2);
+        mPool.recycle("A", codec1);
+        mPool.recycle("A", codec2);
+        assertEquals(2, mPool.getIdleCount());
+    }
+
+    @Test
+    public void discardReleases() throws Exception {
+        FakeCodec codec = mPool.acquire("A");
+        mPool.discard(codec);
+        assertTrue(codec.released);
+        assertNotSame(codec, mPool.acquire("A"));
+    }
+
+    @Test
+    public void evictIdleTimeout() throws Exception {
+        FakeCodec codecA = mPool.acquire("A");
+        FakeCodec codecB = mPool.acquire("B");
+        mPool.recycle("A", codecA);
+        mNow = TIMEOUT / 2;
+        mPool.recycle("B", codecB);
+
+        mNow = TIMEOUT - 1;
+        assertEquals(0, mPool.evictIdle());
+        mNow = TIMEOUT;
+        assertEquals(1, mPool.evictIdle());
+        assertTrue(codecA.released);
+        assertFalse(codecB.released);
+        mNow = TIMEOUT * 2;
+        assertEquals(1, mPool.evictIdle());
+        assertTrue(codecB.released);
+    }
+
+    @Test
+    public void evictLeastRecentlyUsedOverLimit() throws Exception {
+        FakeCodec codecA = mPool.acquire("A");
+        FakeCodec codecB = mPool.acquire("B");
+        FakeCodec codecC = mPool.acquire("C");
+        mPool.recycle("A", codecA);
+        mPool.recycle("B", codecB);
+        mPool.recycle("C", codecC);
+        assertEquals(2, mPool.getIdleCount());
+        assertTrue(codecA.released);
+        assertFalse(codecB.released);
+        assertFalse(codecC.released);
+    }
+
+    @Test
+    public void shutdownReleasesAll() throws Exception {
+        FakeCodec idle = mPool.acquire("A");
+        FakeCodec leased = mPool.acquire("A");
+        mPool.recycle("A", idle);
+        mPool.shutdown();
+        assertTrue(idle.released);
+        assertFalse(leased.released);
+        mPool.recycle("A", leased);
+        assertTrue(leased.released);
+        assertEquals(0, mPool.getIdleCount());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void acquireAfterShutdown() throws Exception {
+        mPool.shutdown();
+        mPool.acquire("A");
+    }
+}
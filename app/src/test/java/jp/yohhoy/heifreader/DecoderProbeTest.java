@@ -0,0 +1,97 @@
+package jp.yohhoy.heifreader;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test for DecoderProbe.
+ */
+public class DecoderProbeTest {
+    private static final List<DecoderCapability> DECODERS = Arrays.asList(
+            new DecoderCapability("OMX.vendor.hevc.decoder", false, 4096, 2160, 4096 * 2160, 2, 2,
+                    new int[]{19, 21, 0x7f420888}, true, 16),
+            new DecoderCapability("c2.android.hevc.decoder", true, 4096, 4096, 4096 * 2304, 2, 2,
+                    new int[]{0x7f420888}, false, 0));
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    static class CountingScanner implements DecoderProbe.Scanner {
+        final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public List<DecoderCapability> scan() {
+            count.incrementAndGet();
+            return DECODERS;
+        }
+    }
+
+    @Test
+    public void saveAndLoad() throws Exception {
+        File file = new File(mFolder.getRoot(), DecoderProbe.FILE_NAME);
+        assertNull(DecoderProbe.load(file, "build/1"));
+        DecoderProbe.save(file, "build/1", DECODERS);
+        assertEquals(DECODERS, DecoderProbe.load(file, "build/1"));
+        // file of other system build
+        assertNull(DecoderProbe.load(file, "build/2"));
+    }
+
+    @Test(expected = IOException.class)
+    public void loadTruncatedFile() throws Exception {
+        File file = new File(mFolder.getRoot(), DecoderProbe.FILE_NAME);
+        DecoderProbe.save(file, "build/1", DECODERS);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() - 4);
+        }
+        DecoderProbe.load(file, "build/1");
+    }
+
+    @Test
+    public void laterProbeSkipsScan() throws Exception {
+        File file = new File(mFolder.getRoot(), DecoderProbe.FILE_NAME);
+        CountingScanner scanner = new CountingScanner();
+        DecoderProbe probe = new DecoderProbe(file, "build/1", scanner);
+        assertEquals(DECODERS, probe.get());
+        assertEquals(DECODERS, probe.get());
+        assertEquals(1, scanner.count.get());
+
+        assertEquals(DECODERS, new DecoderProbe(file, "build/1", scanner).get());
+        assertEquals(1, scanner.count.get());
+        // system update invalidates the file
+        assertEquals(DECODERS, new DecoderProbe(file, "build/2", scanner).get());
+        assertEquals(2, scanner.count.get());
+    }
+
+    @Test
+    public void brokenFileIsScannedAgain() throws Exception {
+        File file = new File(mFolder.getRoot(), DecoderProbe.FILE_NAME);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.writeInt(0x48455643);
+        }
+        CountingScanner scanner = new CountingScanner();
+        assertEquals(DECODERS, new DecoderProbe(file, "build/1", scanner).get());
+        assertEquals(1, scanner.count.get());
+        assertEquals(DECODERS, DecoderProbe.load(file, "build/1"));
+    }
+
+    @Test
+    public void backgroundProbe() throws Exception {
+        CountingScanner scanner = new CountingScanner();
+        DecoderProbe probe = new DecoderProbe(null, "build/1", scanner);
+        probe.start();
+        assertEquals(DECODERS, probe.get());
+        probe.start();
+        assertEquals(DECODERS, probe.get());
+        assertEquals(1, scanner.count.get());
+    }
+}
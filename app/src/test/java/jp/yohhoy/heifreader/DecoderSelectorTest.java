@@ -0,0 +1,88 @@
+package jp.yohhoy.heifreader;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test for DecoderSelector with recorded capability tables.
+ */
+public class DecoderSelectorTest {
+    private static final int[] COLOR_FORMATS = {19, 21, 0x7f420888};
+
+    // API 24 device with 4K hardware decoder
+    private static final DecoderCapability EXYNOS_HW = new DecoderCapability("OMX.Exynos.HEVC.Decoder", false,
+            4096, 2304, 4096 * 2304, 2, 2, COLOR_FORMATS, false, 16);
+    private static final DecoderCapability GOOGLE_SW = new DecoderCapability("OMX.google.hevc.decoder", true,
+            4096, 4096, 4096 * 4096, 2, 2, COLOR_FORMATS, false, 32);
+    private static final List<DecoderCapability> EXYNOS = Arrays.asList(GOOGLE_SW, EXYNOS_HW);
+
+    // API 30 device, whose decoders limit number of pixels
+    private static final DecoderCapability QTI_HW = new DecoderCapability("c2.qti.hevc.decoder", false,
+            4096, 4096, 4096 * 2176, 16, 16, COLOR_FORMATS, true, 16);
+    private static final DecoderCapability ANDROID_SW = new DecoderCapability("c2.android.hevc.decoder", true,
+            4096, 4096, 4096 * 2304, 2, 2, COLOR_FORMATS, false, 32);
+    private static final List<DecoderCapability> QTI = Arrays.asList(QTI_HW, ANDROID_SW);
+
+    @Test
+    public void rankHardwareFirst() {
+        DecoderCapability hw2 = new DecoderCapability("OMX.vendor.hevc.decoder", false,
+                1920, 1088, 1920 * 1088, 2, 2, COLOR_FORMATS, false, 4);
+        assertEquals(Arrays.asList(EXYNOS_HW, hw2, GOOGLE_SW),
+                DecoderSelector.rank(Arrays.asList(GOOGLE_SW, EXYNOS_HW, hw2)));
+    }
+
+    @Test
+    public void hardwareForSupportedSize() {
+        List<DecoderCapability> ranked = DecoderSelector.rank(EXYNOS);
+        assertSame(EXYNOS_HW, DecoderSelector.select(ranked, 1440, 960, 8));
+        assertSame(EXYNOS_HW, DecoderSelector.select(ranked, 4096, 2304, 8));
+    }
+
+    @Test
+    public void softwareForOversizedImage() {
+        List<DecoderCapability> ranked = DecoderSelector.rank(EXYNOS);
+        // 12M pixel photo exceeds height of hardware decoder
+        assertSame(GOOGLE_SW, DecoderSelector.select(ranked, 4032, 3024, 8));
+        assertSame(GOOGLE_SW, DecoderSelector.select(ranked, 2304, 4096, 8));
+        // tiles of the photo in grid image
+        assertSame(EXYNOS_HW, DecoderSelector.select(ranked, 512, 512, 8));
+    }
+
+    @Test
+    public void pixelLimit() {
+        List<DecoderCapability> ranked = DecoderSelector.rank(QTI);
+        assertSame(QTI_HW, DecoderSelector.select(ranked, 2176, 4096, 8));
+        assertSame(ANDROID_SW, DecoderSelector.select(ranked, 4096, 2304, 8));
+        assertNull(DecoderSelector.select(ranked, 4096, 4096, 8));
+        assertSame(ANDROID_SW, DecoderSelector.largest(ranked));
+    }
+
+    @Test
+    public void alignedSize() {
+        List<DecoderCapability> ranked = DecoderSelector.rank(QTI);
+        // rounded up to 4096x2176
+        assertSame(QTI_HW, DecoderSelector.select(ranked, 4090, 2170, 8));
+        // rounded up to 4096x2192
+        assertSame(ANDROID_SW, DecoderSelector.select(ranked, 4090, 2180, 8));
+    }
+
+    @Test
+    public void main10Preferred() {
+        List<DecoderCapability> ranked = DecoderSelector.rank(Arrays.asList(EXYNOS_HW, QTI_HW));
+        assertSame(EXYNOS_HW, DecoderSelector.select(ranked, 1920, 1080, 8));
+        assertSame(QTI_HW, DecoderSelector.select(ranked, 1920, 1080, 10));
+        // no Main10 decoder supports the size
+        assertSame(EXYNOS_HW, DecoderSelector.select(ranked, 4096, 2304, 10));
+    }
+
+    @Test
+    public void noDecoder() {
+        List<DecoderCapability> empty = DecoderSelector.rank(Arrays.<DecoderCapability>asList());
+        assertNull(DecoderSelector.select(empty, 512, 512, 8));
+        assertNull(DecoderSelector.largest(empty));
+    }
+}
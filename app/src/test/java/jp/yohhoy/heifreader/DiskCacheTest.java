@@ -0,0 +1,101 @@
+package jp.yohhoy.heifreader;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test for DiskCache.
+ */
+public class DiskCacheTest {
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private static void put(DiskCache cache, String key, final int size, final byte value) throws IOException {
+        cache.put(key, size, new DiskCache.Writer() {
+            @Override
+            public void write(ByteBuffer dst) {
+                for (int i = 0; i < size; i++) {
+                    dst.put(value);
+                }
+            }
+        });
+    }
+
+    @Test
+    public void putAndGet() throws Exception {
+        DiskCache cache = new DiskCache(mFolder.newFolder(), 1000);
+        assertNull(cache.get("a"));
+        put(cache, "a", 100, (byte) 1);
+        ByteBuffer entry = cache.get("a");
+        assertEquals(100, entry.remaining());
+        assertEquals(1, entry.get(99));
+        assertEquals(1, cache.getCount());
+        assertEquals(100, cache.getTotalBytes());
+
+        // replace entry
+        put(cache, "a", 200, (byte) 2);
+        assertEquals(2, cache.get("a").get(199));
+        assertEquals(200, cache.getTotalBytes());
+    }
+
+    @Test
+    public void evictLeastRecentlyUsed() throws Exception {
+        DiskCache cache = new DiskCache(mFolder.newFolder(), 300);
+        put(cache, "a", 100, (byte) 1);
+        put(cache, "b", 100, (byte) 2);
+        put(cache, "c", 100, (byte) 3);
+        // touch a, then b is least recently used
+        assertNotNull(cache.get("a"));
+        put(cache, "d", 100, (byte) 4);
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("a"));
+        assertNotNull(cache.get("c"));
+        assertEquals(300, cache.getTotalBytes());
+    }
+
+    @Test
+    public void tooLargeEntryIsNotCached() throws Exception {
+        DiskCache cache = new DiskCache(mFolder.newFolder(), 100);
+        put(cache, "a", 101, (byte) 1);
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.getCount());
+    }
+
+    @Test
+    public void entriesSurviveReopen() throws Exception {
+        File dir = mFolder.newFolder();
+        DiskCache cache = new DiskCache(dir, 1000);
+        put(cache, "a", 100, (byte) 1);
+        put(cache, "b", 50, (byte) 2);
+        // incomplete entry of crashed process
+        assertTrue(new File(dir, "c.0.tmp").createNewFile());
+
+        DiskCache reopened = new DiskCache(dir, 1000);
+        assertEquals(2, reopened.getCount());
+        assertEquals(150, reopened.getTotalBytes());
+        assertEquals(2, reopened.get("b").get(0));
+        assertFalse(new File(dir, "c.0.tmp").exists());
+
+        // smaller limit evicts entries on load
+        DiskCache smaller = new DiskCache(dir, 100);
+        assertEquals(1, smaller.getCount());
+    }
+
+    @Test
+    public void clear() throws Exception {
+        File dir = mFolder.newFolder();
+        DiskCache cache = new DiskCache(dir, 1000);
+        put(cache, "a", 100, (byte) 1);
+        cache.clear();
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.getTotalBytes());
+        assertEquals(0, new DiskCache(dir, 1000).getCount());
+    }
+}
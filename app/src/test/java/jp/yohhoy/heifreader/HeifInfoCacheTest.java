@@ -0,0 +1,63 @@
+package jp.yohhoy.heifreader;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test for HeifInfoCache.
+ */
+public class HeifInfoCacheTest {
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void shareParsedBuffer() throws Exception {
+        HeifInfoCache cache = new HeifInfoCache(4);
+        HeifInfo info = cache.parse(ByteBuffer.wrap(HeifTestData.readLena()));
+        // same 'ftyp' and 'meta' in another array
+        assertSame(info, cache.parse(ByteBuffer.wrap(HeifTestData.readLena())));
+        assertNotSame(info, cache.parse(ByteBuffer.wrap(HeifTestData.buildGrid())));
+        assertEquals(2, cache.getCount());
+    }
+
+    @Test
+    public void fileKeyIncludesModifiedTime() throws Exception {
+        HeifInfoCache cache = new HeifInfoCache(4);
+        File file = mFolder.newFile("lena.heic");
+        Files.write(file.toPath(), HeifTestData.readLena());
+        ByteBuffer heif = ByteBuffer.wrap(HeifTestData.readLena());
+        HeifInfo info = cache.parse(file, heif);
+        assertSame(info, cache.parse(file, heif));
+
+        assertTrue(file.setLastModified(file.lastModified() - 10000));
+        assertNotSame(info, cache.parse(file, heif));
+    }
+
+    @Test
+    public void evictLeastRecentlyUsed() throws Exception {
+        HeifInfoCache cache = new HeifInfoCache(2);
+        HeifInfo lena = cache.parse(ByteBuffer.wrap(HeifTestData.readLena()));
+        HeifInfo grid = cache.parse(ByteBuffer.wrap(HeifTestData.buildGrid(1, 2)));
+        // touch lena, then grid is least recently used
+        assertSame(lena, cache.parse(ByteBuffer.wrap(HeifTestData.readLena())));
+        cache.parse(ByteBuffer.wrap(HeifTestData.buildGrid(2, 2)));
+        assertEquals(2, cache.getCount());
+        assertSame(lena, cache.parse(ByteBuffer.wrap(HeifTestData.readLena())));
+        assertNotSame(grid, cache.parse(ByteBuffer.wrap(HeifTestData.buildGrid(1, 2))));
+    }
+
+    @Test
+    public void disabledCache() throws Exception {
+        HeifInfoCache cache = new HeifInfoCache(0);
+        HeifInfo info = cache.parse(ByteBuffer.wrap(HeifTestData.readLena()));
+        assertNotSame(info, cache.parse(ByteBuffer.wrap(HeifTestData.readLena())));
+        assertEquals(0, cache.getCount());
+    }
+}
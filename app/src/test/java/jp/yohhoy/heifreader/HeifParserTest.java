@@ -0,0 +1,207 @@
+package jp.yohhoy.heifreader;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test for HeifParser.
+ */
+public class HeifParserTest {
+    private static final File LENA_FILE = HeifTestData.LENA_FILE;
+
+    private static void assertLenaInfo(HeifInfo info) {
+        assertEquals("mif1", info.getMajorBrand());
+        assertEquals(1, info.getPrimaryItemId());
+        assertEquals(512, info.getWidth());
+        assertEquals(512, info.getHeight());
+        assertEquals(1, info.getItems().size());
+        assertNull(info.getThumbnailItem());
+
+        HeifInfo.Item item = info.getPrimaryItem();
+        assertEquals("hvc1", item.getType());
+        assertEquals("Image", item.getName());
+        assertEquals(0, item.getConstructionMethod());
+        assertEquals(1, item.getExtentCount());
+        assertEquals(40, item.getExtentOffset(0));
+        assertEquals(35409, item.getExtentLength(0));
+
+        HevcConfig config = info.getHevcConfig();
+        assertEquals(4, config.getNalLengthSize());
+        ByteBuffer paramset = config.getParamset();
+        assertEquals(0x00000001, paramset.getInt(0));
+        assertEquals(32, (paramset.get(4) >> 1) & 0x3f);    // VPS_NUT
+    }
+
+    @Test
+    public void parseFile() throws Exception {
+        assertLenaInfo(HeifParser.parse(LENA_FILE));
+    }
+
+    @Test
+    public void parseBuffer() throws Exception {
+        ByteBuffer heif = ByteBuffer.wrap(Files.readAllBytes(LENA_FILE.toPath()));
+        assertLenaInfo(HeifParser.parse(heif));
+        assertEquals(0, heif.position());
+    }
+
+    @Test
+    public void parseStreamSkipsMediaData() throws Exception {
+        final int[] readBytes = {0};
+        InputStream is = new FilterInputStream(new ByteArrayInputStream(Files.readAllBytes(LENA_FILE.toPath()))) {
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = super.read(b, off, len);
+                readBytes[0] += Math.max(n, 0);
+                return n;
+            }
+        };
+        assertLenaInfo(HeifParser.parse(is));
+        // 'mdat' payload(35417 bytes) is skipped
+        assertTrue(readBytes[0] < 1024);
+    }
+
+    @Test
+    public void parseGrid() throws Exception {
+        HeifInfo info = HeifParser.parse(ByteBuffer.wrap(HeifTestData.buildGrid()));
+        assertEquals(1024, info.getWidth());
+        assertEquals(512, info.getHeight());
+        assertEquals(4, info.getItems().size());
+        assertEquals(HeifInfo.Item.TYPE_GRID, info.getPrimaryItem().getType());
+        assertEquals(1, info.getPrimaryItem().getConstructionMethod());
+        assertArrayEquals(new int[]{2, 3}, info.getReferencedItemIds(HeifInfo.Reference.TYPE_DERIVED_IMAGE, 1));
+        assertArrayEquals(new int[]{1}, info.getReferencedItemIds(HeifInfo.Reference.TYPE_THUMBNAIL, 4));
+        assertEquals(0, info.getReferencedItemIds(HeifInfo.Reference.TYPE_DERIVED_IMAGE, 2).length);
+        // HEVC configuration of first tile
+        assertEquals(4, info.getHevcConfig().getNalLengthSize());
+        assertEquals(512, info.findItem(2).getWidth());
+        assertEquals(4, info.getThumbnailItem().getId());
+
+        ByteBuffer idat = info.getItemData();
+        ImageGrid grid = ImageGrid.parse(idat, info.getReferencedItemIds(HeifInfo.Reference.TYPE_DERIVED_IMAGE, 1));
+        assertEquals(1, grid.getRows());
+        assertEquals(2, grid.getColumns());
+        assertEquals(1024, grid.getOutputWidth());
+        assertEquals(512, grid.getOutputHeight());
+        assertEquals(3, grid.getTileItemId(1));
+    }
+
+    @Test
+    public void hevcItemsShareDecoderConfig() throws Exception {
+        HeifInfo info = HeifParser.parse(ByteBuffer.wrap(HeifTestData.buildGrid()));
+        List<HeifInfo.Item> items = info.getHevcItems();
+        assertEquals(3, items.size());
+        assertEquals(2, items.get(0).getId());
+        assertEquals(4, items.get(2).getId());
+        // tiles and thumbnail refer same 'hvcC' and 'ispe'
+        assertTrue(items.get(0).hasSameDecoderConfig(items.get(1)));
+        assertTrue(items.get(0).hasSameDecoderConfig(items.get(2)));
+        assertFalse(info.getPrimaryItem().hasSameDecoderConfig(items.get(0)));
+        assertFalse(items.get(0).hasSameDecoderConfig(info.getPrimaryItem()));
+    }
+
+    @Test
+    public void hevcConfigSameParamset() {
+        HevcConfig config = new HevcConfig(new byte[]{0, 0, 0, 1, 0x40}, 4, 1, 90, 1, 8, 8);
+        assertTrue(config.hasSameParamset(config));
+        assertTrue(config.hasSameParamset(new HevcConfig(new byte[]{0, 0, 0, 1, 0x40}, 4, 1, 90, 1, 8, 8)));
+        assertFalse(config.hasSameParamset(new HevcConfig(new byte[]{0, 0, 0, 1, 0x42}, 4, 1, 90, 1, 8, 8)));
+        assertFalse(config.hasSameParamset(new HevcConfig(new byte[]{0, 0, 0, 1, 0x40}, 2, 1, 90, 1, 8, 8)));
+        assertFalse(config.hasSameParamset(null));
+    }
+
+    @Test
+    public void parseMatchesIsoFileParser() throws Exception {
+        byte[][] inputs = {HeifTestData.readLena(), HeifTestData.buildGrid(), HeifTestData.buildGrid(4, 8)};
+        for (byte[] data : inputs) {
+            HeifInfo expected = IsoFileHeifParser.parse(ByteBuffer.wrap(data));
+            HeifInfo actual = HeifParser.parse(ByteBuffer.wrap(data));
+            assertEquals(expected.getMajorBrand(), actual.getMajorBrand());
+            assertEquals(expected.getPrimaryItemId(), actual.getPrimaryItemId());
+            assertEquals(expected.getItems().size(), actual.getItems().size());
+            for (int i = 0; i < expected.getItems().size(); i++) {
+                HeifInfo.Item e = expected.getItems().get(i);
+                HeifInfo.Item a = actual.getItems().get(i);
+                assertEquals(e.getId(), a.getId());
+                assertEquals(e.getType(), a.getType());
+                assertEquals(e.getName(), a.getName());
+                assertEquals(e.getWidth(), a.getWidth());
+                assertEquals(e.getHeight(), a.getHeight());
+                assertEquals(e.getConstructionMethod(), a.getConstructionMethod());
+                assertEquals(e.getExtentCount(), a.getExtentCount());
+                for (int j = 0; j < e.getExtentCount(); j++) {
+                    assertEquals(e.getExtentOffset(j), a.getExtentOffset(j));
+                    assertEquals(e.getExtentLength(j), a.getExtentLength(j));
+                }
+                assertEquals(e.getHevcConfig() == null, a.getHevcConfig() == null);
+                if (e.getHevcConfig() != null) {
+                    assertEquals(e.getHevcConfig().getParamset(), a.getHevcConfig().getParamset());
+                    assertEquals(e.getHevcConfig().toString(), a.getHevcConfig().toString());
+                    assertEquals(e.getHevcConfig().getChromaFormat(), a.getHevcConfig().getChromaFormat());
+                }
+            }
+            assertEquals(expected.getReferences().size(), actual.getReferences().size());
+            for (int i = 0; i < expected.getReferences().size(); i++) {
+                HeifInfo.Reference e = expected.getReferences().get(i);
+                HeifInfo.Reference a = actual.getReferences().get(i);
+                assertEquals(e.getType(), a.getType());
+                assertEquals(e.getFromItemId(), a.getFromItemId());
+                assertArrayEquals(e.getToItemIds(), a.getToItemIds());
+            }
+            assertEquals(expected.getItemData(), actual.getItemData());
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void parseGridTileCountMismatch() throws Exception {
+        byte[] data = {0, 0, 1, 1, 0x04, 0x00, 0x04, 0x00};  // 2x2 tiles
+        ImageGrid.parse(ByteBuffer.wrap(data), new int[]{2, 3});
+    }
+
+    @Test(expected = IOException.class)
+    public void parseTruncated() throws Exception {
+        byte[] data = Files.readAllBytes(LENA_FILE.toPath());
+        HeifParser.parse(ByteBuffer.wrap(data, 0, data.length - 100).slice());
+    }
+
+    /**
+     * @return lena_std.heic whose entry count field of the box is overwritten.
+     */
+    private static byte[] lenaWithEntryCount(String type, int countSize, long count) throws Exception {
+        byte[] data = Files.readAllBytes(LENA_FILE.toPath());
+        String text = new String(data, "ISO-8859-1");
+        // box type, version and flags, then entry count
+        int pos = text.indexOf(type) + 4 + 4;
+        for (int i = 0; i < countSize; i++) {
+            data[pos + i] = (byte) (count >>> (8 * (countSize - 1 - i)));
+        }
+        return data;
+    }
+
+    @Test
+    public void parseOversizedIpmaCount() throws Exception {
+        long[] counts = {0x80000000L, 0x7fffffffL, 0x10000000L};
+        for (long count : counts) {
+            try {
+                HeifParser.parse(ByteBuffer.wrap(lenaWithEntryCount("ipma", 4, count)));
+                fail("entry_count(" + count + ") is accepted");
+            } catch (IOException ex) {
+                assertTrue(ex.getMessage(), ex.getMessage().contains("exceeds box size"));
+            }
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void parseOversizedIinfCount() throws Exception {
+        HeifParser.parse(ByteBuffer.wrap(lenaWithEntryCount("iinf", 2, 0xffff)));
+    }
+}
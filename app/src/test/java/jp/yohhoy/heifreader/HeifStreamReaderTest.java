@@ -0,0 +1,101 @@
+package jp.yohhoy.heifreader;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test for HeifStreamReader.
+ */
+public class HeifStreamReaderTest {
+    private static final long LIMIT = 1024 * 1024;
+
+    @Rule
+    public TemporaryFolder mTempDir = new TemporaryFolder();
+
+    private static class CountingInputStream extends FilterInputStream {
+        long count;
+
+        CountingInputStream(byte[] data) {
+            super(new ByteArrayInputStream(data));
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            count += (0 <= b) ? 1 : 0;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            count += Math.max(n, 0);
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long len = super.skip(n);
+            count += len;
+            return len;
+        }
+    }
+
+    private static void assertLenaBitstream(HeifStreamReader.Result result, HeifInfo.Item item) throws IOException {
+        assertEquals(1, item.getExtentCount());
+        ByteBuffer data = result.data.duplicate();
+        data.position((int) item.getExtentOffset(0));
+        data.limit((int) (item.getExtentOffset(0) + item.getExtentLength(0)));
+        assertEquals(ByteBuffer.wrap(HeifTestData.lenaBitstream()), data);
+    }
+
+    @Test
+    public void readMediaDataFirst() throws Exception {
+        // 'mdat' precedes 'meta', spilled and deleted
+        HeifStreamReader.Result result = HeifStreamReader.read(
+                new ByteArrayInputStream(HeifTestData.readLena()), mTempDir.getRoot(), LIMIT);
+        assertEquals(HeifTestData.LENA_BITSTREAM_LENGTH, result.data.remaining());
+        assertLenaBitstream(result, result.info.getPrimaryItem());
+        assertEquals(0, mTempDir.getRoot().list().length);
+    }
+
+    @Test
+    public void readMetaFirstStopsAfterLastExtent() throws Exception {
+        byte[] trailer = HeifTestData.box("free", new byte[4096]);
+        byte[] heif = HeifTestData.lenaMetaFirst(trailer);
+        CountingInputStream is = new CountingInputStream(heif);
+        HeifStreamReader.Result result = HeifStreamReader.read(is, mTempDir.getRoot(), LIMIT);
+        assertLenaBitstream(result, result.info.getPrimaryItem());
+        // trailing box is not read
+        assertEquals(heif.length - trailer.length, is.count);
+        assertEquals(0, mTempDir.getRoot().list().length);
+    }
+
+    @Test
+    public void readGridSharedExtent() throws Exception {
+        HeifStreamReader.Result result = HeifStreamReader.read(
+                new ByteArrayInputStream(HeifTestData.buildGrid()), mTempDir.getRoot(), LIMIT);
+        // tiles refer same extent, which is kept once
+        assertEquals(HeifTestData.LENA_BITSTREAM_LENGTH, result.data.remaining());
+        assertLenaBitstream(result, result.info.findItem(2));
+        assertLenaBitstream(result, result.info.findItem(3));
+        // grid item in 'idat' is not relocated
+        assertEquals(1, result.info.getPrimaryItem().getConstructionMethod());
+        assertEquals(0, result.info.getPrimaryItem().getExtentOffset(0));
+    }
+
+    @Test(expected = IOException.class)
+    public void readExceedsLimit() throws Exception {
+        InputStream is = new ByteArrayInputStream(HeifTestData.lenaMetaFirst(new byte[0]));
+        HeifStreamReader.read(is, mTempDir.getRoot(), 1024);
+    }
+}
@@ -0,0 +1,211 @@
+package jp.yohhoy.heifreader;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+/**
+ * Synthetic HEIF data for local unit tests.
+ */
+final class HeifTestData {
+    static final File LENA_FILE = new File(
+            System.getProperty("heifreader.lena", "src/main/res/raw/lena_std.heic"));
+
+    // lena_std.heic layout: 'ftyp', 'mdat', 'free', 'meta'
+    static final int LENA_MDAT_OFFSET = 24;
+    static final int LENA_MDAT_SIZE = 35425;
+    static final int LENA_META_OFFSET = 35518;
+    static final int LENA_META_SIZE = 339;
+    static final int LENA_BITSTREAM_OFFSET = 40;
+    static final int LENA_BITSTREAM_LENGTH = 35409;
+    static final int LENA_HVCC_OFFSET = 35716;
+    static final int LENA_HVCC_LENGTH = 119;
+
+    private HeifTestData() {
+    }
+
+    static byte[] readLena() throws IOException {
+        return Files.readAllBytes(LENA_FILE.toPath());
+    }
+
+    /**
+     * @return HEVC bitstream of lena_std.heic in hvcC format.
+     */
+    static byte[] lenaBitstream() throws IOException {
+        byte[] lena = readLena();
+        byte[] bitstream = new byte[LENA_BITSTREAM_LENGTH];
+        System.arraycopy(lena, LENA_BITSTREAM_OFFSET, bitstream, 0, bitstream.length);
+        return bitstream;
+    }
+
+    /**
+     * Rearrange lena_std.heic into 'ftyp', 'meta', 'mdat' order, and append trailer.
+     */
+    static byte[] lenaMetaFirst(byte[] trailer) throws IOException {
+        byte[] lena = readLena();
+        byte[] ftyp = Arrays.copyOfRange(lena, 0, LENA_MDAT_OFFSET);
+        byte[] mdat = Arrays.copyOfRange(lena, LENA_MDAT_OFFSET, LENA_MDAT_OFFSET + LENA_MDAT_SIZE);
+        byte[] meta = Arrays.copyOfRange(lena, LENA_META_OFFSET, LENA_META_OFFSET + LENA_META_SIZE);
+        // rewrite base_offset in 'iloc' (base_offset, extent_count, extent_length)
+        byte[] extent = concat(u32(LENA_BITSTREAM_OFFSET), u16(1), u32(LENA_BITSTREAM_LENGTH));
+        int pos = indexOf(meta, extent);
+        int newOffset = ftyp.length + meta.length + (LENA_BITSTREAM_OFFSET - LENA_MDAT_OFFSET);
+        System.arraycopy(u32(newOffset), 0, meta, pos, 4);
+        return concat(ftyp, meta, mdat, trailer);
+    }
+
+    /**
+     * Replace first occurrence of target with same length replacement.
+     */
+    static byte[] replace(byte[] array, byte[] target, byte[] replacement) {
+        byte[] result = array.clone();
+        System.arraycopy(replacement, 0, result, indexOf(array, target), target.length);
+        return result;
+    }
+
+    private static int indexOf(byte[] array, byte[] target) {
+        outer:
+        for (int i = 0; i <= array.length - target.length; i++) {
+            for (int j = 0; j < target.length; j++) {
+                if (array[i + j] != target[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        throw new IllegalArgumentException("not found");
+    }
+
+    /**
+     * Rewrite NAL unit length fields of hvcC format bitstream.
+     *
+     * @param bitstream bitstream with 4-byte NAL unit length.
+     * @param nalLengthSize new byte length of NAL unit length field. (1, 2 or 4)
+     */
+    static byte[] withNalLengthSize(byte[] bitstream, int nalLengthSize) {
+        ByteBuffer src = ByteBuffer.wrap(bitstream);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        while (src.hasRemaining()) {
+            int size = src.getInt();
+            for (int i = nalLengthSize - 1; 0 <= i; i--) {
+                baos.write(size >>> (8 * i));
+            }
+            baos.write(bitstream, src.position(), size);
+            src.position(src.position() + size);
+        }
+        return baos.toByteArray();
+    }
+
+    /**
+     * @return 'hvcC' box of lena_std.heic.
+     */
+    static byte[] lenaHvcc() throws IOException {
+        byte[] lena = readLena();
+        byte[] hvcc = new byte[LENA_HVCC_LENGTH];
+        System.arraycopy(lena, LENA_HVCC_OFFSET, hvcc, 0, hvcc.length);
+        return hvcc;
+    }
+
+    /**
+     * Build 2x1 grid image of lena tiles(512x512) with thumbnail.
+     *
+     * @see #buildGrid(int, int)
+     */
+    static byte[] buildGrid() throws IOException {
+        return buildGrid(1, 2);
+    }
+
+    /**
+     * Build grid image of lena tiles(512x512) with thumbnail.
+     * <ul>
+     * <li>item 1: 'grid' (512*columns)x(512*rows), ImageGrid in 'idat'</li>
+     * <li>item 2..rows*columns+1: 'hvc1' tiles, all refer lena bitstream in 'mdat'</li>
+     * <li>item rows*columns+2: 'hvc1' thumbnail of item 1</li>
+     * </ul>
+     */
+    static byte[] buildGrid(int rows, int columns) throws IOException {
+        final int tileCount = rows * columns;
+        final int thumbnailId = tileCount + 2;
+        byte[] bitstream = lenaBitstream();
+        byte[] ftyp = box("ftyp", ascii("heic"), u32(0), ascii("mif1"), ascii("heic"));
+        byte[] mdat = box("mdat", bitstream);
+        int mdatOffset = ftyp.length + 8;
+
+        byte[] gridData = concat(u8(0), u8(0), u8(rows - 1), u8(columns - 1),
+                u16(512 * columns), u16(512 * rows));
+        ByteArrayOutputStream ilocItems = new ByteArrayOutputStream();
+        ByteArrayOutputStream infeBoxes = new ByteArrayOutputStream();
+        ByteArrayOutputStream tileIds = new ByteArrayOutputStream();
+        ByteArrayOutputStream ipmaItems = new ByteArrayOutputStream();
+        // item_ID, construction_method, data_reference_index, extent_count, offset, length
+        ilocItems.write(concat(u16(1), u16(1), u16(0), u16(1), u32(0), u32(gridData.length)));
+        infeBoxes.write(infe(1, "grid"));
+        ipmaItems.write(concat(u16(1), u8(1), u8(1)));
+        for (int itemId = 2; itemId <= thumbnailId; itemId++) {
+            ilocItems.write(concat(u16(itemId), u16(0), u16(0), u16(1), u32(mdatOffset), u32(bitstream.length)));
+            infeBoxes.write(infe(itemId, "hvc1"));
+            ipmaItems.write(concat(u16(itemId), u8(2), u8(0x82), u8(3)));
+            if (itemId != thumbnailId) {
+                tileIds.write(u16(itemId));
+            }
+        }
+        byte[] iloc = fullBox("iloc", 1, 0, u8(0x44), u8(0x00), u16(thumbnailId), ilocItems.toByteArray());
+        byte[] iinf = fullBox("iinf", 0, 0, u16(thumbnailId), infeBoxes.toByteArray());
+        byte[] iref = fullBox("iref", 0, 0,
+                box("dimg", u16(1), u16(tileCount), tileIds.toByteArray()),
+                box("thmb", u16(thumbnailId), u16(1), u16(1)));
+        byte[] ipco = box("ipco",
+                fullBox("ispe", 0, 0, u32(512 * columns), u32(512 * rows)),   // 1
+                lenaHvcc(),                                                    // 2
+                fullBox("ispe", 0, 0, u32(512), u32(512)));                    // 3
+        byte[] ipma = fullBox("ipma", 0, 0, u32(thumbnailId), ipmaItems.toByteArray());
+        byte[] meta = fullBox("meta", 0, 0,
+                fullBox("hdlr", 0, 0, u32(0), ascii("pict"), u32(0), u32(0), u32(0), u8(0)),
+                fullBox("pitm", 0, 0, u16(1)),
+                iloc, iinf, iref,
+                box("idat", gridData),
+                box("iprp", ipco, ipma));
+        return concat(ftyp, mdat, meta);
+    }
+
+    static byte[] infe(int itemId, String type) {
+        return fullBox("infe", 2, 0, u16(itemId), u16(0), ascii(type), u8(0));
+    }
+
+    static byte[] box(String type, byte[]... payloads) {
+        byte[] payload = concat(payloads);
+        return concat(u32(8 + payload.length), ascii(type), payload);
+    }
+
+    static byte[] fullBox(String type, int version, int flags, byte[]... payloads) {
+        return box(type, u8(version), u8(flags >> 16), u16(flags), concat(payloads));
+    }
+
+    static byte[] concat(byte[]... arrays) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        for (byte[] array : arrays) {
+            baos.write(array, 0, array.length);
+        }
+        return baos.toByteArray();
+    }
+
+    static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    static byte[] u8(int v) {
+        return new byte[]{(byte) v};
+    }
+
+    static byte[] u16(int v) {
+        return ByteBuffer.allocate(2).putShort((short) v).array();
+    }
+
+    static byte[] u32(long v) {
+        return ByteBuffer.allocate(4).putInt((int) v).array();
+    }
+}
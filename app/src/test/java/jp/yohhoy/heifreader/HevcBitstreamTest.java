@@ -0,0 +1,83 @@
+package jp.yohhoy.heifreader;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test for HevcBitstream.
+ */
+public class HevcBitstreamTest {
+    private static final byte[] ANNEXB = {0, 0, 0, 1, 0x26, 0x01, 0, 0, 0, 1, 0x02, 0x01, (byte) 0xd0};
+
+    private static void assertAnnexB(byte[] hvcc, int nalLengthSize) throws IOException {
+        ByteBuffer src = ByteBuffer.wrap(hvcc);
+        assertEquals(ANNEXB.length, HevcBitstream.annexBSize(src, nalLengthSize));
+        ByteBuffer dst = ByteBuffer.allocate(ANNEXB.length);
+        assertEquals(ANNEXB.length, HevcBitstream.toAnnexB(src, nalLengthSize, dst));
+        assertEquals(0, src.position());
+        assertArrayEquals(ANNEXB, dst.array());
+    }
+
+    @Test
+    public void toAnnexB() throws Exception {
+        assertAnnexB(new byte[]{0, 0, 0, 2, 0x26, 0x01, 0, 0, 0, 3, 0x02, 0x01, (byte) 0xd0}, 4);
+    }
+
+    @Test
+    public void toAnnexBShortLength() throws Exception {
+        // Annex.B bitstream is larger than source
+        assertAnnexB(new byte[]{0, 2, 0x26, 0x01, 0, 3, 0x02, 0x01, (byte) 0xd0}, 2);
+        assertAnnexB(new byte[]{2, 0x26, 0x01, 3, 0x02, 0x01, (byte) 0xd0}, 1);
+    }
+
+    @Test
+    public void toAnnexBMultipleExtents() throws Exception {
+        // split inside NAL unit length field and NAL unit
+        byte[] hvcc = {0, 2, 0x26, 0x01, 0, 3, 0x02, 0x01, (byte) 0xd0};
+        for (int split = 1; split < hvcc.length; split++) {
+            List<ByteBuffer> src = Arrays.asList(ByteBuffer.wrap(hvcc, 0, split).slice(),
+                    ByteBuffer.wrap(new byte[0]), ByteBuffer.wrap(hvcc, split, hvcc.length - split).slice());
+            assertEquals(ANNEXB.length, HevcBitstream.annexBSize(src, 2));
+            ByteBuffer dst = ByteBuffer.allocate(ANNEXB.length);
+            assertEquals(ANNEXB.length, HevcBitstream.toAnnexB(src, 2, dst));
+            assertArrayEquals(ANNEXB, dst.array());
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void annexBSizeTruncated() throws Exception {
+        HevcBitstream.annexBSize(ByteBuffer.wrap(new byte[]{0, 0, 0, 4, 0x26, 0x01}), 4);
+    }
+
+    @Test
+    public void toAnnexBLena() throws Exception {
+        byte[] bitstream = HeifTestData.lenaBitstream();
+        ByteBuffer dst = ByteBuffer.allocate(bitstream.length);
+        HevcBitstream.toAnnexB(ByteBuffer.wrap(bitstream), 4, dst);
+        // every NAL unit starts with start code
+        ByteBuffer src = ByteBuffer.wrap(bitstream);
+        int nalUnits = 0;
+        while (src.hasRemaining()) {
+            int pos = src.position();
+            assertEquals(1, dst.getInt(pos));
+            src.position(pos + 4 + src.getInt(pos));
+            nalUnits++;
+        }
+        assertTrue(0 < nalUnits);
+
+        // same output from 2-byte NAL unit length
+        byte[] shortLength = HeifTestData.withNalLengthSize(bitstream, 2);
+        assertEquals(bitstream.length, HevcBitstream.annexBSize(ByteBuffer.wrap(shortLength), 2));
+        ByteBuffer dst2 = ByteBuffer.allocateDirect(bitstream.length);
+        HevcBitstream.toAnnexB(ByteBuffer.wrap(shortLength), 2, dst2);
+        dst.flip();
+        dst2.flip();
+        assertEquals(dst, dst2);
+    }
+}
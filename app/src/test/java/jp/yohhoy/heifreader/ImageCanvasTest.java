@@ -0,0 +1,111 @@
+package jp.yohhoy.heifreader;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test for ImageCanvas.
+ */
+public class ImageCanvasTest {
+    private static ByteBuffer plane(int width, int height, int rowStride, int pixelStride, int base) {
+        ByteBuffer buf = ByteBuffer.allocate((height - 1) * rowStride + (width - 1) * pixelStride + 1);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                buf.put(y * rowStride + x * pixelStride, (byte) (base + y * width + x));
+            }
+        }
+        return buf;
+    }
+
+    @Test
+    public void copyStridedPlanes() {
+        ImageCanvas canvas = new ImageCanvas(4, 2, ImageCanvas.FORMAT_YUV420, new byte[12]);
+        canvas.copyPlane(0, plane(4, 2, 8, 1, 0), 4, 2, 8, 1, 0, 0);
+        canvas.copyPlane(1, plane(2, 1, 4, 2, 100), 2, 1, 4, 2, 0, 0);
+        canvas.copyPlane(2, plane(2, 1, 4, 2, 110), 2, 1, 4, 2, 0, 0);
+        assertArrayEquals(new byte[]{0, 1, 2, 3, 4, 5, 6, 7, 100, 101, 110, 111}, canvas.data);
+    }
+
+    @Test
+    public void copyTileWithClipping() {
+        // 3x3 tile at (2,2) of 4x4 canvas
+        ImageCanvas canvas = new ImageCanvas(4, 4, ImageCanvas.FORMAT_YUV420, new byte[24]);
+        canvas.copyPlane(0, plane(3, 3, 3, 1, 1), 3, 3, 3, 1, 2, 2);
+        byte[] luma = new byte[16];
+        System.arraycopy(canvas.data, 0, luma, 0, 16);
+        assertArrayEquals(new byte[]{
+                0, 0, 0, 0,
+                0, 0, 0, 0,
+                0, 0, 1, 2,
+                0, 0, 4, 5}, luma);
+    }
+
+    @Test
+    public void copyRgb565() {
+        ImageCanvas canvas = new ImageCanvas(2, 1, ImageCanvas.FORMAT_RGB565, new byte[4]);
+        ByteBuffer src = ByteBuffer.wrap(new byte[]{0, 9, 2, 8});
+        canvas.copyPlane(0, src, 2, 1, 8, 2, 0, 0);
+        assertArrayEquals(new byte[]{0, 9, 2, 8}, canvas.data);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void bufferTooSmall() {
+        new ImageCanvas(4, 4, ImageCanvas.FORMAT_YUV420, new byte[16]);
+    }
+
+    @Test
+    public void expandRgb565ToPaddedArgb() {
+        // white, red(0xf800), blue(0x001f) in little endian
+        ImageCanvas src = new ImageCanvas(3, 1, ImageCanvas.FORMAT_RGB565,
+                new byte[]{(byte) 0xff, (byte) 0xff, 0x00, (byte) 0xf8, 0x1f, 0x00});
+        int[] argb = new int[5];
+        src.expandRgb565(new ImageCanvas(3, 1, argb, 1, 4));
+        assertArrayEquals(new int[]{0, 0xffffffff, 0xffff0000, 0xff0000ff, 0}, argb);
+    }
+
+    @Test
+    public void writeRgba() {
+        ImageCanvas canvas = new ImageCanvas(1, 2, new int[]{0xff102030, 0x80405060}, 0, 1);
+        ByteBuffer dst = ByteBuffer.allocate(10);
+        dst.position(1);
+        canvas.writeRgba(dst, 5);
+        assertEquals(1, dst.position());
+        assertArrayEquals(new byte[]{0, 0x10, 0x20, 0x30, (byte) 0xff, 0, 0x40, 0x50, 0x60, (byte) 0x80}, dst.array());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void argbStrideTooSmall() {
+        new ImageCanvas(4, 2, new int[16], 0, 3);
+    }
+
+    @Test
+    public void expandRgb565TileWithSampling() {
+        // 4x2 tile at (-1,0) of 2x1 canvas with sampleSize 2
+        byte[] data = new byte[16];
+        for (int i = 0; i < 8; i++) {
+            data[2 * i] = (byte) i;    // blue = i
+        }
+        ImageCanvas src = new ImageCanvas(4, 2, ImageCanvas.FORMAT_RGB565, data);
+        int[] argb = new int[2];
+        src.expandRgb565(new ImageCanvas(2, 1, argb, 0, 2), -1, 0, 2);
+        assertArrayEquals(new int[]{0xff000000 | (1 << 3 | 1 >> 2), 0xff000000 | (3 << 3 | 3 >> 2)}, argb);
+    }
+
+    @Test
+    public void yuvPlanes() {
+        byte[] data = new byte[12];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        HevcDecoder.Plane[] planes = new ImageCanvas(4, 2, ImageCanvas.FORMAT_YUV420, data).yuvPlanes();
+        assertEquals(4, planes[0].rowStride);
+        assertEquals(8, planes[0].buffer.remaining());
+        assertEquals(2, planes[1].rowStride);
+        assertEquals(8, planes[1].buffer.get(0));
+        assertEquals(10, planes[2].buffer.get(0));
+        assertEquals(2, planes[2].buffer.remaining());
+    }
+}
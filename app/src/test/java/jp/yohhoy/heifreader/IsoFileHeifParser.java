@@ -0,0 +1,234 @@
+/*
+ * Copyright (c) 2017 yohhoy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package jp.yohhoy.heifreader;
+
+import org.mp4parser.Box;
+import org.mp4parser.IsoFile;
+import org.mp4parser.boxes.iso14496.part12.FileTypeBox;
+import org.mp4parser.boxes.iso14496.part12.ItemDataBox;
+import org.mp4parser.boxes.iso14496.part15.HevcConfigurationBox;
+import org.mp4parser.boxes.iso14496.part15.HevcDecoderConfigurationRecord;
+import org.mp4parser.tools.ByteBufferByteChannel;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import jp.yohhoy.heifreader.iso14496.part12.ItemInfoBox;
+import jp.yohhoy.heifreader.iso14496.part12.ItemInfoEntry;
+import jp.yohhoy.heifreader.iso14496.part12.ItemLocationBox;
+import jp.yohhoy.heifreader.iso14496.part12.ItemPropertiesBox;
+import jp.yohhoy.heifreader.iso14496.part12.ItemPropertyAssociation;
+import jp.yohhoy.heifreader.iso14496.part12.ItemPropertyContainerBox;
+import jp.yohhoy.heifreader.iso14496.part12.ItemReferenceBox;
+import jp.yohhoy.heifreader.iso14496.part12.PrimaryItemBox;
+import jp.yohhoy.heifreader.iso23008.part12.ImageSpatialExtentsBox;
+
+
+/**
+ * HEIF metadata parser based on mp4parser IsoFile
+ *
+ * Previous implementation of {@link HeifParser}, which is not used in decoding path.
+ * This is kept as reference implementation for cross-checking and benchmarking.
+ */
+final class IsoFileHeifParser {
+    private static final byte[] START_CODE = {0x00, 0x00, 0x00, 0x01};
+
+    private IsoFileHeifParser() {
+    }
+
+    /**
+     * Parse HEIF metadata from the specified buffer.
+     *
+     * @param heif buffer of whole HEIF data. (position is not modified)
+     * @return The parsed metadata.
+     * @throws IOException if the data is not supported HEIF.
+     */
+    static HeifInfo parse(ByteBuffer heif) throws IOException {
+        ByteBuffer[] scanned = HeifParser.scan(heif);
+        ByteBuffer boxes = ByteBuffer.allocate(scanned[0].remaining() + scanned[1].remaining());
+        boxes.put(scanned[0]).put(scanned[1]).flip();
+        IsoFile isoFile = new IsoFile(new ByteBufferByteChannel(boxes));
+        return parseHeif(isoFile);
+    }
+
+    private static HeifInfo parseHeif(IsoFile isoFile) throws IOException {
+        // validate brand compatibility ('ftyp' box)
+        List<FileTypeBox> ftypBoxes = isoFile.getBoxes(FileTypeBox.class);
+        if (ftypBoxes.size() != 1) {
+            throw new IOException("FileTypeBox('ftyp') shall be unique");
+        }
+        FileTypeBox ftypBox = ftypBoxes.get(0);
+        if (!(HeifParser.isSupportedBrand(ftypBox.getMajorBrand())
+                || isSupportedBrand(ftypBox.getCompatibleBrands()))) {
+            throw new IOException("unsupported FileTypeBox('ftyp') brands");
+        }
+
+        // get primary item_ID
+        List<PrimaryItemBox> pitmBoxes = isoFile.getBoxes(PrimaryItemBox.class, true);
+        if (pitmBoxes.isEmpty()) {
+            throw new IOException("PrimaryItemBox('pitm') not found");
+        }
+        PrimaryItemBox pitmBox = pitmBoxes.get(0);
+        pitmBox.parseDetails();
+
+        // get item properties container
+        List<ItemPropertiesBox> iprpBoxes = isoFile.getBoxes(ItemPropertiesBox.class, true);
+        if (iprpBoxes.isEmpty()) {
+            throw new IOException("ItemPropertiesBox('iprp') not found");
+        }
+        ItemPropertiesBox iprpBox = iprpBoxes.get(0);
+        ItemPropertyAssociation ipmaBox = iprpBox.getBoxes(ItemPropertyAssociation.class).get(0);
+        ItemPropertyContainerBox ipcoBox = iprpBox.getBoxes(ItemPropertyContainerBox.class).get(0);
+
+        // get item locations
+        List<ItemLocationBox> ilocBoxes = isoFile.getBoxes(ItemLocationBox.class, true);
+        if (ilocBoxes.isEmpty()) {
+            throw new IOException("ItemLocationBox('iloc') not found");
+        }
+        ItemLocationBox ilocBox = ilocBoxes.get(0);
+        ilocBox.parseDetails();
+
+        // build item table
+        List<HeifInfo.Item> items = new ArrayList<>();
+        for (ItemInfoBox iinfBox : isoFile.getBoxes(ItemInfoBox.class, true)) {
+            for (ItemInfoEntry infeBox : iinfBox.getBoxes(ItemInfoEntry.class)) {
+                items.add(parseItem(infeBox.getItemId(), infeBox.getItemType(), infeBox.getItemName(),
+                        ipmaBox, ipcoBox, ilocBox));
+            }
+        }
+
+        // get item references
+        List<HeifInfo.Reference> references = new ArrayList<>();
+        for (ItemReferenceBox irefBox : isoFile.getBoxes(ItemReferenceBox.class, true)) {
+            irefBox.parseDetails();
+            for (ItemReferenceBox.Reference ref : irefBox.getReferences()) {
+                int[] toItemIds = new int[ref.to_item_IDs.length];
+                for (int i = 0; i < toItemIds.length; i++) {
+                    toItemIds[i] = (int) ref.to_item_IDs[i];
+                }
+                references.add(new HeifInfo.Reference(ref.referenceType, (int) ref.from_item_ID, toItemIds));
+            }
+        }
+
+        // get item data
+        byte[] itemData = null;
+        List<ItemDataBox> idatBoxes = isoFile.getBoxes(ItemDataBox.class, true);
+        if (!idatBoxes.isEmpty()) {
+            ItemDataBox idatBox = idatBoxes.get(0);
+            idatBox.parseDetails();
+            ByteBuffer data = idatBox.getData().duplicate();
+            data.rewind();
+            itemData = new byte[data.remaining()];
+            data.get(itemData);
+        }
+
+        HeifInfo info = new HeifInfo(ftypBox.getMajorBrand(), pitmBox.getItemId(), items, references, itemData);
+
+        HeifParser.validate(info);
+        return info;
+    }
+
+    private static boolean isSupportedBrand(List<String> brands) {
+        return brands.contains("mif1") || brands.contains("heic");
+    }
+
+    private static HeifInfo.Item parseItem(int itemId, String type, String name,
+                                           ItemPropertyAssociation ipmaBox,
+                                           ItemPropertyContainerBox ipcoBox,
+                                           ItemLocationBox ilocBox) throws IOException {
+        // get associative item properties
+        List<Box> propBoxes = new ArrayList<>();
+        for (ItemPropertyAssociation.Item item : ipmaBox.getItems()) {
+            if (item.item_ID == itemId) {
+                for (ItemPropertyAssociation.Assoc assoc : item.associations) {
+                    if (assoc.property_index == 0) {
+                        continue;   // no property
+                    }
+                    propBoxes.add(ipcoBox.getBoxes().get(assoc.property_index - 1));
+                }
+            }
+        }
+
+        // get image size
+        int width = 0;
+        int height = 0;
+        ImageSpatialExtentsBox ispeBox = findBox(propBoxes, ImageSpatialExtentsBox.class);
+        if (ispeBox != null) {
+            width = (int) ispeBox.display_width;
+            height = (int) ispeBox.display_height;
+        }
+
+        // get HEVC decoder configuration
+        HevcConfig hevcConfig = null;
+        HevcConfigurationBox hvccBox = findBox(propBoxes, HevcConfigurationBox.class);
+        if (hvccBox != null) {
+            HevcDecoderConfigurationRecord record = hvccBox.getHevcDecoderConfigurationRecord();
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            for (HevcDecoderConfigurationRecord.Array params : record.getArrays()) {
+                for (byte[] nalUnit : params.nalUnits) {
+                    baos.write(START_CODE);
+                    baos.write(nalUnit);
+                }
+            }
+            hevcConfig = new HevcConfig(baos.toByteArray(), record.getLengthSizeMinusOne() + 1,
+                    record.getGeneral_profile_idc(), record.getGeneral_level_idc(),
+                    record.getChromaFormat(), record.getBitDepthLumaMinus8() + 8,
+                    record.getBitDepthChromaMinus8() + 8);
+        }
+
+        // get item location
+        int constructionMethod = 0;
+        long[] extentOffsets = new long[0];
+        long[] extentLengths = new long[0];
+        for (ItemLocationBox.Item item : ilocBox.getItems()) {
+            if (item.itemId == itemId) {
+                constructionMethod = item.constructionMethod;
+                extentOffsets = new long[item.extents.size()];
+                extentLengths = new long[item.extents.size()];
+                int i = 0;
+                for (ItemLocationBox.Extent extent : item.extents) {
+                    extentOffsets[i] = item.baseOffset + extent.extentOffset;
+                    extentLengths[i] = extent.extentLength;
+                    i++;
+                }
+                break;
+            }
+        }
+
+        return new HeifInfo.Item(itemId, type, name, width, height, hevcConfig,
+                constructionMethod, extentOffsets, extentLengths);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T extends Box> T findBox(List<Box> container, Class<T> clazz) {
+        for (Box box : container) {
+            if (clazz.isInstance(box)) {
+                return (T) box;
+            }
+        }
+        return null;
+    }
+
+}
@@ -0,0 +1,59 @@
+package jp.yohhoy.heifreader;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test for ItemDataResolver.
+ */
+public class ItemDataResolverTest {
+    private static final ByteBuffer FILE = ByteBuffer.wrap(new byte[]{0, 1, 2, 3, 4, 5, 6, 7, 8, 9});
+    private static final byte[] IDAT = {10, 11, 12, 13};
+
+    private static HeifInfo.Item item(int constructionMethod, long[] offsets, long[] lengths) {
+        return new HeifInfo.Item(1, HeifInfo.Item.TYPE_HEVC, "", 0, 0, null, constructionMethod, offsets, lengths);
+    }
+
+    private static HeifInfo info(HeifInfo.Item item) {
+        return new HeifInfo("heic", 1, Collections.singletonList(item),
+                Collections.<HeifInfo.Reference>emptyList(), IDAT);
+    }
+
+    @Test
+    public void resolveMultipleExtents() throws Exception {
+        HeifInfo.Item item = item(0, new long[]{6, 1}, new long[]{2, 3});
+        List<ByteBuffer> extents = ItemDataResolver.resolve(FILE, info(item), item);
+        assertEquals(2, extents.size());
+        assertEquals(ByteBuffer.wrap(new byte[]{6, 7}), extents.get(0));
+        assertEquals(ByteBuffer.wrap(new byte[]{1, 2, 3}), extents.get(1));
+        assertTrue(extents.get(0).isReadOnly());
+        assertEquals(5, ItemDataResolver.size(extents));
+        assertEquals(ByteBuffer.wrap(new byte[]{6, 7, 1, 2, 3}), ItemDataResolver.toContiguous(extents));
+    }
+
+    @Test
+    public void resolveItemData() throws Exception {
+        // construction_method=1, extent_length=0 means to the end of 'idat'
+        HeifInfo.Item item = item(1, new long[]{1}, new long[]{0});
+        List<ByteBuffer> extents = ItemDataResolver.resolve(FILE, info(item), item);
+        assertEquals(ByteBuffer.wrap(new byte[]{11, 12, 13}), ItemDataResolver.toContiguous(extents));
+    }
+
+    @Test(expected = IOException.class)
+    public void resolveOutOfRange() throws Exception {
+        HeifInfo.Item item = item(0, new long[]{0, 8}, new long[]{2, 3});
+        ItemDataResolver.resolve(FILE, info(item), item);
+    }
+
+    @Test(expected = IOException.class)
+    public void resolveUnsupportedConstructionMethod() throws Exception {
+        HeifInfo.Item item = item(2, new long[]{0}, new long[]{1});
+        ItemDataResolver.resolve(FILE, info(item), item);
+    }
+}
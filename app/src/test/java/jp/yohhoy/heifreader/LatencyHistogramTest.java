@@ -0,0 +1,117 @@
+package jp.yohhoy.heifreader;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test for LatencyHistogram.
+ */
+public class LatencyHistogramTest {
+    @Test
+    public void emptyHistogram() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getValueAtPercentile(50));
+        assertEquals(0, histogram.getMean(), 0);
+    }
+
+    @Test
+    public void smallValuesAreExact() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int value = 1; value <= 100; value++) {
+            histogram.recordValue(value);
+        }
+        assertEquals(100, histogram.getCount());
+        assertEquals(50, histogram.getValueAtPercentile(50));
+        assertEquals(99, histogram.getValueAtPercentile(99));
+        assertEquals(100, histogram.getValueAtPercentile(100));
+        assertEquals(1, histogram.getValueAtPercentile(0));
+        assertEquals(50.5, histogram.getMean(), 1e-9);
+    }
+
+    @Test
+    public void largeValuesKeepRelativePrecision() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.recordValue(i * 1000000L);   // 1..1000[msec]
+        }
+        assertEquals(500e6, histogram.getValueAtPercentile(50), 500e6 / 64);
+        assertEquals(990e6, histogram.getValueAtPercentile(99), 990e6 / 64);
+        assertEquals(1000000000L, histogram.getValueAtPercentile(100));
+        assertEquals(1000000000L, histogram.getMaxValue());
+    }
+
+    @Test
+    public void indexRoundTrip() {
+        long[] values = {0, 1, 127, 128, 129, 255, 256, 1000, 123456789, LatencyHistogram.MAX_TRACKABLE_VALUE};
+        for (long value : values) {
+            long highest = LatencyHistogram.highestEquivalentValue(LatencyHistogram.countsIndex(value));
+            assertTrue(value <= highest);
+            assertTrue(highest - value <= value / 64);
+        }
+        for (long value = 0; value < 4096; value++) {
+            assertTrue(LatencyHistogram.countsIndex(value) <= LatencyHistogram.countsIndex(value + 1));
+        }
+    }
+
+    @Test
+    public void clampAndReset() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.recordValue(Long.MAX_VALUE);
+        assertEquals(LatencyHistogram.MAX_TRACKABLE_VALUE, histogram.getMaxValue());
+        assertEquals(LatencyHistogram.MAX_TRACKABLE_VALUE, histogram.getValueAtPercentile(50));
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMaxValue());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeValue() {
+        new LatencyHistogram().recordValue(-1);
+    }
+
+    @Test
+    public void concurrentRecording() throws Exception {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 10000; i++) {
+                        histogram.recordValue(i);
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(40000, histogram.getCount());
+        assertEquals(9999, histogram.getMaxValue());
+        assertEquals(5000, histogram.getValueAtPercentile(50), 5000 / 64);
+    }
+
+    @Test
+    public void metricsPerStage() {
+        HistogramMetrics metrics = new HistogramMetrics();
+        metrics.onEvent(new HeifMetrics.Event(HeifMetrics.STAGE_DECODE, 1000, 300, 512, 512, false));
+        metrics.onEvent(new HeifMetrics.Event(HeifMetrics.STAGE_DECODE, 3000, 200, 512, 512, true));
+        metrics.onEvent(new HeifMetrics.Event(HeifMetrics.STAGE_PARSE, 50, 40000, 512, 512, false));
+        assertEquals(2, metrics.getHistogram(HeifMetrics.STAGE_DECODE).getCount());
+        assertEquals(1, metrics.getHistogram(HeifMetrics.STAGE_PARSE).getCount());
+        assertEquals(0, metrics.getHistogram(HeifMetrics.STAGE_CONVERT).getCount());
+        assertEquals(500, metrics.getBytes(HeifMetrics.STAGE_DECODE));
+        assertEquals(1, metrics.getFallbackCount(HeifMetrics.STAGE_DECODE));
+        assertEquals(3000, metrics.getHistogram(HeifMetrics.STAGE_DECODE).getValueAtPercentile(99), 3000 / 64);
+        metrics.reset();
+        assertEquals(0, metrics.getHistogram(HeifMetrics.STAGE_DECODE).getCount());
+    }
+}
@@ -0,0 +1,239 @@
+package jp.yohhoy.heifreader;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test for Pipeline with stub stages.
+ */
+public class PipelineTest {
+    private static final int[] THREADS = {1, 1, 1};
+
+    static class CollectingSink implements Pipeline.Sink<Integer, String> {
+        final String[] outputs;
+        final Throwable[] errors;
+        final AtomicInteger calls = new AtomicInteger();
+
+        CollectingSink(int count) {
+            outputs = new String[count];
+            errors = new Throwable[count];
+        }
+
+        @Override
+        public void onResult(int index, Integer input, String output, Throwable error) {
+            assertEquals(index, input.intValue());
+            outputs[index] = output;
+            errors[index] = error;
+            calls.incrementAndGet();
+        }
+    }
+
+    private static List<Integer> inputs(int count) {
+        List<Integer> inputs = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            inputs.add(i);
+        }
+        return inputs;
+    }
+
+    private static <I> Pipeline.Stage<I, I> identity() {
+        return new Pipeline.Stage<I, I>() {
+            @Override
+            public I process(I input) {
+                return input;
+            }
+        };
+    }
+
+    @Test
+    public void processAllInputs() throws Exception {
+        Pipeline<Integer, Integer, Integer, String> pipeline = new Pipeline<>(
+                new Pipeline.Stage<Integer, Integer>() {
+                    @Override
+                    public Integer process(Integer input) {
+                        return input * 2;
+                    }
+                },
+                new Pipeline.Stage<Integer, Integer>() {
+                    @Override
+                    public Integer process(Integer input) {
+                        return input + 1;
+                    }
+                },
+                new Pipeline.Stage<Integer, String>() {
+                    @Override
+                    public String process(Integer input) {
+                        return "#" + input;
+                    }
+                },
+                new int[]{2, 3, 2}, 4);
+        CollectingSink sink = new CollectingSink(50);
+        PipelineStats stats = pipeline.run(inputs(50), sink);
+        assertEquals(50, sink.calls.get());
+        for (int i = 0; i < 50; i++) {
+            assertEquals("#" + (i * 2 + 1), sink.outputs[i]);
+            assertNull(sink.errors[i]);
+        }
+        for (int stage = 0; stage < 3; stage++) {
+            assertEquals(50, stats.getItemCount(stage));
+        }
+        assertEquals(0, stats.getFailedCount());
+    }
+
+    @Test
+    public void emptyInputs() throws Exception {
+        Pipeline<Integer, Integer, Integer, Integer> pipeline = new Pipeline<>(
+                PipelineTest.<Integer>identity(), PipelineTest.<Integer>identity(), PipelineTest.<Integer>identity(),
+                THREADS, 1);
+        PipelineStats stats = pipeline.run(Collections.<Integer>emptyList(), new Pipeline.Sink<Integer, Integer>() {
+            @Override
+            public void onResult(int index, Integer input, Integer output, Throwable error) {
+                fail();
+            }
+        });
+        assertEquals(0, stats.getItemCount(PipelineStats.STAGE_PARSE));
+    }
+
+    @Test
+    public void failureSkipsLaterStages() throws Exception {
+        final AtomicInteger converted = new AtomicInteger();
+        Pipeline<Integer, Integer, Integer, String> pipeline = new Pipeline<>(
+                PipelineTest.<Integer>identity(),
+                new Pipeline.Stage<Integer, Integer>() {
+                    @Override
+                    public Integer process(Integer input) throws IOException {
+                        if (input % 3 == 0) {
+                            throw new IOException("broken " + input);
+                        }
+                        return input;
+                    }
+                },
+                new Pipeline.Stage<Integer, String>() {
+                    @Override
+                    public String process(Integer input) {
+                        converted.incrementAndGet();
+                        return input.toString();
+                    }
+                },
+                THREADS, 2);
+        CollectingSink sink = new CollectingSink(9);
+        PipelineStats stats = pipeline.run(inputs(9), sink);
+        for (int i = 0; i < 9; i++) {
+            if (i % 3 == 0) {
+                assertNull(sink.outputs[i]);
+                assertTrue(sink.errors[i] instanceof IOException);
+            } else {
+                assertEquals(Integer.toString(i), sink.outputs[i]);
+            }
+        }
+        assertEquals(6, converted.get());
+        assertEquals(3, stats.getFailedCount());
+        assertEquals(9, stats.getItemCount(PipelineStats.STAGE_DECODE));
+        assertEquals(6, stats.getItemCount(PipelineStats.STAGE_CONVERT));
+    }
+
+    @Test(timeout = 10000)
+    public void stagesOverlap() throws Exception {
+        // decoding of item 0 waits until item 1 is parsed and item 0 is not yet converted
+        final CountDownLatch secondParsed = new CountDownLatch(1);
+        Pipeline<Integer, Integer, Integer, Integer> pipeline = new Pipeline<>(
+                new Pipeline.Stage<Integer, Integer>() {
+                    @Override
+                    public Integer process(Integer input) {
+                        if (input == 1) {
+                            secondParsed.countDown();
+                        }
+                        return input;
+                    }
+                },
+                new Pipeline.Stage<Integer, Integer>() {
+                    @Override
+                    public Integer process(Integer input) throws InterruptedException {
+                        if (input == 0) {
+                            assertTrue(secondParsed.await(5, TimeUnit.SECONDS));
+                        }
+                        return input;
+                    }
+                },
+                PipelineTest.<Integer>identity(),
+                THREADS, 2);
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        pipeline.run(inputs(2), new Pipeline.Sink<Integer, Integer>() {
+            @Override
+            public void onResult(int index, Integer input, Integer output, Throwable error) {
+                assertNull(error);
+                order.add(output);
+            }
+        });
+        assertEquals(Arrays.asList(0, 1), order);
+    }
+
+    @Test(timeout = 10000)
+    public void backpressureLimitsItemsInFlight() throws Exception {
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger maxInFlight = new AtomicInteger();
+        Pipeline<Integer, Integer, Integer, Integer> pipeline = new Pipeline<>(
+                new Pipeline.Stage<Integer, Integer>() {
+                    @Override
+                    public Integer process(Integer input) {
+                        int n = inFlight.incrementAndGet();
+                        while (true) {
+                            int max = maxInFlight.get();
+                            if (n <= max || maxInFlight.compareAndSet(max, n)) {
+                                break;
+                            }
+                        }
+                        return input;
+                    }
+                },
+                PipelineTest.<Integer>identity(),
+                new Pipeline.Stage<Integer, Integer>() {
+                    @Override
+                    public Integer process(Integer input) throws InterruptedException {
+                        Thread.sleep(2);  // slow conversion
+                        return input;
+                    }
+                },
+                THREADS, 3);
+        pipeline.run(inputs(30), new Pipeline.Sink<Integer, Integer>() {
+            @Override
+            public void onResult(int index, Integer input, Integer output, Throwable error) {
+                inFlight.decrementAndGet();
+            }
+        });
+        assertEquals(0, inFlight.get());
+        assertTrue("maxInFlight=" + maxInFlight.get(), maxInFlight.get() <= 3);
+    }
+
+    @Test
+    public void sinkFailureIsRethrown() throws Exception {
+        Pipeline<Integer, Integer, Integer, Integer> pipeline = new Pipeline<>(
+                PipelineTest.<Integer>identity(), PipelineTest.<Integer>identity(), PipelineTest.<Integer>identity(),
+                THREADS, 2);
+        final AtomicInteger calls = new AtomicInteger();
+        try {
+            pipeline.run(inputs(5), new Pipeline.Sink<Integer, Integer>() {
+                @Override
+                public void onResult(int index, Integer input, Integer output, Throwable error) {
+                    calls.incrementAndGet();
+                    throw new IllegalStateException("sink");
+                }
+            });
+            fail();
+        } catch (IllegalStateException ex) {
+            assertEquals("sink", ex.getMessage());
+        }
+        // all items are finished before rethrow
+        assertEquals(5, calls.get());
+    }
+}
@@ -0,0 +1,111 @@
+package jp.yohhoy.heifreader;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test for SizeBucketPool.
+ */
+public class SizeBucketPoolTest {
+    static class FakeBuffer {
+        final int size;
+        boolean released;
+
+        FakeBuffer(int size) {
+            this.size = size;
+        }
+    }
+
+    static class FakeAllocator implements SizeBucketPool.Allocator<FakeBuffer> {
+        final List<FakeBuffer> released = new ArrayList<>();
+
+        @Override
+        public int byteCount(FakeBuffer buffer) {
+            return buffer.size;
+        }
+
+        @Override
+        public void release(FakeBuffer buffer) {
+            assertFalse("double release", buffer.released);
+            buffer.released = true;
+            released.add(buffer);
+        }
+    }
+
+    private FakeAllocator mAllocator;
+    private SizeBucketPool<FakeBuffer> mPool;
+
+    @Before
+    public void setUp() {
+        mAllocator = new FakeAllocator();
+        mPool = new SizeBucketPool<>(mAllocator, 1000);
+    }
+
+    @Test
+    public void acquireSmallestFitting() {
+        FakeBuffer small = new FakeBuffer(100);
+        FakeBuffer medium = new FakeBuffer(200);
+        FakeBuffer large = new FakeBuffer(400);
+        mPool.recycle(large);
+        mPool.recycle(small);
+        mPool.recycle(medium);
+        assertEquals(700, mPool.getTotalBytes());
+
+        assertSame(medium, mPool.acquire(150, 300));
+        assertNull(mPool.acquire(150, 300));
+        assertSame(large, mPool.acquire(150, 400));
+        assertSame(small, mPool.acquire(0, 1000));
+        assertEquals(0, mPool.getCount());
+        assertEquals(0, mPool.getTotalBytes());
+        assertTrue(mAllocator.released.isEmpty());
+    }
+
+    @Test
+    public void sameSizeBucket() {
+        FakeBuffer first = new FakeBuffer(100);
+        FakeBuffer second = new FakeBuffer(100);
+        mPool.recycle(first);
+        mPool.recycle(second);
+        // most recently pooled first
+        assertSame(second, mPool.acquire(100, 100));
+        assertSame(first, mPool.acquire(100, 100));
+    }
+
+    @Test
+    public void evictLeastRecentlyPooled() {
+        FakeBuffer a = new FakeBuffer(400);
+        FakeBuffer b = new FakeBuffer(400);
+        FakeBuffer c = new FakeBuffer(300);
+        mPool.recycle(a);
+        mPool.recycle(b);
+        mPool.recycle(c);
+        assertEquals(1, mAllocator.released.size());
+        assertSame(a, mAllocator.released.get(0));
+        assertEquals(700, mPool.getTotalBytes());
+        assertSame(b, mPool.acquire(400, 400));
+        assertNull(mPool.acquire(400, 400));
+    }
+
+    @Test
+    public void releaseOversizedBuffer() {
+        FakeBuffer huge = new FakeBuffer(2000);
+        mPool.recycle(huge);
+        assertTrue(huge.released);
+        assertEquals(0, mPool.getCount());
+    }
+
+    @Test
+    public void clear() {
+        mPool.recycle(new FakeBuffer(100));
+        mPool.recycle(new FakeBuffer(200));
+        mPool.clear();
+        assertEquals(2, mAllocator.released.size());
+        assertEquals(0, mPool.getTotalBytes());
+        assertNull(mPool.acquire(0, 1000));
+    }
+}
@@ -0,0 +1,113 @@
+package jp.yohhoy.heifreader;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import jp.yohhoy.heifreader.hevc.SoftwareHevcDecoder;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test for SoftwareHevcDecoder.
+ */
+public class SoftwareHevcDecoderTest {
+    /**
+     * CRC-32 of Y, Cb and Cr planes of lena_std.heic, decoded by FFmpeg(libavcodec).
+     */
+    private static final long[] LENA_PLANE_CRCS = {3038170649L, 4212736138L, 2953808924L};
+
+    private static HevcConfig lenaConfig() throws IOException {
+        byte[] hvcc = HeifTestData.lenaHvcc();
+        return HevcConfig.parse(ByteBuffer.wrap(hvcc, 8, hvcc.length - 8));
+    }
+
+    /**
+     * Collect planes into contiguous arrays.
+     */
+    private static final class PlaneCollector implements HevcDecoder.Output {
+        final byte[][] planes = new byte[3][];
+
+        @Override
+        public void writeImage(HevcDecoder.Plane[] src, int width, int height) {
+            assertEquals(3, src.length);
+            for (int i = 0; i < src.length; i++) {
+                final int planeWidth = (i == 0) ? width : width / 2;
+                final int planeHeight = (i == 0) ? height : height / 2;
+                assertEquals(1, src[i].pixelStride);
+                byte[] dst = new byte[planeWidth * planeHeight];
+                for (int y = 0; y < planeHeight; y++) {
+                    ByteBuffer row = src[i].buffer.duplicate();
+                    row.position(y * src[i].rowStride);
+                    row.get(dst, y * planeWidth, planeWidth);
+                }
+                planes[i] = dst;
+            }
+        }
+    }
+
+    private static byte[][] decodeLena(int threads, List<ByteBuffer> bitstream) throws IOException {
+        PlaneCollector output = new PlaneCollector();
+        try (HevcDecoder decoder = new SoftwareHevcDecoder(threads)) {
+            assertTrue(decoder.decode(lenaConfig(), 512, 512, bitstream, HevcDecoder.FORMAT_YUV420, output));
+        }
+        return output.planes;
+    }
+
+    private static void assertLena(byte[][] planes) {
+        assertEquals(512 * 512, planes[0].length);
+        assertEquals(256 * 256, planes[1].length);
+        assertEquals(256 * 256, planes[2].length);
+        for (int c = 0; c < 3; c++) {
+            CRC32 crc = new CRC32();
+            crc.update(planes[c]);
+            assertEquals("plane " + c, LENA_PLANE_CRCS[c], crc.getValue());
+        }
+    }
+
+    @Test
+    public void decodeLena() throws Exception {
+        List<ByteBuffer> bitstream = Collections.singletonList(ByteBuffer.wrap(HeifTestData.lenaBitstream()));
+        assertLena(decodeLena(1, bitstream));
+    }
+
+    @Test
+    public void decodeLenaMultithreaded() throws Exception {
+        List<ByteBuffer> bitstream = Collections.singletonList(ByteBuffer.wrap(HeifTestData.lenaBitstream()));
+        for (int threads : new int[]{2, 4}) {
+            assertLena(decodeLena(threads, bitstream));
+        }
+    }
+
+    @Test
+    public void decodeLenaMultipleExtents() throws Exception {
+        byte[] bitstream = HeifTestData.lenaBitstream();
+        int split = bitstream.length / 3;
+        List<ByteBuffer> extents = Arrays.asList(ByteBuffer.wrap(bitstream, 0, split).slice(),
+                ByteBuffer.wrap(bitstream, split, bitstream.length - split).slice());
+        assertLena(decodeLena(1, extents));
+    }
+
+    @Test
+    public void rgb565IsNotSupported() throws Exception {
+        List<ByteBuffer> bitstream = Collections.singletonList(ByteBuffer.wrap(HeifTestData.lenaBitstream()));
+        try (HevcDecoder decoder = new SoftwareHevcDecoder(1)) {
+            assertFalse(decoder.decode(lenaConfig(), 512, 512, bitstream, HevcDecoder.FORMAT_RGB565,
+                    new PlaneCollector()));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void decodeTruncated() throws Exception {
+        byte[] bitstream = HeifTestData.lenaBitstream();
+        // keep NAL unit length field, and drop latter half of slice data
+        byte[] truncated = Arrays.copyOf(bitstream, bitstream.length / 2);
+        ByteBuffer.wrap(truncated).putInt(0, truncated.length - 4);
+        decodeLena(1, Collections.singletonList(ByteBuffer.wrap(truncated)));
+    }
+}
@@ -0,0 +1,63 @@
+package jp.yohhoy.heifreader;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test for TileCache.
+ */
+public class TileCacheTest {
+    private static ImageCanvas tile(int size) {
+        // 'size' bytes of RGB565 canvas
+        return new ImageCanvas(size / 2, 1, ImageCanvas.FORMAT_RGB565, new byte[size]);
+    }
+
+    @Test
+    public void evictLeastRecentlyUsed() {
+        TileCache cache = new TileCache(300);
+        ImageCanvas t0 = tile(100);
+        ImageCanvas t1 = tile(100);
+        ImageCanvas t2 = tile(100);
+        cache.put(0, t0);
+        cache.put(1, t1);
+        cache.put(2, t2);
+        assertEquals(300, cache.getTotalBytes());
+        // touch tile 0, then tile 1 is least recently used
+        assertSame(t0, cache.get(0));
+        cache.put(3, tile(100));
+        assertNull(cache.get(1));
+        assertSame(t0, cache.get(0));
+        assertSame(t2, cache.get(2));
+        assertEquals(3, cache.getCount());
+        assertEquals(300, cache.getTotalBytes());
+    }
+
+    @Test
+    public void replaceTile() {
+        TileCache cache = new TileCache(300);
+        cache.put(0, tile(100));
+        ImageCanvas t0 = tile(200);
+        cache.put(0, t0);
+        assertSame(t0, cache.get(0));
+        assertEquals(200, cache.getTotalBytes());
+    }
+
+    @Test
+    public void tooLargeTile() {
+        TileCache cache = new TileCache(300);
+        cache.put(0, tile(400));
+        assertNull(cache.get(0));
+        assertEquals(0, cache.getTotalBytes());
+    }
+
+    @Test
+    public void clear() {
+        TileCache cache = new TileCache(300);
+        cache.put(0, tile(100));
+        cache.clear();
+        assertNull(cache.get(0));
+        assertEquals(0, cache.getCount());
+        assertEquals(0, cache.getTotalBytes());
+    }
+}
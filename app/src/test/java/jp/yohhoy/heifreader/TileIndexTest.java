@@ -0,0 +1,82 @@
+package jp.yohhoy.heifreader;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test for TileIndex.
+ */
+public class TileIndexTest {
+    private static TileIndex build(byte[] data) throws IOException {
+        ByteBuffer heif = ByteBuffer.wrap(data);
+        HeifInfo info = HeifParser.parse(heif);
+        return TileIndex.build(heif, info, info.getPrimaryItem());
+    }
+
+    @Test
+    public void singleImage() throws Exception {
+        TileIndex tiles = build(HeifTestData.readLena());
+        assertEquals(1, tiles.getTileCount());
+        assertEquals(512, tiles.getWidth());
+        assertEquals(512, tiles.getTileWidth());
+        assertEquals(0, tiles.getTileLeft(0));
+        assertEquals(HeifTestData.lenaBitstream().length, ItemDataResolver.size(tiles.getBitstream(0)));
+        assertArrayEquals(new int[]{0}, tiles.findTiles(new DecodeRegion(100, 100, 10, 10, 1)));
+    }
+
+    @Test
+    public void gridLayout() throws Exception {
+        // 3 rows x 4 columns of 512x512 tiles
+        TileIndex tiles = build(HeifTestData.buildGrid(3, 4));
+        assertEquals(12, tiles.getTileCount());
+        assertEquals(2048, tiles.getWidth());
+        assertEquals(1536, tiles.getHeight());
+        assertEquals(1536, tiles.getTileLeft(7));
+        assertEquals(512, tiles.getTileTop(7));
+        assertEquals(9, tiles.getTile(7).getId());
+        assertEquals(HeifTestData.lenaBitstream().length, ItemDataResolver.size(tiles.getBitstream(11)));
+    }
+
+    @Test
+    public void findTilesInRegion() throws Exception {
+        TileIndex tiles = build(HeifTestData.buildGrid(3, 4));
+        assertArrayEquals(new int[]{5}, tiles.findTiles(new DecodeRegion(512, 512, 512, 512, 1)));
+        assertArrayEquals(new int[]{5, 6, 9, 10}, tiles.findTiles(new DecodeRegion(1000, 1000, 100, 100, 4)));
+        assertArrayEquals(new int[]{3, 7, 11}, tiles.findTiles(new DecodeRegion(2047, 0, 1, 1536, 1)));
+        assertEquals(12, tiles.findTiles(DecodeRegion.full(2048, 1536)).length);
+    }
+
+    @Test
+    public void malformedTileOfNonPrimaryGrid() throws Exception {
+        // 1x2 grid whose first tile is nested 'grid', and thumbnail as primary image
+        byte[] data = HeifTestData.buildGrid(1, 2);
+        data = HeifTestData.replace(data, HeifTestData.infe(2, "hvc1"), HeifTestData.infe(2, "grid"));
+        data = HeifTestData.replace(data, HeifTestData.fullBox("pitm", 0, 0, HeifTestData.u16(1)),
+                HeifTestData.fullBox("pitm", 0, 0, HeifTestData.u16(4)));
+        ByteBuffer heif = ByteBuffer.wrap(data);
+        HeifInfo info = HeifParser.parse(heif);
+        assertEquals(4, info.getPrimaryItem().getId());
+        try {
+            TileIndex.build(heif, info, info.findItem(1));
+            fail();
+        } catch (IOException ex) {
+            assertTrue(ex.getMessage().contains("item_type(grid)"));
+        }
+    }
+
+    @Test
+    public void contentKeyOfSameImage() throws Exception {
+        String lena = build(HeifTestData.readLena()).contentKey();
+        assertEquals(40, lena.length());
+        // same bitstream in different file layout
+        assertEquals(lena, build(HeifTestData.lenaMetaFirst(new byte[0])).contentKey());
+        // different tile layout
+        assertNotEquals(build(HeifTestData.buildGrid(1, 2)).contentKey(), build(HeifTestData.buildGrid(2, 1)).contentKey());
+        // 1x1 grid of lena is same decoded image
+        assertEquals(lena, build(HeifTestData.buildGrid(1, 1)).contentKey());
+    }
+}
@@ -0,0 +1,350 @@
+package jp.yohhoy.heifreader;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test for YuvConverter.
+ */
+public class YuvConverterTest {
+    /**
+     * SPS with VUI colour description: BT.709 matrix and full range.
+     */
+    private static final byte[] SPS_BT709_FULL = {
+            0x42, 0x01, 0x01, 0x01, 0x60, 0x00, 0x00, 0x03, 0x00, (byte) 0x90, 0x00, 0x00, 0x03, 0x00,
+            0x00, 0x03, 0x00, 0x1e, (byte) 0xa0, 0x20, (byte) 0x81, 0x05, (byte) 0x96, 0x56, 0x69, 0x24,
+            (byte) 0xca, (byte) 0xe6, (byte) 0xe0, 0x20, 0x20, 0x20, (byte) 0x80, 0x00, 0x00, 0x03,
+            0x00, (byte) 0x80, 0x00, 0x00, 0x0c, (byte) 0x84};
+
+    /**
+     * I420 image in contiguous planes.
+     */
+    private static final class Yuv {
+        final int width;
+        final int height;
+        final byte[] luma;
+        final byte[] cb;
+        final byte[] cr;
+
+        Yuv(int width, int height, long seed) {
+            this.width = width;
+            this.height = height;
+            Random random = new Random(seed);
+            luma = new byte[width * height];
+            cb = new byte[(width + 1) / 2 * ((height + 1) / 2)];
+            cr = new byte[cb.length];
+            random.nextBytes(luma);
+            random.nextBytes(cb);
+            random.nextBytes(cr);
+        }
+
+        HevcDecoder.Plane[] planar() {
+            final int chromaWidth = (width + 1) / 2;
+            return new HevcDecoder.Plane[]{
+                    new HevcDecoder.Plane(ByteBuffer.wrap(luma), width, 1),
+                    new HevcDecoder.Plane(ByteBuffer.wrap(cb), chromaWidth, 1),
+                    new HevcDecoder.Plane(ByteBuffer.wrap(cr), chromaWidth, 1)};
+        }
+
+        /**
+         * Semi-planar(NV12) layout with padded rows in direct buffers, like MediaCodec output.
+         */
+        HevcDecoder.Plane[] semiPlanar(int rowStride) {
+            final int chromaWidth = (width + 1) / 2;
+            final int chromaHeight = (height + 1) / 2;
+            ByteBuffer lumaBuf = ByteBuffer.allocateDirect(rowStride * height);
+            ByteBuffer chromaBuf = ByteBuffer.allocateDirect(rowStride * chromaHeight);
+            for (int y = 0; y < height; y++) {
+                lumaBuf.position(y * rowStride);
+                lumaBuf.put(luma, y * width, width);
+            }
+            for (int y = 0; y < chromaHeight; y++) {
+                for (int x = 0; x < chromaWidth; x++) {
+                    chromaBuf.put(y * rowStride + 2 * x, cb[y * chromaWidth + x]);
+                    chromaBuf.put(y * rowStride + 2 * x + 1, cr[y * chromaWidth + x]);
+                }
+            }
+            lumaBuf.clear();
+            chromaBuf.position(1);
+            ByteBuffer crBuf = chromaBuf.slice();
+            chromaBuf.position(0);
+            return new HevcDecoder.Plane[]{
+                    new HevcDecoder.Plane(lumaBuf, rowStride, 1),
+                    new HevcDecoder.Plane(chromaBuf.slice(), rowStride, 2),
+                    new HevcDecoder.Plane(crBuf, rowStride, 2)};
+        }
+    }
+
+    /**
+     * Straightforward port of former yuv2rgb.rs RenderScript kernel. (BT.601 limited range)
+     */
+    private static int renderScriptPixel(Yuv yuv, int x, int y) {
+        int c = (y / 2) * ((yuv.width + 1) / 2) + (x / 2);
+        int luma = (yuv.luma[y * yuv.width + x] & 0xff) - 16;
+        int u = (yuv.cb[c] & 0xff) - 128;
+        int v = (yuv.cr[c] & 0xff) - 128;
+        int r = clamp((luma * 298 + v * 409 + 128) >> 8);
+        int g = clamp((luma * 298 - u * 100 - v * 208 + 128) >> 8);
+        int b = clamp((luma * 298 + u * 516 + 128) >> 8);
+        return 0xff000000 | (r << 16) | (g << 8) | b;
+    }
+
+    private static int clamp(int v) {
+        return (v < 0) ? 0 : (v > 255) ? 255 : v;
+    }
+
+    private static int[] convert(YuvConverter converter, Yuv yuv, HevcDecoder.Plane[] planes, ForkJoinPool pool) {
+        int[] argb = new int[yuv.width * yuv.height];
+        converter.convert(planes, yuv.width, yuv.height, new ImageCanvas(yuv.width, yuv.height, argb, 0, yuv.width),
+                0, 0, pool);
+        return argb;
+    }
+
+    private static int convertPixel(YuvConverter converter, int luma, int cb, int cr) {
+        HevcDecoder.Plane[] planes = {
+                new HevcDecoder.Plane(ByteBuffer.wrap(new byte[]{(byte) luma}), 1, 1),
+                new HevcDecoder.Plane(ByteBuffer.wrap(new byte[]{(byte) cb}), 1, 1),
+                new HevcDecoder.Plane(ByteBuffer.wrap(new byte[]{(byte) cr}), 1, 1)};
+        int[] argb = new int[1];
+        converter.convert(planes, 1, 1, new ImageCanvas(1, 1, argb, 0, 1), 0, 0, null);
+        return argb[0];
+    }
+
+    @Test
+    public void bt601LimitedMatchesRenderScript() {
+        // odd size has partial 2x2 block at right and bottom edge
+        for (int[] size : new int[][]{{64, 48}, {37, 21}}) {
+            Yuv yuv = new Yuv(size[0], size[1], 1);
+            int[] argb = convert(YuvConverter.BT601_LIMITED, yuv, yuv.planar(), null);
+            for (int y = 0; y < yuv.height; y++) {
+                for (int x = 0; x < yuv.width; x++) {
+                    assertEquals("(" + x + "," + y + ")", renderScriptPixel(yuv, x, y), argb[y * yuv.width + x]);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void semiPlanarWithPadding() {
+        Yuv yuv = new Yuv(50, 30, 2);
+        YuvConverter[] converters = {YuvConverter.BT601_LIMITED, YuvConverter.BT601_FULL,
+                YuvConverter.BT709_LIMITED, YuvConverter.BT709_FULL};
+        for (YuvConverter converter : converters) {
+            assertArrayEquals(convert(converter, yuv, yuv.planar(), null),
+                    convert(converter, yuv, yuv.semiPlanar(64), null));
+        }
+    }
+
+    @Test
+    public void forkJoinMatchesSequential() {
+        Yuv yuv = new Yuv(128, 502, 3);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            assertArrayEquals(convert(YuvConverter.BT709_LIMITED, yuv, yuv.planar(), null),
+                    convert(YuvConverter.BT709_LIMITED, yuv, yuv.planar(), pool));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void convertTileWithClipping() {
+        // 4x4 tile at (2,2) of 4x4 canvas
+        Yuv yuv = new Yuv(4, 4, 4);
+        int[] expected = convert(YuvConverter.BT601_LIMITED, yuv, yuv.planar(), null);
+        int[] argb = new int[16];
+        YuvConverter.BT601_LIMITED.convert(yuv.planar(), 4, 4, new ImageCanvas(4, 4, argb, 0, 4), 2, 2, null);
+        assertArrayEquals(new int[]{
+                0, 0, 0, 0,
+                0, 0, 0, 0,
+                0, 0, expected[0], expected[1],
+                0, 0, expected[4], expected[5]}, argb);
+    }
+
+    @Test
+    public void convertIntoPaddedRows() {
+        // 2 pixels offset and 3 pixels padding per row
+        Yuv yuv = new Yuv(6, 4, 5);
+        int[] expected = convert(YuvConverter.BT601_LIMITED, yuv, yuv.planar(), null);
+        int[] argb = new int[2 + 9 * 4];
+        YuvConverter.BT601_LIMITED.convert(yuv.planar(), 6, 4, new ImageCanvas(6, 4, argb, 2, 9), 0, 0, null);
+        for (int y = 0; y < 4; y++) {
+            for (int x = 0; x < 9; x++) {
+                assertEquals((x < 6) ? expected[y * 6 + x] : 0, argb[2 + y * 9 + x]);
+            }
+        }
+        assertEquals(0, argb[0]);
+        assertEquals(0, argb[1]);
+    }
+
+    /**
+     * Box filter reference: average luma and chroma of the box, then convert.
+     */
+    private static int sampledPixel(YuvConverter converter, Yuv yuv, int x0, int y0, int sampleSize) {
+        final int x1 = Math.min(x0 + sampleSize, yuv.width);
+        final int y1 = Math.min(y0 + sampleSize, yuv.height);
+        final int chromaWidth = (yuv.width + 1) / 2;
+        int luma = 0;
+        for (int y = y0; y < y1; y++) {
+            for (int x = x0; x < x1; x++) {
+                luma += yuv.luma[y * yuv.width + x] & 0xff;
+            }
+        }
+        int cb = 0;
+        int cr = 0;
+        for (int y = y0 / 2; y < (y1 + 1) / 2; y++) {
+            for (int x = x0 / 2; x < (x1 + 1) / 2; x++) {
+                cb += yuv.cb[y * chromaWidth + x] & 0xff;
+                cr += yuv.cr[y * chromaWidth + x] & 0xff;
+            }
+        }
+        final int count = (x1 - x0) * (y1 - y0);
+        final int chromaCount = ((x1 + 1) / 2 - x0 / 2) * ((y1 + 1) / 2 - y0 / 2);
+        return convertPixel(converter, (luma + count / 2) / count,
+                (cb + chromaCount / 2) / chromaCount, (cr + chromaCount / 2) / chromaCount);
+    }
+
+    @Test
+    public void downsampleWithBoxFilter() {
+        // 3 is not aligned to chroma, and 4 leaves partial box at right and bottom edge
+        Yuv yuv = new Yuv(38, 22, 6);
+        for (int sampleSize : new int[]{2, 3, 4}) {
+            final int width = (yuv.width + sampleSize - 1) / sampleSize;
+            final int height = (yuv.height + sampleSize - 1) / sampleSize;
+            int[] argb = new int[width * height];
+            YuvConverter.BT709_FULL.convert(yuv.semiPlanar(64), yuv.width, yuv.height,
+                    new ImageCanvas(width, height, argb, 0, width), 0, 0, sampleSize, null);
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    assertEquals("sampleSize=" + sampleSize + " (" + x + "," + y + ")",
+                            sampledPixel(YuvConverter.BT709_FULL, yuv, x * sampleSize, y * sampleSize, sampleSize),
+                            argb[y * width + x]);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void cropAtOddPosition() {
+        // negative position crops top-left of the image
+        Yuv yuv = new Yuv(16, 12, 7);
+        int[] expected = convert(YuvConverter.BT601_LIMITED, yuv, yuv.planar(), null);
+        int[] argb = new int[7 * 5];
+        YuvConverter.BT601_LIMITED.convert(yuv.planar(), 10, 6, new ImageCanvas(7, 5, argb, 0, 7), -3, -1, 1, null);
+        for (int y = 0; y < 5; y++) {
+            for (int x = 0; x < 7; x++) {
+                assertEquals("(" + x + "," + y + ")", expected[(y + 1) * 16 + (x + 3)], argb[y * 7 + x]);
+            }
+        }
+    }
+
+    @Test
+    public void downsampleTilesMatchWholeImage() {
+        // 2x2 tiles of 32x16 image, cropped at (4,4) and downsampled by 4
+        Yuv yuv = new Yuv(32, 16, 8);
+        int[] expected = new int[7 * 3];
+        YuvConverter.BT601_LIMITED.convert(yuv.planar(), 32, 16, new ImageCanvas(7, 3, expected, 0, 7),
+                -4, -4, 4, null);
+        int[] argb = new int[7 * 3];
+        ImageCanvas canvas = new ImageCanvas(7, 3, argb, 0, 7);
+        for (int ty = 0; ty < 2; ty++) {
+            for (int tx = 0; tx < 2; tx++) {
+                Yuv tile = new Yuv(16, 8, 0);
+                for (int y = 0; y < 8; y++) {
+                    System.arraycopy(yuv.luma, (ty * 8 + y) * 32 + tx * 16, tile.luma, y * 16, 16);
+                }
+                for (int y = 0; y < 4; y++) {
+                    System.arraycopy(yuv.cb, (ty * 4 + y) * 16 + tx * 8, tile.cb, y * 8, 8);
+                    System.arraycopy(yuv.cr, (ty * 4 + y) * 16 + tx * 8, tile.cr, y * 8, 8);
+                }
+                YuvConverter.BT601_LIMITED.convert(tile.planar(), 16, 8, canvas,
+                        tx * 16 - 4, ty * 8 - 4, 4, null);
+            }
+        }
+        assertArrayEquals(expected, argb);
+        assertEquals(sampledPixel(YuvConverter.BT601_LIMITED, yuv, 8, 8, 4), argb[7 + 1]);
+    }
+
+    @Test
+    public void downsampleForkJoinMatchesSequential() {
+        Yuv yuv = new Yuv(300, 500, 9);
+        int[] sequential = new int[100 * 167];
+        int[] parallel = new int[100 * 167];
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            YuvConverter.BT709_LIMITED.convert(yuv.planar(), 300, 500, new ImageCanvas(100, 167, sequential, 0, 100),
+                    0, 0, 3, null);
+            YuvConverter.BT709_LIMITED.convert(yuv.planar(), 300, 500, new ImageCanvas(100, 167, parallel, 0, 100),
+                    0, 0, 3, pool);
+        } finally {
+            pool.shutdown();
+        }
+        assertArrayEquals(sequential, parallel);
+    }
+
+    @Test
+    public void referenceColors() {
+        assertEquals(0xff000000, convertPixel(YuvConverter.BT709_LIMITED, 16, 128, 128));
+        assertEquals(0xffffffff, convertPixel(YuvConverter.BT709_LIMITED, 235, 128, 128));
+        assertEquals(0xff000000, convertPixel(YuvConverter.BT709_FULL, 0, 128, 128));
+        assertEquals(0xff808080, convertPixel(YuvConverter.BT709_FULL, 128, 128, 128));
+        assertEquals(0xffffffff, convertPixel(YuvConverter.BT601_FULL, 255, 128, 128));
+        // 75% yellow bar (ITU-R BT.709 limited range)
+        assertEquals(0xffbfbf00, convertPixel(YuvConverter.BT709_LIMITED, 168, 44, 136));
+    }
+
+    @Test
+    public void closeToFloatingPoint() {
+        final double[][] params = {{0.299, 0.114}, {0.2126, 0.0722}};
+        for (int matrix = 0; matrix < 2; matrix++) {
+            for (int range = 0; range < 2; range++) {
+                final boolean full = (range == 1);
+                final YuvConverter converter = YuvConverter.forVideoSignal(matrix == 1 ? 1 : 6, full);
+                final double kr = params[matrix][0];
+                final double kb = params[matrix][1];
+                final double kg = 1 - kr - kb;
+                for (int luma = 0; luma < 256; luma += 3) {
+                    for (int cb = 0; cb < 256; cb += 5) {
+                        for (int cr = 0; cr < 256; cr += 5) {
+                            double yy = full ? luma : (luma - 16) * 255.0 / 219;
+                            double u = full ? cb - 128 : (cb - 128) * 255.0 / 224;
+                            double v = full ? cr - 128 : (cr - 128) * 255.0 / 224;
+                            double r = yy + 2 * (1 - kr) * v;
+                            double g = yy - 2 * kb * (1 - kb) / kg * u - 2 * kr * (1 - kr) / kg * v;
+                            double b = yy + 2 * (1 - kb) * u;
+                            int argb = convertPixel(converter, luma, cb, cr);
+                            String msg = "matrix=" + matrix + " full=" + full + " YCbCr=" + luma + "," + cb + "," + cr;
+                            assertEquals(msg, clamp((int) Math.round(r)), (argb >> 16) & 0xff, 1);
+                            assertEquals(msg, clamp((int) Math.round(g)), (argb >> 8) & 0xff, 1);
+                            assertEquals(msg, clamp((int) Math.round(b)), argb & 0xff, 1);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void selectMatrixFromVui() throws Exception {
+        byte[] paramset = HeifTestData.concat(new byte[]{0, 0, 0, 1}, SPS_BT709_FULL);
+        HevcConfig config = new HevcConfig(paramset, 4, 1, 30, 1, 8, 8);
+        assertEquals(1, config.getMatrixCoefficients());
+        assertTrue(config.isFullRange());
+        assertSame(YuvConverter.BT709_FULL, YuvConverter.forConfig(config));
+
+        // lena_std.heic has no colour description
+        byte[] hvcc = HeifTestData.lenaHvcc();
+        HevcConfig lena = HevcConfig.parse(ByteBuffer.wrap(hvcc, 8, hvcc.length - 8));
+        assertEquals(2, lena.getMatrixCoefficients());
+        assertFalse(lena.isFullRange());
+        assertSame(YuvConverter.BT601_LIMITED, YuvConverter.forConfig(lena));
+        assertSame(YuvConverter.BT601_LIMITED, YuvConverter.forVideoSignal(6, false));
+        assertSame(YuvConverter.BT601_FULL, YuvConverter.forVideoSignal(5, true));
+        assertSame(YuvConverter.BT709_LIMITED, YuvConverter.forVideoSignal(1, false));
+    }
+}
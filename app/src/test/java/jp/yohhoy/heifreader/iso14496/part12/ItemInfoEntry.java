@@ -15,24 +15,42 @@ public final class ItemInfoEntry extends AbstractFullBox {
 
     private int itemId;
     private int itemProtectionIndex;
+    private String itemType;
     private String itemName;
-    private String contentType;
 
     public ItemInfoEntry() {
         super(TYPE);
     }
 
+    public int getItemId() {
+        return itemId;
+    }
+
+    public String getItemType() {
+        return itemType;
+    }
+
+    public String getItemName() {
+        return itemName;
+    }
+
     @Override
     public void _parseDetails(ByteBuffer content) {
         contentSize = content.limit();
 
         parseVersionAndFlags(content);
-        itemId = IsoTypeReader.readUInt16(content);
+        if (getVersion() < 3) {
+            itemId = IsoTypeReader.readUInt16(content);
+        } else {
+            itemId = (int) IsoTypeReader.readUInt32(content);
+        }
         itemProtectionIndex = IsoTypeReader.readUInt16(content);
-        itemName = IsoTypeReader.readString(content, 4);
-        contentType = IsoTypeReader.readString(content);
-        //if (0 < content.remaining()) {
-        //    contentEncoding = IsoTypeReader.readString(content);
+        if (2 <= getVersion()) {
+            itemType = IsoTypeReader.read4cc(content);
+        }
+        itemName = IsoTypeReader.readString(content);
+        //if ("mime".equals(itemType)) {
+        //    contentType = IsoTypeReader.readString(content);
         //}
     }
 
@@ -49,6 +67,6 @@ public final class ItemInfoEntry extends AbstractFullBox {
     @Override
     public String toString() {
         return "ItemInfoEntry[itemId=" + itemId + ";itemProtectionIndex=" + itemProtectionIndex
-                + ";itemName=" + itemName + ";contentType=" + contentType + "]";
+                + ";itemType=" + itemType + ";itemName=" + itemName + "]";
     }
 }
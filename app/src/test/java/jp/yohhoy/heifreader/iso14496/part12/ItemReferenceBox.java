@@ -0,0 +1,79 @@
+package jp.yohhoy.heifreader.iso14496.part12;
+
+import org.mp4parser.support.AbstractFullBox;
+import org.mp4parser.tools.IsoTypeReader;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * <h1>4cc = "{@value #TYPE}"</h1>
+ */
+public class ItemReferenceBox extends AbstractFullBox {
+    public static final String TYPE = "iref";
+
+    private long contentSize;
+    private List<Reference> references = new ArrayList<>();
+
+    public ItemReferenceBox() {
+        super(TYPE);
+    }
+
+    /**
+     * SingleItemTypeReferenceBox
+     */
+    static public class Reference {
+        public String referenceType;
+        public long from_item_ID;
+        public long[] to_item_IDs;
+    }
+
+    public List<Reference> getReferences() {
+        return references;
+    }
+
+    @Override
+    public void _parseDetails(ByteBuffer content) {
+        contentSize = content.limit();
+
+        parseVersionAndFlags(content);
+        while (content.remaining() > 0) {
+            int start = content.position();
+            long size = IsoTypeReader.readUInt32(content);
+            Reference ref = new Reference();
+            ref.referenceType = IsoTypeReader.read4cc(content);
+            if (getVersion() == 0) {
+                ref.from_item_ID = IsoTypeReader.readUInt16(content);
+            } else {
+                ref.from_item_ID = IsoTypeReader.readUInt32(content);
+            }
+            int reference_count = IsoTypeReader.readUInt16(content);
+            ref.to_item_IDs = new long[reference_count];
+            for (int i = 0; i < reference_count; i++) {
+                if (getVersion() == 0) {
+                    ref.to_item_IDs[i] = IsoTypeReader.readUInt16(content);
+                } else {
+                    ref.to_item_IDs[i] = IsoTypeReader.readUInt32(content);
+                }
+            }
+            references.add(ref);
+            content.position(start + (int) size);
+        }
+    }
+
+    @Override
+    public long getContentSize() {
+        return contentSize;
+    }
+
+    @Override
+    public void getContent(ByteBuffer byteBuffer) {
+        throw new RuntimeException(TYPE + " not implemented");
+    }
+
+    @Override
+    public String toString() {
+        return "ItemReferenceBox";
+    }
+}
@@ -0,0 +1,56 @@
+package jp.yohhoy.heifreader;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * HEIF metadata parsing: in-house box reader vs. mp4parser IsoFile.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HeifParserBenchmark {
+    /**
+     * "lena" or "grid{rows}x{columns}"
+     */
+    @Param({"lena", "grid1x2", "grid8x8"})
+    public String input;
+
+    private ByteBuffer mHeif;
+
+    @Setup
+    public void setup() throws IOException {
+        if ("lena".equals(input)) {
+            mHeif = ByteBuffer.wrap(HeifTestData.readLena());
+        } else {
+            String[] size = input.substring("grid".length()).split("x");
+            mHeif = ByteBuffer.wrap(HeifTestData.buildGrid(Integer.parseInt(size[0]), Integer.parseInt(size[1])));
+        }
+    }
+
+    @Benchmark
+    public HeifInfo parse() throws IOException {
+        return HeifParser.parse(mHeif);
+    }
+
+    @Benchmark
+    public HeifInfo parseIsoFile() throws IOException {
+        return IsoFileHeifParser.parse(mHeif);
+    }
+}
@@ -0,0 +1,84 @@
+package jp.yohhoy.heifreader;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * hvcC to Annex.B bitstream conversion.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HevcBitstreamBenchmark {
+    /**
+     * "lena" (35KB), or "large" which repeats lena bitstream 64 times (2.2MB)
+     */
+    @Param({"lena", "large"})
+    public String input;
+
+    /**
+     * destination buffer, "heap" or "direct" (like MediaCodec input buffer)
+     */
+    @Param({"heap", "direct"})
+    public String output;
+
+    /**
+     * byte length of NAL unit length field
+     */
+    @Param({"4", "2"})
+    public int nalLengthSize;
+
+    /**
+     * number of extents which bitstream is split into
+     */
+    @Param({"1", "16"})
+    public int extents;
+
+    private List<ByteBuffer> mSrc;
+    private ByteBuffer mDst;
+
+    @Setup
+    public void setup() throws IOException {
+        byte[] bitstream = HeifTestData.withNalLengthSize(HeifTestData.lenaBitstream(), nalLengthSize);
+        int repeat = "large".equals(input) ? 64 : 1;
+        ByteBuffer data = ByteBuffer.allocateDirect(bitstream.length * repeat);
+        for (int i = 0; i < repeat; i++) {
+            data.put(bitstream);
+        }
+        data.flip();
+        mSrc = new ArrayList<>();
+        int extentSize = (data.limit() + extents - 1) / extents;
+        for (int pos = 0; pos < data.limit(); pos += extentSize) {
+            data.limit(Math.min(pos + extentSize, data.capacity())).position(pos);
+            mSrc.add(data.slice());
+            data.limit(data.capacity());
+        }
+        int size = HevcBitstream.annexBSize(mSrc, nalLengthSize);
+        mDst = "direct".equals(output) ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+    }
+
+    @Benchmark
+    public ByteBuffer toAnnexB() {
+        mDst.clear();
+        HevcBitstream.toAnnexB(mSrc, nalLengthSize, mDst);
+        return mDst;
+    }
+}
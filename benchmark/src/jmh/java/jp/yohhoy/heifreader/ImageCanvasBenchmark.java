@@ -0,0 +1,79 @@
+package jp.yohhoy.heifreader;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * YUV plane repacking of decoded tiles into canvas.
+ *
+ * Decoded 512x512 tiles are copied into 4096x3072 (8x6 tiles) canvas, like HeifDecoder.copyImage.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ImageCanvasBenchmark {
+    private static final int TILE_SIZE = 512;
+    private static final int COLUMNS = 8;
+    private static final int ROWS = 6;
+    private static final int ROW_ALIGNMENT = 64;
+
+    /**
+     * pixel stride of chroma planes, 1=planar(YV12) or 2=semi-planar(NV12)
+     */
+    @Param({"1", "2"})
+    public int chromaPixelStride;
+
+    private ImageCanvas mCanvas;
+    private ByteBuffer mLuma;
+    private ByteBuffer mChroma;
+    private int mLumaRowStride;
+    private int mChromaRowStride;
+
+    @Setup
+    public void setup() {
+        final int width = TILE_SIZE * COLUMNS;
+        final int height = TILE_SIZE * ROWS;
+        mCanvas = new ImageCanvas(width, height, ImageCanvas.FORMAT_YUV420,
+                new byte[ImageCanvas.requiredSize(width, height, ImageCanvas.FORMAT_YUV420)]);
+        // decoder output planes have padded rows
+        mLumaRowStride = align(TILE_SIZE + 1);
+        mChromaRowStride = align(TILE_SIZE / 2 * chromaPixelStride + 1);
+        mLuma = ByteBuffer.allocateDirect(mLumaRowStride * TILE_SIZE);
+        mChroma = ByteBuffer.allocateDirect(mChromaRowStride * TILE_SIZE / 2);
+    }
+
+    private static int align(int n) {
+        return (n + ROW_ALIGNMENT - 1) / ROW_ALIGNMENT * ROW_ALIGNMENT;
+    }
+
+    @Benchmark
+    public ImageCanvas copyTiles() {
+        for (int row = 0; row < ROWS; row++) {
+            for (int col = 0; col < COLUMNS; col++) {
+                int left = col * TILE_SIZE;
+                int top = row * TILE_SIZE;
+                mCanvas.copyPlane(0, mLuma, TILE_SIZE, TILE_SIZE, mLumaRowStride, 1, left, top);
+                for (int plane = 1; plane <= 2; plane++) {
+                    mCanvas.copyPlane(plane, mChroma, TILE_SIZE / 2, TILE_SIZE / 2,
+                            mChromaRowStride, chromaPixelStride, left / 2, top / 2);
+                }
+            }
+        }
+        return mCanvas;
+    }
+}
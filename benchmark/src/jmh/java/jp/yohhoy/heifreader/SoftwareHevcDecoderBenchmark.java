@@ -0,0 +1,76 @@
+package jp.yohhoy.heifreader;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import jp.yohhoy.heifreader.hevc.SoftwareHevcDecoder;
+
+/**
+ * Pure-Java HEVC decoding of lena_std.heic (512x512).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SoftwareHevcDecoderBenchmark {
+    /**
+     * maximum number of decoding threads
+     */
+    @Param({"1", "4"})
+    public int threads;
+
+    private HevcDecoder mDecoder;
+    private HevcConfig mConfig;
+    private List<ByteBuffer> mBitstream;
+    private ImageCanvas mCanvas;
+    private HevcDecoder.Output mOutput;
+
+    @Setup
+    public void setup() throws IOException {
+        byte[] hvcc = HeifTestData.lenaHvcc();
+        mConfig = HevcConfig.parse(ByteBuffer.wrap(hvcc, 8, hvcc.length - 8));
+        mBitstream = Collections.singletonList(ByteBuffer.wrap(HeifTestData.lenaBitstream()));
+        mDecoder = new SoftwareHevcDecoder(threads);
+        mCanvas = new ImageCanvas(512, 512, ImageCanvas.FORMAT_YUV420,
+                new byte[ImageCanvas.requiredSize(512, 512, ImageCanvas.FORMAT_YUV420)]);
+        mOutput = new HevcDecoder.Output() {
+            @Override
+            public void writeImage(HevcDecoder.Plane[] planes, int width, int height) {
+                for (int i = 0; i < planes.length; i++) {
+                    final int shift = (i == 0) ? 0 : 1;
+                    mCanvas.copyPlane(i, planes[i].buffer, width >> shift, height >> shift,
+                            planes[i].rowStride, planes[i].pixelStride, 0, 0);
+                }
+            }
+        };
+    }
+
+    @TearDown
+    public void tearDown() {
+        mDecoder.close();
+    }
+
+    @Benchmark
+    public ImageCanvas decode() throws IOException {
+        mDecoder.decode(mConfig, 512, 512, mBitstream, HevcDecoder.FORMAT_YUV420, mOutput);
+        return mCanvas;
+    }
+}
@@ -0,0 +1,126 @@
+package jp.yohhoy.heifreader;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * YUV420 to ARGB conversion in pure Java.
+ *
+ * {@link YuvConverter} reads strided planes like decoder output, and writes ARGB in a single pass.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class YuvToRgbBenchmark {
+    /**
+     * "{width}x{height}"
+     */
+    @Param({"512x512", "4096x3072"})
+    public String size;
+
+    private ImageCanvas mCanvas;
+    private HevcDecoder.Plane[] mPlanes;
+    private int[] mArgb;
+    private ImageCanvas mArgbCanvas;
+    private ImageCanvas mSampledCanvas;
+    private ForkJoinPool mPool;
+
+    @Setup
+    public void setup() {
+        String[] wh = size.split("x");
+        final int width = Integer.parseInt(wh[0]);
+        final int height = Integer.parseInt(wh[1]);
+        byte[] data = new byte[ImageCanvas.requiredSize(width, height, ImageCanvas.FORMAT_YUV420)];
+        new Random(0).nextBytes(data);
+        mCanvas = new ImageCanvas(width, height, ImageCanvas.FORMAT_YUV420, data);
+        mArgb = new int[width * height];
+        mArgbCanvas = new ImageCanvas(width, height, mArgb, 0, width);
+        mSampledCanvas = new ImageCanvas(width / 4, height / 4, new int[(width / 4) * (height / 4)], 0, width / 4);
+        // planes of the canvas
+        final int chromaSize = (width / 2) * (height / 2);
+        mPlanes = new HevcDecoder.Plane[]{
+                new HevcDecoder.Plane(ByteBuffer.wrap(data, 0, width * height).slice(), width, 1),
+                new HevcDecoder.Plane(ByteBuffer.wrap(data, width * height, chromaSize).slice(), width / 2, 1),
+                new HevcDecoder.Plane(ByteBuffer.wrap(data, width * height + chromaSize, chromaSize).slice(), width / 2, 1),
+        };
+        mPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    }
+
+    @TearDown
+    public void tearDown() {
+        mPool.shutdown();
+    }
+
+    @Benchmark
+    public int[] reference() {
+        convertReference(mCanvas, mArgb);
+        return mArgb;
+    }
+
+    @Benchmark
+    public int[] converter() {
+        YuvConverter.BT601_LIMITED.convert(mPlanes, mCanvas.width, mCanvas.height, mArgbCanvas, 0, 0, null);
+        return mArgb;
+    }
+
+    @Benchmark
+    public int[] converterForkJoin() {
+        YuvConverter.BT601_LIMITED.convert(mPlanes, mCanvas.width, mCanvas.height, mArgbCanvas, 0, 0, mPool);
+        return mArgb;
+    }
+
+    /**
+     * 1/4 downsampling fused into conversion
+     */
+    @Benchmark
+    public int[] converterSampleSize4() {
+        YuvConverter.BT601_LIMITED.convert(mPlanes, mCanvas.width, mCanvas.height, mSampledCanvas, 0, 0, 4, null);
+        return mSampledCanvas.argb;
+    }
+
+    /**
+     * Straightforward port of former yuv2rgb.rs RenderScript kernel. (rsYuvToRGBA_uchar4, BT.601 limited range)
+     */
+    static void convertReference(ImageCanvas canvas, int[] argb) {
+        final int width = canvas.width;
+        final int height = canvas.height;
+        final int chromaWidth = width / 2;
+        final int uOffset = width * height;
+        final int vOffset = uOffset + chromaWidth * (height / 2);
+        final byte[] data = canvas.data;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int c = (y / 2) * chromaWidth + (x / 2);
+                int luma = (data[y * width + x] & 0xff) - 16;
+                int u = (data[uOffset + c] & 0xff) - 128;
+                int v = (data[vOffset + c] & 0xff) - 128;
+                int r = clamp((luma * 298 + v * 409 + 128) >> 8);
+                int g = clamp((luma * 298 - u * 100 - v * 208 + 128) >> 8);
+                int b = clamp((luma * 298 + u * 516 + 128) >> 8);
+                argb[y * width + x] = 0xff000000 | (r << 16) | (g << 8) | b;
+            }
+        }
+    }
+
+    private static int clamp(int v) {
+        return (v < 0) ? 0 : (v > 255) ? 255 : v;
+    }
+}